@@ -79,6 +79,7 @@ public class AnalyticsActivator extends KillbillActivatorBase {
     private AnalyticsListener analyticsListener;
     private JobsScheduler jobsScheduler;
     private ReportsUserApi reportsUserApi;
+    private AnalyticsUserApi analyticsUserApi;
     private Clock killbillClock;
 
     @Override
@@ -137,11 +138,14 @@ public class AnalyticsActivator extends KillbillActivatorBase {
                                                   analyticsConfigurationHandler,
                                                   notificationQueueService);
 
-        jobsScheduler = new JobsScheduler(dataSource, metricRegistry, killbillClock, notificationQueueService);
+        // Maximum number of report refreshes running at the same time on this node
+        final int maxConcurrentRefreshes = Integer.parseInt(configProperties.getProperties().getProperty("org.killbill.analytics.reports.maxConcurrentRefreshes",
+                                                                                                        String.valueOf(JobsScheduler.DEFAULT_MAX_CONCURRENT_REFRESHES)));
+        jobsScheduler = new JobsScheduler(dataSource, metricRegistry, killbillClock, notificationQueueService, maxConcurrentRefreshes);
 
         final ReportsConfiguration reportsConfiguration = new ReportsConfiguration(dataSource, metricRegistry, jobsScheduler);
 
-        final AnalyticsUserApi analyticsUserApi = new AnalyticsUserApi(roOSGIkillbillAPI, dataSource, metricRegistry, configProperties, executor, killbillClock, analyticsConfigurationHandler, analyticsListener);
+        analyticsUserApi = new AnalyticsUserApi(roOSGIkillbillAPI, dataSource, metricRegistry, configProperties, executor, killbillClock, locker, analyticsConfigurationHandler);
         reportsUserApi = new ReportsUserApi(roOSGIkillbillAPI, dataSource, metricRegistry, configProperties, dbEngine, reportsConfiguration, jobsScheduler, analyticsConfigurationHandler);
 
         final AnalyticsHealthcheck healthcheck = new AnalyticsHealthcheck(analyticsListener, jobsScheduler);
@@ -186,6 +190,9 @@ public class AnalyticsActivator extends KillbillActivatorBase {
         if (reportsUserApi != null) {
             reportsUserApi.shutdownNow();
         }
+        if (analyticsUserApi != null) {
+            analyticsUserApi.shutdownNow();
+        }
         super.stop(context);
     }
 
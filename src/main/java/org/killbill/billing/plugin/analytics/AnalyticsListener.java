@@ -22,7 +22,9 @@ package org.killbill.billing.plugin.analytics;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
@@ -43,12 +45,16 @@ import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHand
 import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessAccountDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessAccountTransitionDao;
+import org.killbill.billing.plugin.analytics.dao.BusinessAnalyticsSqlDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessFieldDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessInvoiceAndPaymentDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessInvoiceDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessSubscriptionTransitionDao;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
+import org.killbill.billing.plugin.analytics.dao.WriteBehindPipeline;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.TenantCatalogCache;
 import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.util.api.RecordIdApi;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -65,6 +71,7 @@ import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueAlreadyExists;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.skife.jdbi.v2.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,17 +80,21 @@ import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 
 import static org.killbill.billing.notification.plugin.api.ExtBusEventType.PAYMENT_SUCCESS;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_CHANGE;
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.TENANT_CONFIG_DELETION;
 import static org.killbill.billing.plugin.analytics.AnalyticsActivator.ANALYTICS_QUEUE_SERVICE;
 
 public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbillEventHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyticsListener.class);
 
-    private static final String ANALYTICS_REFRESH_LOCK_NAME = "ANALYTICS_REFRESH";
+    // Serializes the refreshes of an account, see also AllAccountsRebuilder
+    public static final String ANALYTICS_REFRESH_LOCK_NAME = "ANALYTICS_REFRESH";
 
     private final OSGIKillbillAPI osgiKillbillAPI;
     private final OSGIConfigPropertiesService osgiConfigPropertiesService;
@@ -94,10 +105,14 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
     private final BusinessFieldDao bFieldDao;
     private final AllBusinessObjectsDao allBusinessObjectsDao;
     private final CurrencyConversionDao currencyConversionDao;
+    private final RecordIdDao recordIdDao;
+    // Null unless writes are delegated to the write-behind pipeline
+    private final WriteBehindPipeline writeBehindPipeline;
     private final NotificationQueue jobQueue;
     private final GlobalLocker locker;
     private final Clock clock;
     private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+    private final PendingAnalyticsJobs pendingJobs = new PendingAnalyticsJobs();
 
     public AnalyticsListener(final OSGIKillbillAPI osgiKillbillAPI,
                              final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -114,14 +129,16 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         this.clock = clock;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
 
-        final BusinessAccountDao bacDao = new BusinessAccountDao(osgiKillbillDataSource, metricRegistry);
-        this.bstDao = new BusinessSubscriptionTransitionDao(osgiKillbillDataSource, metricRegistry, bacDao, executor);
-        this.binDao = new BusinessInvoiceDao(osgiKillbillDataSource, metricRegistry, bacDao, executor);
-        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(osgiKillbillDataSource, metricRegistry, bacDao, executor);
-        this.bosDao = new BusinessAccountTransitionDao(osgiKillbillDataSource, metricRegistry);
-        this.bFieldDao = new BusinessFieldDao(osgiKillbillDataSource, metricRegistry);
-        this.allBusinessObjectsDao = new AllBusinessObjectsDao(osgiKillbillDataSource, metricRegistry, executor);
+        final BusinessAccountDao bacDao = new BusinessAccountDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.bstDao = new BusinessSubscriptionTransitionDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, bacDao, executor);
+        this.binDao = new BusinessInvoiceDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, bacDao, executor);
+        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, bacDao, executor);
+        this.bosDao = new BusinessAccountTransitionDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.bFieldDao = new BusinessFieldDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.allBusinessObjectsDao = new AllBusinessObjectsDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, executor);
         this.currencyConversionDao = new CurrencyConversionDao(osgiKillbillDataSource, metricRegistry);
+        this.recordIdDao = new RecordIdDao(osgiKillbillDataSource, metricRegistry);
+        this.writeBehindPipeline = WriteBehindPipeline.isEnabled(osgiConfigPropertiesService) ? new WriteBehindPipeline(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, locker) : null;
 
         final NotificationQueueHandler notificationQueueHandler = new NotificationQueueHandler() {
 
@@ -133,6 +150,7 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
                 }
 
                 final AnalyticsJob job = (AnalyticsJob) eventJson;
+                pendingJobs.remove(searchKey1, futureUserToken);
 
                 // We need to check again if there is a duplicate because it's possible that 2 events were processed at the same time in handleKillbillEvent (e.g. ACCOUNT_CREATION and ACCOUNT_CHANGE)
                 if (!shouldRun(job, futureUserToken, searchKey1, searchKey2)) {
@@ -157,7 +175,12 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
     }
 
     public boolean shutdownNow() {
-        return jobQueue.stopQueue();
+        final boolean stopped = jobQueue.stopQueue();
+        // Flush the writes of the jobs already processed
+        if (writeBehindPipeline != null && !writeBehindPipeline.shutdown()) {
+            logger.warn("Timed out while flushing the Analytics write-behind pipeline: pending refreshes will be retried");
+        }
+        return stopped;
     }
 
     public boolean isStarted() {
@@ -166,6 +189,11 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
 
     @Override
     public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        // The catalog might have been uploaded
+        if (killbillEvent.getEventType() == TENANT_CONFIG_CHANGE || killbillEvent.getEventType() == TENANT_CONFIG_DELETION) {
+            TenantCatalogCache.invalidate(killbillEvent.getTenantId());
+        }
+
         // Ignore non account-specific events (e.g. TENANT_CONFIG_CHANGE)
         if (killbillEvent.getAccountId() == null) {
             return;
@@ -229,7 +257,12 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         }
 
         try {
-            jobQueue.recordFutureNotification(computeFutureNotificationTime(analyticsConfiguration), job, UUID.randomUUID(), accountRecordId, tenantRecordId);
+            final DateTime effectiveDate = computeFutureNotificationTime(analyticsConfiguration);
+            final UUID userToken = UUID.randomUUID();
+            jobQueue.recordFutureNotification(effectiveDate, job, userToken, accountRecordId, tenantRecordId);
+            if (accountRecordId != null) {
+                pendingJobs.add(accountRecordId, userToken, job, effectiveDate, clock.getUTCNow());
+            }
             return true;
         } catch (final IOException e) {
             logger.warn("Unable to record notification for job {}", job);
@@ -239,6 +272,11 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
 
     // Is there already a future notification overlapping this new job?
     private boolean futureOverlappingJobAlreadyScheduled(final AnalyticsJob newJob, final Long accountRecordId, final Long tenantRecordId) {
+        // Avoid the lookup in the queue table if this node already scheduled one
+        if (pendingJobs.hasPendingJob(accountRecordId, null, overlappingJobPredicate(newJob), clock.getUTCNow())) {
+            return true;
+        }
+
         // We don't look at IN_PROCESSING notifications here, as we want to make sure the latest state is refreshed
         final Iterable<NotificationEventWithMetadata<AnalyticsJob>> futureNotificationForSearchKeys = jobQueue.getFutureNotificationForSearchKeys(accountRecordId, tenantRecordId);
         final Iterator<NotificationEventWithMetadata<AnalyticsJob>> iterator = futureNotificationForSearchKeys.iterator();
@@ -255,6 +293,11 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
 
     // Should this IN_PROCESSING job actually run?
     private boolean shouldRun(final AnalyticsJob inProcessingJob, final UUID existingJobUserToken, final Long accountRecordId, final Long tenantRecordId) {
+        // A pending job, scheduled after this one by this node, will take care of it (no need to look at the queue table)
+        if (pendingJobs.hasPendingJob(accountRecordId, existingJobUserToken, overlappingJobPredicate(inProcessingJob), clock.getUTCNow())) {
+            return false;
+        }
+
         final Iterable<NotificationEventWithMetadata<AnalyticsJob>> futureNotificationForSearchKeys = jobQueue.getFutureOrInProcessingNotificationForSearchKeys(accountRecordId, tenantRecordId);
         final Iterator<NotificationEventWithMetadata<AnalyticsJob>> jobsIterator = futureNotificationForSearchKeys.iterator();
         final Iterator<NotificationEventWithMetadata<AnalyticsJob>> iterator = findScheduledOverlappingJobs(inProcessingJob, jobsIterator);
@@ -277,6 +320,15 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         }
     }
 
+    private Predicate<AnalyticsJob> overlappingJobPredicate(final AnalyticsJob job) {
+        return new Predicate<AnalyticsJob>() {
+            @Override
+            public boolean apply(final AnalyticsJob existingJob) {
+                return jobsOverlap(job, existingJob);
+            }
+        };
+    }
+
     private Iterator<NotificationEventWithMetadata<AnalyticsJob>> findScheduledOverlappingJobs(final AnalyticsJob job, final Iterator<NotificationEventWithMetadata<AnalyticsJob>> existingScheduledJobs) {
         return Iterators.<NotificationEventWithMetadata<AnalyticsJob>>filter(existingScheduledJobs,
                                                                              new Predicate<NotificationEventWithMetadata<AnalyticsJob>>() {
@@ -327,6 +379,11 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
             }
         }
 
+        if (writeBehindPipeline != null) {
+            writeBehind(job, analyticsConfiguration);
+            return;
+        }
+
         GlobalLock lock = null;
         try {
             lock = locker.lockWithNumberOfTries(ANALYTICS_REFRESH_LOCK_NAME, job.getAccountId().toString(), analyticsConfiguration.lockAttemptRetries);
@@ -346,7 +403,7 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         }
 
         final CallContext callContext = new AnalyticsCallContext(job, clock);
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, currencyConversionDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, currencyConversionDao, recordIdDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
 
         // Pre 7.2.4, the group wasn't stored in the event
         final Group group = MoreObjects.firstNonNull(job.getGroup(), AnalyticsJobHierarchy.fromEventType(job.getEventType()));
@@ -377,6 +434,69 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         logger.info("Finished Analytics refresh for account {}", businessContextFactory.getAccountId());
     }
 
+    // The notification is only acknowledged once the records are committed: failures are retried, like synchronous refreshes
+    private void writeBehind(final AnalyticsJob job, final AnalyticsConfiguration analyticsConfiguration) throws AnalyticsRefreshException {
+        if (job.getEventType() == null) {
+            return;
+        }
+
+        try {
+            // The records are computed in this thread, with the lock, which is held until they are committed
+            writeBehindPipeline.write(job.getAccountId(),
+                                      analyticsConfiguration.lockAttemptRetries,
+                                      new Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>>() {
+                                          @Override
+                                          public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() throws AnalyticsRefreshException {
+                                              return prepareUpdates(job);
+                                          }
+                                      });
+        } catch (final LockFailedException e) {
+            if (scheduleAnalyticsJob(job, analyticsConfiguration)) {
+                logger.info("Unable to lock account {}, rescheduling its Analytics refresh", job.getAccountId());
+                return;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Invoked by the write-behind pipeline, in the notification queue thread and with the lock
+    private List<Transaction<Void, BusinessAnalyticsSqlDao>> prepareUpdates(final AnalyticsJob job) throws AnalyticsRefreshException {
+        final CallContext callContext = new AnalyticsCallContext(job, clock);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, currencyConversionDao, recordIdDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+
+        // High cardinality accounts compute their records within the transactions (page by page): they bypass the writers
+        if (businessContextFactory.highCardinalityAccount()) {
+            handleAnalyticsJobWithLock(job);
+            return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of();
+        }
+
+        final Group group = MoreObjects.firstNonNull(job.getGroup(), AnalyticsJobHierarchy.fromEventType(job.getEventType()));
+        logger.info("Starting {} Analytics refresh for account {}", group, businessContextFactory.getAccountId());
+        return prepareUpdates(job, group, businessContextFactory);
+    }
+
+    // Same as the switch of handleAnalyticsJobWithLock, without writing the records
+    private List<Transaction<Void, BusinessAnalyticsSqlDao>> prepareUpdates(final AnalyticsJob job, final Group group, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        switch (group) {
+            case ALL:
+                return allBusinessObjectsDao.prepareUpdates(businessContextFactory);
+            case SUBSCRIPTIONS:
+                final Transaction<Void, BusinessAnalyticsSqlDao> bstTransaction = bstDao.prepareUpdate(job.getObjectId(), job.getObjectType(), businessContextFactory);
+                return bstTransaction == null ? ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of() : ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(bstTransaction);
+            case OVERDUE:
+                return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(bosDao.prepareUpdate(businessContextFactory));
+            case INVOICES:
+                return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(binDao.prepareUpdate(job.getObjectId(), businessContextFactory));
+            case INVOICE_AND_PAYMENTS:
+                return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(binAndBipDao.prepareUpdate(businessContextFactory));
+            case FIELDS:
+                return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(bFieldDao.prepareUpdate(businessContextFactory));
+            case OTHER:
+            default:
+                return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of();
+        }
+    }
+
     private DateTime computeFutureNotificationTime(final AnalyticsConfiguration analyticsConfiguration) {
         return clock.getUTCNow().plusSeconds(analyticsConfiguration.refreshDelaySeconds);
     }
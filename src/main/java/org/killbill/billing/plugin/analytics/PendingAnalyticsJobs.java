@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Node-local index of the refresh jobs scheduled by this node, per account record id.
+ * <p>
+ * A job is only known to be still pending in the queue until its effective date: after that, it may be
+ * (or have been) processed by any node. Entries are therefore only trusted until then, and periodically purged.
+ * The index is a best-effort optimization: a miss only means the queue table has to be consulted.
+ */
+public class PendingAnalyticsJobs {
+
+    private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+
+    private final ConcurrentMap<Long, Map<UUID, PendingJob>> pendingJobsPerAccount = new ConcurrentHashMap<Long, Map<UUID, PendingJob>>();
+    private final AtomicLong nextSweepMillis = new AtomicLong(0);
+
+    public void add(final Long accountRecordId, final UUID userToken, final AnalyticsJob job, final DateTime effectiveDate, final DateTime now) {
+        sweepIfNeeded(now);
+
+        Map<UUID, PendingJob> pendingJobs = pendingJobsPerAccount.get(accountRecordId);
+        if (pendingJobs == null) {
+            final Map<UUID, PendingJob> newPendingJobs = new ConcurrentHashMap<UUID, PendingJob>();
+            pendingJobs = pendingJobsPerAccount.putIfAbsent(accountRecordId, newPendingJobs);
+            if (pendingJobs == null) {
+                pendingJobs = newPendingJobs;
+            }
+        }
+        pendingJobs.put(userToken, new PendingJob(job, effectiveDate));
+    }
+
+    public void remove(@Nullable final Long accountRecordId, final UUID userToken) {
+        if (accountRecordId == null) {
+            return;
+        }
+
+        final Map<UUID, PendingJob> pendingJobs = pendingJobsPerAccount.get(accountRecordId);
+        if (pendingJobs == null) {
+            return;
+        }
+
+        pendingJobs.remove(userToken);
+        if (pendingJobs.isEmpty()) {
+            // Racy with add, but losing an entry only results in a miss
+            pendingJobsPerAccount.remove(accountRecordId, pendingJobs);
+        }
+    }
+
+    /**
+     * Is there a job, scheduled by this node and still pending, matching the predicate?
+     *
+     * @param accountRecordId   account record id
+     * @param excludedUserToken optional user token of a job to ignore
+     * @param overlaps          predicate on the pending jobs
+     * @param now               current time
+     * @return true if such job exists, false if unknown
+     */
+    public boolean hasPendingJob(@Nullable final Long accountRecordId, @Nullable final UUID excludedUserToken, final Predicate<AnalyticsJob> overlaps, final DateTime now) {
+        if (accountRecordId == null) {
+            return false;
+        }
+
+        final Map<UUID, PendingJob> pendingJobs = pendingJobsPerAccount.get(accountRecordId);
+        if (pendingJobs == null) {
+            return false;
+        }
+
+        for (final Map.Entry<UUID, PendingJob> entry : pendingJobs.entrySet()) {
+            if (entry.getKey().equals(excludedUserToken)) {
+                continue;
+            }
+
+            final PendingJob pendingJob = entry.getValue();
+            if (pendingJob.effectiveDate.isAfter(now) && overlaps.apply(pendingJob.job)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sweepIfNeeded(final DateTime now) {
+        final long nextSweep = nextSweepMillis.get();
+        if (now.getMillis() < nextSweep || !nextSweepMillis.compareAndSet(nextSweep, now.getMillis() + SWEEP_INTERVAL_MILLIS)) {
+            return;
+        }
+
+        final Iterator<Map<UUID, PendingJob>> pendingJobsIterator = pendingJobsPerAccount.values().iterator();
+        while (pendingJobsIterator.hasNext()) {
+            final Map<UUID, PendingJob> pendingJobs = pendingJobsIterator.next();
+            final Iterator<PendingJob> iterator = pendingJobs.values().iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().effectiveDate.isAfter(now)) {
+                    iterator.remove();
+                }
+            }
+            if (pendingJobs.isEmpty()) {
+                pendingJobsIterator.remove();
+            }
+        }
+    }
+
+    private static final class PendingJob {
+
+        private final AnalyticsJob job;
+        private final DateTime effectiveDate;
+
+        private PendingJob(final AnalyticsJob job, final DateTime effectiveDate) {
+            this.job = job;
+            this.effectiveDate = effectiveDate;
+        }
+    }
+}
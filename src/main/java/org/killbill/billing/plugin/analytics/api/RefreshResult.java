@@ -23,10 +23,23 @@ public class RefreshResult {
 	
 	private final Long nbAccounts;
 	private final Long nbRefreshes;
+	// Bulk rebuild progress (see AllAccountsRebuilder)
+	private final String state;
+	private final Long nbErrors;
+	private final Double accountsPerSecond;
+	private final Long etaSeconds;
 
 	public RefreshResult (Long nbAccounts, Long nbRefreshes) {
+		this(nbAccounts, nbRefreshes, null, 0L, null, null);
+	}
+
+	public RefreshResult (Long nbAccounts, Long nbRefreshes, String state, Long nbErrors, Double accountsPerSecond, Long etaSeconds) {
 		this.nbAccounts = nbAccounts;
 		this.nbRefreshes = nbRefreshes;
+		this.state = state;
+		this.nbErrors = nbErrors;
+		this.accountsPerSecond = accountsPerSecond;
+		this.etaSeconds = etaSeconds;
 	}
 	
 	public Long getNbAccounts() {
@@ -37,4 +50,20 @@ public class RefreshResult {
 		return nbRefreshes;
 	}
 
+	public String getState() {
+		return state;
+	}
+
+	public Long getNbErrors() {
+		return nbErrors;
+	}
+
+	public Double getAccountsPerSecond() {
+		return accountsPerSecond;
+	}
+
+	public Long getEtaSeconds() {
+		return etaSeconds;
+	}
+
 }
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.api.user;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
+import org.killbill.billing.plugin.analytics.api.RefreshResult;
+import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfiguration;
+import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHandler;
+import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
+import org.killbill.billing.plugin.analytics.dao.BusinessRebuildDao;
+import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao.RebuildState;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.clock.Clock;
+import org.killbill.commons.locker.GlobalLock;
+import org.killbill.commons.locker.GlobalLocker;
+import org.killbill.commons.locker.LockFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.killbill.billing.plugin.analytics.AnalyticsListener.ANALYTICS_REFRESH_LOCK_NAME;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Rebuild of all accounts of a tenant, in the background.
+ * <p>
+ * Accounts are walked by record id (keyset pagination) and refreshed directly through AllBusinessObjectsDao
+ * on a bounded pool, instead of going through the notification queue. Each account is refreshed under the same
+ * per-account lock as the notification queue refreshes (see AnalyticsListener), so both never interleave. Progress
+ * is checkpointed after each page in analytics_rebuild_checkpoints, so that an interrupted rebuild resumes where it stopped.
+ * <p>
+ * The node running the rebuild of a tenant holds a global lock for its whole duration: a RUNNING checkpoint whose lock
+ * is free was left behind by a node which died, and is resumed.
+ */
+public class AllAccountsRebuilder {
+
+    private static final String ANALYTICS_REBUILD_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.rebuild.nbThreads";
+    private static final String ANALYTICS_REBUILD_PAGE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.rebuild.pageSize";
+    private static final String ANALYTICS_REBUILD_MAX_ACCOUNTS_PER_SECOND_PROPERTY = "org.killbill.billing.plugin.analytics.rebuild.maxAccountsPerSecond";
+
+    private static final int DEFAULT_NB_THREADS = 4;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_CONCURRENT_REBUILDS = 10;
+
+    @VisibleForTesting
+    static final String ANALYTICS_REBUILD_LOCK_NAME = "ANALYTICS_REBUILD";
+
+    private static final Logger logger = LoggerFactory.getLogger(AllAccountsRebuilder.class);
+
+    private final OSGIKillbillAPI osgiKillbillAPI;
+    private final OSGIConfigPropertiesService osgiConfigPropertiesService;
+    private final Clock clock;
+    private final GlobalLocker locker;
+    private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+    private final AllBusinessObjectsDao allBusinessObjectsDao;
+    private final CurrencyConversionDao currencyConversionDao;
+    private final RecordIdDao recordIdDao;
+    private final BusinessRebuildDao rebuildDao;
+    private final int pageSize;
+    // DB write budget
+    private final RateLimiter rateLimiter;
+    private final ExecutorService rebuildsExecutor;
+    private final ExecutorService accountsExecutor;
+    // Rebuilds running on this node, per tenant record id
+    private final Map<Long, RebuildProgress> runningRebuilds = new HashMap<Long, RebuildProgress>();
+
+    public AllAccountsRebuilder(final OSGIKillbillAPI osgiKillbillAPI,
+                                final OSGIKillbillDataSource osgiKillbillDataSource,
+                                final OSGIMetricRegistry metricRegistry,
+                                final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                final Clock clock,
+                                final GlobalLocker locker,
+                                final AnalyticsConfigurationHandler analyticsConfigurationHandler,
+                                final AllBusinessObjectsDao allBusinessObjectsDao,
+                                final CurrencyConversionDao currencyConversionDao) {
+        this.osgiKillbillAPI = osgiKillbillAPI;
+        this.osgiConfigPropertiesService = osgiConfigPropertiesService;
+        this.clock = clock;
+        this.locker = locker;
+        this.analyticsConfigurationHandler = analyticsConfigurationHandler;
+        this.allBusinessObjectsDao = allBusinessObjectsDao;
+        this.currencyConversionDao = currencyConversionDao;
+        this.recordIdDao = new RecordIdDao(osgiKillbillDataSource, metricRegistry);
+        this.rebuildDao = new BusinessRebuildDao(osgiKillbillDataSource, metricRegistry);
+
+        final String pageSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REBUILD_PAGE_SIZE_PROPERTY));
+        this.pageSize = pageSizeMaybeNull == null ? DEFAULT_PAGE_SIZE : Integer.valueOf(pageSizeMaybeNull);
+        final String maxAccountsPerSecondMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REBUILD_MAX_ACCOUNTS_PER_SECOND_PROPERTY));
+        this.rateLimiter = maxAccountsPerSecondMaybeNull == null || Double.valueOf(maxAccountsPerSecondMaybeNull) <= 0 ? null : RateLimiter.create(Double.valueOf(maxAccountsPerSecondMaybeNull));
+        final String nbThreadsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REBUILD_NB_THREADS_PROPERTY));
+        final int nbThreads = nbThreadsMaybeNull == null ? DEFAULT_NB_THREADS : Integer.valueOf(nbThreadsMaybeNull);
+
+        this.rebuildsExecutor = BusinessExecutor.newCachedThreadPool(MAX_CONCURRENT_REBUILDS, "osgi-analytics-rebuild-coordinator");
+        // Because of the CallerRunsPolicy, the coordinator will also refresh accounts when all threads are busy
+        this.accountsExecutor = BusinessExecutor.newCachedThreadPool(nbThreads, "osgi-analytics-rebuild");
+    }
+
+    /**
+     * Start (or resume) the rebuild of all accounts of the tenant. If a rebuild is already in progress, this simply
+     * returns its progress.
+     *
+     * @param context call context
+     * @return progress of the rebuild
+     */
+    public RefreshResult rebuildAllAccounts(final CallContext context) {
+        final Long tenantRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(context.getTenantId(), ObjectType.TENANT, context);
+        final DateTime now = clock.getUTCNow();
+
+        final RebuildProgress progress;
+        final boolean resume;
+        synchronized (runningRebuilds) {
+            final RebuildProgress runningRebuild = runningRebuilds.get(tenantRecordId);
+            if (runningRebuild != null) {
+                return runningRebuild.toRefreshResult(now);
+            }
+
+            final BusinessRebuildCheckpointModelDao checkpoint = rebuildDao.getCheckpoint(tenantRecordId);
+            if (!locker.isFree(ANALYTICS_REBUILD_LOCK_NAME, tenantRecordId.toString())) {
+                // In progress on another node
+                return checkpoint == null ? new RebuildProgress(0L, 0L, 0L, 0L, now).toRefreshResult(now) : toRefreshResult(checkpoint);
+            }
+
+            resume = checkpoint != null && checkpoint.getState() != RebuildState.COMPLETED;
+            if (resume) {
+                logger.info("Resuming {} Analytics refresh for all accounts after accountRecordId {} ({}/{} accounts refreshed)",
+                            checkpoint.getState(), checkpoint.getLastAccountRecordId(), checkpoint.getNbRefreshes() + checkpoint.getNbErrors(), checkpoint.getNbAccounts());
+                progress = new RebuildProgress(checkpoint.getNbAccounts(), checkpoint.getLastAccountRecordId(), checkpoint.getNbRefreshes(), checkpoint.getNbErrors(), now);
+            } else {
+                final Long nbAccounts = rebuildDao.getNbAccounts(tenantRecordId);
+                logger.info("Starting Analytics refresh for all accounts: total accounts to be refreshed {}", nbAccounts);
+                progress = new RebuildProgress(nbAccounts, 0L, 0L, 0L, now);
+            }
+            runningRebuilds.put(tenantRecordId, progress);
+        }
+
+        rebuildsExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuildAllAccountsWithLock(tenantRecordId, progress, resume, context);
+                } finally {
+                    synchronized (runningRebuilds) {
+                        runningRebuilds.remove(tenantRecordId);
+                    }
+                }
+            }
+        });
+
+        return progress.toRefreshResult(now);
+    }
+
+    public void shutdownNow() {
+        rebuildsExecutor.shutdownNow();
+        accountsExecutor.shutdownNow();
+    }
+
+    private void rebuildAllAccountsWithLock(final Long tenantRecordId, final RebuildProgress progress, final boolean resume, final CallContext context) {
+        final GlobalLock lock;
+        try {
+            // Held for the whole rebuild, to prevent other nodes from running it concurrently
+            lock = locker.lockWithNumberOfTries(ANALYTICS_REBUILD_LOCK_NAME, tenantRecordId.toString(), 1);
+        } catch (final LockFailedException e) {
+            logger.info("Analytics refresh for all accounts already in progress on another node");
+            return;
+        }
+
+        boolean interrupted = false;
+        try {
+            interrupted = rebuildAllAccounts(tenantRecordId, progress, resume, context);
+        } finally {
+            lock.release();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Returns true if the rebuild was interrupted
+    private boolean rebuildAllAccounts(final Long tenantRecordId, final RebuildProgress progress, final boolean resume, final CallContext context) {
+        Long lastAccountRecordId = progress.lastAccountRecordId;
+        try {
+            if (resume) {
+                rebuildDao.updateCheckpoint(tenantRecordId, RebuildState.RUNNING, lastAccountRecordId, progress.nbRefreshes.get(), progress.nbErrors.get(), clock.getUTCNow());
+            } else {
+                rebuildDao.startCheckpoint(tenantRecordId, progress.nbAccounts, progress.startDate);
+            }
+
+            while (true) {
+                final List<BusinessRebuildAccountModelDao> accounts = rebuildDao.getAccountsAfterRecordId(tenantRecordId, lastAccountRecordId, pageSize);
+                if (accounts.isEmpty()) {
+                    break;
+                }
+
+                final List<FutureTask<Void>> refreshes = new LinkedList<FutureTask<Void>>();
+                for (final BusinessRebuildAccountModelDao account : accounts) {
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire();
+                    }
+
+                    final FutureTask<Void> refresh = new FutureTask<Void>(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            rebuildAccount(account.getId(), progress, context);
+                            return null;
+                        }
+                    });
+                    accountsExecutor.execute(refresh);
+                    refreshes.add(refresh);
+                }
+                for (final FutureTask<Void> refresh : refreshes) {
+                    refresh.get();
+                }
+
+                // All accounts up to that record id have been refreshed
+                lastAccountRecordId = accounts.get(accounts.size() - 1).getRecordId();
+                rebuildDao.updateCheckpoint(tenantRecordId, RebuildState.RUNNING, lastAccountRecordId, progress.nbRefreshes.get(), progress.nbErrors.get(), clock.getUTCNow());
+            }
+
+            rebuildDao.updateCheckpoint(tenantRecordId, RebuildState.COMPLETED, lastAccountRecordId, progress.nbRefreshes.get(), progress.nbErrors.get(), clock.getUTCNow());
+            logger.info("Finished Analytics refresh for all accounts: {} accounts refreshed, {} errors", progress.nbRefreshes.get(), progress.nbErrors.get());
+            return false;
+        } catch (final InterruptedException e) {
+            logger.warn("Interrupted Analytics refresh for all accounts after accountRecordId {}", lastAccountRecordId);
+            stopCheckpoint(tenantRecordId, RebuildState.STOPPED, lastAccountRecordId, progress);
+            return true;
+        } catch (final ExecutionException e) {
+            logger.warn("Aborted Analytics refresh for all accounts after accountRecordId {}", lastAccountRecordId, e);
+            stopCheckpoint(tenantRecordId, RebuildState.FAILED, lastAccountRecordId, progress);
+            return false;
+        } catch (final RuntimeException e) {
+            logger.warn("Aborted Analytics refresh for all accounts after accountRecordId {}", lastAccountRecordId, e);
+            stopCheckpoint(tenantRecordId, RebuildState.FAILED, lastAccountRecordId, progress);
+            return false;
+        }
+    }
+
+    // The next rebuild request will resume from that checkpoint
+    private void stopCheckpoint(final Long tenantRecordId, final RebuildState state, final Long lastAccountRecordId, final RebuildProgress progress) {
+        try {
+            rebuildDao.updateCheckpoint(tenantRecordId, state, lastAccountRecordId, progress.nbRefreshes.get(), progress.nbErrors.get(), clock.getUTCNow());
+        } catch (final RuntimeException e) {
+            logger.warn("Unable to checkpoint Analytics refresh for all accounts after accountRecordId {}", lastAccountRecordId, e);
+        }
+    }
+
+    @VisibleForTesting
+    void rebuildAccount(final UUID accountId, final RebuildProgress progress, final CallContext context) {
+        final DateTime now = clock.getUTCNow();
+        final CallContext accountContext = new PluginCallContext(UUID.randomUUID(),
+                                                                 context.getUserName(),
+                                                                 context.getCallOrigin(),
+                                                                 context.getUserType(),
+                                                                 context.getReasonCode(),
+                                                                 context.getComments(),
+                                                                 now,
+                                                                 now,
+                                                                 accountId,
+                                                                 context.getTenantId());
+        final AnalyticsConfiguration analyticsConfiguration = analyticsConfigurationHandler.getConfigurable(context.getTenantId());
+
+        GlobalLock lock = null;
+        try {
+            // Wait for any in-flight refresh of that account
+            lock = locker.lockWithNumberOfTries(ANALYTICS_REFRESH_LOCK_NAME, accountId.toString(), analyticsConfiguration.lockAttemptRetries);
+
+            final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, accountContext, currencyConversionDao, recordIdDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+            allBusinessObjectsDao.update(businessContextFactory);
+            progress.nbRefreshes.incrementAndGet();
+        } catch (final LockFailedException e) {
+            logger.warn("Unable to lock account {} for Analytics refresh", accountId, e);
+            progress.nbErrors.incrementAndGet();
+        } catch (final AnalyticsRefreshException e) {
+            logger.warn("Unable to refresh Analytics for account {}", accountId, e);
+            progress.nbErrors.incrementAndGet();
+        } catch (final RuntimeException e) {
+            logger.warn("Unable to refresh Analytics for account {}", accountId, e);
+            progress.nbErrors.incrementAndGet();
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+        }
+    }
+
+    private RefreshResult toRefreshResult(final BusinessRebuildCheckpointModelDao checkpoint) {
+        final RebuildProgress progress = new RebuildProgress(checkpoint.getNbAccounts(), checkpoint.getLastAccountRecordId(), 0L, 0L, checkpoint.getStartDate());
+        progress.nbRefreshes.set(checkpoint.getNbRefreshes());
+        progress.nbErrors.set(checkpoint.getNbErrors());
+        return progress.toRefreshResult(checkpoint.getUpdatedDate());
+    }
+
+    @VisibleForTesting
+    static final class RebuildProgress {
+
+        private final Long nbAccounts;
+        private final Long lastAccountRecordId;
+        private final AtomicLong nbRefreshes;
+        private final AtomicLong nbErrors;
+        // To compute the rate of this run (and not since the original start, in case of a resume)
+        private final long nbProcessedAtStart;
+        private final DateTime startDate;
+
+        @VisibleForTesting
+        RebuildProgress(final Long nbAccounts, final Long lastAccountRecordId, final Long nbRefreshes, final Long nbErrors, final DateTime startDate) {
+            this.nbAccounts = nbAccounts;
+            this.lastAccountRecordId = lastAccountRecordId;
+            this.nbRefreshes = new AtomicLong(nbRefreshes);
+            this.nbErrors = new AtomicLong(nbErrors);
+            this.nbProcessedAtStart = nbRefreshes + nbErrors;
+            this.startDate = startDate;
+        }
+
+        private RefreshResult toRefreshResult(final DateTime now) {
+            final long nbProcessed = nbRefreshes.get() + nbErrors.get();
+            final long elapsedMillis = now.getMillis() - startDate.getMillis();
+
+            Double accountsPerSecond = null;
+            Long etaSeconds = null;
+            if (elapsedMillis > 0 && nbProcessed > nbProcessedAtStart) {
+                accountsPerSecond = (nbProcessed - nbProcessedAtStart) * 1000.0 / elapsedMillis;
+                etaSeconds = (long) Math.ceil(Math.max(0, nbAccounts - nbProcessed) / accountsPerSecond);
+            }
+
+            return new RefreshResult(nbAccounts, nbRefreshes.get(), RebuildState.RUNNING.toString(), nbErrors.get(), accountsPerSecond, etaSeconds);
+        }
+    }
+}
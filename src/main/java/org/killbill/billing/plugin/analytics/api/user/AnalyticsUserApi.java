@@ -19,22 +19,14 @@
 
 package org.killbill.billing.plugin.analytics.api.user;
 
-import java.io.IOException;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 
-import org.killbill.billing.ObjectType;
-import org.killbill.billing.account.api.Account;
-import org.killbill.billing.notification.plugin.api.ExtBusEventType;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
-import org.killbill.billing.plugin.analytics.AnalyticsJob;
-import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
-import org.killbill.billing.plugin.analytics.AnalyticsListener;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.api.BusinessAccount;
 import org.killbill.billing.plugin.analytics.api.BusinessAccountTransition;
@@ -50,11 +42,12 @@ import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHand
 import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
 import org.killbill.billing.plugin.analytics.dao.AnalyticsDao;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
-import org.killbill.billing.util.entity.Pagination;
 import org.killbill.clock.Clock;
+import org.killbill.commons.locker.GlobalLocker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,7 +62,8 @@ public class AnalyticsUserApi {
     private final AnalyticsDao analyticsDao;
     private final AllBusinessObjectsDao allBusinessObjectsDao;
     private final CurrencyConversionDao currencyConversionDao;
-    private final AnalyticsListener analyticsListener;
+    private final RecordIdDao recordIdDao;
+    private final AllAccountsRebuilder allAccountsRebuilder;
 
     public AnalyticsUserApi(final OSGIKillbillAPI osgiKillbillAPI,
                             final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -77,17 +71,17 @@ public class AnalyticsUserApi {
                             final OSGIConfigPropertiesService osgiConfigPropertiesService,
                             final Executor executor,
                             final Clock clock,
-                            final AnalyticsConfigurationHandler analyticsConfigurationHandler,
-                            final AnalyticsListener analyticsListener) {
+                            final GlobalLocker locker,
+                            final AnalyticsConfigurationHandler analyticsConfigurationHandler) {
         this.osgiKillbillAPI = osgiKillbillAPI;
         this.osgiConfigPropertiesService = osgiConfigPropertiesService;
         this.clock = clock;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
         this.analyticsDao = new AnalyticsDao(osgiKillbillAPI, osgiKillbillDataSource, metricRegistry);
-        this.allBusinessObjectsDao = new AllBusinessObjectsDao(osgiKillbillDataSource, metricRegistry, executor);
+        this.allBusinessObjectsDao = new AllBusinessObjectsDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, executor);
         this.currencyConversionDao = new CurrencyConversionDao(osgiKillbillDataSource, metricRegistry);
-        this.analyticsListener = analyticsListener;
-
+        this.recordIdDao = new RecordIdDao(osgiKillbillDataSource, metricRegistry);
+        this.allAccountsRebuilder = new AllAccountsRebuilder(osgiKillbillAPI, osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, clock, locker, analyticsConfigurationHandler, allBusinessObjectsDao, currencyConversionDao);
     }
 
     public BusinessSnapshot getBusinessSnapshot(final UUID accountId, final TenantContext context) {
@@ -124,49 +118,24 @@ public class AnalyticsUserApi {
     }
 
     public void rebuildAnalyticsForAccount(final UUID accountId, final CallContext context) throws AnalyticsRefreshException {
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, context, currencyConversionDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, context, currencyConversionDao, recordIdDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
         logger.info("Starting Analytics refresh for account {}", businessContextFactory.getAccountId());
         // TODO Should we take the account lock?
         allBusinessObjectsDao.update(businessContextFactory);
         logger.info("Finished Analytics refresh for account {}", businessContextFactory.getAccountId());
     }
 
+    /**
+     * Start (or resume) the rebuild of all accounts of the tenant, in the background.
+     *
+     * @param context call context
+     * @return progress of the rebuild
+     */
     public RefreshResult rebuildAnalyticsForAllAccounts(final CallContext context) {
-        logger.info("Starting Analytics refresh for all accounts ");
-        Pagination<Account> accounts = osgiKillbillAPI.getAccountUserApi().getAccounts(0L, 100L, context);
-        logger.info("Total accounts to be refreshed {} ",accounts.getTotalNbRecords());
-        RefreshResult refreshResult = rebuildAnalyticsForAccounts(accounts, new RefreshResult(accounts.getTotalNbRecords(), 0L), context);
-        Long nextOffSet = accounts.getNextOffset();
-        while (nextOffSet != null) {
-            accounts = osgiKillbillAPI.getAccountUserApi().getAccounts(nextOffSet, 100L, context);
-            refreshResult = rebuildAnalyticsForAccounts(accounts, refreshResult, context);
-            nextOffSet = accounts.getNextOffset();
-        }
-
-        logger.info("Finished Analytics refresh for all accounts");
-        return refreshResult;
-        
+        return allAccountsRebuilder.rebuildAllAccounts(context);
     }
 
-    private RefreshResult rebuildAnalyticsForAccounts(final Pagination<Account> accounts, RefreshResult refreshResult, final CallContext context) {
-        final Iterator<Account> accountsItr = accounts.iterator();
-        Long nbRefreshes = refreshResult.getNbRefreshes();
-        try {
-            while (accountsItr.hasNext()) {
-                final UUID accountId = accountsItr.next().getId();
-                final AnalyticsJob analyticsJob = new AnalyticsJob(Group.ALL, ExtBusEventType.ACCOUNT_CHANGE, ObjectType.ACCOUNT, null, accountId, context.getTenantId());
-                analyticsListener.scheduleAnalyticsJob(analyticsJob, analyticsConfigurationHandler.getConfigurable(context.getTenantId()));
-                nbRefreshes++;
-            }
-        } finally {
-            try {
-                accounts.close();
-            } catch (final IOException e) {
-                logger.error("Exception while rebuilding analytics for accounts");
-            }
-        }
-        
-        return new RefreshResult(refreshResult.getNbAccounts(),nbRefreshes);
+    public void shutdownNow() {
+        allAccountsRebuilder.shutdownNow();
     }
-
 }
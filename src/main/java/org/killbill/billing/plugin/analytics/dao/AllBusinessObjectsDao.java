@@ -19,17 +19,26 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.skife.jdbi.v2.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class AllBusinessObjectsDao {
 
+    private static final String ANALYTICS_REFRESH_PARALLEL_GROUPS_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.parallelGroups";
+
     private static final Logger logger = LoggerFactory.getLogger(AllBusinessObjectsDao.class);
 
     private final BusinessSubscriptionTransitionDao bstDao;
@@ -37,22 +46,34 @@ public class AllBusinessObjectsDao {
     private final BusinessAccountTransitionDao bosDao;
     private final BusinessFieldDao bFieldDao;
     private final BusinessTagDao bTagDao;
+    private final Executor executor;
+    private final boolean parallelGroups;
 
     public AllBusinessObjectsDao(final OSGIKillbillDataSource osgiKillbillDataSource,
                                  final OSGIMetricRegistry metricRegistry,
+                                 final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                  final Executor executor) {
-        final BusinessAccountDao bacDao = new BusinessAccountDao(osgiKillbillDataSource, metricRegistry);
-        this.bstDao = new BusinessSubscriptionTransitionDao(osgiKillbillDataSource, metricRegistry, bacDao, executor);
-        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(osgiKillbillDataSource, metricRegistry, bacDao, executor);
-        this.bosDao = new BusinessAccountTransitionDao(osgiKillbillDataSource, metricRegistry);
-        this.bFieldDao = new BusinessFieldDao(osgiKillbillDataSource, metricRegistry);
-        this.bTagDao = new BusinessTagDao(osgiKillbillDataSource, metricRegistry);
+        final BusinessAccountDao bacDao = new BusinessAccountDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.bstDao = new BusinessSubscriptionTransitionDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, bacDao, executor);
+        this.binAndBipDao = new BusinessInvoiceAndPaymentDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, bacDao, executor);
+        this.bosDao = new BusinessAccountTransitionDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.bFieldDao = new BusinessFieldDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.bTagDao = new BusinessTagDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        this.executor = executor;
+        this.parallelGroups = Boolean.parseBoolean(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_PARALLEL_GROUPS_PROPERTY));
     }
 
     // TODO: each refresh is done in a transaction - do we want to share a long running transaction across all refreshes?
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics for account {}", businessContextFactory.getAccountId());
 
+        // Invoices and payments of high cardinality accounts are written page by page, as they are computed
+        if (parallelGroups && !businessContextFactory.highCardinalityAccount()) {
+            updateInParallel(businessContextFactory);
+            logger.debug("Finished rebuild of Analytics for account {}", businessContextFactory.getAccountId());
+            return;
+        }
+
         // Refresh invoices and payments. This will automatically trigger a refresh of account
         binAndBipDao.update(businessContextFactory);
 
@@ -70,4 +91,98 @@ public class AllBusinessObjectsDao {
 
         logger.debug("Finished rebuild of Analytics for account {}", businessContextFactory.getAccountId());
     }
+
+    /**
+     * Recompute all records of the account, without writing them.
+     *
+     * @param businessContextFactory context factory
+     * @return the transactions updating each group, to be executed in order
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public List<Transaction<Void, BusinessAnalyticsSqlDao>> prepareUpdates(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        if (parallelGroups) {
+            return prepareUpdatesInParallel(businessContextFactory);
+        }
+
+        final List<Transaction<Void, BusinessAnalyticsSqlDao>> transactions = new LinkedList<Transaction<Void, BusinessAnalyticsSqlDao>>();
+        transactions.add(binAndBipDao.prepareUpdate(businessContextFactory));
+        transactions.add(bstDao.prepareUpdate(businessContextFactory));
+        transactions.add(bTagDao.prepareUpdate(businessContextFactory));
+        transactions.add(bFieldDao.prepareUpdate(businessContextFactory));
+        transactions.add(bosDao.prepareUpdate(businessContextFactory));
+        return transactions;
+    }
+
+    // The groups write to disjoint tables (except for BAC, which is recomputed by the first two groups): compute
+    // all records concurrently, then commit the transactions one by one, in the same order as the sequential refresh.
+    private void updateInParallel(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        for (final Transaction<Void, BusinessAnalyticsSqlDao> transaction : prepareUpdatesInParallel(businessContextFactory)) {
+            // All DAOs share the same data source
+            binAndBipDao.executeInTransaction(transaction);
+        }
+    }
+
+    private List<Transaction<Void, BusinessAnalyticsSqlDao>> prepareUpdatesInParallel(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        // Load the shared data once, up-front
+        businessContextFactory.prefetch();
+
+        final List<FutureTask<Transaction<Void, BusinessAnalyticsSqlDao>>> updates = new LinkedList<FutureTask<Transaction<Void, BusinessAnalyticsSqlDao>>>();
+        // Invoices and payments (this will automatically trigger a refresh of account)
+        updates.add(submit(new Callable<Transaction<Void, BusinessAnalyticsSqlDao>>() {
+            @Override
+            public Transaction<Void, BusinessAnalyticsSqlDao> call() throws Exception {
+                return binAndBipDao.prepareUpdate(businessContextFactory);
+            }
+        }));
+        // Subscription transitions
+        updates.add(submit(new Callable<Transaction<Void, BusinessAnalyticsSqlDao>>() {
+            @Override
+            public Transaction<Void, BusinessAnalyticsSqlDao> call() throws Exception {
+                return bstDao.prepareUpdate(businessContextFactory);
+            }
+        }));
+        // Tags
+        updates.add(submit(new Callable<Transaction<Void, BusinessAnalyticsSqlDao>>() {
+            @Override
+            public Transaction<Void, BusinessAnalyticsSqlDao> call() throws Exception {
+                return bTagDao.prepareUpdate(businessContextFactory);
+            }
+        }));
+        // Fields
+        updates.add(submit(new Callable<Transaction<Void, BusinessAnalyticsSqlDao>>() {
+            @Override
+            public Transaction<Void, BusinessAnalyticsSqlDao> call() throws Exception {
+                return bFieldDao.prepareUpdate(businessContextFactory);
+            }
+        }));
+        // Account transitions
+        updates.add(submit(new Callable<Transaction<Void, BusinessAnalyticsSqlDao>>() {
+            @Override
+            public Transaction<Void, BusinessAnalyticsSqlDao> call() throws Exception {
+                return bosDao.prepareUpdate(businessContextFactory);
+            }
+        }));
+
+        final List<Transaction<Void, BusinessAnalyticsSqlDao>> transactions = new LinkedList<Transaction<Void, BusinessAnalyticsSqlDao>>();
+        for (final FutureTask<Transaction<Void, BusinessAnalyticsSqlDao>> update : updates) {
+            try {
+                transactions.add(update.get());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AnalyticsRefreshException(e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof AnalyticsRefreshException) {
+                    throw (AnalyticsRefreshException) e.getCause();
+                }
+                throw new AnalyticsRefreshException(e);
+            }
+        }
+        return transactions;
+    }
+
+    private FutureTask<Transaction<Void, BusinessAnalyticsSqlDao>> submit(final Callable<Transaction<Void, BusinessAnalyticsSqlDao>> callable) {
+        final FutureTask<Transaction<Void, BusinessAnalyticsSqlDao>> task = new FutureTask<Transaction<Void, BusinessAnalyticsSqlDao>>(callable);
+        executor.execute(task);
+        return task;
+    }
 }
@@ -19,6 +19,7 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
@@ -38,8 +39,9 @@ public class BusinessAccountDao extends BusinessAnalyticsDaoBase {
     private final BusinessAccountFactory bacFactory;
 
     public BusinessAccountDao(final OSGIKillbillDataSource osgiKillbillDataSource,
-                              final OSGIMetricRegistry metricRegistry) {
-        super(osgiKillbillDataSource, metricRegistry);
+                              final OSGIMetricRegistry metricRegistry,
+                              final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         bacFactory = new BusinessAccountFactory();
     }
 
@@ -64,6 +66,7 @@ public class BusinessAccountDao extends BusinessAnalyticsDaoBase {
     public void updateInTransaction(final BusinessAccountModelDao bac,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
+        recordTableChange(bac.getTableName());
         transactional.deleteByAccountRecordId(bac.getTableName(), bac.getAccountRecordId(), bac.getTenantRecordId(), context);
         transactional.create(bac.getTableName(), bac, context);
     }
@@ -20,7 +20,9 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.util.Collection;
+import java.util.List;
 
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
@@ -33,6 +35,8 @@ import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+
 public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessAccountTransitionDao.class);
@@ -40,25 +44,37 @@ public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
     private final BusinessAccountTransitionFactory bosFactory;
 
     public BusinessAccountTransitionDao(final OSGIKillbillDataSource osgiKillbillDataSource,
-                                        final OSGIMetricRegistry metricRegistry) {
-        super(osgiKillbillDataSource, metricRegistry);
+                                        final OSGIMetricRegistry metricRegistry,
+                                        final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         bosFactory = new BusinessAccountTransitionFactory();
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics account transitions for account {}", businessContextFactory.getAccountId());
 
+        executeInTransaction(prepareUpdate(businessContextFactory));
+
+        logger.debug("Finished rebuild of Analytics account transitions for account {}", businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute all account transition records, without writing them.
+     *
+     * @param businessContextFactory context factory
+     * @return the transaction deleting and recreating the records
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         final Collection<BusinessAccountTransitionModelDao> businessAccountTransitions = bosFactory.createBusinessAccountTransitions(businessContextFactory);
 
-        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+        return new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 updateInTransaction(businessAccountTransitions, transactional, businessContextFactory.getCallContext());
                 return null;
             }
-        });
-
-        logger.debug("Finished rebuild of Analytics account transitions for account {}", businessContextFactory.getAccountId());
+        };
     }
 
     private void updateInTransaction(final Collection<BusinessAccountTransitionModelDao> businessAccountTransitionModelDaos,
@@ -69,13 +85,30 @@ public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
         }
 
         final BusinessAccountTransitionModelDao firstTransition = businessAccountTransitionModelDaos.iterator().next();
+        if (isDiffModeEnabled()) {
+            final List<BusinessAccountTransitionModelDao> existingTransitions = transactional.getAccountTransitionsByAccountRecordId(firstTransition.getAccountRecordId(),
+                                                                                                                                   firstTransition.getTenantRecordId(),
+                                                                                                                                   context);
+            upsertInTransaction(transactional,
+                                existingTransitions,
+                                businessAccountTransitionModelDaos,
+                                new Function<BusinessAccountTransitionModelDao, Long>() {
+                                    @Override
+                                    public Long apply(final BusinessAccountTransitionModelDao input) {
+                                        return input.getBlockingStateRecordId();
+                                    }
+                                },
+                                firstTransition.getTenantRecordId(),
+                                context);
+            return;
+        }
+
+        recordTableChange(firstTransition.getTableName());
         transactional.deleteByAccountRecordId(firstTransition.getTableName(),
                                               firstTransition.getAccountRecordId(),
                                               firstTransition.getTenantRecordId(),
                                               context);
 
-        for (final BusinessAccountTransitionModelDao transition : businessAccountTransitionModelDaos) {
-            transactional.create(transition.getTableName(), transition, context);
-        }
+        createInTransaction(transactional, businessAccountTransitionModelDaos, context);
     }
 }
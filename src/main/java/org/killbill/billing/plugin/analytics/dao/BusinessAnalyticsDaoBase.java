@@ -19,20 +19,84 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.commons.metrics.api.MetricRegistry;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.TransactionStatus;
+
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
 
 public class BusinessAnalyticsDaoBase {
 
+    private static final String ANALYTICS_REFRESH_WRITE_BATCH_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.writeBatchSize";
+    private static final String ANALYTICS_REFRESH_DIFF_MODE_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.diffMode";
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 100;
+
+    private static final String DELETE_BY_RECORD_ID_STATEMENT_NAME = "deleteByRecordId";
+    private static final String INCREMENT_TABLE_CHANGES_STATEMENT_NAME = "incrementTableChanges";
+
+    // Number of change counters per table (see analytics_table_changes)
+    private static final int TABLE_CHANGES_BUCKETS = 8;
+
+    // Tables written by the transaction running on the current thread (see executeInTransaction)
+    private static final ThreadLocal<SortedSet<String>> CHANGED_TABLE_NAMES = new ThreadLocal<SortedSet<String>>();
+
+    private static final String ROWS_UNTOUCHED_METRIC_NAME = "killbill-analytics.refresh.rows.untouched";
+    private static final String ROWS_UPDATED_METRIC_NAME = "killbill-analytics.refresh.rows.updated";
+    private static final String ROWS_INSERTED_METRIC_NAME = "killbill-analytics.refresh.rows.inserted";
+    private static final String ROWS_DELETED_METRIC_NAME = "killbill-analytics.refresh.rows.deleted";
+
     protected final BusinessAnalyticsSqlDao sqlDao;
 
+    private final MetricRegistry metricRegistry;
+    private final int writeBatchSize;
+    private final boolean diffMode;
+
     public BusinessAnalyticsDaoBase(final OSGIKillbillDataSource osgiKillbillDataSource,
                                     final OSGIMetricRegistry metricRegistry) {
-        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), metricRegistry.getMetricRegistry());
-        sqlDao = dbi.onDemand(BusinessAnalyticsSqlDao.class);
+        this(osgiKillbillDataSource, metricRegistry, DEFAULT_WRITE_BATCH_SIZE, false);
+    }
+
+    public BusinessAnalyticsDaoBase(final OSGIKillbillDataSource osgiKillbillDataSource,
+                                    final OSGIMetricRegistry metricRegistry,
+                                    final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        this(osgiKillbillDataSource,
+             metricRegistry,
+             getWriteBatchSize(osgiConfigPropertiesService),
+             Boolean.parseBoolean(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_DIFF_MODE_PROPERTY)));
+    }
+
+    private BusinessAnalyticsDaoBase(final OSGIKillbillDataSource osgiKillbillDataSource,
+                                     final OSGIMetricRegistry metricRegistry,
+                                     final int writeBatchSize,
+                                     final boolean diffMode) {
+        this.metricRegistry = metricRegistry.getMetricRegistry();
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), this.metricRegistry);
+        this.sqlDao = dbi.onDemand(BusinessAnalyticsSqlDao.class);
+        this.writeBatchSize = writeBatchSize;
+        this.diffMode = diffMode;
     }
 
     public void executeInTransaction(final Transaction<Void, BusinessAnalyticsSqlDao> transaction) {
@@ -41,6 +105,244 @@ public class BusinessAnalyticsDaoBase {
         // We need to make sure to use READ COMMITTED here, to avoid MySQL deadlocks under high load. This should
         // not have any impact in these transactions as we only delete & re-insert rows on a per account basis,
         // and accounts are not updated in parallel (not enforced, but we try hard not to).
-        sqlDao.inTransaction(TransactionIsolationLevel.READ_COMMITTED, transaction);
+        sqlDao.inTransaction(TransactionIsolationLevel.READ_COMMITTED,
+                             new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                                 @Override
+                                 public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                                     final SortedSet<String> changedTableNames = new TreeSet<String>();
+                                     CHANGED_TABLE_NAMES.set(changedTableNames);
+                                     try {
+                                         transaction.inTransaction(transactional, status);
+                                     } finally {
+                                         CHANGED_TABLE_NAMES.remove();
+                                     }
+                                     incrementTableChangesInTransaction(transactional, changedTableNames);
+                                     return null;
+                                 }
+                             });
+    }
+
+    /**
+     * Record that rows of a table were inserted, updated or deleted by the current transaction (see executeInTransaction).
+     * <p>
+     * The change counter of the table is incremented when the transaction commits: together with the max record_id of
+     * the table, it is used to skip the refresh of reports whose source tables didn't change (see ChangeSignatures).
+     *
+     * @param tableName table name
+     */
+    protected static void recordTableChange(final String tableName) {
+        final SortedSet<String> changedTableNames = CHANGED_TABLE_NAMES.get();
+        if (changedTableNames != null) {
+            changedTableNames.add(tableName);
+        }
+    }
+
+    // Counters are only locked at the end of the transaction, in the same order for all transactions (to avoid deadlocks).
+    // Each table has a few counters, so that concurrent transactions seldom wait for each other.
+    private static void incrementTableChangesInTransaction(final BusinessAnalyticsSqlDao transactional, final Iterable<String> tableNames) {
+        if (Iterables.isEmpty(tableNames)) {
+            return;
+        }
+
+        final int bucket = (int) (Thread.currentThread().getId() % TABLE_CHANGES_BUCKETS);
+        final PreparedBatch preparedBatch = transactional.getHandle().prepareBatch(INCREMENT_TABLE_CHANGES_STATEMENT_NAME);
+        for (final String tableName : tableNames) {
+            preparedBatch.add()
+                         .bind("tableName", tableName)
+                         .bind("bucket", bucket);
+        }
+        preparedBatch.execute();
+    }
+
+    /**
+     * Insert the specified records. Records are grouped per target table and sent as JDBC batches
+     * of at most writeBatchSize rows, to avoid one round trip per row on large accounts.
+     *
+     * @param transactional     current transaction
+     * @param businessModelDaos records to insert, potentially targeting different tables
+     * @param context           call context
+     */
+    public void createInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                    final Iterable<? extends BusinessModelDaoBase> businessModelDaos,
+                                    final CallContext context) {
+        // Preserve the insertion order within each table
+        final ListMultimap<String, BusinessModelDaoBase> businessModelDaosPerTable = LinkedListMultimap.<String, BusinessModelDaoBase>create();
+        for (final BusinessModelDaoBase businessModelDao : businessModelDaos) {
+            businessModelDaosPerTable.put(businessModelDao.getTableName(), businessModelDao);
+        }
+
+        for (final String tableName : businessModelDaosPerTable.keySet()) {
+            recordTableChange(tableName);
+
+            final List<BusinessModelDaoBase> businessModelDaosForTable = businessModelDaosPerTable.get(tableName);
+            if (writeBatchSize <= 1 || businessModelDaosForTable.size() == 1) {
+                for (final BusinessModelDaoBase businessModelDao : businessModelDaosForTable) {
+                    transactional.create(tableName, businessModelDao, context);
+                }
+                continue;
+            }
+
+            final Handle handle = transactional.getHandle();
+            final String createStatementName = BusinessDBIProvider.getCreateStatementName(tableName);
+            for (final List<BusinessModelDaoBase> chunk : Iterables.partition(businessModelDaosForTable, writeBatchSize)) {
+                final PreparedBatch preparedBatch = handle.prepareBatch(createStatementName);
+                for (final BusinessModelDaoBase businessModelDao : chunk) {
+                    preparedBatch.add().bindFromProperties(businessModelDao);
+                }
+                preparedBatch.execute();
+            }
+        }
+    }
+
+    /**
+     * Whether refreshes should only write the rows which changed (see upsertInTransaction), instead of deleting
+     * and re-inserting all rows.
+     */
+    public boolean isDiffModeEnabled() {
+        return diffMode;
+    }
+
+    /**
+     * Reconcile the existing records with the current ones, issuing only the statements needed.
+     * <p>
+     * Records are matched by table and natural key (e.g. the invoice item record id). A current record equal to an
+     * existing one is left untouched, a modified record is written over the stale one (UPDATE by record id) and the
+     * remaining records are inserted or deleted, all in JDBC batches of at most writeBatchSize rows. The model equals
+     * method is used as the content comparison, because hashCode isn't stable across BigDecimal scales read back from
+     * the database.
+     *
+     * @param transactional             current transaction
+     * @param existingBusinessModelDaos records currently in the database, with their record id populated
+     * @param businessModelDaos         current, fully populated, records
+     * @param naturalKey                function returning the natural key of a record (can be null)
+     * @param tenantRecordId            tenant record id
+     * @param context                   call context
+     * @param <M>                       record type
+     */
+    public <M extends BusinessModelDaoBase> void upsertInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                                                     final Iterable<? extends M> existingBusinessModelDaos,
+                                                                     final Iterable<? extends M> businessModelDaos,
+                                                                     final Function<M, ?> naturalKey,
+                                                                     final Long tenantRecordId,
+                                                                     final CallContext context) {
+        final ListMultimap<List<Object>, M> existingPerKey = ArrayListMultimap.<List<Object>, M>create();
+        for (final M existingBusinessModelDao : existingBusinessModelDaos) {
+            existingPerKey.put(getUpsertKey(existingBusinessModelDao, naturalKey), existingBusinessModelDao);
+        }
+
+        int untouched = 0;
+        final ListMultimap<List<Object>, M> modifiedPerKey = LinkedListMultimap.<List<Object>, M>create();
+        for (final M businessModelDao : businessModelDaos) {
+            // Multimap#remove relies on equals, i.e. on the content of the row
+            if (existingPerKey.remove(getUpsertKey(businessModelDao, naturalKey), businessModelDao)) {
+                untouched++;
+            } else {
+                modifiedPerKey.put(getUpsertKey(businessModelDao, naturalKey), businessModelDao);
+            }
+        }
+
+        // Stale rows matched by key are updated in place, the other ones deleted
+        final ListMultimap<String, Entry<Long, M>> updatedPerTable = LinkedListMultimap.<String, Entry<Long, M>>create();
+        final Collection<M> insertedBusinessModelDaos = new LinkedList<M>();
+        for (final List<Object> key : modifiedPerKey.keySet()) {
+            final List<M> staleBusinessModelDaos = existingPerKey.get(key);
+            for (final M modifiedBusinessModelDao : modifiedPerKey.get(key)) {
+                if (staleBusinessModelDaos.isEmpty()) {
+                    insertedBusinessModelDaos.add(modifiedBusinessModelDao);
+                } else {
+                    final M staleBusinessModelDao = staleBusinessModelDaos.remove(0);
+                    updatedPerTable.put(modifiedBusinessModelDao.getTableName(), Maps.immutableEntry(staleBusinessModelDao.getRecordId(), modifiedBusinessModelDao));
+                }
+            }
+        }
+        final int updated = updatedPerTable.size();
+        final int inserted = insertedBusinessModelDaos.size();
+        final int deleted = existingPerKey.size();
+
+        deleteByRecordIdInTransaction(transactional, existingPerKey.values(), tenantRecordId);
+        updateByRecordIdInTransaction(transactional, updatedPerTable);
+        createInTransaction(transactional, insertedBusinessModelDaos, context);
+
+        metricRegistry.counter(ROWS_UNTOUCHED_METRIC_NAME).inc(untouched);
+        metricRegistry.counter(ROWS_UPDATED_METRIC_NAME).inc(updated);
+        metricRegistry.counter(ROWS_INSERTED_METRIC_NAME).inc(inserted);
+        metricRegistry.counter(ROWS_DELETED_METRIC_NAME).inc(deleted);
+    }
+
+    private void deleteByRecordIdInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                               final Iterable<? extends BusinessModelDaoBase> staleBusinessModelDaos,
+                                               final Long tenantRecordId) {
+        final ListMultimap<String, Long> recordIdsPerTable = LinkedListMultimap.<String, Long>create();
+        for (final BusinessModelDaoBase staleBusinessModelDao : staleBusinessModelDaos) {
+            recordIdsPerTable.put(staleBusinessModelDao.getTableName(), staleBusinessModelDao.getRecordId());
+        }
+
+        for (final String tableName : recordIdsPerTable.keySet()) {
+            deleteInTransaction(transactional, DELETE_BY_RECORD_ID_STATEMENT_NAME, tableName, "recordId", recordIdsPerTable.get(tableName), tenantRecordId);
+        }
+    }
+
+    /**
+     * Delete the records of a table matching any of the specified values, e.g. all records of a set of invoices.
+     * Statements are sent as JDBC batches of at most writeBatchSize rows.
+     *
+     * @param transactional  current transaction
+     * @param statementName  name of the delete statement, taking the tableName attribute
+     * @param tableName      table name
+     * @param parameterName  name of the parameter bound to each value
+     * @param values         values to delete
+     * @param tenantRecordId tenant record id
+     */
+    protected void deleteInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                       final String statementName,
+                                       final String tableName,
+                                       final String parameterName,
+                                       final Iterable<?> values,
+                                       final Long tenantRecordId) {
+        if (Iterables.isEmpty(values)) {
+            return;
+        }
+        recordTableChange(tableName);
+
+        final Handle handle = transactional.getHandle();
+        for (final List<?> chunk : Iterables.partition(values, Math.max(writeBatchSize, 1))) {
+            final PreparedBatch preparedBatch = handle.prepareBatch(statementName);
+            preparedBatch.define("tableName", tableName);
+            for (final Object value : chunk) {
+                preparedBatch.add()
+                             .bind(parameterName, value)
+                             .bind("tenantRecordId", tenantRecordId);
+            }
+            preparedBatch.execute();
+        }
+    }
+
+    private <M extends BusinessModelDaoBase> void updateByRecordIdInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                                                                final ListMultimap<String, Entry<Long, M>> updatedPerTable) {
+        final Handle handle = transactional.getHandle();
+        for (final String tableName : updatedPerTable.keySet()) {
+            recordTableChange(tableName);
+
+            final String updateStatementName = BusinessDBIProvider.getUpdateStatementName(tableName);
+            for (final List<Entry<Long, M>> chunk : Iterables.partition(updatedPerTable.get(tableName), Math.max(writeBatchSize, 1))) {
+                final PreparedBatch preparedBatch = handle.prepareBatch(updateStatementName);
+                for (final Entry<Long, M> recordIdAndBusinessModelDao : chunk) {
+                    // The current record doesn't have a record id yet: target the one of the stale row
+                    preparedBatch.add()
+                                 .bindFromProperties(recordIdAndBusinessModelDao.getValue())
+                                 .bind("recordId", recordIdAndBusinessModelDao.getKey());
+                }
+                preparedBatch.execute();
+            }
+        }
+    }
+
+    private static <M extends BusinessModelDaoBase> List<Object> getUpsertKey(final M businessModelDao, final Function<M, ?> naturalKey) {
+        return Arrays.<Object>asList(businessModelDao.getTableName(), naturalKey.apply(businessModelDao));
+    }
+
+    private static int getWriteBatchSize(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final String writeBatchSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_WRITE_BATCH_SIZE_PROPERTY));
+        return writeBatchSizeMaybeNull == null ? DEFAULT_WRITE_BATCH_SIZE : Integer.valueOf(writeBatchSizeMaybeNull);
     }
 }
@@ -47,6 +47,7 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentFieldModel
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentMethodFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentRefundModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentVoidModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessTransactionFieldModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
@@ -56,9 +57,10 @@ import org.skife.jdbi.v2.sqlobject.BindBean;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
 import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
 
-public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalyticsSqlDao> {
+public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalyticsSqlDao>, GetHandle {
 
     // Note: the CallContext and TenantContext are not bound for now since they are not used (and createdDate would conflict)
 
@@ -85,6 +87,17 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
                                         @Bind("tenantRecordId") final Long tenantRecordId,
                                         final CallContext callContext);
 
+    @SqlQuery
+    public List<UUID> getInvoiceIdsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
+                                                     @Bind("tenantRecordId") final Long tenantRecordId,
+                                                     final TenantContext tenantContext);
+
+    @SqlQuery
+    public List<UUID> getPaymentIdsByAccountRecordId(@Define("tableName") final String tableName,
+                                                     @Bind("accountRecordId") final Long accountRecordId,
+                                                     @Bind("tenantRecordId") final Long tenantRecordId,
+                                                     final TenantContext tenantContext);
+
     @SqlQuery
     public BusinessAccountModelDao getAccountByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                @Bind("tenantRecordId") final Long tenantRecordId,
@@ -160,6 +173,11 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
                                                                                           @Bind("tenantRecordId") final Long tenantRecordId,
                                                                                           final TenantContext tenantContext);
 
+    @SqlQuery
+    public List<BusinessPaymentVoidModelDao> getPaymentVoidsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
+                                                                              @Bind("tenantRecordId") final Long tenantRecordId,
+                                                                              final TenantContext tenantContext);
+
     @SqlQuery
     public List<BusinessAccountFieldModelDao> getAccountFieldsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                                 @Bind("tenantRecordId") final Long tenantRecordId,
@@ -19,32 +19,83 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.UUID;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessBundleModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+
 public class BusinessBundleDao extends BusinessAnalyticsDaoBase {
 
     public BusinessBundleDao(final OSGIKillbillDataSource osgiKillbillDataSource,
-                             final OSGIMetricRegistry metricRegistry) {
-        super(osgiKillbillDataSource, metricRegistry);
+                             final OSGIMetricRegistry metricRegistry,
+                             final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
     }
 
     public void updateInTransaction(final Iterable<BusinessBundleModelDao> bbss,
                                     final Long tenantRecordId,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
+        if (isDiffModeEnabled()) {
+            upsertBundlesInTransaction(bbss, tenantRecordId, transactional, context);
+            return;
+        }
+
         for (final BusinessBundleModelDao bbs : bbss) {
             // Delete by bundle to support partial refreshes
+            recordTableChange(BusinessBundleModelDao.BUNDLES_TABLE_NAME);
             transactional.deleteByBundleId(BusinessBundleModelDao.BUNDLES_TABLE_NAME,
                                            bbs.getBundleId(),
                                            tenantRecordId,
                                            context);
-
-            transactional.create(bbs.getTableName(), bbs, context);
         }
 
+        createInTransaction(transactional, bbss, context);
+
         // The update of summary columns in BAC will be done via BST
     }
+
+    private void upsertBundlesInTransaction(final Iterable<BusinessBundleModelDao> bbss,
+                                            final Long tenantRecordId,
+                                            final BusinessAnalyticsSqlDao transactional,
+                                            final CallContext context) {
+        if (Iterables.isEmpty(bbss)) {
+            return;
+        }
+
+        // Only consider the refreshed bundles, to support partial refreshes
+        final Collection<UUID> bundleIds = new HashSet<UUID>();
+        for (final BusinessBundleModelDao bbs : bbss) {
+            bundleIds.add(bbs.getBundleId());
+        }
+        final Long accountRecordId = bbss.iterator().next().getAccountRecordId();
+        final Iterable<BusinessBundleModelDao> existingBbss = Iterables.filter(transactional.getBundlesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                               new Predicate<BusinessBundleModelDao>() {
+                                                                                   @Override
+                                                                                   public boolean apply(final BusinessBundleModelDao input) {
+                                                                                       return bundleIds.contains(input.getBundleId());
+                                                                                   }
+                                                                               });
+
+        upsertInTransaction(transactional,
+                            existingBbss,
+                            bbss,
+                            new Function<BusinessBundleModelDao, Long>() {
+                                @Override
+                                public Long apply(final BusinessBundleModelDao input) {
+                                    return input.getBundleRecordId();
+                                }
+                            },
+                            tenantRecordId,
+                            context);
+    }
 }
@@ -19,6 +19,10 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import javax.sql.DataSource;
 
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountFieldModelDao;
@@ -43,9 +47,14 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentChargeback
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentCreditModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentRefundModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentVoidModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.scheduler.ReportWatermarkModelDao;
 import org.killbill.commons.jdbi.ReusableStringTemplate3StatementLocator;
 import org.killbill.commons.jdbi.argument.DateTimeArgumentFactory;
 import org.killbill.commons.jdbi.argument.DateTimeZoneArgumentFactory;
@@ -66,11 +75,20 @@ import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.Argument;
 import org.skife.jdbi.v2.tweak.TransactionHandler;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 
 public class BusinessDBIProvider {
 
+    private static final String CREATE_STATEMENT_PREFIX = "create";
+    private static final String UPDATE_STATEMENT_PREFIX = "updateByRecordId";
+    private static final Pattern INSERT_STATEMENT_PATTERN = Pattern.compile("\\s*insert\\s+into\\s+(\\w+)\\s*\\((.*?)\\)\\s*values\\s*\\((.*)\\)\\s*;?\\s*",
+                                                                           Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
     private BusinessDBIProvider() {}
 
     public static DBI get(final DataSource dataSource, final MetricRegistry metricRegistry) {
@@ -94,6 +112,7 @@ public class BusinessDBIProvider {
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentRefundModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentCreditModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentChargebackModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentVoidModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessInvoicePaymentTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessInvoiceTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessAccountTransitionModelDao.class));
@@ -102,7 +121,11 @@ public class BusinessDBIProvider {
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessBundleFieldModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessBundleTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(CurrencyConversionModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessRebuildAccountModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessRebuildCheckpointModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(ReportsConfigurationModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(RecordIdModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(ReportWatermarkModelDao.class));
 
         dbi.registerMapper(new UUIDMapper());
 
@@ -124,6 +147,37 @@ public class BusinessDBIProvider {
         return dbi;
     }
 
+    // Name of the statement inserting rows in that table, e.g. createAnalyticsInvoiceItems for analytics_invoice_items
+    public static String getCreateStatementName(final String tableName) {
+        return CREATE_STATEMENT_PREFIX + CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, tableName);
+    }
+
+    // Name of the statement updating a row of that table by record id, e.g. updateByRecordIdAnalyticsInvoiceItems for analytics_invoice_items
+    public static String getUpdateStatementName(final String tableName) {
+        return UPDATE_STATEMENT_PREFIX + CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, tableName);
+    }
+
+    // The update statements aren't duplicated in the templates: they are derived from the insert ones, which
+    // only bind plain named parameters (insert into <table> (<columns>) values (:<parameters>))
+    @VisibleForTesting
+    static String toUpdateByRecordIdStatement(final String createStatement) {
+        final Matcher matcher = INSERT_STATEMENT_PATTERN.matcher(createStatement);
+        Preconditions.checkArgument(matcher.matches(), "Unexpected insert statement: %s", createStatement);
+
+        final List<String> columns = COMMA_SPLITTER.splitToList(matcher.group(2));
+        final List<String> parameters = COMMA_SPLITTER.splitToList(matcher.group(3));
+        Preconditions.checkArgument(columns.size() == parameters.size(), "Mismatched columns and parameters: %s", createStatement);
+
+        final StringBuilder updateStatement = new StringBuilder("update ").append(matcher.group(1)).append(" set ");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                updateStatement.append(", ");
+            }
+            updateStatement.append(columns.get(i)).append(" = ").append(parameters.get(i));
+        }
+        return updateStatement.append(" where record_id = :recordId").toString();
+    }
+
     private static final class AnalyticsStatementLocator extends ReusableStringTemplate3StatementLocator {
 
         public AnalyticsStatementLocator() {
@@ -140,12 +194,16 @@ public class BusinessDBIProvider {
                     if (tableNameArgument != null) {
                         // Lame, rely on toString (tableNameArgument will be a org.skife.jdbi.v2.StringArgument)
                         final String tableName = CharMatcher.anyOf("'").removeFrom(tableNameArgument.toString());
-                        final String newQueryName = name + CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, tableName);
-                        return super.locate(newQueryName, ctx);
+                        return super.locate(getCreateStatementName(tableName), ctx);
                     }
                 }
             }
 
+            if (name.startsWith(UPDATE_STATEMENT_PREFIX)) {
+                final String createStatementName = CREATE_STATEMENT_PREFIX + name.substring(UPDATE_STATEMENT_PREFIX.length());
+                return toUpdateByRecordIdStatement(super.locate(createStatementName, ctx));
+            }
+
             // Inspired from org.skife.jdbi.v2.ClasspathStatementLocator to allow real SQL to be executed
             if (looksLikeSql(name)) {
                 return name;
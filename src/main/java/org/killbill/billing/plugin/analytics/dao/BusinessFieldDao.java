@@ -19,6 +19,7 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
@@ -32,6 +33,9 @@ import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
 public class BusinessFieldDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessAnalyticsDaoBase.class);
@@ -39,39 +43,80 @@ public class BusinessFieldDao extends BusinessAnalyticsDaoBase {
     private final BusinessFieldFactory bFieldFactory;
 
     public BusinessFieldDao(final OSGIKillbillDataSource osgiKillbillDataSource,
-                            final OSGIMetricRegistry metricRegistry) {
-        super(osgiKillbillDataSource, metricRegistry);
+                            final OSGIMetricRegistry metricRegistry,
+                            final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         bFieldFactory = new BusinessFieldFactory();
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics custom fields for account {}", businessContextFactory.getAccountId());
 
+        executeInTransaction(prepareUpdate(businessContextFactory));
+
+        logger.debug("Finished rebuild of Analytics custom fields for account {}", businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute all custom field records, without writing them.
+     *
+     * @param businessContextFactory context factory
+     * @return the transaction deleting and recreating the records
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos = bFieldFactory.createBusinessFields(businessContextFactory);
 
-        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+        return new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 updateInTransaction(fieldModelDaos, transactional, businessContextFactory.getCallContext());
                 return null;
             }
-        });
-
-        logger.debug("Finished rebuild of Analytics custom fields for account {}", businessContextFactory.getAccountId());
+        };
     }
 
     private void updateInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos,
                                      final BusinessAnalyticsSqlDao transactional,
                                      final CallContext context) {
+        if (isDiffModeEnabled()) {
+            upsertFieldsInTransaction(fieldModelDaos, transactional, context);
+            return;
+        }
+
         for (final String tableName : BusinessFieldModelDao.ALL_FIELDS_TABLE_NAMES) {
+            recordTableChange(tableName);
             transactional.deleteByAccountRecordId(tableName,
                                                   fieldModelDaos.getAccountRecordId(),
                                                   fieldModelDaos.getTenantRecordId(),
                                                   context);
         }
 
-        for (final BusinessFieldModelDao fieldModelDao : fieldModelDaos.getBusinessModelDaos()) {
-            transactional.create(fieldModelDao.getTableName(), fieldModelDao, context);
-        }
+        createInTransaction(transactional, fieldModelDaos.getBusinessModelDaos(), context);
+    }
+
+    private void upsertFieldsInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos,
+                                           final BusinessAnalyticsSqlDao transactional,
+                                           final CallContext context) {
+        final Long accountRecordId = fieldModelDaos.getAccountRecordId();
+        final Long tenantRecordId = fieldModelDaos.getTenantRecordId();
+        final Iterable<BusinessFieldModelDao> existingFieldModelDaos = Iterables.<BusinessFieldModelDao>concat(transactional.getAccountFieldsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                               transactional.getBundleFieldsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                               transactional.getInvoiceFieldsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                               transactional.getInvoicePaymentFieldsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                               transactional.getPaymentFieldsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                               transactional.getPaymentMethodFieldsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                               transactional.getTransactionFieldsByAccountRecordId(accountRecordId, tenantRecordId, context));
+        upsertInTransaction(transactional,
+                            existingFieldModelDaos,
+                            fieldModelDaos.getBusinessModelDaos(),
+                            new Function<BusinessFieldModelDao, Long>() {
+                                @Override
+                                public Long apply(final BusinessFieldModelDao input) {
+                                    return input.getCustomFieldRecordId();
+                                }
+                            },
+                            tenantRecordId,
+                            context);
     }
 }
@@ -19,15 +19,25 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.math.BigDecimal;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessAccountFactory;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
@@ -37,12 +47,15 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
+import org.killbill.billing.plugin.analytics.utils.PaymentUtils;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
@@ -57,29 +70,58 @@ public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessInvoiceAndPaymentDao.class);
 
+    private static final String ANALYTICS_REFRESH_HIGH_CARDINALITY_PAGE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.highCardinalityPageSize";
+    private static final long DEFAULT_HIGH_CARDINALITY_PAGE_SIZE = 100;
+
     private final BusinessAccountDao businessAccountDao;
     private final BusinessInvoiceDao businessInvoiceDao;
     private final BusinessPaymentDao businessPaymentDao;
     private final BusinessAccountFactory bacFactory;
     private final BusinessInvoiceFactory binFactory;
     private final BusinessPaymentFactory bipFactory;
+    private final long highCardinalityPageSize;
 
     public BusinessInvoiceAndPaymentDao(final OSGIKillbillDataSource osgiKillbillDataSource,
                                         final OSGIMetricRegistry metricRegistry,
+                                        final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                         final BusinessAccountDao businessAccountDao,
                                         final Executor executor) {
-        super(osgiKillbillDataSource, metricRegistry);
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         this.businessAccountDao = businessAccountDao;
-        this.businessInvoiceDao = new BusinessInvoiceDao(osgiKillbillDataSource, metricRegistry, businessAccountDao, executor);
-        this.businessPaymentDao = new BusinessPaymentDao(osgiKillbillDataSource, metricRegistry);
+        this.businessInvoiceDao = new BusinessInvoiceDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService, businessAccountDao, executor);
+        this.businessPaymentDao = new BusinessPaymentDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         bacFactory = new BusinessAccountFactory();
         binFactory = new BusinessInvoiceFactory(executor);
         bipFactory = new BusinessPaymentFactory();
+        final String highCardinalityPageSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_HIGH_CARDINALITY_PAGE_SIZE_PROPERTY));
+        this.highCardinalityPageSize = highCardinalityPageSizeMaybeNull == null ? DEFAULT_HIGH_CARDINALITY_PAGE_SIZE : Long.valueOf(highCardinalityPageSizeMaybeNull);
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics invoices and payments for account {}", businessContextFactory.getAccountId());
 
+        if (businessContextFactory.highCardinalityAccount()) {
+            streamingUpdate(businessContextFactory);
+        } else {
+            executeInTransaction(prepareUpdate(businessContextFactory));
+        }
+
+        logger.debug("Finished rebuild of Analytics invoices and payments for account {}", businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute all records, without writing them.
+     * <p>
+     * Not supported for high cardinality accounts, which need to be refreshed page by page (see update).
+     *
+     * @param businessContextFactory context factory
+     * @return the transaction deleting and recreating all items
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        Preconditions.checkState(!businessContextFactory.highCardinalityAccount(),
+                                 "Account %s has a high cardinality and must be refreshed page by page", businessContextFactory.getAccountId());
+
         // Recompute the account record
         final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory);
 
@@ -90,15 +132,110 @@ public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
         createBusinessPojos(businessContextFactory, invoices, invoiceItems, invoicePayments);
 
         // Delete and recreate all items in the transaction
-        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+        return new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 updateInTransaction(bac, invoices, invoiceItems, invoicePayments, transactional, businessContextFactory.getCallContext());
                 return null;
             }
-        });
+        };
+    }
 
-        logger.debug("Finished rebuild of Analytics invoices and payments for account {}", businessContextFactory.getAccountId());
+    /**
+     * For high cardinality accounts, neither the invoices nor the payments are all loaded in memory: instead, they are
+     * fetched page by page, and the associated records are built and written (one transaction per page) before moving
+     * on to the next page.
+     * <p>
+     * Each page replaces the records of its own invoices (resp. payments), so that existing records stay visible while
+     * the refresh is in progress. The records of invoices and payments which no longer exist are deleted, and the
+     * account record updated, in a last transaction. Diff mode isn't supported.
+     *
+     * @param businessContextFactory context factory
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    private void streamingUpdate(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final Long accountRecordId = businessContextFactory.getAccountRecordId();
+        final Long tenantRecordId = businessContextFactory.getTenantRecordId();
+        final CallContext context = businessContextFactory.getCallContext();
+
+        // Update invoice and invoice items tables
+        final Set<UUID> invoiceIds = new HashSet<UUID>();
+        Invoice oldestUnpaidInvoice = null;
+        Invoice lastInvoice = null;
+        long offset = 0;
+        List<Invoice> invoices = businessContextFactory.getAccountInvoicesPage(offset, highCardinalityPageSize);
+        while (!invoices.isEmpty()) {
+            final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> businessInvoices = binFactory.createBusinessInvoicesAndInvoiceItems(invoices, businessContextFactory);
+            executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    businessInvoiceDao.replaceInvoicesAndInvoiceItemsInTransaction(businessInvoices, tenantRecordId, transactional, context);
+                    return null;
+                }
+            });
+
+            // Keep track of the invoices information needed for BAC
+            for (final Invoice invoice : invoices) {
+                invoiceIds.add(invoice.getId());
+                if (BigDecimal.ZERO.compareTo(invoice.getBalance()) < 0 &&
+                    (oldestUnpaidInvoice == null || invoice.getInvoiceDate().isBefore(oldestUnpaidInvoice.getInvoiceDate()))) {
+                    oldestUnpaidInvoice = invoice;
+                }
+                if (lastInvoice == null || invoice.getInvoiceDate().isAfter(lastInvoice.getInvoiceDate())) {
+                    lastInvoice = invoice;
+                }
+            }
+
+            offset += highCardinalityPageSize;
+            invoices = businessContextFactory.getAccountInvoicesPage(offset, highCardinalityPageSize);
+        }
+
+        // Update payment tables
+        final Set<UUID> paymentIds = new HashSet<UUID>();
+        PaymentTransaction lastCaptureOrPurchaseTransaction = null;
+        offset = 0;
+        List<Payment> payments = businessContextFactory.getAccountPaymentsPage(offset, highCardinalityPageSize);
+        while (!payments.isEmpty()) {
+            final Collection<UUID> pagePaymentIds = new LinkedList<UUID>();
+            for (final Payment payment : payments) {
+                pagePaymentIds.add(payment.getId());
+            }
+            final Collection<BusinessPaymentBaseModelDao> businessInvoicePayments = bipFactory.createBusinessPayments(payments, businessContextFactory);
+            executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    businessPaymentDao.replacePaymentsInTransaction(pagePaymentIds, businessInvoicePayments, tenantRecordId, transactional, context);
+                    return null;
+                }
+            });
+
+            // Keep track of the payments information needed for BAC
+            paymentIds.addAll(pagePaymentIds);
+            final PaymentTransaction pageLastCaptureOrPurchaseTransaction = PaymentUtils.findLastPaymentTransaction(payments, TransactionType.CAPTURE, TransactionType.PURCHASE);
+            if (pageLastCaptureOrPurchaseTransaction != null &&
+                (lastCaptureOrPurchaseTransaction == null || pageLastCaptureOrPurchaseTransaction.getEffectiveDate().isAfter(lastCaptureOrPurchaseTransaction.getEffectiveDate()))) {
+                lastCaptureOrPurchaseTransaction = pageLastCaptureOrPurchaseTransaction;
+            }
+
+            offset += highCardinalityPageSize;
+            payments = businessContextFactory.getAccountPaymentsPage(offset, highCardinalityPageSize);
+        }
+
+        // Recompute the account record
+        final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory, oldestUnpaidInvoice, lastInvoice, lastCaptureOrPurchaseTransaction);
+
+        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                // Delete the records of invoices and payments which no longer exist
+                businessInvoiceDao.deleteStaleInvoicesAndInvoiceItemsInTransaction(accountRecordId, tenantRecordId, invoiceIds, transactional, context);
+                businessPaymentDao.deleteStalePaymentsInTransaction(accountRecordId, tenantRecordId, paymentIds, transactional, context);
+
+                // Update denormalized invoice and payment details in BAC
+                businessAccountDao.updateInTransaction(bac, transactional, context);
+                return null;
+            }
+        });
     }
 
     private void createBusinessPojos(final BusinessContextFactory businessContextFactory,
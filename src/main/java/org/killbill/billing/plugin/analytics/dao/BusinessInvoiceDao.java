@@ -20,6 +20,7 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
@@ -28,6 +29,7 @@ import java.util.concurrent.Executor;
 import javax.annotation.Nullable;
 
 import org.killbill.billing.invoice.api.InvoiceStatus;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
@@ -37,28 +39,34 @@ import org.killbill.billing.plugin.analytics.dao.factory.BusinessInvoiceFactory;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 
 public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessInvoiceDao.class);
 
+    private static final String DELETE_BY_INVOICE_ID_STATEMENT_NAME = "deleteByInvoiceId";
+
     private final BusinessAccountDao businessAccountDao;
     private final BusinessInvoiceFactory binFactory;
     private final BusinessAccountFactory bacFactory;
 
     public BusinessInvoiceDao(final OSGIKillbillDataSource osgiKillbillDataSource,
                               final OSGIMetricRegistry metricRegistry,
+                              final OSGIConfigPropertiesService osgiConfigPropertiesService,
                               final BusinessAccountDao businessAccountDao,
                               final Executor executor) {
-        super(osgiKillbillDataSource, metricRegistry);
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         this.businessAccountDao = businessAccountDao;
         this.binFactory = new BusinessInvoiceFactory(executor);
         this.bacFactory = new BusinessAccountFactory();
@@ -67,6 +75,20 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
     public void update(final UUID invoiceId, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics invoiceId {} for account {}", invoiceId, businessContextFactory.getAccountId());
 
+        executeInTransaction(prepareUpdate(invoiceId, businessContextFactory));
+
+        logger.debug("Finished rebuild of Analytics invoiceId {} for account {}", invoiceId, businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute the invoice and invoice items records of a single invoice, without writing them.
+     *
+     * @param invoiceId              invoice id
+     * @param businessContextFactory context factory
+     * @return the transaction updating the invoice, invoice items and account records
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final UUID invoiceId, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         // Recompute the account record
         final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory);
 
@@ -76,7 +98,7 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
         Preconditions.checkArgument(businessInvoices.size() == 1, "Unexpected number of invoices: " + businessInvoices);
 
         // Delete and recreate all items in the transaction
-        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+        return new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 final Entry<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> models = businessInvoices.entrySet().iterator().next();
@@ -86,9 +108,7 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
                 businessAccountDao.updateInTransaction(bac, transactional, businessContextFactory.getCallContext());
                 return null;
             }
-        });
-
-        logger.debug("Finished rebuild of Analytics invoiceId {} for account {}", invoiceId, businessContextFactory.getAccountId());
+        };
     }
 
     private void updateInTransaction(final BusinessAccountModelDao bac,
@@ -97,7 +117,10 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
                                      final BusinessAnalyticsSqlDao transactional,
                                      final CallContext context) {
         deleteInvoiceAndInvoiceItemsInTransaction(transactional, businessInvoice.getInvoiceId(), bac.getTenantRecordId(), context);
-        createInvoiceInTransaction(transactional, businessInvoice, businessInvoiceItems, context);
+
+        final Collection<BusinessModelDaoBase> businessModelDaos = new LinkedList<BusinessModelDaoBase>();
+        addInvoiceAndInvoiceItems(businessModelDaos, businessInvoice, businessInvoiceItems);
+        createInTransaction(transactional, businessModelDaos, context);
 
         // Invoice and payment details in BAC will subsequently be updated
     }
@@ -116,56 +139,177 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
                                     final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItems,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
+        if (isDiffModeEnabled()) {
+            upsertInvoicesAndInvoiceItemsForAccountInTransaction(bac, businessInvoices, businessInvoiceItems, transactional, context);
+            return;
+        }
+
         deleteInvoicesAndInvoiceItemsForAccountInTransaction(transactional, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
 
+        // Insert all invoices and invoice items at once, to let them be batched per table
+        final Collection<BusinessModelDaoBase> businessModelDaos = new LinkedList<BusinessModelDaoBase>();
         for (final BusinessInvoiceModelDao businessInvoice : businessInvoices.values()) {
             final Collection<BusinessInvoiceItemBaseModelDao> invoiceItems = businessInvoiceItems.get(businessInvoice.getInvoiceId());
-            createInvoiceInTransaction(transactional, businessInvoice, invoiceItems, context);
+            addInvoiceAndInvoiceItems(businessModelDaos, businessInvoice, invoiceItems);
         }
+        createInTransaction(transactional, businessModelDaos, context);
 
         // Invoice and payment details in BAC will subsequently be updated
     }
 
+    /**
+     * Replace the invoice and invoice item records of the specified invoices (one page of a streaming refresh).
+     *
+     * @param businessInvoices current, fully populated, mapping of BusinessInvoiceModelDao to BusinessInvoiceItemBaseModelDao records
+     * @param tenantRecordId   tenant record id
+     * @param transactional    current transaction
+     * @param context          call context
+     */
+    public void replaceInvoicesAndInvoiceItemsInTransaction(final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> businessInvoices,
+                                                            final Long tenantRecordId,
+                                                            final BusinessAnalyticsSqlDao transactional,
+                                                            final CallContext context) {
+        final Collection<UUID> invoiceIds = new LinkedList<UUID>();
+        final Collection<BusinessModelDaoBase> businessModelDaos = new LinkedList<BusinessModelDaoBase>();
+        for (final Entry<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> entry : businessInvoices.entrySet()) {
+            invoiceIds.add(entry.getKey().getInvoiceId());
+            addInvoiceAndInvoiceItems(businessModelDaos, entry.getKey(), entry.getValue());
+        }
+
+        deleteInvoicesAndInvoiceItemsInTransaction(transactional, invoiceIds, tenantRecordId);
+        createInTransaction(transactional, businessModelDaos, context);
+    }
+
+    /**
+     * Delete the invoice and invoice item records of the invoices which weren't refreshed (last step of a streaming refresh).
+     *
+     * @param accountRecordId     account record id
+     * @param tenantRecordId      tenant record id
+     * @param refreshedInvoiceIds ids of the invoices refreshed
+     * @param transactional       current transaction
+     * @param context             call context
+     */
+    public void deleteStaleInvoicesAndInvoiceItemsInTransaction(final Long accountRecordId,
+                                                                final Long tenantRecordId,
+                                                                final Collection<UUID> refreshedInvoiceIds,
+                                                                final BusinessAnalyticsSqlDao transactional,
+                                                                final CallContext context) {
+        final Collection<UUID> staleInvoiceIds = new LinkedList<UUID>();
+        for (final UUID invoiceId : transactional.getInvoiceIdsByAccountRecordId(accountRecordId, tenantRecordId, context)) {
+            if (!refreshedInvoiceIds.contains(invoiceId)) {
+                staleInvoiceIds.add(invoiceId);
+            }
+        }
+        deleteInvoicesAndInvoiceItemsInTransaction(transactional, staleInvoiceIds, tenantRecordId);
+    }
+
+    private void upsertInvoicesAndInvoiceItemsForAccountInTransaction(final BusinessAccountModelDao bac,
+                                                                      final Map<UUID, BusinessInvoiceModelDao> businessInvoices,
+                                                                      final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItems,
+                                                                      final BusinessAnalyticsSqlDao transactional,
+                                                                      final CallContext context) {
+        final Collection<BusinessInvoiceModelDao> invoices = new LinkedList<BusinessInvoiceModelDao>();
+        final Collection<BusinessInvoiceItemBaseModelDao> invoiceItems = new LinkedList<BusinessInvoiceItemBaseModelDao>();
+        for (final BusinessInvoiceModelDao businessInvoice : businessInvoices.values()) {
+            final Collection<BusinessInvoiceItemBaseModelDao> businessInvoiceItemsForInvoice = businessInvoiceItems.get(businessInvoice.getInvoiceId());
+            if (!shouldCreateInvoice(businessInvoice, businessInvoiceItemsForInvoice)) {
+                continue;
+            }
+
+            invoices.add(businessInvoice);
+            invoiceItems.addAll(businessInvoiceItemsForInvoice);
+        }
+
+        final Long accountRecordId = bac.getAccountRecordId();
+        final Long tenantRecordId = bac.getTenantRecordId();
+
+        // Invoice items first, to mimic the delete order
+        final Iterable<BusinessInvoiceItemBaseModelDao> existingInvoiceItems = Iterables.<BusinessInvoiceItemBaseModelDao>concat(transactional.getInvoiceAdjustmentsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                                 transactional.getInvoiceItemsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                                 transactional.getInvoiceItemAdjustmentsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                                 transactional.getInvoiceItemCreditsByAccountRecordId(accountRecordId, tenantRecordId, context));
+        upsertInTransaction(transactional,
+                            existingInvoiceItems,
+                            invoiceItems,
+                            new Function<BusinessInvoiceItemBaseModelDao, Long>() {
+                                @Override
+                                public Long apply(final BusinessInvoiceItemBaseModelDao input) {
+                                    return input.getInvoiceItemRecordId();
+                                }
+                            },
+                            tenantRecordId,
+                            context);
+
+        upsertInTransaction(transactional,
+                            transactional.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                            invoices,
+                            new Function<BusinessInvoiceModelDao, Long>() {
+                                @Override
+                                public Long apply(final BusinessInvoiceModelDao input) {
+                                    return input.getInvoiceRecordId();
+                                }
+                            },
+                            tenantRecordId,
+                            context);
+    }
+
     private void deleteInvoiceAndInvoiceItemsInTransaction(final BusinessAnalyticsSqlDao transactional,
                                                            final UUID invoiceId,
                                                            final Long tenantRecordId,
                                                            final CallContext context) {
         // Delete all invoice items
         for (final String tableName : BusinessInvoiceItemBaseModelDao.ALL_INVOICE_ITEMS_TABLE_NAMES) {
+            recordTableChange(tableName);
             transactional.deleteByInvoiceId(tableName, invoiceId, tenantRecordId, context);
         }
 
         // Delete all invoices
+        recordTableChange(BusinessInvoiceModelDao.INVOICES_TABLE_NAME);
         transactional.deleteByInvoiceId(BusinessInvoiceModelDao.INVOICES_TABLE_NAME, invoiceId, tenantRecordId, context);
     }
 
+    private void deleteInvoicesAndInvoiceItemsInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                                            final Collection<UUID> invoiceIds,
+                                                            final Long tenantRecordId) {
+        // Delete all invoice items
+        for (final String tableName : BusinessInvoiceItemBaseModelDao.ALL_INVOICE_ITEMS_TABLE_NAMES) {
+            deleteInTransaction(transactional, DELETE_BY_INVOICE_ID_STATEMENT_NAME, tableName, "invoiceId", invoiceIds, tenantRecordId);
+        }
+
+        // Delete all invoices
+        deleteInTransaction(transactional, DELETE_BY_INVOICE_ID_STATEMENT_NAME, BusinessInvoiceModelDao.INVOICES_TABLE_NAME, "invoiceId", invoiceIds, tenantRecordId);
+    }
+
     private void deleteInvoicesAndInvoiceItemsForAccountInTransaction(final BusinessAnalyticsSqlDao transactional,
                                                                       final Long accountRecordId,
                                                                       final Long tenantRecordId,
                                                                       final CallContext context) {
         // Delete all invoice items
         for (final String tableName : BusinessInvoiceItemBaseModelDao.ALL_INVOICE_ITEMS_TABLE_NAMES) {
+            recordTableChange(tableName);
             transactional.deleteByAccountRecordId(tableName, accountRecordId, tenantRecordId, context);
         }
 
         // Delete all invoices
+        recordTableChange(BusinessInvoiceModelDao.INVOICES_TABLE_NAME);
         transactional.deleteByAccountRecordId(BusinessInvoiceModelDao.INVOICES_TABLE_NAME, accountRecordId, tenantRecordId, context);
     }
 
-    private void createInvoiceInTransaction(final BusinessAnalyticsSqlDao transactional,
-                                            final BusinessInvoiceModelDao invoice,
-                                            @Nullable final Iterable<BusinessInvoiceItemBaseModelDao> invoiceItems,
-                                            final CallContext context) {
-        if (invoiceItems == null || !InvoiceStatus.COMMITTED.toString().equals(invoice.getStatus())) {
+    private void addInvoiceAndInvoiceItems(final Collection<BusinessModelDaoBase> businessModelDaos,
+                                           final BusinessInvoiceModelDao invoice,
+                                           @Nullable final Iterable<BusinessInvoiceItemBaseModelDao> invoiceItems) {
+        if (!shouldCreateInvoice(invoice, invoiceItems)) {
             return;
         }
 
         // Create the invoice
-        transactional.create(invoice.getTableName(), invoice, context);
+        businessModelDaos.add(invoice);
 
         // Add associated invoice items
-        for (final BusinessInvoiceItemBaseModelDao invoiceItem : invoiceItems) {
-            transactional.create(invoiceItem.getTableName(), invoiceItem, context);
-        }
+        Iterables.addAll(businessModelDaos, invoiceItems);
+    }
+
+    private boolean shouldCreateInvoice(final BusinessInvoiceModelDao invoice, @Nullable final Iterable<BusinessInvoiceItemBaseModelDao> invoiceItems) {
+        return invoiceItems != null && InvoiceStatus.COMMITTED.toString().equals(invoice.getStatus());
     }
 }
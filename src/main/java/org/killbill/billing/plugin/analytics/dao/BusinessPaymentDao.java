@@ -19,21 +19,33 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.UUID;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
 public class BusinessPaymentDao extends BusinessAnalyticsDaoBase {
 
+    private static final String DELETE_BY_PAYMENT_ID_STATEMENT_NAME = "deleteByPaymentId";
+
     public BusinessPaymentDao(final OSGIKillbillDataSource osgiKillbillDataSource,
-                              final OSGIMetricRegistry metricRegistry) {
-        super(osgiKillbillDataSource, metricRegistry);
+                              final OSGIMetricRegistry metricRegistry,
+                              final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
     }
 
     /**
-     * Delete all invoice payment records and insert the specified ones as current.
+     * Delete all invoice payment records and insert the specified ones as current (in diff mode, only the modified
+     * records are written, see upsertInTransaction).
      *
      * @param bac                     current, fully populated, BusinessAccountModelDao record
      * @param businessInvoicePayments current, fully populated, mapping of invoice id to BusinessInvoicePaymentBaseModelDao records
@@ -44,14 +56,90 @@ public class BusinessPaymentDao extends BusinessAnalyticsDaoBase {
                                     final Iterable<BusinessPaymentBaseModelDao> businessInvoicePayments,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
+        if (isDiffModeEnabled()) {
+            upsertPaymentsInTransaction(bac, businessInvoicePayments, transactional, context);
+            return;
+        }
+
         for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+            recordTableChange(tableName);
             transactional.deleteByAccountRecordId(tableName, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
         }
 
-        for (final BusinessPaymentBaseModelDao invoicePayment : businessInvoicePayments) {
-            transactional.create(invoicePayment.getTableName(), invoicePayment, context);
-        }
+        createInTransaction(transactional, businessInvoicePayments, context);
 
         // Invoice and payment details in BAC will be updated by BusinessInvoiceAndInvoicePaymentDao
     }
+
+    /**
+     * Replace the payment records of the specified payments (one page of a streaming refresh).
+     *
+     * @param paymentIds              ids of the payments of the page
+     * @param businessInvoicePayments current, fully populated, BusinessPaymentBaseModelDao records for these payments
+     * @param tenantRecordId          tenant record id
+     * @param transactional           current transaction
+     * @param context                 call context
+     */
+    public void replacePaymentsInTransaction(final Collection<UUID> paymentIds,
+                                             final Iterable<BusinessPaymentBaseModelDao> businessInvoicePayments,
+                                             final Long tenantRecordId,
+                                             final BusinessAnalyticsSqlDao transactional,
+                                             final CallContext context) {
+        for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+            deleteInTransaction(transactional, DELETE_BY_PAYMENT_ID_STATEMENT_NAME, tableName, "paymentId", paymentIds, tenantRecordId);
+        }
+
+        createInTransaction(transactional, businessInvoicePayments, context);
+    }
+
+    /**
+     * Delete the payment records of the payments which weren't refreshed (last step of a streaming refresh).
+     *
+     * @param accountRecordId     account record id
+     * @param tenantRecordId      tenant record id
+     * @param refreshedPaymentIds ids of the payments refreshed
+     * @param transactional       current transaction
+     * @param context             call context
+     */
+    public void deleteStalePaymentsInTransaction(final Long accountRecordId,
+                                                 final Long tenantRecordId,
+                                                 final Collection<UUID> refreshedPaymentIds,
+                                                 final BusinessAnalyticsSqlDao transactional,
+                                                 final CallContext context) {
+        for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+            final Collection<UUID> stalePaymentIds = new LinkedList<UUID>();
+            for (final UUID paymentId : transactional.getPaymentIdsByAccountRecordId(tableName, accountRecordId, tenantRecordId, context)) {
+                if (!refreshedPaymentIds.contains(paymentId)) {
+                    stalePaymentIds.add(paymentId);
+                }
+            }
+            deleteInTransaction(transactional, DELETE_BY_PAYMENT_ID_STATEMENT_NAME, tableName, "paymentId", stalePaymentIds, tenantRecordId);
+        }
+    }
+
+    private void upsertPaymentsInTransaction(final BusinessAccountModelDao bac,
+                                             final Iterable<BusinessPaymentBaseModelDao> businessInvoicePayments,
+                                             final BusinessAnalyticsSqlDao transactional,
+                                             final CallContext context) {
+        final Long accountRecordId = bac.getAccountRecordId();
+        final Long tenantRecordId = bac.getTenantRecordId();
+        final Iterable<BusinessPaymentBaseModelDao> existingInvoicePayments = Iterables.<BusinessPaymentBaseModelDao>concat(transactional.getPaymentAuthsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                           transactional.getPaymentCapturesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                           transactional.getPaymentPurchasesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                           transactional.getPaymentRefundsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                           transactional.getPaymentCreditsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                           transactional.getPaymentChargebacksByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                                           transactional.getPaymentVoidsByAccountRecordId(accountRecordId, tenantRecordId, context));
+        upsertInTransaction(transactional,
+                            existingInvoicePayments,
+                            businessInvoicePayments,
+                            new Function<BusinessPaymentBaseModelDao, UUID>() {
+                                @Override
+                                public UUID apply(final BusinessPaymentBaseModelDao input) {
+                                    return input.getPaymentTransactionId();
+                                }
+                            },
+                            tenantRecordId,
+                            context);
+    }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao.RebuildState;
+import org.skife.jdbi.v2.DBI;
+
+public class BusinessRebuildDao {
+
+    private final BusinessRebuildSqlDao sqlDao;
+
+    public BusinessRebuildDao(final OSGIKillbillDataSource osgiKillbillDataSource,
+                              final OSGIMetricRegistry metricRegistry) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), metricRegistry.getMetricRegistry());
+        this.sqlDao = dbi.onDemand(BusinessRebuildSqlDao.class);
+    }
+
+    public Long getNbAccounts(final Long tenantRecordId) {
+        return sqlDao.getNbAccounts(tenantRecordId);
+    }
+
+    // Keyset pagination over the Kill Bill accounts table
+    public List<BusinessRebuildAccountModelDao> getAccountsAfterRecordId(final Long tenantRecordId, final Long lastAccountRecordId, final int limit) {
+        return sqlDao.getAccountsAfterRecordId(tenantRecordId, lastAccountRecordId, limit);
+    }
+
+    public BusinessRebuildCheckpointModelDao getCheckpoint(final Long tenantRecordId) {
+        return sqlDao.getCheckpoint(tenantRecordId);
+    }
+
+    public void startCheckpoint(final Long tenantRecordId, final Long nbAccounts, final DateTime startDate) {
+        if (sqlDao.getCheckpoint(tenantRecordId) == null) {
+            sqlDao.createCheckpoint(tenantRecordId, RebuildState.RUNNING.toString(), nbAccounts, startDate);
+        } else {
+            sqlDao.restartCheckpoint(tenantRecordId, RebuildState.RUNNING.toString(), nbAccounts, startDate);
+        }
+    }
+
+    public void updateCheckpoint(final Long tenantRecordId,
+                                 final RebuildState state,
+                                 final Long lastAccountRecordId,
+                                 final Long nbRefreshes,
+                                 final Long nbErrors,
+                                 final DateTime updatedDate) {
+        sqlDao.updateCheckpoint(tenantRecordId, state.toString(), lastAccountRecordId, nbRefreshes, nbErrors, updatedDate);
+    }
+}
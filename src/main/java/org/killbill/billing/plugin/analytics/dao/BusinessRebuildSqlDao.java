@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator
+public interface BusinessRebuildSqlDao {
+
+    @SqlQuery
+    public Long getNbAccounts(@Bind("tenantRecordId") Long tenantRecordId);
+
+    @SqlQuery
+    public List<BusinessRebuildAccountModelDao> getAccountsAfterRecordId(@Bind("tenantRecordId") Long tenantRecordId,
+                                                                         @Bind("lastAccountRecordId") Long lastAccountRecordId,
+                                                                         @Bind("limit") Integer limit);
+
+    @SqlQuery
+    public BusinessRebuildCheckpointModelDao getCheckpoint(@Bind("tenantRecordId") Long tenantRecordId);
+
+    @SqlUpdate
+    public void createCheckpoint(@Bind("tenantRecordId") Long tenantRecordId,
+                                 @Bind("state") String state,
+                                 @Bind("nbAccounts") Long nbAccounts,
+                                 @Bind("startDate") DateTime startDate);
+
+    @SqlUpdate
+    public void restartCheckpoint(@Bind("tenantRecordId") Long tenantRecordId,
+                                  @Bind("state") String state,
+                                  @Bind("nbAccounts") Long nbAccounts,
+                                  @Bind("startDate") DateTime startDate);
+
+    @SqlUpdate
+    public void updateCheckpoint(@Bind("tenantRecordId") Long tenantRecordId,
+                                 @Bind("state") String state,
+                                 @Bind("lastAccountRecordId") Long lastAccountRecordId,
+                                 @Bind("nbRefreshes") Long nbRefreshes,
+                                 @Bind("nbErrors") Long nbErrors,
+                                 @Bind("updatedDate") DateTime updatedDate);
+}
@@ -25,6 +25,7 @@ import java.util.UUID;
 import java.util.concurrent.Executor;
 
 import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
@@ -41,6 +42,10 @@ import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+
 public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessSubscriptionTransitionDao.class);
@@ -53,17 +58,38 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
 
     public BusinessSubscriptionTransitionDao(final OSGIKillbillDataSource osgiKillbillDataSource,
                                              final OSGIMetricRegistry metricRegistry,
+                                             final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                              final BusinessAccountDao businessAccountDao,
                                              final Executor executor) {
-        super(osgiKillbillDataSource, metricRegistry);
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         this.businessAccountDao = businessAccountDao;
-        this.businessBundleDao = new BusinessBundleDao(osgiKillbillDataSource, metricRegistry);
+        this.businessBundleDao = new BusinessBundleDao(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         bacFactory = new BusinessAccountFactory();
         bbsFactory = new BusinessBundleFactory(executor);
         bstFactory = new BusinessSubscriptionTransitionFactory();
     }
 
     public void update(final UUID objectId, final ObjectType objectType, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final Transaction<Void, BusinessAnalyticsSqlDao> transaction = prepareUpdate(objectId, objectType, businessContextFactory);
+        if (transaction == null) {
+            return;
+        }
+
+        executeInTransaction(transaction);
+
+        logger.debug("Finished rebuild of Analytics bundle of objectId {} for account {}", objectId, businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute the subscription transition records of a single bundle, without writing them.
+     *
+     * @param objectId               bundle or subscription id
+     * @param objectType             BUNDLE or SUBSCRIPTION
+     * @param businessContextFactory context factory
+     * @return the transaction updating the subscription transitions, bundles and account records, null for an unexpected object type
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final UUID objectId, final ObjectType objectType, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         final UUID bundleId;
         if (objectType == ObjectType.BUNDLE) {
             bundleId = objectId;
@@ -71,7 +97,7 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
             bundleId = businessContextFactory.getSubscription(objectId).getBundleId();
         } else {
             logger.warn("Unexpected objectType={} for objectId={}", objectType, objectId);
-            return;
+            return null;
         }
 
         logger.debug("Starting rebuild of Analytics bundleId {} for account {}", bundleId, businessContextFactory.getAccountId());
@@ -81,25 +107,34 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         final Collection<BusinessSubscriptionTransitionModelDao> bsts = bstFactory.createBusinessSubscriptionTransitions(bundleId, businessContextFactory);
         logger.debug("Finished rebuild of Analytics bundle transitions of bundleId {} for account {}", bundleId, businessContextFactory.getAccountId());
 
-        update(bsts, true, businessContextFactory);
-
-        logger.debug("Finished rebuild of Analytics bundleId {} for account {}", bundleId, businessContextFactory.getAccountId());
+        return prepareUpdate(bsts, true, businessContextFactory);
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics subscriptions for account {}", businessContextFactory.getAccountId());
 
+        executeInTransaction(prepareUpdate(businessContextFactory));
+
+        logger.debug("Finished rebuild of Analytics subscriptions for account {}", businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute all subscription transition records, without writing them.
+     *
+     * @param businessContextFactory context factory
+     * @return the transaction updating the subscription transitions, bundles and account records
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         // Recompute all subscription transition records
         final Collection<BusinessSubscriptionTransitionModelDao> bsts = bstFactory.createBusinessSubscriptionTransitions(businessContextFactory);
 
-        update(bsts, false, businessContextFactory);
-
-        logger.debug("Finished rebuild of Analytics subscriptions for account {}", businessContextFactory.getAccountId());
+        return prepareUpdate(bsts, false, businessContextFactory);
     }
 
-    private void update(final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
-                        final boolean partialRefresh,
-                        final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+    private Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
+                                                                     final boolean partialRefresh,
+                                                                     final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         // Recompute the account record
         logger.debug("Starting rebuild of Analytics account {}", businessContextFactory.getAccountId());
         final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory);
@@ -110,13 +145,13 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         final Collection<BusinessBundleModelDao> bbss = bbsFactory.createBusinessBundles(partialRefresh, businessContextFactory, bsts);
         logger.debug("Finished rebuild of Analytics bundle summary for account {}", businessContextFactory.getAccountId());
 
-        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+        return new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 updateInTransaction(bac, bbss, bsts, transactional, businessContextFactory.getCallContext());
                 return null;
             }
-        });
+        };
     }
 
     private void updateInTransaction(final BusinessAccountModelDao bac,
@@ -124,20 +159,24 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
                                      final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
                                      final BusinessAnalyticsSqlDao transactional,
                                      final CallContext context) {
-        final Collection<UUID> deletedByBundleId = new HashSet<UUID>();
-
         // Update the subscription transitions
-        for (final BusinessSubscriptionTransitionModelDao bst : bsts) {
-            if (!deletedByBundleId.contains(bst.getBundleId())) {
-                // Delete by bundle to support partial refreshes
-                transactional.deleteByBundleId(BusinessSubscriptionTransitionModelDao.SUBSCRIPTION_TABLE_NAME,
-                                               bst.getBundleId(),
-                                               bac.getTenantRecordId(),
-                                               context);
-                deletedByBundleId.add(bst.getBundleId());
+        if (isDiffModeEnabled()) {
+            upsertSubscriptionTransitionsInTransaction(bac, bsts, transactional, context);
+        } else {
+            final Collection<UUID> deletedByBundleId = new HashSet<UUID>();
+            for (final BusinessSubscriptionTransitionModelDao bst : bsts) {
+                if (!deletedByBundleId.contains(bst.getBundleId())) {
+                    // Delete by bundle to support partial refreshes
+                    recordTableChange(BusinessSubscriptionTransitionModelDao.SUBSCRIPTION_TABLE_NAME);
+                    transactional.deleteByBundleId(BusinessSubscriptionTransitionModelDao.SUBSCRIPTION_TABLE_NAME,
+                                                   bst.getBundleId(),
+                                                   bac.getTenantRecordId(),
+                                                   context);
+                    deletedByBundleId.add(bst.getBundleId());
+                }
             }
 
-            transactional.create(bst.getTableName(), bst, context);
+            createInTransaction(transactional, bsts, context);
         }
 
         // Update the summary table per bundle
@@ -149,4 +188,40 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         // Update BAC
         businessAccountDao.updateInTransaction(bac, transactional, context);
     }
+
+    private void upsertSubscriptionTransitionsInTransaction(final BusinessAccountModelDao bac,
+                                                            final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
+                                                            final BusinessAnalyticsSqlDao transactional,
+                                                            final CallContext context) {
+        // Only consider the refreshed bundles, to support partial refreshes
+        final Collection<UUID> bundleIds = new HashSet<UUID>();
+        for (final BusinessSubscriptionTransitionModelDao bst : bsts) {
+            bundleIds.add(bst.getBundleId());
+        }
+        if (bundleIds.isEmpty()) {
+            return;
+        }
+
+        final Iterable<BusinessSubscriptionTransitionModelDao> existingBsts = Iterables.filter(transactional.getSubscriptionTransitionsByAccountRecordId(bac.getAccountRecordId(),
+                                                                                                                                                         bac.getTenantRecordId(),
+                                                                                                                                                         context),
+                                                                                               new Predicate<BusinessSubscriptionTransitionModelDao>() {
+                                                                                                   @Override
+                                                                                                   public boolean apply(final BusinessSubscriptionTransitionModelDao input) {
+                                                                                                       return bundleIds.contains(input.getBundleId());
+                                                                                                   }
+                                                                                               });
+
+        upsertInTransaction(transactional,
+                            existingBsts,
+                            bsts,
+                            new Function<BusinessSubscriptionTransitionModelDao, Long>() {
+                                @Override
+                                public Long apply(final BusinessSubscriptionTransitionModelDao input) {
+                                    return input.getSubscriptionEventRecordId();
+                                }
+                            },
+                            bac.getTenantRecordId(),
+                            context);
+    }
 }
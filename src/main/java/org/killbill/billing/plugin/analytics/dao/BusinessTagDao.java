@@ -19,6 +19,7 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
@@ -32,6 +33,9 @@ import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
 public class BusinessTagDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessTagDao.class);
@@ -39,39 +43,77 @@ public class BusinessTagDao extends BusinessAnalyticsDaoBase {
     private final BusinessTagFactory bTagFactory;
 
     public BusinessTagDao(final OSGIKillbillDataSource osgiKillbillDataSource,
-                          final OSGIMetricRegistry metricRegistry) {
-        super(osgiKillbillDataSource, metricRegistry);
+                          final OSGIMetricRegistry metricRegistry,
+                          final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        super(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService);
         bTagFactory = new BusinessTagFactory();
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics tags for account {}", businessContextFactory.getAccountId());
 
+        executeInTransaction(prepareUpdate(businessContextFactory));
+
+        logger.debug("Finished rebuild of Analytics tags for account {}", businessContextFactory.getAccountId());
+    }
+
+    /**
+     * Recompute all tag records, without writing them.
+     *
+     * @param businessContextFactory context factory
+     * @return the transaction deleting and recreating the records
+     * @throws AnalyticsRefreshException if the records could not be computed
+     */
+    public Transaction<Void, BusinessAnalyticsSqlDao> prepareUpdate(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos = bTagFactory.createBusinessTags(businessContextFactory);
 
-        executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+        return new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 updateInTransaction(tagModelDaos, transactional, businessContextFactory.getCallContext());
                 return null;
             }
-        });
-
-        logger.debug("Finished rebuild of Analytics tags for account {}", businessContextFactory.getAccountId());
+        };
     }
 
     private void updateInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos,
                                      final BusinessAnalyticsSqlDao transactional,
                                      final CallContext context) {
+        if (isDiffModeEnabled()) {
+            upsertTagsInTransaction(tagModelDaos, transactional, context);
+            return;
+        }
+
         for (final String tableName : BusinessTagModelDao.ALL_TAGS_TABLE_NAMES) {
+            recordTableChange(tableName);
             transactional.deleteByAccountRecordId(tableName,
                                                   tagModelDaos.getAccountRecordId(),
                                                   tagModelDaos.getTenantRecordId(),
                                                   context);
         }
 
-        for (final BusinessTagModelDao tagModelDao : tagModelDaos.getBusinessModelDaos()) {
-            transactional.create(tagModelDao.getTableName(), tagModelDao, context);
-        }
+        createInTransaction(transactional, tagModelDaos.getBusinessModelDaos(), context);
+    }
+
+    private void upsertTagsInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos,
+                                         final BusinessAnalyticsSqlDao transactional,
+                                         final CallContext context) {
+        final Long accountRecordId = tagModelDaos.getAccountRecordId();
+        final Long tenantRecordId = tagModelDaos.getTenantRecordId();
+        final Iterable<BusinessTagModelDao> existingTagModelDaos = Iterables.<BusinessTagModelDao>concat(transactional.getAccountTagsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                         transactional.getBundleTagsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                         transactional.getInvoiceTagsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                                                                         transactional.getInvoicePaymentTagsByAccountRecordId(accountRecordId, tenantRecordId, context));
+        upsertInTransaction(transactional,
+                            existingTagModelDaos,
+                            tagModelDaos.getBusinessModelDaos(),
+                            new Function<BusinessTagModelDao, Long>() {
+                                @Override
+                                public Long apply(final BusinessTagModelDao input) {
+                                    return input.getTagRecordId();
+                                }
+                            },
+                            tenantRecordId,
+                            context);
     }
 }
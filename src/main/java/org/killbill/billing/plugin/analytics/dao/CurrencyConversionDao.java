@@ -24,16 +24,21 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.utils.CurrencyConversionRates;
 import org.skife.jdbi.v2.DBI;
 
 public class CurrencyConversionDao {
 
+    // Process-wide cache of the conversion rates per reference currency (conversion rates aren't tenant specific)
+    private static final Map<String, VersionedCurrencyConversionRates> currencyConversionRatesCache = new ConcurrentHashMap<String, VersionedCurrencyConversionRates>();
+
     private final CurrencyConversionSqlDao sqlDao;
 
     public CurrencyConversionDao(final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -54,6 +59,21 @@ public class CurrencyConversionDao {
         return currencyConversions;
     }
 
+    // Return the conversion rates, indexed for lookups. The rates are only reloaded when the table changed.
+    public CurrencyConversionRates getCurrencyConversionRates(final String referenceCurrency) {
+        // Cheap check, to detect rows added or removed by other nodes or directly in the database
+        final String version = sqlDao.getCurrencyConversionsVersion(referenceCurrency);
+
+        final VersionedCurrencyConversionRates cachedCurrencyConversionRates = currencyConversionRatesCache.get(referenceCurrency);
+        if (cachedCurrencyConversionRates != null && cachedCurrencyConversionRates.getVersion().equals(version)) {
+            return cachedCurrencyConversionRates.getCurrencyConversionRates();
+        }
+
+        final CurrencyConversionRates currencyConversionRates = new CurrencyConversionRates(getCurrencyConversions(referenceCurrency));
+        currencyConversionRatesCache.put(referenceCurrency, new VersionedCurrencyConversionRates(version, currencyConversionRates));
+        return currencyConversionRates;
+    }
+
     public CurrencyConversionModelDao getCurrencyConversion(final String referenceCurrency, final String currency, final DateTime effectiveDate) {
         return getCurrencyConversion(referenceCurrency, currency, effectiveDate.toLocalDate());
     }
@@ -70,5 +90,25 @@ public class CurrencyConversionDao {
     public void addCurrencyConversion(final String currency, final LocalDate startDate, final LocalDate endDate,
                                       final BigDecimal referenceRate, final String referenceCurrency) {
         sqlDao.addCurrencyConversion(currency, startDate, endDate, referenceRate, referenceCurrency);
+        currencyConversionRatesCache.remove(referenceCurrency);
+    }
+
+    private static final class VersionedCurrencyConversionRates {
+
+        private final String version;
+        private final CurrencyConversionRates currencyConversionRates;
+
+        private VersionedCurrencyConversionRates(final String version, final CurrencyConversionRates currencyConversionRates) {
+            this.version = version;
+            this.currencyConversionRates = currencyConversionRates;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public CurrencyConversionRates getCurrencyConversionRates() {
+            return currencyConversionRates;
+        }
     }
 }
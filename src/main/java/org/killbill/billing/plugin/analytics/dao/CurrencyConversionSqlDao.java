@@ -35,6 +35,9 @@ public interface CurrencyConversionSqlDao {
     @SqlQuery
     public List<CurrencyConversionModelDao> getCurrencyConversions(@Bind("referenceCurrency") String referenceCurrency);
 
+    @SqlQuery
+    public String getCurrencyConversionsVersion(@Bind("referenceCurrency") String referenceCurrency);
+
     @SqlQuery
     public CurrencyConversionModelDao getCurrencyConversionForCurrencyAndDate(@Bind("referenceCurrency") String referenceCurrency,
                                                                               @Bind("currency") String currency,
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.plugin.analytics.dao.factory.ConcurrentUUIDLongMap;
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.ResultIterator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bulk record ids lookups, per account, from the Kill Bill tables (RecordIdApi only supports lookups by object id).
+ */
+public class RecordIdDao {
+
+    private static final Map<ObjectType, String> TABLE_NAMES = new EnumMap<ObjectType, String>(ObjectType.class);
+
+    static {
+        TABLE_NAMES.put(ObjectType.BUNDLE, "bundles");
+        TABLE_NAMES.put(ObjectType.BLOCKING_STATES, "blocking_states");
+        TABLE_NAMES.put(ObjectType.INVOICE, "invoices");
+        TABLE_NAMES.put(ObjectType.INVOICE_ITEM, "invoice_items");
+        TABLE_NAMES.put(ObjectType.INVOICE_PAYMENT, "invoice_payments");
+        TABLE_NAMES.put(ObjectType.PAYMENT, "payments");
+        TABLE_NAMES.put(ObjectType.TAG, "tags");
+        TABLE_NAMES.put(ObjectType.CUSTOM_FIELD, "custom_fields");
+    }
+
+    private final RecordIdSqlDao sqlDao;
+
+    public RecordIdDao(final OSGIKillbillDataSource osgiKillbillDataSource,
+                       final OSGIMetricRegistry metricRegistry) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), metricRegistry.getMetricRegistry());
+        this.sqlDao = dbi.onDemand(RecordIdSqlDao.class);
+    }
+
+    public boolean isSupported(final ObjectType objectType) {
+        return TABLE_NAMES.containsKey(objectType);
+    }
+
+    /**
+     * Load the record ids of all objects of that type for the account
+     *
+     * @param objectType      object type (see isSupported)
+     * @param accountRecordId account record id
+     * @param tenantRecordId  tenant record id
+     * @param recordIds       map to populate
+     * @return the number of record ids loaded
+     */
+    public int loadRecordIds(final ObjectType objectType, final Long accountRecordId, final Long tenantRecordId, final ConcurrentUUIDLongMap recordIds) {
+        final String tableName = TABLE_NAMES.get(objectType);
+        Preconditions.checkArgument(tableName != null, "Unsupported object type %s", objectType);
+
+        int nbRecordIds = 0;
+        // Streamed, as high cardinality accounts can have millions of rows
+        final ResultIterator<RecordIdModelDao> iterator = sqlDao.getRecordIds(tableName, accountRecordId, tenantRecordId);
+        try {
+            while (iterator.hasNext()) {
+                final RecordIdModelDao recordId = iterator.next();
+                recordIds.put(recordId.getId(), recordId.getRecordId());
+                nbRecordIds++;
+            }
+        } finally {
+            iterator.close();
+        }
+        return nbRecordIds;
+    }
+}
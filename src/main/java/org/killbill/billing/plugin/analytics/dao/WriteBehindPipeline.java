@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.locker.GlobalLock;
+import org.killbill.commons.locker.GlobalLocker;
+import org.killbill.commons.locker.LockFailedException;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+
+import static org.killbill.billing.plugin.analytics.AnalyticsListener.ANALYTICS_REFRESH_LOCK_NAME;
+
+/**
+ * Optional write-behind stage of the refreshes: the records of several accounts are committed in a single transaction.
+ * <p>
+ * The notification queue threads take the refresh lock of their account, compute its records and hand them off to a
+ * pool of writers, each draining its own bounded queue. They wait for the commit before releasing the lock (and
+ * acknowledging the notification), so that refreshes are as durable as synchronous ones, and records computed from an
+ * older state can't overwrite the ones of a more recent refresh, even across nodes. Concurrent handoffs are coalesced
+ * into group commits. If a shared transaction fails, its write sets are retried one by one, so that a single bad account
+ * doesn't hold back the others.
+ */
+public class WriteBehindPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindPipeline.class);
+
+    private static final String ANALYTICS_REFRESH_WRITE_BEHIND_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.writeBehind";
+    private static final String ANALYTICS_REFRESH_WRITE_BEHIND_NB_WRITERS_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.writeBehind.nbWriters";
+    private static final String ANALYTICS_REFRESH_WRITE_BEHIND_QUEUE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.writeBehind.queueSize";
+    private static final String ANALYTICS_REFRESH_WRITE_BEHIND_MAX_ACCOUNTS_PER_TRANSACTION_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.writeBehind.maxAccountsPerTransaction";
+    private static final int DEFAULT_NB_WRITERS = 2;
+    private static final int DEFAULT_QUEUE_SIZE = 500;
+    private static final int DEFAULT_MAX_ACCOUNTS_PER_TRANSACTION = 50;
+
+    private static final String WAIT_METRIC_NAME = "killbill-analytics.refresh.writeBehind.wait";
+    private static final String TRANSACTIONS_METRIC_NAME = "killbill-analytics.refresh.writeBehind.transactions";
+    private static final String ACCOUNTS_METRIC_NAME = "killbill-analytics.refresh.writeBehind.accounts";
+    private static final String FAILURES_METRIC_NAME = "killbill-analytics.refresh.writeBehind.failures";
+
+    private static final long POLL_TIMEOUT_MILLIS = 500;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private final BusinessAnalyticsDaoBase businessAnalyticsDao;
+    private final GlobalLocker locker;
+    private final MetricRegistry metricRegistry;
+    private final int maxAccountsPerTransaction;
+    private final List<BlockingQueue<WriteSet>> queues;
+    private final ExecutorService writers;
+
+    private volatile boolean stopped = false;
+
+    public static boolean isEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        return Boolean.parseBoolean(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_WRITE_BEHIND_PROPERTY));
+    }
+
+    public WriteBehindPipeline(final OSGIKillbillDataSource osgiKillbillDataSource,
+                               final OSGIMetricRegistry metricRegistry,
+                               final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                               final GlobalLocker locker) {
+        this(new BusinessAnalyticsDaoBase(osgiKillbillDataSource, metricRegistry, osgiConfigPropertiesService),
+             locker,
+             metricRegistry.getMetricRegistry(),
+             getInt(osgiConfigPropertiesService, ANALYTICS_REFRESH_WRITE_BEHIND_NB_WRITERS_PROPERTY, DEFAULT_NB_WRITERS),
+             getInt(osgiConfigPropertiesService, ANALYTICS_REFRESH_WRITE_BEHIND_QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE),
+             getInt(osgiConfigPropertiesService, ANALYTICS_REFRESH_WRITE_BEHIND_MAX_ACCOUNTS_PER_TRANSACTION_PROPERTY, DEFAULT_MAX_ACCOUNTS_PER_TRANSACTION));
+    }
+
+    @VisibleForTesting
+    WriteBehindPipeline(final BusinessAnalyticsDaoBase businessAnalyticsDao,
+                        final GlobalLocker locker,
+                        final MetricRegistry metricRegistry,
+                        final int nbWriters,
+                        final int queueSize,
+                        final int maxAccountsPerTransaction) {
+        Preconditions.checkArgument(nbWriters > 0, "nbWriters must be positive: %s", nbWriters);
+        Preconditions.checkArgument(queueSize > 0, "queueSize must be positive: %s", queueSize);
+        Preconditions.checkArgument(maxAccountsPerTransaction > 0, "maxAccountsPerTransaction must be positive: %s", maxAccountsPerTransaction);
+        this.businessAnalyticsDao = businessAnalyticsDao;
+        this.locker = locker;
+        this.metricRegistry = metricRegistry;
+        this.maxAccountsPerTransaction = maxAccountsPerTransaction;
+
+        this.queues = new ArrayList<BlockingQueue<WriteSet>>(nbWriters);
+        this.writers = Executors.newCachedThreadPool("osgi-analytics-write-behind");
+        for (int i = 0; i < nbWriters; i++) {
+            final BlockingQueue<WriteSet> queue = new ArrayBlockingQueue<WriteSet>(queueSize);
+            queues.add(queue);
+            writers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(queue);
+                }
+            });
+        }
+    }
+
+    /**
+     * Refresh an account: take its refresh lock, compute its records in the current thread and wait for a writer to
+     * commit them. The lock is held until then.
+     *
+     * @param accountId          account id
+     * @param lockAttemptRetries number of attempts to take the refresh lock of the account
+     * @param writeSet           computes the transactions to execute for that account, in order (invoked with the lock)
+     * @throws LockFailedException       if the lock couldn't be taken (nothing was computed nor written)
+     * @throws AnalyticsRefreshException if the records couldn't be computed
+     * @throws RuntimeException          if the records couldn't be committed
+     */
+    public void write(final UUID accountId,
+                      final int lockAttemptRetries,
+                      final Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>> writeSet) throws LockFailedException, AnalyticsRefreshException {
+        Preconditions.checkState(!stopped, "Write-behind pipeline is stopped");
+
+        final GlobalLock lock = locker.lockWithNumberOfTries(ANALYTICS_REFRESH_LOCK_NAME, accountId.toString(), lockAttemptRetries);
+        try {
+            final List<Transaction<Void, BusinessAnalyticsSqlDao>> transactions = prepare(writeSet);
+            if (transactions == null || transactions.isEmpty()) {
+                return;
+            }
+
+            final BlockingQueue<WriteSet> queue = queues.get(Math.floorMod(accountId.hashCode(), queues.size()));
+            final WriteSet preparedWriteSet = new WriteSet(accountId, transactions);
+            putUninterruptibly(queue, preparedWriteSet);
+            awaitCommit(queue, preparedWriteSet);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Stop accepting new write sets and wait for the queued ones to be committed.
+     *
+     * @return true if all queued write sets have been committed
+     */
+    public boolean shutdown() {
+        stopped = true;
+        writers.shutdown();
+        try {
+            if (writers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return true;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writers.shutdownNow();
+        return false;
+    }
+
+    private static List<Transaction<Void, BusinessAnalyticsSqlDao>> prepare(final Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>> writeSet) throws AnalyticsRefreshException {
+        try {
+            return writeSet.call();
+        } catch (final AnalyticsRefreshException e) {
+            throw e;
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new AnalyticsRefreshException(e);
+        }
+    }
+
+    // The lock is held: the handoff can't be abandoned (a full queue only slows down the notification queue threads)
+    private static void putUninterruptibly(final BlockingQueue<WriteSet> queue, final WriteSet writeSet) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(writeSet);
+                    return;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Returns once the write set is committed (or has failed), so that the lock can't be released before
+    private void awaitCommit(final BlockingQueue<WriteSet> queue, final WriteSet writeSet) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    writeSet.committed.get(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                } catch (final TimeoutException e) {
+                    // Queued after the writers stopped
+                    if (writers.isTerminated() && queue.remove(writeSet)) {
+                        throw new IllegalStateException("Write-behind pipeline is stopped");
+                    }
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drain(final BlockingQueue<WriteSet> queue) {
+        final List<WriteSet> writeSets = new ArrayList<WriteSet>(maxAccountsPerTransaction);
+        while (!stopped || !queue.isEmpty()) {
+            final WriteSet writeSet;
+            try {
+                writeSet = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Analytics write-behind writer interrupted, {} account(s) left behind", queue.size());
+                // Not acknowledged: the refreshes will be retried
+                final List<WriteSet> leftBehind = new ArrayList<WriteSet>(queue.size());
+                queue.drainTo(leftBehind);
+                for (final WriteSet leftBehindWriteSet : leftBehind) {
+                    leftBehindWriteSet.committed.setException(new IllegalStateException("Write-behind pipeline is stopped"));
+                }
+                return;
+            }
+            if (writeSet == null) {
+                continue;
+            }
+
+            // Coalesce whatever else is already queued
+            writeSets.add(writeSet);
+            queue.drainTo(writeSets, maxAccountsPerTransaction - 1);
+            final long now = System.nanoTime();
+            for (final WriteSet queuedWriteSet : writeSets) {
+                metricRegistry.timer(WAIT_METRIC_NAME).update(now - queuedWriteSet.submittedNanos, TimeUnit.NANOSECONDS);
+            }
+            try {
+                commit(writeSets);
+            } finally {
+                // Never leave a notification queue thread waiting
+                for (final WriteSet committedWriteSet : writeSets) {
+                    committedWriteSet.committed.setException(new IllegalStateException("Unable to commit the write set of account " + committedWriteSet.accountId));
+                }
+                writeSets.clear();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void commit(final List<WriteSet> writeSets) {
+        try {
+            businessAnalyticsDao.executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    for (final WriteSet writeSet : writeSets) {
+                        for (final Transaction<Void, BusinessAnalyticsSqlDao> transaction : writeSet.transactions) {
+                            transaction.inTransaction(transactional, status);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (final RuntimeException e) {
+            if (writeSets.size() == 1) {
+                metricRegistry.counter(FAILURES_METRIC_NAME).inc(1);
+                logger.warn("Unable to write Analytics records for account {}", writeSets.get(0).accountId, e);
+                writeSets.get(0).committed.setException(e);
+                return;
+            }
+
+            // The locks are still held by the waiting threads
+            logger.info("Unable to write Analytics records for {} accounts in a single transaction, retrying one by one", writeSets.size(), e);
+            for (final WriteSet writeSet : writeSets) {
+                commit(ImmutableList.<WriteSet>of(writeSet));
+            }
+            return;
+        }
+
+        metricRegistry.counter(TRANSACTIONS_METRIC_NAME).inc(1);
+        metricRegistry.counter(ACCOUNTS_METRIC_NAME).inc(writeSets.size());
+        for (final WriteSet writeSet : writeSets) {
+            writeSet.committed.set(null);
+        }
+    }
+
+    private static int getInt(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String property, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(property));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
+
+    @VisibleForTesting
+    static final class WriteSet {
+
+        private final UUID accountId;
+        private final List<Transaction<Void, BusinessAnalyticsSqlDao>> transactions;
+        private final long submittedNanos;
+        // Completed by the writer
+        private final SettableFuture<Void> committed = SettableFuture.<Void>create();
+
+        WriteSet(final UUID accountId, final List<Transaction<Void, BusinessAnalyticsSqlDao>> transactions) {
+            this.accountId = accountId;
+            this.transactions = transactions;
+            this.submittedNanos = System.nanoTime();
+        }
+
+        @VisibleForTesting
+        SettableFuture<Void> getCommitted() {
+            return committed;
+        }
+    }
+}
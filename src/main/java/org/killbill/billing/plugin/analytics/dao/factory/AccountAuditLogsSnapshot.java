@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.audit.AccountAuditLogs;
+import org.killbill.billing.util.audit.AuditLog;
+import org.killbill.billing.util.audit.ChangeType;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Snapshot of the creation audit logs for a given account, fetched once, indexed per object type and object id.
+ * <p>
+ * AccountAuditLogs isn't thread safe: it is only accessed in the constructor, to index the objects known at that time.
+ * The indexes are immutable afterwards, so the snapshot can be queried without locking by the threads building the business records.
+ */
+class AccountAuditLogsSnapshot {
+
+    private final Map<ObjectType, Map<UUID, Optional<AuditLog>>> creationAuditLogsPerObjectType;
+
+    AccountAuditLogsSnapshot(final AccountAuditLogs accountAuditLogs, final SetMultimap<ObjectType, UUID> objectIds) {
+        final Map<ObjectType, Map<UUID, Optional<AuditLog>>> creationAuditLogsPerObjectTypeBuilder = new EnumMap<ObjectType, Map<UUID, Optional<AuditLog>>>(ObjectType.class);
+        for (final ObjectType objectType : objectIds.keySet()) {
+            final ImmutableMap.Builder<UUID, Optional<AuditLog>> creationAuditLogs = ImmutableMap.<UUID, Optional<AuditLog>>builder();
+            for (final UUID objectId : objectIds.get(objectType)) {
+                creationAuditLogs.put(objectId, Optional.<AuditLog>fromNullable(getInsertAuditLog(getAuditLogs(accountAuditLogs, objectType, objectId))));
+            }
+            creationAuditLogsPerObjectTypeBuilder.put(objectType, creationAuditLogs.build());
+        }
+        this.creationAuditLogsPerObjectType = Maps.immutableEnumMap(creationAuditLogsPerObjectTypeBuilder);
+    }
+
+    boolean isIndexed(final ObjectType objectType, final UUID objectId) {
+        final Map<UUID, Optional<AuditLog>> creationAuditLogs = creationAuditLogsPerObjectType.get(objectType);
+        return creationAuditLogs != null && creationAuditLogs.containsKey(objectId);
+    }
+
+    @Nullable
+    AuditLog getCreationAuditLog(final ObjectType objectType, final UUID objectId) {
+        final Map<UUID, Optional<AuditLog>> creationAuditLogs = creationAuditLogsPerObjectType.get(objectType);
+        final Optional<AuditLog> creationAuditLog = creationAuditLogs == null ? null : creationAuditLogs.get(objectId);
+        return creationAuditLog == null ? null : creationAuditLog.orNull();
+    }
+
+    private static List<AuditLog> getAuditLogs(final AccountAuditLogs accountAuditLogs, final ObjectType objectType, final UUID objectId) {
+        switch (objectType) {
+            case ACCOUNT:
+                return accountAuditLogs.getAuditLogsForAccount();
+            case BUNDLE:
+                return accountAuditLogs.getAuditLogsForBundle(objectId);
+            case BLOCKING_STATES:
+                return accountAuditLogs.getAuditLogsForBlockingState(objectId);
+            case INVOICE:
+                return accountAuditLogs.getAuditLogsForInvoice(objectId);
+            case INVOICE_ITEM:
+                return accountAuditLogs.getAuditLogsForInvoiceItem(objectId);
+            case INVOICE_PAYMENT:
+                return accountAuditLogs.getAuditLogsForInvoicePayment(objectId);
+            case PAYMENT:
+                return accountAuditLogs.getAuditLogsForPayment(objectId);
+            case TAG:
+                return accountAuditLogs.getAuditLogsForTag(objectId);
+            case CUSTOM_FIELD:
+                return accountAuditLogs.getAuditLogsForCustomField(objectId);
+            default:
+                return accountAuditLogs.getAuditLogs(objectType).getAuditLogs(objectId);
+        }
+    }
+
+    static AuditLog getInsertAuditLog(@Nullable final Iterable<AuditLog> auditLogs) {
+        if (auditLogs == null) {
+            return null;
+        }
+
+        for (final AuditLog auditLog : auditLogs) {
+            if (auditLog.getChangeType().equals(ChangeType.INSERT)) {
+                return auditLog;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.util.api.AuditLevel;
+import org.killbill.billing.util.api.AuditUserApi;
+import org.killbill.billing.util.audit.AccountAuditLogs;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.SetMultimap;
+
+// Encapsulate logic to fetch *all* audit logs for a given account
+//
+// Because we fetch one time, and then pull some state (e.g subscriptions) later on, we may not
+// have all the audit logs for recently added state. In such case the client can ask for a new snapshot.
+//
+// Each snapshot indexes the objects known when it is built (see knownObjectIds), as well as the objects
+// previously looked up and missing from an older snapshot.
+//
+class AccountAuditLogsStore {
+
+    // More than LOG_THRESHOLD refresh we log an entry
+    private static final int LOG_THRESHOLD = 10;
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountAuditLogsStore.class);
+
+    private final UUID accountId;
+    private final TenantContext context;
+    private final OSGIKillbillAPI osgiKillbillAPI;
+    private final Supplier<? extends Multimap<ObjectType, UUID>> knownObjectIds;
+    // Objects missing from a previous snapshot (guarded by this)
+    private final SetMultimap<ObjectType, UUID> missingObjectIds = HashMultimap.<ObjectType, UUID>create();
+
+    private volatile AccountAuditLogsSnapshot snapshot;
+    // Only for logging to see what's happening (guarded by this)
+    private int nbRefresh;
+
+    public AccountAuditLogsStore(final OSGIKillbillAPI osgiKillbillAPI, final UUID accountId, final TenantContext context) {
+        this(osgiKillbillAPI, accountId, context, Suppliers.<Multimap<ObjectType, UUID>>ofInstance(ImmutableMultimap.<ObjectType, UUID>of()));
+    }
+
+    public AccountAuditLogsStore(final OSGIKillbillAPI osgiKillbillAPI,
+                                 final UUID accountId,
+                                 final TenantContext context,
+                                 final Supplier<? extends Multimap<ObjectType, UUID>> knownObjectIds) {
+        this.osgiKillbillAPI = osgiKillbillAPI;
+        this.accountId = accountId;
+        this.context = context;
+        this.knownObjectIds = knownObjectIds;
+    }
+
+    public AccountAuditLogsSnapshot getSnapshot() throws AnalyticsRefreshException {
+        final AccountAuditLogsSnapshot currentSnapshot = snapshot;
+        return currentSnapshot != null ? currentSnapshot : refresh(null);
+    }
+
+    /**
+     * Fetch a new snapshot, unless another thread already replaced the stale one in the meantime.
+     *
+     * @param staleSnapshot snapshot which didn't contain the expected audit logs, if any
+     * @return the up-to-date snapshot
+     * @throws AnalyticsRefreshException if the audit logs could not be retrieved
+     */
+    public synchronized AccountAuditLogsSnapshot refresh(@Nullable final AccountAuditLogsSnapshot staleSnapshot) throws AnalyticsRefreshException {
+        if (snapshot != null && snapshot != staleSnapshot) {
+            return snapshot;
+        }
+
+        final AccountAuditLogs accountAuditLogs = getAuditUserApi().getAccountAuditLogs(accountId, AuditLevel.MINIMAL, context);
+        if (accountAuditLogs == null) {
+            throw new AnalyticsRefreshException(String.format("Failed to fetch all account audit logs for account %s", accountId));
+        }
+        final SetMultimap<ObjectType, UUID> objectIds = HashMultimap.<ObjectType, UUID>create(knownObjectIds.get());
+        objectIds.put(ObjectType.ACCOUNT, accountId);
+        objectIds.putAll(missingObjectIds);
+        snapshot = new AccountAuditLogsSnapshot(accountAuditLogs, objectIds);
+
+        nbRefresh++;
+        if (nbRefresh >= LOG_THRESHOLD && nbRefresh % LOG_THRESHOLD == 0) {
+            logger.warn("Detected {} audit logs full refresh for accountId={}", nbRefresh, accountId);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Fetch a new snapshot indexing the specified object, unless another thread already replaced the stale one with a snapshot indexing it.
+     *
+     * @param staleSnapshot snapshot which didn't contain the creation audit log of the object
+     * @param objectType    object type
+     * @param objectId      object id
+     * @return the up-to-date snapshot
+     * @throws AnalyticsRefreshException if the audit logs could not be retrieved
+     */
+    public synchronized AccountAuditLogsSnapshot refresh(final AccountAuditLogsSnapshot staleSnapshot, final ObjectType objectType, final UUID objectId) throws AnalyticsRefreshException {
+        missingObjectIds.put(objectType, objectId);
+        if (snapshot != null && snapshot != staleSnapshot && snapshot.isIndexed(objectType, objectId)) {
+            return snapshot;
+        }
+
+        return refresh(snapshot);
+    }
+
+    public TenantContext getContext() {
+        return context;
+    }
+
+    public AuditUserApi getAuditUserApi() throws AnalyticsRefreshException {
+        final AuditUserApi auditUserApi = osgiKillbillAPI.getAuditUserApi();
+        if (auditUserApi == null) {
+            throw new AnalyticsRefreshException("Error retrieving auditUserApi");
+        }
+        return auditUserApi;
+    }
+}
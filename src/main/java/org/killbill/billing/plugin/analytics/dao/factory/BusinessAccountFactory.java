@@ -21,6 +21,8 @@ package org.killbill.billing.plugin.analytics.dao.factory;
 
 import java.math.BigDecimal;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.ProductCategory;
 import org.killbill.billing.entitlement.api.Entitlement.EntitlementState;
@@ -44,12 +46,6 @@ public class BusinessAccountFactory {
 
     // Always needs to be refreshed (depends on bundles, invoices and payments)
     public BusinessAccountModelDao createBusinessAccount(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
-        final Account account = businessContextFactory.getAccount();
-        final Account parentAccount = businessContextFactory.getParentAccount();
-
-        // Retrieve the account creation audit log
-        final AuditLog creationAuditLog = businessContextFactory.getAccountCreationAuditLog();
-
         // Retrieve the account balance
         // Note: since we retrieve the invoices below, we could compute it ourselves and avoid fetching the invoices
         // twice, but that way the computation logic is owned by invoice (this will pull all invoices and items though as it's not optimized today)
@@ -80,11 +76,47 @@ public class BusinessAccountFactory {
         final Iterable<Payment> payments = businessContextFactory.getAccountPayments();
         final PaymentTransaction lastCaptureOrPurchaseTransaction = PaymentUtils.findLastPaymentTransaction(payments, TransactionType.CAPTURE, TransactionType.PURCHASE);
 
-        // Retrieve bundles information
-        final Iterable<SubscriptionBundle> bundles = businessContextFactory.getAccountBundles();
-        // Skip this call for large accounts
+        return createBusinessAccount(businessContextFactory, accountBalance, oldestUnpaidInvoice, lastInvoice, lastCaptureOrPurchaseTransaction);
+    }
+
+    /**
+     * Create the business account, when the invoices and payments information has already been computed (e.g. while
+     * streaming the invoices and payments of a high cardinality account).
+     *
+     * @param businessContextFactory           context factory
+     * @param oldestUnpaidInvoice              oldest invoice with a positive balance, if any
+     * @param lastInvoice                      most recent invoice, if any
+     * @param lastCaptureOrPurchaseTransaction most recent capture or purchase transaction, if any
+     * @return the business account
+     * @throws AnalyticsRefreshException
+     */
+    public BusinessAccountModelDao createBusinessAccount(final BusinessContextFactory businessContextFactory,
+                                                         @Nullable final Invoice oldestUnpaidInvoice,
+                                                         @Nullable final Invoice lastInvoice,
+                                                         @Nullable final PaymentTransaction lastCaptureOrPurchaseTransaction) throws AnalyticsRefreshException {
+        final BigDecimal accountBalance = businessContextFactory.getAccountBalance();
+        // Consistent with the non-streaming computation, which only looks for unpaid invoices if the account has a balance
+        return createBusinessAccount(businessContextFactory,
+                                     accountBalance,
+                                     accountBalance.compareTo(BigDecimal.ZERO) > 0 ? oldestUnpaidInvoice : null,
+                                     lastInvoice,
+                                     lastCaptureOrPurchaseTransaction);
+    }
+
+    private BusinessAccountModelDao createBusinessAccount(final BusinessContextFactory businessContextFactory,
+                                                          final BigDecimal accountBalance,
+                                                          @Nullable final Invoice oldestUnpaidInvoice,
+                                                          @Nullable final Invoice lastInvoice,
+                                                          @Nullable final PaymentTransaction lastCaptureOrPurchaseTransaction) throws AnalyticsRefreshException {
+        final Account account = businessContextFactory.getAccount();
+        final Account parentAccount = businessContextFactory.getParentAccount();
+
+        // Retrieve the account creation audit log
+        final AuditLog creationAuditLog = businessContextFactory.getAccountCreationAuditLog();
+
+        // Retrieve bundles information (skip this call for large accounts)
         final int nbActiveBundles = businessContextFactory.highCardinalityAccount() ? -1 :
-                                    Iterables.size(Iterables.<SubscriptionBundle>filter(bundles,
+                                    Iterables.size(Iterables.<SubscriptionBundle>filter(businessContextFactory.getAccountBundles(),
                                                                                         new Predicate<SubscriptionBundle>() {
                                                                                             @Override
                                                                                             public boolean apply(final SubscriptionBundle bundle) {
@@ -74,12 +74,10 @@ public class BusinessBundleFactory {
         final CompletionService<BusinessBundleModelDao> completionService = new ExecutorCompletionService<BusinessBundleModelDao>(executor);
         final Collection<BusinessBundleModelDao> bbss = new LinkedList<BusinessBundleModelDao>();
         for (final BusinessSubscriptionTransitionModelDao bst : bstForBundle.values()) {
-            // Fetch audit logs in the main thread as AccountAuditLogs is not thread safe
-            final AuditLog creationAuditLog = businessContextFactory.getBundleCreationAuditLog(bst.getBundleId());
-
             completionService.submit(new Callable<BusinessBundleModelDao>() {
                 @Override
                 public BusinessBundleModelDao call() throws Exception {
+                    final AuditLog creationAuditLog = businessContextFactory.getBundleCreationAuditLog(bst.getBundleId());
                     return buildBBS(businessContextFactory,
                                     account,
                                     creationAuditLog,
@@ -21,19 +21,23 @@ package org.killbill.billing.plugin.analytics.dao.factory;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Plan;
 import org.killbill.billing.catalog.api.PlanPhase;
-import org.killbill.billing.catalog.api.VersionedCatalog;
 import org.killbill.billing.entitlement.api.BlockingState;
 import org.killbill.billing.entitlement.api.Subscription;
 import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.entitlement.api.SubscriptionEvent;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.api.InvoicePayment;
@@ -45,6 +49,7 @@ import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfiguration;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHandler;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase.ReportGroup;
 import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
 import org.killbill.billing.util.audit.AuditLog;
@@ -58,28 +63,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
 
 public class BusinessContextFactory extends BusinessFactoryBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessContextFactory.class);
 
-    private static final Map<UUID, AuditLog> accountCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> bundleCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> subscriptionEventCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> blockingStateCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> invoiceCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> invoiceItemCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> invoicePaymentCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> paymentCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> tagCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
-    private static final Map<UUID, AuditLog> customFieldCreationAuditLogs = new FixedSizeMap<UUID, AuditLog>();
+    // Creation audit logs lookups don't lock the factory, as the audit logs store can be queried concurrently (e.g. by the record builders threads)
+    private static final Map<UUID, AuditLog> accountCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> bundleCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> subscriptionEventCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> blockingStateCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> invoiceCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> invoiceItemCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> invoicePaymentCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> paymentCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> tagCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
+    private static final Map<UUID, AuditLog> customFieldCreationAuditLogs = Collections.synchronizedMap(new FixedSizeMap<UUID, AuditLog>());
 
     private final Long accountRecordId;
     private final Long tenantRecordId;
-    private final SafeAccountAuditLogs safeAccountAuditLogs;
+    private final AccountAuditLogsStore accountAuditLogsStore;
     private final ReportGroup reportGroup;
     private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+    private final RecordIdDao recordIdDao;
 
     private volatile PluginPropertiesManager pluginPropertiesManager;
     private volatile CurrencyConverter currencyConverter;
@@ -97,36 +107,56 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     private volatile Map<UUID, PaymentMethod> accountPaymentMethods;
     private volatile Iterable<Tag> accountTags;
     private volatile Iterable<CustomField> accountCustomFields;
-    // Cheap lookups (should be in Ehcache)
-    private volatile Map<UUID, Long> bundleRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> subscriptionEventRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> blockingStateRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> invoiceRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> invoiceItemRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> invoicePaymentRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> paymentRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> tagRecordIds = new HashMap<UUID, Long>();
-    private volatile Map<UUID, Long> customFieldRecordIds = new HashMap<UUID, Long>();
+    // Cheap lookups (bulk loaded per object type when possible, see RecordIdsCache)
+    private final RecordIdsCache bundleRecordIds = new RecordIdsCache();
+    private final RecordIdsCache subscriptionEventRecordIds = new RecordIdsCache();
+    private final RecordIdsCache blockingStateRecordIds = new RecordIdsCache();
+    private final RecordIdsCache invoiceRecordIds = new RecordIdsCache();
+    private final RecordIdsCache invoiceItemRecordIds = new RecordIdsCache();
+    private final RecordIdsCache invoicePaymentRecordIds = new RecordIdsCache();
+    private final RecordIdsCache paymentRecordIds = new RecordIdsCache();
+    private final RecordIdsCache tagRecordIds = new RecordIdsCache();
+    private final RecordIdsCache customFieldRecordIds = new RecordIdsCache();
     // Others
     private volatile Map<UUID, SubscriptionBundle> cachedBundles = new HashMap<UUID, SubscriptionBundle>();
     private volatile Map<UUID, Subscription> subscriptions = new HashMap<UUID, Subscription>();
     private volatile Map<String, SubscriptionBundle> latestSubscriptionBundleForExternalKeys = new HashMap<String, SubscriptionBundle>();
     private volatile Map<UUID, TagDefinition> tagDefinitions = new HashMap<UUID, TagDefinition>();
-    private volatile VersionedCatalog catalog;
+    private volatile IndexedCatalog catalog;
+
+    public BusinessContextFactory(final UUID accountId,
+                                  final CallContext callContext,
+                                  final CurrencyConversionDao currencyConversionDao,
+                                  final OSGIKillbillAPI osgiKillbillAPI,
+                                  final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                  final Clock clock,
+                                  final AnalyticsConfigurationHandler analyticsConfigurationHandler) throws AnalyticsRefreshException {
+        this(accountId, callContext, currencyConversionDao, null, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+    }
 
     public BusinessContextFactory(final UUID accountId,
                                   final CallContext callContext,
                                   final CurrencyConversionDao currencyConversionDao,
+                                  @Nullable final RecordIdDao recordIdDao,
                                   final OSGIKillbillAPI osgiKillbillAPI,
                                   final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                   final Clock clock,
                                   final AnalyticsConfigurationHandler analyticsConfigurationHandler) throws AnalyticsRefreshException {
         super(accountId, callContext, currencyConversionDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        this.recordIdDao = recordIdDao;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
 
         // Always needed
         this.accountRecordId = getAccountRecordId(accountId, callContext);
-        this.safeAccountAuditLogs = new SafeAccountAuditLogs(osgiKillbillAPI, accountId, callContext);
+        this.accountAuditLogsStore = new AccountAuditLogsStore(osgiKillbillAPI,
+                                                               accountId,
+                                                               callContext,
+                                                               new Supplier<Multimap<ObjectType, UUID>>() {
+                                                                   @Override
+                                                                   public Multimap<ObjectType, UUID> get() {
+                                                                       return getLoadedObjectIds();
+                                                                   }
+                                                               });
         this.tenantRecordId = getTenantRecordId(callContext);
         this.reportGroup = getReportGroup(getAccountTags());
     }
@@ -175,6 +205,26 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return currencyConverter;
     }
 
+    /**
+     * Eagerly load the data shared by all refresh groups (the lazy loaders lock this factory, so concurrent groups
+     * would otherwise wait on each other for the first load).
+     *
+     * @throws AnalyticsRefreshException if the data could not be loaded
+     */
+    public void prefetch() throws AnalyticsRefreshException {
+        getAccount();
+        getParentAccount();
+        getAccountBundles();
+        if (!highCardinalityAccount()) {
+            // Streamed instead (see getAccountInvoicesPage and getAccountPaymentsPage)
+            getAccountInvoices();
+            getAccountPayments();
+        }
+        // Loads the account audit logs
+        getAccountCreationAuditLog();
+        getCurrencyConverter();
+    }
+
     public Account getAccount() throws AnalyticsRefreshException {
         if (account == null) {
             synchronized (this) {
@@ -306,6 +356,40 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return accountInvoices;
     }
 
+    /**
+     * Retrieve a page of fully populated invoices for that account, for high cardinality accounts.
+     * <p>
+     * Unlike getAccountInvoices, the invoices aren't cached: the caller is expected to release them once processed.
+     *
+     * @param offset offset of the first invoice
+     * @param limit  maximum number of invoices to return
+     * @return the invoices, empty past the last page
+     * @throws AnalyticsRefreshException if the invoices could not be retrieved
+     */
+    public List<Invoice> getAccountInvoicesPage(final long offset, final long limit) throws AnalyticsRefreshException {
+        final List<Invoice> accountInvoicesPage = new LinkedList<Invoice>();
+        Pagination<Invoice> shallowInvoicesByAccountId = null;
+        try {
+            shallowInvoicesByAccountId = getShallowInvoicesByAccountId(accountId, offset, limit, callContext);
+            for (final Invoice shallowInvoice : shallowInvoicesByAccountId) {
+                final Invoice invoice = getInvoice(shallowInvoice.getId(), callContext);
+                if (invoice != null) {
+                    accountInvoicesPage.add(invoice);
+                }
+            }
+        } finally {
+            try {
+                if (shallowInvoicesByAccountId != null) {
+                    shallowInvoicesByAccountId.close();
+                }
+            } catch (final IOException e) {
+                // Not much we can do...
+                logger.warn("Unable to close Pagination object", e);
+            }
+        }
+        return accountInvoicesPage;
+    }
+
     public Invoice getLastInvoice() throws AnalyticsRefreshException {
         Invoice lastShallowInvoice = null;
         Pagination<Invoice> shallowInvoicesByAccountId = null;
@@ -351,6 +435,44 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return accountPayments;
     }
 
+    /**
+     * Retrieve a page of payments for that account, for high cardinality accounts.
+     * <p>
+     * Unlike getAccountPayments, the payments aren't cached: the caller is expected to release them once processed.
+     *
+     * @param offset offset of the first payment
+     * @param limit  maximum number of payments to return
+     * @return the payments, empty past the last page
+     * @throws AnalyticsRefreshException if the payments could not be retrieved
+     */
+    public List<Payment> getAccountPaymentsPage(final long offset, final long limit) throws AnalyticsRefreshException {
+        final List<Payment> accountPaymentsPage = new LinkedList<Payment>();
+        Pagination<Payment> paymentsByAccountId = null;
+        try {
+            paymentsByAccountId = getPaymentsWithPluginInfoByAccountId(accountId, offset, limit, callContext);
+            for (final Payment payment : paymentsByAccountId) {
+                // The search key could also match other fields
+                if (accountId.equals(payment.getAccountId())) {
+                    accountPaymentsPage.add(payment);
+                }
+            }
+        } finally {
+            try {
+                if (paymentsByAccountId != null) {
+                    paymentsByAccountId.close();
+                }
+            } catch (final IOException e) {
+                // Not much we can do...
+                logger.warn("Unable to close Pagination object", e);
+            }
+        }
+        return accountPaymentsPage;
+    }
+
+    public Map<UUID, List<InvoicePayment>> getInvoicePayments(final Iterable<Payment> payments) throws AnalyticsRefreshException {
+        return getAccountInvoicePayments(payments, callContext);
+    }
+
     public PaymentMethod getPaymentMethod(final UUID paymentMethodId) throws AnalyticsRefreshException {
         if (accountPaymentMethods == null) {
             synchronized (this) {
@@ -389,212 +511,180 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     }
 
     public AuditLog getAccountCreationAuditLog() throws AnalyticsRefreshException {
-        if (accountCreationAuditLogs.get(accountId) == null) {
-            synchronized (this) {
-                if (accountCreationAuditLogs.get(accountId) == null) {
-                    accountCreationAuditLogs.put(accountId, getAccountCreationAuditLog(accountId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = accountCreationAuditLogs.get(accountId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getAccountCreationAuditLog(accountId, accountAuditLogsStore);
+            accountCreationAuditLogs.put(accountId, creationAuditLog);
         }
-        return accountCreationAuditLogs.get(accountId);
+        return creationAuditLog;
     }
 
     public AuditLog getBundleCreationAuditLog(final UUID bundleId) throws AnalyticsRefreshException {
-        if (bundleCreationAuditLogs.get(bundleId) == null) {
-            synchronized (this) {
-                if (bundleCreationAuditLogs.get(bundleId) == null) {
-                    bundleCreationAuditLogs.put(bundleId, getBundleCreationAuditLog(bundleId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = bundleCreationAuditLogs.get(bundleId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getBundleCreationAuditLog(bundleId, accountAuditLogsStore);
+            bundleCreationAuditLogs.put(bundleId, creationAuditLog);
         }
-        return bundleCreationAuditLogs.get(bundleId);
+        return creationAuditLog;
     }
 
     public AuditLog getSubscriptionEventCreationAuditLog(final UUID subscriptionEventId, final ObjectType objectType) throws AnalyticsRefreshException {
-        if (subscriptionEventCreationAuditLogs.get(subscriptionEventId) == null) {
-            synchronized (this) {
-                if (subscriptionEventCreationAuditLogs.get(subscriptionEventId) == null) {
-                    subscriptionEventCreationAuditLogs.put(subscriptionEventId, getSubscriptionEventCreationAuditLog(subscriptionEventId, objectType, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = subscriptionEventCreationAuditLogs.get(subscriptionEventId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getSubscriptionEventCreationAuditLog(subscriptionEventId, objectType, accountAuditLogsStore);
+            subscriptionEventCreationAuditLogs.put(subscriptionEventId, creationAuditLog);
         }
-        return subscriptionEventCreationAuditLogs.get(subscriptionEventId);
+        return creationAuditLog;
     }
 
     public AuditLog getBlockingStateCreationAuditLog(final UUID blockingStateId) throws AnalyticsRefreshException {
-        if (blockingStateCreationAuditLogs.get(blockingStateId) == null) {
-            synchronized (this) {
-                if (blockingStateCreationAuditLogs.get(blockingStateId) == null) {
-                    blockingStateCreationAuditLogs.put(blockingStateId, getBlockingStateCreationAuditLog(blockingStateId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = blockingStateCreationAuditLogs.get(blockingStateId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getBlockingStateCreationAuditLog(blockingStateId, accountAuditLogsStore);
+            blockingStateCreationAuditLogs.put(blockingStateId, creationAuditLog);
         }
-        return blockingStateCreationAuditLogs.get(blockingStateId);
+        return creationAuditLog;
     }
 
     public AuditLog getInvoiceCreationAuditLog(final UUID invoiceId) throws AnalyticsRefreshException {
-        if (invoiceCreationAuditLogs.get(invoiceId) == null) {
-            synchronized (this) {
-                if (invoiceCreationAuditLogs.get(invoiceId) == null) {
-                    invoiceCreationAuditLogs.put(invoiceId, getInvoiceCreationAuditLog(invoiceId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = invoiceCreationAuditLogs.get(invoiceId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getInvoiceCreationAuditLog(invoiceId, accountAuditLogsStore);
+            invoiceCreationAuditLogs.put(invoiceId, creationAuditLog);
         }
-        return invoiceCreationAuditLogs.get(invoiceId);
+        return creationAuditLog;
     }
 
     public AuditLog getInvoiceItemCreationAuditLog(final UUID invoiceItemId) throws AnalyticsRefreshException {
-        if (invoiceItemCreationAuditLogs.get(invoiceItemId) == null) {
-            synchronized (this) {
-                if (invoiceItemCreationAuditLogs.get(invoiceItemId) == null) {
-                    invoiceItemCreationAuditLogs.put(invoiceItemId, getInvoiceItemCreationAuditLog(invoiceItemId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = invoiceItemCreationAuditLogs.get(invoiceItemId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getInvoiceItemCreationAuditLog(invoiceItemId, accountAuditLogsStore);
+            invoiceItemCreationAuditLogs.put(invoiceItemId, creationAuditLog);
         }
-        return invoiceItemCreationAuditLogs.get(invoiceItemId);
+        return creationAuditLog;
     }
 
     public AuditLog getInvoicePaymentCreationAuditLog(final UUID invoicePaymentId) throws AnalyticsRefreshException {
-        if (invoicePaymentCreationAuditLogs.get(invoicePaymentId) == null) {
-            synchronized (this) {
-                if (invoicePaymentCreationAuditLogs.get(invoicePaymentId) == null) {
-                    invoicePaymentCreationAuditLogs.put(invoicePaymentId, getInvoicePaymentCreationAuditLog(invoicePaymentId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = invoicePaymentCreationAuditLogs.get(invoicePaymentId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getInvoicePaymentCreationAuditLog(invoicePaymentId, accountAuditLogsStore);
+            invoicePaymentCreationAuditLogs.put(invoicePaymentId, creationAuditLog);
         }
-        return invoicePaymentCreationAuditLogs.get(invoicePaymentId);
+        return creationAuditLog;
     }
 
     public AuditLog getPaymentCreationAuditLog(final UUID paymentId) throws AnalyticsRefreshException {
-        if (paymentCreationAuditLogs.get(paymentId) == null) {
-            synchronized (this) {
-                if (paymentCreationAuditLogs.get(paymentId) == null) {
-                    paymentCreationAuditLogs.put(paymentId, getPaymentCreationAuditLog(paymentId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = paymentCreationAuditLogs.get(paymentId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getPaymentCreationAuditLog(paymentId, accountAuditLogsStore);
+            paymentCreationAuditLogs.put(paymentId, creationAuditLog);
         }
-        return paymentCreationAuditLogs.get(paymentId);
+        return creationAuditLog;
     }
 
     public AuditLog getTagCreationAuditLog(final UUID tagId) throws AnalyticsRefreshException {
-        if (tagCreationAuditLogs.get(tagId) == null) {
-            synchronized (this) {
-                if (tagCreationAuditLogs.get(tagId) == null) {
-                    tagCreationAuditLogs.put(tagId, getTagCreationAuditLog(tagId, safeAccountAuditLogs));
-                }
-            }
+        AuditLog creationAuditLog = tagCreationAuditLogs.get(tagId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getTagCreationAuditLog(tagId, accountAuditLogsStore);
+            tagCreationAuditLogs.put(tagId, creationAuditLog);
         }
-        return tagCreationAuditLogs.get(tagId);
+        return creationAuditLog;
     }
 
     public AuditLog getCustomFieldCreationAuditLog(final UUID customFieldId) throws AnalyticsRefreshException {
-        if (customFieldCreationAuditLogs.get(customFieldId) == null) {
-            synchronized (this) {
-                if (customFieldCreationAuditLogs.get(customFieldId) == null) {
-                    customFieldCreationAuditLogs.put(customFieldId, getFieldCreationAuditLog(customFieldId, safeAccountAuditLogs));
+        AuditLog creationAuditLog = customFieldCreationAuditLogs.get(customFieldId);
+        if (creationAuditLog == null) {
+            creationAuditLog = getFieldCreationAuditLog(customFieldId, accountAuditLogsStore);
+            customFieldCreationAuditLogs.put(customFieldId, creationAuditLog);
+        }
+        return creationAuditLog;
+    }
+
+    // Objects loaded so far, whose creation audit logs are indexed by the audit logs snapshots
+    private Multimap<ObjectType, UUID> getLoadedObjectIds() {
+        final Multimap<ObjectType, UUID> objectIds = HashMultimap.<ObjectType, UUID>create();
+        if (accountBundles != null) {
+            for (final SubscriptionBundle bundle : accountBundles) {
+                objectIds.put(ObjectType.BUNDLE, bundle.getId());
+                for (final Subscription subscription : bundle.getSubscriptions()) {
+                    for (final SubscriptionEvent subscriptionEvent : subscription.getSubscriptionEvents()) {
+                        objectIds.put(subscriptionEvent.getSubscriptionEventType().getObjectType(), subscriptionEvent.getId());
+                    }
                 }
             }
         }
-        return customFieldCreationAuditLogs.get(customFieldId);
-    }
-
-    public Long getBundleRecordId(final UUID bundleId) throws AnalyticsRefreshException {
-        if (bundleRecordIds.get(bundleId) == null) {
-            synchronized (this) {
-                if (bundleRecordIds.get(bundleId) == null) {
-                    bundleRecordIds.put(bundleId, getBundleRecordId(bundleId, callContext));
+        if (accountBlockingStates != null) {
+            for (final BlockingState blockingState : accountBlockingStates) {
+                objectIds.put(ObjectType.BLOCKING_STATES, blockingState.getId());
+            }
+        }
+        if (accountInvoices != null) {
+            for (final Invoice invoice : accountInvoices) {
+                objectIds.put(ObjectType.INVOICE, invoice.getId());
+                for (final InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
+                    objectIds.put(ObjectType.INVOICE_ITEM, invoiceItem.getId());
                 }
             }
         }
-        return bundleRecordIds.get(bundleId);
-    }
-
-    public Long getSubscriptionEventRecordId(final UUID subscriptionEventId, final ObjectType objectType) throws AnalyticsRefreshException {
-        if (subscriptionEventRecordIds.get(subscriptionEventId) == null) {
-            synchronized (this) {
-                if (subscriptionEventRecordIds.get(subscriptionEventId) == null) {
-                    subscriptionEventRecordIds.put(subscriptionEventId, getSubscriptionEventRecordId(subscriptionEventId, objectType, callContext));
+        if (accountInvoicePayments != null) {
+            for (final List<InvoicePayment> invoicePayments : accountInvoicePayments.values()) {
+                for (final InvoicePayment invoicePayment : invoicePayments) {
+                    objectIds.put(ObjectType.INVOICE_PAYMENT, invoicePayment.getId());
                 }
             }
         }
-        return subscriptionEventRecordIds.get(subscriptionEventId);
+        if (accountPayments != null) {
+            for (final Payment payment : accountPayments) {
+                objectIds.put(ObjectType.PAYMENT, payment.getId());
+            }
+        }
+        if (accountTags != null) {
+            for (final Tag tag : accountTags) {
+                objectIds.put(ObjectType.TAG, tag.getId());
+            }
+        }
+        if (accountCustomFields != null) {
+            for (final CustomField customField : accountCustomFields) {
+                objectIds.put(ObjectType.CUSTOM_FIELD, customField.getId());
+            }
+        }
+        return objectIds;
+    }
+
+    public Long getBundleRecordId(final UUID bundleId) throws AnalyticsRefreshException {
+        return bundleRecordIds.get(bundleId, ObjectType.BUNDLE);
+    }
+
+    public Long getSubscriptionEventRecordId(final UUID subscriptionEventId, final ObjectType objectType) throws AnalyticsRefreshException {
+        return subscriptionEventRecordIds.get(subscriptionEventId, objectType);
     }
 
     public Long getBlockingStateRecordId(final UUID blockingStateId) throws AnalyticsRefreshException {
-        if (blockingStateRecordIds.get(blockingStateId) == null) {
-            synchronized (this) {
-                if (blockingStateRecordIds.get(blockingStateId) == null) {
-                    blockingStateRecordIds.put(blockingStateId, getBlockingStateRecordId(blockingStateId, callContext));
-                }
-            }
-        }
-        return blockingStateRecordIds.get(blockingStateId);
+        return blockingStateRecordIds.get(blockingStateId, ObjectType.BLOCKING_STATES);
     }
 
     public Long getInvoiceRecordId(final UUID invoiceId) throws AnalyticsRefreshException {
-        if (invoiceRecordIds.get(invoiceId) == null) {
-            synchronized (this) {
-                if (invoiceRecordIds.get(invoiceId) == null) {
-                    invoiceRecordIds.put(invoiceId, getInvoiceRecordId(invoiceId, callContext));
-                }
-            }
-        }
-        return invoiceRecordIds.get(invoiceId);
+        return invoiceRecordIds.get(invoiceId, ObjectType.INVOICE);
     }
 
     public Long getInvoiceItemRecordId(final UUID invoiceItemId) throws AnalyticsRefreshException {
-        if (invoiceItemRecordIds.get(invoiceItemId) == null) {
-            synchronized (this) {
-                if (invoiceItemRecordIds.get(invoiceItemId) == null) {
-                    invoiceItemRecordIds.put(invoiceItemId, getInvoiceItemRecordId(invoiceItemId, callContext));
-                }
-            }
-        }
-        return invoiceItemRecordIds.get(invoiceItemId);
+        return invoiceItemRecordIds.get(invoiceItemId, ObjectType.INVOICE_ITEM);
     }
 
     public Long getInvoicePaymentRecordId(final UUID invoicePaymentId) throws AnalyticsRefreshException {
-        if (invoicePaymentRecordIds.get(invoicePaymentId) == null) {
-            synchronized (this) {
-                if (invoicePaymentRecordIds.get(invoicePaymentId) == null) {
-                    invoicePaymentRecordIds.put(invoicePaymentId, getInvoicePaymentRecordId(invoicePaymentId, callContext));
-                }
-            }
-        }
-        return invoicePaymentRecordIds.get(invoicePaymentId);
+        return invoicePaymentRecordIds.get(invoicePaymentId, ObjectType.INVOICE_PAYMENT);
     }
 
     public Long getPaymentRecordId(final UUID paymentId) throws AnalyticsRefreshException {
-        if (paymentRecordIds.get(paymentId) == null) {
-            synchronized (this) {
-                if (paymentRecordIds.get(paymentId) == null) {
-                    paymentRecordIds.put(paymentId, getPaymentRecordId(paymentId, callContext));
-                }
-            }
-        }
-        return paymentRecordIds.get(paymentId);
+        return paymentRecordIds.get(paymentId, ObjectType.PAYMENT);
     }
 
     public Long getTagRecordId(final UUID tagId) throws AnalyticsRefreshException {
-        if (tagRecordIds.get(tagId) == null) {
-            synchronized (this) {
-                if (tagRecordIds.get(tagId) == null) {
-                    tagRecordIds.put(tagId, getTagRecordId(tagId, callContext));
-                }
-            }
-        }
-        return tagRecordIds.get(tagId);
+        return tagRecordIds.get(tagId, ObjectType.TAG);
     }
 
     public Long getCustomFieldRecordId(final UUID customFieldId) throws AnalyticsRefreshException {
-        if (customFieldRecordIds.get(customFieldId) == null) {
-            synchronized (this) {
-                if (customFieldRecordIds.get(customFieldId) == null) {
-                    customFieldRecordIds.put(customFieldId, getFieldRecordId(customFieldId, callContext));
-                }
-            }
-        }
-        return customFieldRecordIds.get(customFieldId);
+        return customFieldRecordIds.get(customFieldId, ObjectType.CUSTOM_FIELD);
     }
 
     public SubscriptionBundle getSubscriptionBundle(final UUID bundleId) throws AnalyticsRefreshException {
@@ -660,7 +750,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return getPlanPhaseFromInvoiceItem(invoiceItem, getCatalog());
     }
 
-    private VersionedCatalog getCatalog() throws AnalyticsRefreshException {
+    private IndexedCatalog getCatalog() throws AnalyticsRefreshException {
         if (catalog == null) {
             synchronized (this) {
                 if (catalog == null) {
@@ -670,4 +760,50 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         }
         return catalog;
     }
+
+    // Record ids of the account objects of a given type: on the first miss, all of them are loaded at once (when supported by the RecordIdDao)
+    private final class RecordIdsCache {
+
+        private final ConcurrentUUIDLongMap recordIds = new ConcurrentUUIDLongMap();
+        private volatile boolean prefetched = false;
+
+        private Long get(final UUID objectId, final ObjectType objectType) throws AnalyticsRefreshException {
+            long recordId = recordIds.get(objectId);
+            if (recordId == ConcurrentUUIDLongMap.NO_VALUE && prefetch(objectType)) {
+                recordId = recordIds.get(objectId);
+            }
+            if (recordId != ConcurrentUUIDLongMap.NO_VALUE) {
+                return recordId;
+            }
+
+            // Object created after the prefetch or not supported
+            final Long objectRecordId = getRecordId(objectId, objectType, callContext);
+            if (objectRecordId != null) {
+                recordIds.put(objectId, objectRecordId);
+            }
+            return objectRecordId;
+        }
+
+        // Return true if the cache may have been populated since the caller's lookup
+        private boolean prefetch(final ObjectType objectType) {
+            if (prefetched || recordIdDao == null || !recordIdDao.isSupported(objectType)) {
+                return false;
+            }
+
+            synchronized (this) {
+                if (!prefetched) {
+                    try {
+                        final int nbRecordIds = recordIdDao.loadRecordIds(objectType, accountRecordId, tenantRecordId, recordIds);
+                        logger.debug("Loaded {} {} record ids for accountRecordId='{}'", nbRecordIds, objectType, accountRecordId);
+                    } catch (final RuntimeException e) {
+                        // Not fatal, record ids will be looked up one by one
+                        logger.warn("Unable to load {} record ids for accountRecordId='{}'", objectType, accountRecordId, e);
+                    } finally {
+                        prefetched = true;
+                    }
+                }
+            }
+            return true;
+        }
+    }
 }
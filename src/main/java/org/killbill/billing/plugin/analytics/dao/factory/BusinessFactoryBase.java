@@ -21,14 +21,13 @@ package org.killbill.billing.plugin.analytics.dao.factory;
 
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
-import javax.annotation.Nullable;
-
 import org.joda.time.DateTime;
 import org.killbill.billing.ErrorCode;
 import org.killbill.billing.ObjectType;
@@ -40,7 +39,6 @@ import org.killbill.billing.catalog.api.CatalogApiException;
 import org.killbill.billing.catalog.api.CatalogUserApi;
 import org.killbill.billing.catalog.api.Plan;
 import org.killbill.billing.catalog.api.PlanPhase;
-import org.killbill.billing.catalog.api.VersionedCatalog;
 import org.killbill.billing.entitlement.api.BlockingState;
 import org.killbill.billing.entitlement.api.EntitlementApiException;
 import org.killbill.billing.entitlement.api.Subscription;
@@ -71,9 +69,7 @@ import org.killbill.billing.util.api.AuditUserApi;
 import org.killbill.billing.util.api.CustomFieldUserApi;
 import org.killbill.billing.util.api.RecordIdApi;
 import org.killbill.billing.util.api.TagUserApi;
-import org.killbill.billing.util.audit.AccountAuditLogs;
 import org.killbill.billing.util.audit.AuditLog;
-import org.killbill.billing.util.audit.ChangeType;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.customfield.CustomField;
@@ -98,6 +94,8 @@ import com.google.common.collect.ImmutableList;
 public abstract class BusinessFactoryBase {
 
     private static final String ANALYTICS_REFERENCE_CURRENCY_PROPERTY = "org.killbill.billing.plugin.analytics.referenceCurrency";
+    private static final String ANALYTICS_CATALOG_CACHE_TTL_SECONDS_PROPERTY = "org.killbill.billing.plugin.analytics.catalogCacheTTLSeconds";
+    private static final long DEFAULT_CATALOG_CACHE_TTL_SECONDS = 300;
     private static final Iterable<PluginProperty> PLUGIN_PROPERTIES = ImmutableList.<PluginProperty>of();
     private static final Logger logger = LoggerFactory.getLogger(BusinessFactoryBase.class);
 
@@ -108,6 +106,7 @@ public abstract class BusinessFactoryBase {
 
     private final boolean highCardinalityAccount;
     private final String referenceCurrency;
+    private final long catalogCacheTTLSeconds;
     private final CurrencyConversionDao currencyConversionDao;
 
     public BusinessFactoryBase(final UUID accountId,
@@ -122,6 +121,8 @@ public abstract class BusinessFactoryBase {
         this.osgiKillbillAPI = osgiKillbillAPI;
         this.clock = clock;
         this.referenceCurrency = MoreObjects.firstNonNull(Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFERENCE_CURRENCY_PROPERTY)), "USD");
+        final String catalogCacheTTLSecondsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_CATALOG_CACHE_TTL_SECONDS_PROPERTY));
+        this.catalogCacheTTLSeconds = catalogCacheTTLSecondsMaybeNull == null ? DEFAULT_CATALOG_CACHE_TTL_SECONDS : Long.valueOf(catalogCacheTTLSecondsMaybeNull);
         this.currencyConversionDao = currencyConversionDao;
         final AnalyticsConfiguration analyticsConfiguration = analyticsConfigurationHandler.getConfigurable(callContext.getTenantId());
         this.highCardinalityAccount = analyticsConfiguration.highCardinalityAccounts.stream().filter(s -> Objects.equals(s, accountId.toString())).findFirst().orElse(null) != null;
@@ -136,7 +137,12 @@ public abstract class BusinessFactoryBase {
     //
 
     protected CurrencyConverter getCurrencyConverter() {
-        return new CurrencyConverter(clock, referenceCurrency, currencyConversionDao.getCurrencyConversions(referenceCurrency));
+        return new CurrencyConverter(clock, referenceCurrency, currencyConversionDao.getCurrencyConversionRates(referenceCurrency));
+    }
+
+    protected Long getRecordId(final UUID objectId, final ObjectType objectType, final TenantContext context) throws AnalyticsRefreshException {
+        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
+        return recordIdUserApi.getRecordId(objectId, objectType, context);
     }
 
     //
@@ -170,19 +176,8 @@ public abstract class BusinessFactoryBase {
         }
     }
 
-    protected AuditLog getAccountCreationAuditLog(final UUID accountId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(accountId, ObjectType.ACCOUNT, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForAccount();
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        },"Unable to find Account creation audit log for id {}", accountId);
+    protected AuditLog getAccountCreationAuditLog(final UUID accountId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(accountId, ObjectType.ACCOUNT, accountAuditLogsStore, "Unable to find Account creation audit log for id {}");
     }
 
     protected Long getAccountRecordId(final UUID accountId, final TenantContext context) throws AnalyticsRefreshException {
@@ -281,117 +276,32 @@ public abstract class BusinessFactoryBase {
         }
     }
 
-    protected Long getBundleRecordId(final UUID bundleId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(bundleId, ObjectType.BUNDLE, context);
-    }
-
-    protected AuditLog getBundleCreationAuditLog(final UUID bundleId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(bundleId, ObjectType.BUNDLE, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForBundle(bundleId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Bundle creation audit log for id {}", bundleId);
-
-    }
-
-    protected AuditLog getSubscriptionEventCreationAuditLog(final UUID subscriptionEventId, final ObjectType objectType, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(subscriptionEventId, objectType, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogs(objectType).getAuditLogs(subscriptionEventId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Subscription event creation audit log for id {}", subscriptionEventId);
+    protected AuditLog getBundleCreationAuditLog(final UUID bundleId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(bundleId, ObjectType.BUNDLE, accountAuditLogsStore, "Unable to find Bundle creation audit log for id {}");
     }
 
-    protected Long getSubscriptionEventRecordId(final UUID subscriptionEventId, final ObjectType objectType, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(subscriptionEventId, objectType, context);
+    protected AuditLog getSubscriptionEventCreationAuditLog(final UUID subscriptionEventId, final ObjectType objectType, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(subscriptionEventId, objectType, accountAuditLogsStore, "Unable to find Subscription event creation audit log for id {}");
     }
 
     //
     // BLOCKING STATES
     //
 
-    protected AuditLog getBlockingStateCreationAuditLog(final UUID blockingStateId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(blockingStateId, ObjectType.BLOCKING_STATES, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForBlockingState(blockingStateId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Blocking state creation audit log for id {}", blockingStateId);
-    }
-
-    protected Long getBlockingStateRecordId(final UUID blockingStateId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(blockingStateId, ObjectType.BLOCKING_STATES, context);
+    protected AuditLog getBlockingStateCreationAuditLog(final UUID blockingStateId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(blockingStateId, ObjectType.BLOCKING_STATES, accountAuditLogsStore, "Unable to find Blocking state creation audit log for id {}");
     }
 
     //
     // INVOICE
     //
 
-    protected AuditLog getInvoiceCreationAuditLog(final UUID invoiceId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(invoiceId, ObjectType.INVOICE, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForInvoice(invoiceId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Invoice creation audit log for id {}", invoiceId);
+    protected AuditLog getInvoiceCreationAuditLog(final UUID invoiceId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(invoiceId, ObjectType.INVOICE, accountAuditLogsStore, "Unable to find Invoice creation audit log for id {}");
     }
 
-    protected Long getInvoiceRecordId(final UUID invoiceId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(invoiceId, ObjectType.INVOICE, context);
-    }
-
-    protected AuditLog getInvoiceItemCreationAuditLog(final UUID invoiceItemId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(invoiceItemId, ObjectType.INVOICE_ITEM, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForInvoiceItem(invoiceItemId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Invoice item creation audit log for id {}", invoiceItemId);
-    }
-
-    protected Long getInvoiceItemRecordId(final UUID invoiceItemId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(invoiceItemId, ObjectType.INVOICE_ITEM, context);
+    protected AuditLog getInvoiceItemCreationAuditLog(final UUID invoiceItemId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(invoiceItemId, ObjectType.INVOICE_ITEM, accountAuditLogsStore, "Unable to find Invoice item creation audit log for id {}");
     }
 
     protected Invoice getInvoice(final UUID invoiceId, final TenantContext context) throws AnalyticsRefreshException {
@@ -425,23 +335,25 @@ public abstract class BusinessFactoryBase {
     }
 
     protected Pagination<Invoice> getShallowInvoicesByAccountId(final UUID accountId, final CallContext context) throws AnalyticsRefreshException {
+        return getShallowInvoicesByAccountId(accountId, 0L, 10000L, context);
+    }
+
+    protected Pagination<Invoice> getShallowInvoicesByAccountId(final UUID accountId, final Long offset, final Long limit, final CallContext context) throws AnalyticsRefreshException {
         final InvoiceUserApi invoiceUserApi = getInvoiceUserApi();
         // Invoices will be shallow, i.e. won't contain items nor payments
-        return invoiceUserApi.searchInvoices(accountId.toString(), 0L, 10000L, context);
+        return invoiceUserApi.searchInvoices(accountId.toString(), offset, limit, context);
     }
 
-    protected Plan getPlanFromInvoiceItem(final InvoiceItem invoiceItem, final VersionedCatalog catalog) throws AnalyticsRefreshException {
+    protected Plan getPlanFromInvoiceItem(final InvoiceItem invoiceItem, final IndexedCatalog catalog) throws AnalyticsRefreshException {
         try {
-            // getCatalogEffectiveDate was introduced in 0.21.x
-            final DateTime catalogEffectiveDate = MoreObjects.firstNonNull(invoiceItem.getCatalogEffectiveDate(), invoiceItem.getCreatedDate());
-            return catalog.getVersion(catalogEffectiveDate.toDate()).findPlan(invoiceItem.getPlanName());
+            return catalog.findPlan(getCatalogEffectiveDate(invoiceItem), invoiceItem.getPlanName());
         } catch (final CatalogApiException e) {
             logger.warn("Unable to retrieve plan for invoice item {}", invoiceItem.getId(), e);
             return null;
         }
     }
 
-    protected PlanPhase getPlanPhaseFromInvoiceItem(final InvoiceItem invoiceItem, final VersionedCatalog catalog) throws AnalyticsRefreshException {
+    protected PlanPhase getPlanPhaseFromInvoiceItem(final InvoiceItem invoiceItem, final IndexedCatalog catalog) throws AnalyticsRefreshException {
         // Find the phase via the plan (same implementation logic as Catalog.findPhase, but without having to pass the subscription start date)
         final Plan plan = getPlanFromInvoiceItem(invoiceItem, catalog);
         if (plan == null) {
@@ -449,24 +361,38 @@ public abstract class BusinessFactoryBase {
         }
 
         try {
-            return plan.findPhase(invoiceItem.getPhaseName());
+            return catalog.findPhase(getCatalogEffectiveDate(invoiceItem), invoiceItem.getPlanName(), invoiceItem.getPhaseName());
         } catch (final CatalogApiException e) {
             logger.warn("Unable to retrieve phase for invoice item {}", invoiceItem.getId(), e);
             return null;
         }
     }
 
+    private Date getCatalogEffectiveDate(final InvoiceItem invoiceItem) {
+        // getCatalogEffectiveDate was introduced in 0.21.x
+        return MoreObjects.firstNonNull(invoiceItem.getCatalogEffectiveDate(), invoiceItem.getCreatedDate()).toDate();
+    }
+
     //
     // CATALOG
     //
 
-    protected VersionedCatalog getCatalog(final TenantContext context) throws AnalyticsRefreshException {
+    protected IndexedCatalog getCatalog(final TenantContext context) throws AnalyticsRefreshException {
+        final DateTime now = clock.getUTCNow();
+        final IndexedCatalog cachedCatalog = TenantCatalogCache.get(context.getTenantId(), now, catalogCacheTTLSeconds);
+        if (cachedCatalog != null) {
+            return cachedCatalog;
+        }
+
         final CatalogUserApi catalogUserApi = getCatalogUserApi();
+        final IndexedCatalog catalog;
         try {
-            return catalogUserApi.getCatalog(null, context);
+            catalog = new IndexedCatalog(catalogUserApi.getCatalog(null, context), now);
         } catch (final CatalogApiException e) {
             throw new AnalyticsRefreshException(e);
         }
+        TenantCatalogCache.put(context.getTenantId(), catalog);
+        return catalog;
     }
 
     //
@@ -485,25 +411,8 @@ public abstract class BusinessFactoryBase {
         return allInvoicePaymentsByPaymentId;
     }
 
-    protected AuditLog getInvoicePaymentCreationAuditLog(final UUID invoicePaymentId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(invoicePaymentId, ObjectType.INVOICE_PAYMENT, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForInvoicePayment(invoicePaymentId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Invoice payment creation audit log for id {}", invoicePaymentId);
-    }
-
-    protected Long getInvoicePaymentRecordId(final UUID invoicePaymentId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(invoicePaymentId, ObjectType.INVOICE_PAYMENT, context);
+    protected AuditLog getInvoicePaymentCreationAuditLog(final UUID invoicePaymentId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(invoicePaymentId, ObjectType.INVOICE_PAYMENT, accountAuditLogsStore, "Unable to find Invoice payment creation audit log for id {}");
     }
 
     //
@@ -542,6 +451,18 @@ public abstract class BusinessFactoryBase {
         throw new AnalyticsRefreshException(error);
     }
 
+    protected Pagination<Payment> getPaymentsWithPluginInfoByAccountId(final UUID accountId, final Long offset, final Long limit, final TenantContext context) throws AnalyticsRefreshException {
+        final PaymentApi paymentApi = getPaymentUserApi();
+        try {
+            // The search key matches, amongst others, the payment account id
+            return paymentApi.searchPayments(accountId.toString(), offset, limit, true, false, PLUGIN_PROPERTIES, context);
+        } catch (final RuntimeException e) {
+            // Plugin exception?
+            logger.warn(e.getMessage() + ". Analytics tables will be missing plugin specific information");
+            return paymentApi.searchPayments(accountId.toString(), offset, limit, false, false, PLUGIN_PROPERTIES, context);
+        }
+    }
+
     protected List<PaymentMethod> getPaymentMethodsForAccount(final UUID accountId, final TenantContext context) throws AnalyticsRefreshException {
         Exception error;
 
@@ -575,25 +496,8 @@ public abstract class BusinessFactoryBase {
         throw new AnalyticsRefreshException(error);
     }
 
-    protected AuditLog getPaymentCreationAuditLog(final UUID paymentId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(paymentId, ObjectType.PAYMENT, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForPayment(paymentId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find payment creation audit log for id {}", paymentId);
-    }
-
-    protected Long getPaymentRecordId(final UUID paymentId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(paymentId, ObjectType.PAYMENT, context);
+    protected AuditLog getPaymentCreationAuditLog(final UUID paymentId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(paymentId, ObjectType.PAYMENT, accountAuditLogsStore, "Unable to find payment creation audit log for id {}");
     }
 
     //
@@ -605,24 +509,8 @@ public abstract class BusinessFactoryBase {
         return tagUserApi.getCustomFieldsForAccount(accountId, context);
     }
 
-    protected AuditLog getFieldCreationAuditLog(final UUID fieldId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(fieldId, ObjectType.CUSTOM_FIELD, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForCustomField(fieldId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Field creation audit log for id {}", fieldId);
-    }
-
-    protected Long getFieldRecordId(final UUID fieldId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(fieldId, ObjectType.CUSTOM_FIELD, context);
+    protected AuditLog getFieldCreationAuditLog(final UUID fieldId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(fieldId, ObjectType.CUSTOM_FIELD, accountAuditLogsStore, "Unable to find Field creation audit log for id {}");
     }
 
     //
@@ -639,24 +527,8 @@ public abstract class BusinessFactoryBase {
         return tagUserApi.getTagDefinitions(context);
     }
 
-    protected AuditLog getTagCreationAuditLog(final UUID tagId, final SafeAccountAuditLogs safeAccountAuditLogs) throws AnalyticsRefreshException {
-        return new AuditLogWithRetry(safeAccountAuditLogs).withRetry(new AuditLogHandler() {
-            @Override
-            public AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context) {
-                final List<AuditLog> auditLogs;
-                if (accountAuditLogs == null) {
-                    auditLogs = auditUserApi.getAuditLogs(tagId, ObjectType.TAG, AuditLevel.MINIMAL, context);
-                } else {
-                    auditLogs = accountAuditLogs.getAuditLogsForTag(tagId);
-                }
-                return getInsertAuditLog(auditLogs);
-            }
-        }, "Unable to find Tag creation audit log for id {}", tagId);
-    }
-
-    protected Long getTagRecordId(final UUID tagId, final TenantContext context) throws AnalyticsRefreshException {
-        final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        return recordIdUserApi.getRecordId(tagId, ObjectType.TAG, context);
+    protected AuditLog getTagCreationAuditLog(final UUID tagId, final AccountAuditLogsStore accountAuditLogsStore) throws AnalyticsRefreshException {
+        return getCreationAuditLog(tagId, ObjectType.TAG, accountAuditLogsStore, "Unable to find Tag creation audit log for id {}");
     }
 
     //
@@ -735,56 +607,30 @@ public abstract class BusinessFactoryBase {
         return recordIdApi;
     }
 
-    private abstract static class AuditLogHandler {
-
-        abstract AuditLog getAuditLog(@Nullable final AccountAuditLogs accountAuditLogs, final AuditUserApi auditUserApi, final TenantContext context);
-
-        protected AuditLog getInsertAuditLog(@Nullable final Iterable<AuditLog> auditLogs) {
-            if (auditLogs == null) {
-                return null;
+    // Fetch the creation audit log for resource based on the account audit logs snapshot, and refresh the snapshot if not found.
+    private AuditLog getCreationAuditLog(final UUID objectId,
+                                         final ObjectType objectType,
+                                         final AccountAuditLogsStore accountAuditLogsStore,
+                                         final String warnFmt) throws AnalyticsRefreshException {
+        AuditLog result;
+        if (highCardinalityAccount) {
+            final AuditUserApi auditUserApi = accountAuditLogsStore.getAuditUserApi();
+            final TenantContext context = accountAuditLogsStore.getContext();
+            result = AccountAuditLogsSnapshot.getInsertAuditLog(auditUserApi.getAuditLogs(objectId, objectType, AuditLevel.MINIMAL, context));
+            if (result == null) {
+                result = AccountAuditLogsSnapshot.getInsertAuditLog(auditUserApi.getAuditLogs(objectId, objectType, AuditLevel.MINIMAL, context));
             }
-
-            for (final AuditLog auditLog : auditLogs) {
-                if (auditLog.getChangeType().equals(ChangeType.INSERT)) {
-                    return auditLog;
-                }
+        } else {
+            final AccountAuditLogsSnapshot snapshot = accountAuditLogsStore.getSnapshot();
+            result = snapshot.getCreationAuditLog(objectType, objectId);
+            if (result == null) {
+                result = accountAuditLogsStore.refresh(snapshot, objectType, objectId).getCreationAuditLog(objectType, objectId);
             }
-            return null;
-        }
-    }
-
-    private class AuditLogWithRetry {
-
-        private final SafeAccountAuditLogs safeAccountAuditLogs;
-
-        public AuditLogWithRetry(final SafeAccountAuditLogs safeAccountAuditLogs) {
-            this.safeAccountAuditLogs = safeAccountAuditLogs;
         }
 
-        // Fetch audit log for resource based on cached value and refresh cache if not found.
-        public AuditLog withRetry(final AuditLogHandler handler, final String warnFmt, final Object... warnObjs) throws AnalyticsRefreshException {
-            final AuditUserApi auditUserApi = safeAccountAuditLogs.getAuditUserApi();
-            final TenantContext context = safeAccountAuditLogs.getContext();
-
-            AuditLog result;
-            if (highCardinalityAccount) {
-                result = handler.getAuditLog(null, auditUserApi, context);
-                if (result == null) {
-                    result = handler.getAuditLog(null, auditUserApi, context);
-                    if (result == null) {
-                        logger.warn(warnFmt, warnObjs);
-                    }
-                }
-            } else {
-                result = handler.getAuditLog(safeAccountAuditLogs.getAccountAuditLogs(false), auditUserApi, context);
-                if (result == null) {
-                    result = handler.getAuditLog(safeAccountAuditLogs.getAccountAuditLogs(true), auditUserApi, context);
-                    if (result == null) {
-                        logger.warn(warnFmt, warnObjs);
-                    }
-                }
-            }
-            return result;
+        if (result == null) {
+            logger.warn(warnFmt, objectId);
         }
+        return result;
     }
 }
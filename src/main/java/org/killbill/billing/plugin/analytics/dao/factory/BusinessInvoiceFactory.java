@@ -126,13 +126,7 @@ public class BusinessInvoiceFactory {
                                              .orNull();
                 if (linkedInvoiceItem == null) {
                     // We need to go back to the database
-                    final Invoice linkedInvoice = businessContextFactory.getInvoiceByInvoiceItemId(invoiceItem.getLinkedItemId());
-                    for (final InvoiceItem invoiceItemOnLinkedInvoice : linkedInvoice.getInvoiceItems()) {
-                        if (invoiceItem.getLinkedItemId().equals(invoiceItemOnLinkedInvoice.getId())) {
-                            linkedInvoiceItem = invoiceItemOnLinkedInvoice;
-                            break;
-                        }
-                    }
+                    linkedInvoiceItem = findLinkedInvoiceItem(businessContextFactory, invoiceItem);
                 }
             }
 
@@ -176,6 +170,24 @@ public class BusinessInvoiceFactory {
      * @throws AnalyticsRefreshException
      */
     public Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> createBusinessInvoicesAndInvoiceItems(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        // Lookup the invoices for that account
+        final Iterable<Invoice> invoices = businessContextFactory.getAccountInvoices();
+
+        return createBusinessInvoicesAndInvoiceItems(invoices, businessContextFactory);
+    }
+
+    /**
+     * Create business invoices and invoice items for a subset of the account invoices (e.g. a page, for high cardinality accounts).
+     * <p>
+     * Items linked to an item outside of that subset are resolved on demand.
+     *
+     * @param invoices               invoices to process
+     * @param businessContextFactory context factory
+     * @return business invoice and invoice items to create
+     * @throws AnalyticsRefreshException
+     */
+    public Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> createBusinessInvoicesAndInvoiceItems(final Iterable<Invoice> invoices,
+                                                                                                                           final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         // Pre-fetch these, to avoid contention on BusinessContextFactory
         final Account account = businessContextFactory.getAccount();
         final Long accountRecordId = businessContextFactory.getAccountRecordId();
@@ -183,9 +195,6 @@ public class BusinessInvoiceFactory {
         final ReportGroup reportGroup = businessContextFactory.getReportGroup();
         final CurrencyConverter currencyConverter = businessContextFactory.getCurrencyConverter();
 
-        // Lookup the invoices for that account
-        final Iterable<Invoice> invoices = businessContextFactory.getAccountInvoices();
-
         // All invoice items across all invoices for that account (we need to be able to reference items across multiple invoices)
         final Multimap<UUID, InvoiceItem> allInvoiceItems = ArrayListMultimap.<UUID, InvoiceItem>create();
         // Convenient mapping invoiceId -> invoice
@@ -208,12 +217,10 @@ public class BusinessInvoiceFactory {
         final CompletionService<BusinessInvoiceItemBaseModelDao> completionService = new ExecutorCompletionService<BusinessInvoiceItemBaseModelDao>(executor);
         final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItemsForInvoiceId = ArrayListMultimap.<UUID, BusinessInvoiceItemBaseModelDao>create();
         for (final InvoiceItem invoiceItem : allInvoiceItems.values()) {
-            // Fetch audit logs in the main thread as AccountAuditLogs is not thread safe
-            final AuditLog creationAuditLog = invoiceItem.getId() != null ? businessContextFactory.getInvoiceItemCreationAuditLog(invoiceItem.getId()) : null;
-
             completionService.submit(new Callable<BusinessInvoiceItemBaseModelDao>() {
                 @Override
                 public BusinessInvoiceItemBaseModelDao call() throws Exception {
+                    final AuditLog creationAuditLog = invoiceItem.getId() != null ? businessContextFactory.getInvoiceItemCreationAuditLog(invoiceItem.getId()) : null;
                     final boolean isWrittenOff = writtenOffInvoices.contains(invoiceItem.getInvoiceId());
                     return createBusinessInvoiceItem(businessContextFactory,
                                                      invoiceItem,
@@ -315,13 +322,17 @@ public class BusinessInvoiceFactory {
                                                                                   }
                                                                               }
                                                                              );
-        final InvoiceItem linkedInvoiceItem = Iterables.find(allInvoiceItemsAcrossAllInvoices.values(), new Predicate<InvoiceItem>() {
+        InvoiceItem linkedInvoiceItem = Iterables.find(allInvoiceItemsAcrossAllInvoices.values(), new Predicate<InvoiceItem>() {
             @Override
             public boolean apply(final InvoiceItem input) {
                 return invoiceItem.getLinkedItemId() != null && invoiceItem.getLinkedItemId().equals(input.getId());
 
             }
         }, null);
+        if (linkedInvoiceItem == null && invoiceItem.getLinkedItemId() != null && businessContextFactory.highCardinalityAccount()) {
+            // Invoices are processed by pages: the linked item may be on an invoice from another page
+            linkedInvoiceItem = findLinkedInvoiceItem(businessContextFactory, invoiceItem);
+        }
         return createBusinessInvoiceItem(businessContextFactory,
                                          account,
                                          invoice,
@@ -336,6 +347,20 @@ public class BusinessInvoiceFactory {
                                          reportGroup);
     }
 
+    private InvoiceItem findLinkedInvoiceItem(final BusinessContextFactory businessContextFactory, final InvoiceItem invoiceItem) throws AnalyticsRefreshException {
+        final Invoice linkedInvoice = businessContextFactory.getInvoiceByInvoiceItemId(invoiceItem.getLinkedItemId());
+        if (linkedInvoice == null) {
+            return null;
+        }
+
+        for (final InvoiceItem invoiceItemOnLinkedInvoice : linkedInvoice.getInvoiceItems()) {
+            if (invoiceItem.getLinkedItemId().equals(invoiceItemOnLinkedInvoice.getId())) {
+                return invoiceItemOnLinkedInvoice;
+            }
+        }
+        return null;
+    }
+
     @VisibleForTesting
     BusinessInvoiceItemBaseModelDao createBusinessInvoiceItem(final BusinessContextFactory businessContextFactory,
                                                               final Account account,
@@ -44,11 +44,35 @@ public class BusinessPaymentFactory {
 
     public Collection<BusinessPaymentBaseModelDao> createBusinessPayments(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         final Iterable<Payment> paymentsForAccount = businessContextFactory.getAccountPayments();
-        final Collection<BusinessPaymentBaseModelDao> businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
         if (Iterables.<Payment>isEmpty(paymentsForAccount)) {
-            return businessPayments;
+            return new LinkedList<BusinessPaymentBaseModelDao>();
         }
 
+        // Optimize invoice payment lookups by fetching all invoice payments at once
+        return createBusinessPayments(paymentsForAccount, businessContextFactory.getAccountInvoicePayments(), businessContextFactory);
+    }
+
+    /**
+     * Create the business payments of a page of payments (e.g. while streaming the payments of a high cardinality account).
+     *
+     * @param payments               page of payments of the account
+     * @param businessContextFactory context factory
+     * @return the business payments
+     * @throws AnalyticsRefreshException
+     */
+    public Collection<BusinessPaymentBaseModelDao> createBusinessPayments(final List<Payment> payments, final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        if (payments.isEmpty()) {
+            return new LinkedList<BusinessPaymentBaseModelDao>();
+        }
+
+        return createBusinessPayments(payments, businessContextFactory.getInvoicePayments(payments), businessContextFactory);
+    }
+
+    private Collection<BusinessPaymentBaseModelDao> createBusinessPayments(final Iterable<Payment> paymentsForAccount,
+                                                                           final Map<UUID, List<InvoicePayment>> allInvoicePaymentsByPaymentId,
+                                                                           final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
+        final Collection<BusinessPaymentBaseModelDao> businessPayments = new LinkedList<BusinessPaymentBaseModelDao>();
+
         final Account account = businessContextFactory.getAccount();
         final Long accountRecordId = businessContextFactory.getAccountRecordId();
         final Long tenantRecordId = businessContextFactory.getTenantRecordId();
@@ -56,22 +80,28 @@ public class BusinessPaymentFactory {
         final CurrencyConverter currencyConverter = businessContextFactory.getCurrencyConverter();
         final PluginPropertiesManager pluginPropertiesManager = businessContextFactory.getPluginPropertiesManager();
 
-        // Optimize invoice lookups by fetching all invoices at once
-        final Iterable<Invoice> invoicesForAccount = businessContextFactory.getAccountInvoices();
+        // Optimize invoice lookups by fetching all invoices at once (except for large accounts, where only the paid invoices are looked up)
         final Map<UUID, Invoice> invoices = new LinkedHashMap<UUID, Invoice>();
-        for (final Invoice invoice : invoicesForAccount) {
-            invoices.put(invoice.getId(), invoice);
+        if (!businessContextFactory.highCardinalityAccount()) {
+            final Iterable<Invoice> invoicesForAccount = businessContextFactory.getAccountInvoices();
+            for (final Invoice invoice : invoicesForAccount) {
+                invoices.put(invoice.getId(), invoice);
+            }
         }
 
-        // Optimize invoice payment lookups by fetching all invoice payments at once
-        final Map<UUID, List<InvoicePayment>> allInvoicePaymentsByPaymentId = businessContextFactory.getAccountInvoicePayments();
-
         for (final Payment payment : paymentsForAccount) {
             final List<InvoicePayment> invoicePaymentsForPayment = allInvoicePaymentsByPaymentId.get(payment.getId());
             // TODO - we will remove invoicePayment information from payment tables, we only care about the associated invoice id
             final InvoicePayment invoicePayment = invoicePaymentsForPayment == null || invoicePaymentsForPayment.isEmpty() ? null : invoicePaymentsForPayment.get(0);
             final Long invoicePaymentRecordId = 0L;
-            final Invoice invoice = invoicePayment == null ? null : invoices.get(invoicePayment.getInvoiceId());
+            final Invoice invoice;
+            if (invoicePayment == null) {
+                invoice = null;
+            } else if (businessContextFactory.highCardinalityAccount()) {
+                invoice = businessContextFactory.getInvoice(invoicePayment.getInvoiceId());
+            } else {
+                invoice = invoices.get(invoicePayment.getInvoiceId());
+            }
 
             final PaymentMethod paymentMethod = businessContextFactory.getPaymentMethod(payment.getPaymentMethodId());
             final AuditLog creationAuditLog = businessContextFactory.getPaymentCreationAuditLog(payment.getId());
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Concurrent open-addressing map from UUID to non-negative long (e.g. record ids), which doesn't box keys nor values:
+ * each UUID is stored as its two longs.
+ * <p>
+ * The table is split into segments, each guarded by its own lock. Lookups are optimistic and only take the
+ * read lock if the segment was modified concurrently.
+ */
+public class ConcurrentUUIDLongMap {
+
+    public static final long NO_VALUE = -1L;
+
+    private static final int NB_SEGMENTS = 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+    private final Segment[] segments = new Segment[NB_SEGMENTS];
+
+    public ConcurrentUUIDLongMap() {
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param key key
+     * @return the value associated with that key, NO_VALUE if none
+     */
+    public long get(final UUID key) {
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        final long hash = hash(msb, lsb);
+        return segmentFor(hash).get(msb, lsb, hash);
+    }
+
+    public void put(final UUID key, final long value) {
+        Preconditions.checkArgument(value >= 0, "Invalid value %s", value);
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        final long hash = hash(msb, lsb);
+        segmentFor(hash).put(msb, lsb, hash, value);
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment segmentFor(final long hash) {
+        // Use the high bits for the segment, the low bits for the slot
+        return segments[(int) (hash >>> 60) & (NB_SEGMENTS - 1)];
+    }
+
+    // Murmur3 finalizer (random UUIDs are already well distributed, but other versions aren't)
+    private static long hash(final long msb, final long lsb) {
+        long h = msb ^ (lsb * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Segment {
+
+        private final StampedLock lock = new StampedLock();
+
+        // Guarded by lock. Slot i uses keys[2 * i] and keys[2 * i + 1], and is free iff values[i] == NO_VALUE.
+        private long[] keys = new long[2 * INITIAL_SEGMENT_CAPACITY];
+        private long[] values = newValues(INITIAL_SEGMENT_CAPACITY);
+        private int size;
+
+        long get(final long msb, final long lsb, final long hash) {
+            long stamp = lock.tryOptimisticRead();
+            long value = find(keys, values, msb, lsb, hash);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    value = find(keys, values, msb, lsb, hash);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return value;
+        }
+
+        void put(final long msb, final long lsb, final long hash, final long value) {
+            final long stamp = lock.writeLock();
+            try {
+                // Keep the load factor under 0.5, so that probes are short (and always terminate)
+                if (2 * (size + 1) > values.length) {
+                    resize();
+                }
+                if (insert(keys, values, msb, lsb, hash, value)) {
+                    size++;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            final long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void resize() {
+            final long[] newKeys = new long[2 * keys.length];
+            final long[] newValues = newValues(2 * values.length);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != NO_VALUE) {
+                    insert(newKeys, newValues, keys[2 * i], keys[2 * i + 1], hash(keys[2 * i], keys[2 * i + 1]), values[i]);
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+
+        // May see an inconsistent state when called optimistically: the caller validates the stamp
+        private static long find(final long[] keys, final long[] values, final long msb, final long lsb, final long hash) {
+            // The arrays may be from different tables when read optimistically
+            final int capacity = Math.min(values.length, keys.length / 2);
+            final int mask = capacity - 1;
+            int slot = (int) hash & mask;
+            for (int i = 0; i < capacity; i++) {
+                final long value = values[slot];
+                if (value == NO_VALUE) {
+                    return NO_VALUE;
+                }
+                if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+                    return value;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NO_VALUE;
+        }
+
+        // Return true if a new entry was added, false if an existing one was updated
+        private static boolean insert(final long[] keys, final long[] values, final long msb, final long lsb, final long hash, final long value) {
+            final int mask = values.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != NO_VALUE) {
+                if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+                    values[slot] = value;
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[2 * slot] = msb;
+            keys[2 * slot + 1] = lsb;
+            values[slot] = value;
+            return true;
+        }
+
+        private static long[] newValues(final int capacity) {
+            final long[] values = new long[capacity];
+            for (int i = 0; i < capacity; i++) {
+                values[i] = NO_VALUE;
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.CatalogApiException;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.PlanPhase;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.catalog.api.VersionedCatalog;
+
+/**
+ * VersionedCatalog wrapper, memoizing plan and phase lookups per catalog version.
+ * <p>
+ * Shared across refreshes (see TenantCatalogCache), so it must be thread-safe.
+ */
+public class IndexedCatalog {
+
+    private final VersionedCatalog catalog;
+    private final DateTime loadedDate;
+    // Catalog versions don't necessarily implement equals/hashCode efficiently: use identity
+    private final Map<StaticCatalog, CatalogVersionIndex> versionIndexes = Collections.synchronizedMap(new IdentityHashMap<StaticCatalog, CatalogVersionIndex>());
+
+    public IndexedCatalog(final VersionedCatalog catalog, final DateTime loadedDate) {
+        this.catalog = catalog;
+        this.loadedDate = loadedDate;
+    }
+
+    public VersionedCatalog getCatalog() {
+        return catalog;
+    }
+
+    public DateTime getLoadedDate() {
+        return loadedDate;
+    }
+
+    public Plan findPlan(final Date effectiveDate, final String planName) throws CatalogApiException {
+        final StaticCatalog catalogVersion = catalog.getVersion(effectiveDate);
+        if (planName == null) {
+            return catalogVersion.findPlan(planName);
+        }
+
+        final Map<String, Plan> plans = getVersionIndex(catalogVersion).plans;
+        Plan plan = plans.get(planName);
+        if (plan == null) {
+            plan = catalogVersion.findPlan(planName);
+            if (plan != null) {
+                plans.put(planName, plan);
+            }
+        }
+        return plan;
+    }
+
+    // Same implementation logic as Catalog.findPhase, but without having to pass the subscription start date
+    public PlanPhase findPhase(final Date effectiveDate, final String planName, final String phaseName) throws CatalogApiException {
+        final StaticCatalog catalogVersion = catalog.getVersion(effectiveDate);
+        if (planName == null || phaseName == null) {
+            return catalogVersion.findPlan(planName).findPhase(phaseName);
+        }
+
+        final Map<String, PlanPhase> phases = getVersionIndex(catalogVersion).phases;
+        // Phase names are only unique within a plan
+        final String phaseKey = planName + "/" + phaseName;
+        PlanPhase phase = phases.get(phaseKey);
+        if (phase == null) {
+            phase = findPlan(effectiveDate, planName).findPhase(phaseName);
+            if (phase != null) {
+                phases.put(phaseKey, phase);
+            }
+        }
+        return phase;
+    }
+
+    private CatalogVersionIndex getVersionIndex(final StaticCatalog catalogVersion) {
+        synchronized (versionIndexes) {
+            CatalogVersionIndex versionIndex = versionIndexes.get(catalogVersion);
+            if (versionIndex == null) {
+                versionIndex = new CatalogVersionIndex();
+                versionIndexes.put(catalogVersion, versionIndex);
+            }
+            return versionIndex;
+        }
+    }
+
+    private static final class CatalogVersionIndex {
+
+        private final Map<String, Plan> plans = new ConcurrentHashMap<String, Plan>();
+        private final Map<String, PlanPhase> phases = new ConcurrentHashMap<String, PlanPhase>();
+    }
+}
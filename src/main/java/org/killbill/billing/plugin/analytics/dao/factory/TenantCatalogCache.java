@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+
+/**
+ * Process-wide catalog cache: a new BusinessContextFactory is created for each refresh, but the catalog
+ * rarely changes.
+ * <p>
+ * Entries are invalidated on TENANT_CONFIG_CHANGE and TENANT_CONFIG_DELETION events (see AnalyticsListener). Because these
+ * events are only seen by the node processing them, entries also expire after a configurable TTL.
+ */
+public class TenantCatalogCache {
+
+    private static final Map<UUID, IndexedCatalog> catalogs = new ConcurrentHashMap<UUID, IndexedCatalog>();
+
+    private TenantCatalogCache() {}
+
+    @Nullable
+    public static IndexedCatalog get(@Nullable final UUID tenantId, final DateTime now, final long ttlSeconds) {
+        if (tenantId == null || ttlSeconds <= 0) {
+            return null;
+        }
+
+        final IndexedCatalog catalog = catalogs.get(tenantId);
+        if (catalog == null || catalog.getLoadedDate().plusSeconds((int) ttlSeconds).isBefore(now)) {
+            return null;
+        }
+        return catalog;
+    }
+
+    public static void put(@Nullable final UUID tenantId, final IndexedCatalog catalog) {
+        if (tenantId == null) {
+            return;
+        }
+        catalogs.put(tenantId, catalog);
+    }
+
+    public static void invalidate(@Nullable final UUID tenantId) {
+        if (tenantId == null) {
+            return;
+        }
+        catalogs.remove(tenantId);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.model;
+
+import java.util.UUID;
+
+// Account to rebuild, as read from the Kill Bill accounts table
+public class BusinessRebuildAccountModelDao {
+
+    private Long recordId;
+    private UUID id;
+
+    public BusinessRebuildAccountModelDao() { /* When reading from the database */ }
+
+    public BusinessRebuildAccountModelDao(final Long recordId, final UUID id) {
+        this.recordId = recordId;
+        this.id = id;
+    }
+
+    public Long getRecordId() {
+        return recordId;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BusinessRebuildAccountModelDao{");
+        sb.append("recordId=").append(recordId);
+        sb.append(", id=").append(id);
+        sb.append('}');
+        return sb.toString();
+    }
+}
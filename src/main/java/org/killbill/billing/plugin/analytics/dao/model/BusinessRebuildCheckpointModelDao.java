@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.model;
+
+import org.joda.time.DateTime;
+
+public class BusinessRebuildCheckpointModelDao {
+
+    public enum RebuildState {
+        RUNNING,
+        // Interrupted by a shutdown of the node
+        STOPPED,
+        // Aborted because of an unexpected error
+        FAILED,
+        COMPLETED
+    }
+
+    private Long recordId;
+    private Long tenantRecordId;
+    private String state;
+    private Long lastAccountRecordId;
+    private Long nbAccounts;
+    private Long nbRefreshes;
+    private Long nbErrors;
+    private DateTime startDate;
+    private DateTime updatedDate;
+
+    public BusinessRebuildCheckpointModelDao() { /* When reading from the database */ }
+
+    public BusinessRebuildCheckpointModelDao(final Long tenantRecordId,
+                                             final RebuildState state,
+                                             final Long lastAccountRecordId,
+                                             final Long nbAccounts,
+                                             final Long nbRefreshes,
+                                             final Long nbErrors,
+                                             final DateTime startDate,
+                                             final DateTime updatedDate) {
+        this.tenantRecordId = tenantRecordId;
+        this.state = state.toString();
+        this.lastAccountRecordId = lastAccountRecordId;
+        this.nbAccounts = nbAccounts;
+        this.nbRefreshes = nbRefreshes;
+        this.nbErrors = nbErrors;
+        this.startDate = startDate;
+        this.updatedDate = updatedDate;
+    }
+
+    public Long getRecordId() {
+        return recordId;
+    }
+
+    public Long getTenantRecordId() {
+        return tenantRecordId;
+    }
+
+    public RebuildState getState() {
+        return state == null ? null : RebuildState.valueOf(state);
+    }
+
+    public Long getLastAccountRecordId() {
+        return lastAccountRecordId;
+    }
+
+    public Long getNbAccounts() {
+        return nbAccounts;
+    }
+
+    public Long getNbRefreshes() {
+        return nbRefreshes;
+    }
+
+    public Long getNbErrors() {
+        return nbErrors;
+    }
+
+    public DateTime getStartDate() {
+        return startDate;
+    }
+
+    public DateTime getUpdatedDate() {
+        return updatedDate;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BusinessRebuildCheckpointModelDao{");
+        sb.append("recordId=").append(recordId);
+        sb.append(", tenantRecordId=").append(tenantRecordId);
+        sb.append(", state='").append(state).append('\'');
+        sb.append(", lastAccountRecordId=").append(lastAccountRecordId);
+        sb.append(", nbAccounts=").append(nbAccounts);
+        sb.append(", nbRefreshes=").append(nbRefreshes);
+        sb.append(", nbErrors=").append(nbErrors);
+        sb.append(", startDate=").append(startDate);
+        sb.append(", updatedDate=").append(updatedDate);
+        sb.append('}');
+        return sb.toString();
+    }
+}
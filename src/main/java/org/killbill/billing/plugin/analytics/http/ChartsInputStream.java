@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.json.DataMarker;
+import org.killbill.billing.plugin.analytics.reports.ReportDataStream;
+import org.killbill.billing.plugin.analytics.reports.TableDataStream;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Serializes the reports data as it is read: rows are only fetched from the database when the client
+ * has consumed the previous ones, so that memory usage doesn't depend on the size of the reports.
+ * <p>
+ * Everything happens on the thread reading the stream (i.e. the one writing the response).
+ */
+public class ChartsInputStream extends InputStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChartsInputStream.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReportDataStream reportDataStream;
+    private final Buffer buffer = new Buffer();
+    private final ChartsSerializer serializer;
+
+    private TableDataStream currentTable = null;
+    private boolean tablesDone = false;
+    private boolean done = false;
+
+    public ChartsInputStream(final ReportDataStream reportDataStream, final boolean csv) throws IOException {
+        this.reportDataStream = reportDataStream;
+        this.serializer = csv ? ChartsSerializer.csv(buffer) : ChartsSerializer.json(buffer);
+        serializer.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (buffer.available() == 0) {
+            if (done) {
+                return -1;
+            }
+            buffer.reset();
+            try {
+                fill();
+            } catch (final RuntimeException e) {
+                // The response has already started: all we can do is to truncate it
+                logger.warn("Unable to stream reports data", e);
+                close();
+                throw new IOException(e);
+            }
+        }
+        return buffer.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        reportDataStream.close();
+    }
+
+    // Serialize the next chunk of data
+    private void fill() throws IOException {
+        while (buffer.size() < BUFFER_SIZE && !done) {
+            if (currentTable != null) {
+                if (currentTable.hasNext()) {
+                    serializer.writeTableRow(currentTable.next());
+                } else {
+                    serializer.endTable(currentTable);
+                    currentTable = null;
+                }
+            } else if (!tablesDone) {
+                final TableDataStream table = reportDataStream.nextTable();
+                if (table == null) {
+                    tablesDone = true;
+                } else if (table.hasNext()) {
+                    serializer.startTable(table);
+                    currentTable = table;
+                } else {
+                    // Same as non-streamed empty (or timed out) tables
+                    serializer.writeChart(new Chart(ReportType.TABLE, table.getTitle(), ImmutableList.<DataMarker>of(), table.getStatus()));
+                }
+            } else {
+                for (final Chart chart : reportDataStream.getOtherCharts()) {
+                    serializer.writeChart(chart);
+                }
+                serializer.end();
+                reportDataStream.close();
+                done = true;
+            }
+            serializer.flush();
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private int position = 0;
+
+        private Buffer() {
+            super(BUFFER_SIZE);
+        }
+
+        private int available() {
+            return count - position;
+        }
+
+        private int read(final byte[] b, final int off, final int len) {
+            final int n = Math.min(len, available());
+            System.arraycopy(buf, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            position = 0;
+        }
+    }
+}
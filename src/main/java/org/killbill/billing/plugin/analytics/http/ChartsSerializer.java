@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.killbill.billing.plugin.analytics.json.CSVNamedXYTimeSeries;
+import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.json.DataMarker;
+import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
+import org.killbill.billing.plugin.analytics.json.TableDataSeries;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.TableDataStream;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+/**
+ * Incremental serialization of charts, so that TABLE reports can be written row by row.
+ */
+public abstract class ChartsSerializer {
+
+    public static ChartsSerializer json(final OutputStream out) throws IOException {
+        return new JsonChartsSerializer(out);
+    }
+
+    public static ChartsSerializer csv(final OutputStream out) {
+        return new CsvChartsSerializer(out);
+    }
+
+    public abstract void start() throws IOException;
+
+    public abstract void writeChart(Chart chart) throws IOException;
+
+    public abstract void startTable(TableDataStream table) throws IOException;
+
+    public abstract void writeTableRow(List<Object> row) throws IOException;
+
+    public abstract void endTable(TableDataStream table) throws IOException;
+
+    // Terminates the output and flushes it
+    public abstract void end() throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    // Same output as the default JSON rendering of a List<Chart>
+    private static final class JsonChartsSerializer extends ChartsSerializer {
+
+        // Flushing the generator after each row would defeat its buffer
+        private static final ObjectWriter jsonWriter = ObjectMapperProvider.getJsonMapper().writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+        private final JsonGenerator generator;
+
+        private JsonChartsSerializer(final OutputStream out) throws IOException {
+            this.generator = ObjectMapperProvider.getJsonMapper().getFactory().createGenerator(out);
+        }
+
+        @Override
+        public void start() throws IOException {
+            generator.writeStartArray();
+        }
+
+        @Override
+        public void writeChart(final Chart chart) throws IOException {
+            jsonWriter.writeValue(generator, chart);
+        }
+
+        @Override
+        public void startTable(final TableDataStream table) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("type", ReportType.TABLE.toString());
+            generator.writeStringField("title", table.getTitle());
+            generator.writeArrayFieldStart("data");
+            generator.writeStartObject();
+            generator.writeStringField("name", table.getSeriesName());
+            generator.writeFieldName("header");
+            jsonWriter.writeValue(generator, table.getHeader());
+            generator.writeArrayFieldStart("values");
+        }
+
+        @Override
+        public void writeTableRow(final List<Object> row) throws IOException {
+            jsonWriter.writeValue(generator, row);
+        }
+
+        @Override
+        public void endTable(final TableDataStream table) throws IOException {
+            // values
+            generator.writeEndArray();
+            if (table.getNextCursor() != null) {
+                generator.writeStringField("nextCursor", table.getNextCursor());
+            }
+            // TableDataSeries
+            generator.writeEndObject();
+            // data
+            generator.writeEndArray();
+            generator.writeStringField("status", table.getStatus().toString());
+            // Chart
+            generator.writeEndObject();
+        }
+
+        @Override
+        public void end() throws IOException {
+            generator.writeEndArray();
+            generator.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            generator.flush();
+        }
+    }
+
+    private static final class CsvChartsSerializer extends ChartsSerializer {
+
+        private static final ObjectWriter csvMapper = ObjectMapperProvider.getCsvWriter();
+
+        private final OutputStream out;
+
+        private CsvChartsSerializer(final OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void start() {}
+
+        @Override
+        public void writeChart(final Chart chart) throws IOException {
+            switch (chart.getType()) {
+                case TIMELINE:
+                    for (final DataMarker marker : chart.getData()) {
+                        final NamedXYTimeSeries namedXYTimeSeries = (NamedXYTimeSeries) marker;
+                        for (final XY value : namedXYTimeSeries.getValues()) {
+                            out.write(csvMapper.writeValueAsBytes(new CSVNamedXYTimeSeries(namedXYTimeSeries.getName(), value)));
+                        }
+                    }
+                    break;
+                case COUNTERS:
+                    break;
+                case TABLE:
+                    for (final DataMarker marker : chart.getData()) {
+                        final TableDataSeries tableDataSeries = (TableDataSeries) marker;
+                        out.write(csvMapper.writeValueAsBytes(tableDataSeries.getHeader()));
+                        for (final List<Object> row : tableDataSeries.getValues()) {
+                            writeTableRow(row);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void startTable(final TableDataStream table) throws IOException {
+            out.write(csvMapper.writeValueAsBytes(table.getHeader()));
+        }
+
+        @Override
+        public void writeTableRow(final List<Object> row) throws IOException {
+            // Workaround for https://github.com/FasterXML/jackson-dataformats-text/issues/10
+            final List<Object> withoutNulls = Lists.<Object, Object>transform(row, new Function<Object, Object>() {
+                @Override
+                public Object apply(final Object input) {
+                    return (input == null) ? "" : input;
+                }
+            });
+            out.write(csvMapper.writeValueAsBytes(withoutNulls));
+        }
+
+        @Override
+        public void endTable(final TableDataStream table) {}
+
+        @Override
+        public void end() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -23,7 +23,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Optional;
@@ -51,14 +50,11 @@ import org.jooby.mvc.PUT;
 import org.jooby.mvc.Path;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
 import org.killbill.billing.plugin.analytics.api.user.AnalyticsUserApi;
-import org.killbill.billing.plugin.analytics.json.CSVNamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.Chart;
-import org.killbill.billing.plugin.analytics.json.DataMarker;
-import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
-import org.killbill.billing.plugin.analytics.json.TableDataSeries;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.ReportDataStream;
 import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
+import org.killbill.billing.plugin.analytics.reports.TablePage;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
 import org.killbill.billing.plugin.api.PluginTenantContext;
@@ -67,10 +63,7 @@ import org.killbill.billing.tenant.api.Tenant;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
-import com.google.common.collect.Lists;
 
 @Singleton
 // Handle /plugins/killbill-analytics/reports
@@ -80,8 +73,6 @@ public class ReportsResource extends BaseResource {
     @VisibleForTesting
     static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd");
 
-    private static final ObjectWriter csvMapper = ObjectMapperProvider.getCsvWriter();
-
     private static final String CSV_DATA_FORMAT = "csv";
     private static final String JSON_DATA_FORMAT = "json";
     private static final DateTimeFormatter DATE_TIME_FORMAT = ISODateTimeFormat.basicDateTime();
@@ -92,6 +83,12 @@ public class ReportsResource extends BaseResource {
     private static final String REPORTS_SMOOTHER_NAME = "smooth";
     private static final String REPORTS_DATA_FORMAT = "format";
     private static final String REPORT_QUERY_SQL_ONLY = "sqlOnly";
+    private static final String REPORTS_QUERY_TIMEOUT_SECONDS = "timeoutSeconds";
+    private static final String REPORTS_MAX_POINTS = "maxPoints";
+    // Minimum for the downsampling to keep the first and last points, and one in between
+    private static final int MIN_MAX_POINTS = 3;
+    private static final String REPORTS_PAGE_SIZE = "pageSize";
+    private static final String REPORTS_CURSOR = "cursor";
 
     @Inject
     public ReportsResource(final AnalyticsUserApi analyticsUserApi, final ReportsUserApi reportsUserApi, final OSGIKillbillClock osgiKillbillClock) {
@@ -100,36 +97,12 @@ public class ReportsResource extends BaseResource {
 
     @VisibleForTesting
     static void writeAsCSV(final Iterable<Chart> charts, final OutputStream out) throws IOException {
+        final ChartsSerializer serializer = ChartsSerializer.csv(out);
+        serializer.start();
         for (final Chart cur : charts) {
-            switch (cur.getType()) {
-                case TIMELINE:
-                    for (final DataMarker marker : cur.getData()) {
-                        final NamedXYTimeSeries namedXYTimeSeries = (NamedXYTimeSeries) marker;
-                        for (final XY value : namedXYTimeSeries.getValues()) {
-                            out.write(csvMapper.writeValueAsBytes(new CSVNamedXYTimeSeries(namedXYTimeSeries.getName(), value)));
-                        }
-                    }
-                    break;
-                case COUNTERS:
-                    break;
-                case TABLE:
-                    for (final DataMarker marker : cur.getData()) {
-                        final TableDataSeries tableDataSeries = (TableDataSeries) marker;
-                        out.write(csvMapper.writeValueAsBytes(tableDataSeries.getHeader()));
-                        for (final List<Object> row : tableDataSeries.getValues()) {
-                            // Workaround for https://github.com/FasterXML/jackson-dataformats-text/issues/10
-                            final List<Object> withoutNulls = Lists.<Object, Object>transform(row, new Function<Object, Object>() {
-                                @Override
-                                public Object apply(final Object input) {
-                                    return (input == null) ? "" : input;
-                                }
-                            });
-                            out.write(csvMapper.writeValueAsBytes(withoutNulls));
-                        }
-                    }
-                    break;
-            }
+            serializer.writeChart(cur);
         }
+        serializer.end();
     }
 
     @GET
@@ -139,6 +112,10 @@ public class ReportsResource extends BaseResource {
                         @Named(REPORTS_SMOOTHER_NAME) final Optional<String> smoother,
                         @Named(REPORTS_DATA_FORMAT) final Optional<String> formatter,
                         @Named(REPORT_QUERY_SQL_ONLY) final Optional<Boolean> sqlOnly,
+                        @Named(REPORTS_QUERY_TIMEOUT_SECONDS) final Optional<Integer> timeoutSeconds,
+                        @Named(REPORTS_MAX_POINTS) final Optional<Integer> maxPoints,
+                        @Named(REPORTS_PAGE_SIZE) final Optional<Integer> pageSize,
+                        @Named(REPORTS_CURSOR) final Optional<String> cursor,
                         @Local @Named("killbill_tenant") final Tenant tenant) throws IOException {
         final TenantContext context = new PluginTenantContext(null, tenant.getId());
 
@@ -179,22 +156,47 @@ public class ReportsResource extends BaseResource {
             }
             return Results.with(out, Status.OK).header("Content-Type", "text/plain");
         } else {
+            if (maxPoints.isPresent() && maxPoints.get() < MIN_MAX_POINTS) {
+                return Results.with(Status.BAD_REQUEST);
+            }
+
+            final TablePage page;
+            if (pageSize.isPresent()) {
+                // Page sizes are bounded, see TablePage.MAX_PAGE_SIZE
+                try {
+                    page = TablePage.of(pageSize.get(), cursor.orElse(null));
+                } catch (final IllegalArgumentException e) {
+                    return Results.with(Status.BAD_REQUEST);
+                }
+            } else if (cursor.isPresent()) {
+                return Results.with(Status.BAD_REQUEST);
+            } else {
+                page = null;
+            }
+
             final SmootherType smootherType = Smoother.fromString(smoother.orElse(null));
 
-            // TODO PIERRE Switch to an equivalent of StreamingOutputStream?
-            final List<Chart> results = reportsUserApi.getDataForReport(rawReportNames.get(),
-                                                                        startDate,
-                                                                        endDate,
-                                                                        smootherType,
-                                                                        context);
+            // Tables are streamed from the database as the response is written
+            final ReportDataStream results;
+            try {
+                results = reportsUserApi.getDataStreamForReport(rawReportNames.get(),
+                                                                startDate,
+                                                                endDate,
+                                                                smootherType,
+                                                                timeoutSeconds.orElse(null),
+                                                                maxPoints.orElse(null),
+                                                                page,
+                                                                context);
+            } catch (final IllegalArgumentException e) {
+                // Unknown report, or report which can't be paginated
+                return Results.with(Status.BAD_REQUEST);
+            }
 
             final String format = formatter.orElse(JSON_DATA_FORMAT);
             if (CSV_DATA_FORMAT.equals(format)) {
-                final ByteArrayOutputStream out = new ByteArrayOutputStream();
-                writeAsCSV(results, out);
-                return Results.with(out.toString(StandardCharsets.UTF_8.name()), Status.OK).header("Content-Type", "text/csv; charset=utf-8");
+                return Results.with(new ChartsInputStream(results, true), Status.OK).header("Content-Type", "text/csv; charset=utf-8");
             } else {
-                return Results.with(results, Status.OK).header("Content-Type", "application/json");
+                return Results.with(new ChartsInputStream(results, false), Status.OK).header("Content-Type", "application/json");
             }
         }
     }
@@ -237,7 +239,12 @@ public class ReportsResource extends BaseResource {
 
         final String location = "/plugins/killbill-analytics/reports/" + reportConfigurationJson.getReportName();
         if (existingReportConfiguration == null) {
-            reportsUserApi.createReport(reportConfigurationJson, context);
+            try {
+                reportsUserApi.createReport(reportConfigurationJson, context);
+            } catch (final IllegalArgumentException e) {
+                // Invalid dependencies
+                return Results.with(Status.BAD_REQUEST);
+            }
             return Results.with(Status.CREATED).header("Location", location);
         } else {
             return Results.with(Status.CONFLICT).header("Location", location);
@@ -259,7 +266,12 @@ public class ReportsResource extends BaseResource {
         if (Boolean.TRUE.equals(shouldRefresh.orElse(Boolean.FALSE))) {
             reportsUserApi.refreshReport(reportName, context);
         } else if (reportConfigurationJson.isPresent()) {
-            reportsUserApi.updateReport(reportName, reportConfigurationJson.get(), context);
+            try {
+                reportsUserApi.updateReport(reportName, reportConfigurationJson.get(), context);
+            } catch (final IllegalArgumentException e) {
+                // Invalid dependencies
+                return Results.with(Status.BAD_REQUEST);
+            }
         } else {
             return Results.with(Status.BAD_REQUEST);
         }
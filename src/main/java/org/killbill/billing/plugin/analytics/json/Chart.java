@@ -21,27 +21,45 @@ package org.killbill.billing.plugin.analytics.json;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
 
 public class Chart {
 
+    public enum Status {
+        COMPLETED,
+        // The data couldn't be fetched before the deadline
+        TIMED_OUT
+    }
+
     private final ReportType type;
     private final String title;
     private final List<DataMarker> data;
+    private final Status status;
 
     private final int ordering;
 
+    public Chart(final ReportType type,
+                 final String title,
+                 final List<DataMarker> data) {
+        this(type, title, data, Status.COMPLETED);
+    }
+
     @JsonCreator
     public Chart(@JsonProperty("type") final ReportType type,
                  @JsonProperty("title") final String title,
-                 @JsonProperty("data") final List<DataMarker> data) {
+                 @JsonProperty("data") final List<DataMarker> data,
+                 @JsonProperty("status") @Nullable final Status status) {
         this.type = type;
         this.title = title;
         this.data = data;
+        this.status = MoreObjects.firstNonNull(status, Status.COMPLETED);
         this.ordering = -1;
     }
 
@@ -53,6 +71,7 @@ public class Chart {
         this.title = title;
         this.ordering = ordering;
         this.data = data;
+        this.status = Status.COMPLETED;
     }
 
     public ReportType getType() {
@@ -67,6 +86,10 @@ public class Chart {
         return data;
     }
 
+    public Status getStatus() {
+        return status;
+    }
+
     @JsonIgnore
     public int getOrdering() {
         return ordering;
@@ -22,17 +22,26 @@ package org.killbill.billing.plugin.analytics.json;
 import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class NamedXYTimeSeries implements DataMarker {
 
     private final String name;
     private final List<XY> values;
+    private final boolean downsampled;
+
+    public NamedXYTimeSeries(final String name, final List<XY> values) {
+        this(name, values, false);
+    }
 
     @JsonCreator
-    public NamedXYTimeSeries(@JsonProperty("name") final String name, @JsonProperty("values") final List<XY> values) {
+    public NamedXYTimeSeries(@JsonProperty("name") final String name,
+                             @JsonProperty("values") final List<XY> values,
+                             @JsonProperty("downsampled") final boolean downsampled) {
         this.name = name;
         this.values = values;
+        this.downsampled = downsampled;
     }
 
     public String getName() {
@@ -42,4 +51,10 @@ public class NamedXYTimeSeries implements DataMarker {
     public List<XY> getValues() {
         return values;
     }
+
+    // Only serialized if true (i.e. maxPoints was specified and the series had more points)
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean isDownsampled() {
+        return downsampled;
+    }
 }
@@ -24,6 +24,7 @@ import javax.annotation.Nullable;
 import org.jooq.Field;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.RefreshStrategy;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 import org.killbill.billing.plugin.analytics.reports.sql.TableMetadata;
 
@@ -44,6 +45,14 @@ public class ReportConfigurationJson {
     private final String refreshProcedureName;
     private final Frequency refreshFrequency;
     private final Integer refreshHourOfDayGmt;
+    private final Integer timeoutSeconds;
+    private final String sortKey;
+    private final String bucketColumn;
+    private final String watermarkTableName;
+    private final String watermarkBucketColumn;
+    private final RefreshStrategy refreshStrategy;
+    private final String dependsOn;
+    private final String watchedTableNames;
     private final SchemaJson schema;
     private final SchemaJson variables;
 
@@ -60,6 +69,14 @@ public class ReportConfigurationJson {
              reportsConfigurationModelDao.getRefreshProcedureName(),
              reportsConfigurationModelDao.getRefreshFrequency(),
              reportsConfigurationModelDao.getRefreshHourOfDayGmt(),
+             reportsConfigurationModelDao.getTimeoutSeconds(),
+             reportsConfigurationModelDao.getSortKey(),
+             reportsConfigurationModelDao.getBucketColumn(),
+             reportsConfigurationModelDao.getWatermarkTableName(),
+             reportsConfigurationModelDao.getWatermarkBucketColumn(),
+             reportsConfigurationModelDao.getRefreshStrategy(),
+             reportsConfigurationModelDao.getDependsOn(),
+             reportsConfigurationModelDao.getWatchedTableNames(),
              new SchemaJson(table),
              // Can't easily create a new constructor because of type erasure at runtime
              new SchemaJson(templateVariables == null ? ImmutableList.<FieldJson>of() : ImmutableList.<FieldJson>copyOf(Iterables.<Field<?>, FieldJson>transform(templateVariables,
@@ -82,6 +99,14 @@ public class ReportConfigurationJson {
                                    @JsonProperty("refreshProcedureName") final String refreshProcedureName,
                                    @JsonProperty("refreshFrequency") final Frequency refreshFrequency,
                                    @JsonProperty("refreshHourOfDayGmt") final Integer refreshHourOfDayGmt,
+                                   @JsonProperty("timeoutSeconds") final Integer timeoutSeconds,
+                                   @JsonProperty("sortKey") final String sortKey,
+                                   @JsonProperty("bucketColumn") final String bucketColumn,
+                                   @JsonProperty("watermarkTableName") final String watermarkTableName,
+                                   @JsonProperty("watermarkBucketColumn") final String watermarkBucketColumn,
+                                   @JsonProperty("refreshStrategy") final RefreshStrategy refreshStrategy,
+                                   @JsonProperty("dependsOn") final String dependsOn,
+                                   @JsonProperty("watchedTableNames") final String watchedTableNames,
                                    @JsonProperty("schema") final SchemaJson schema,
                                    @JsonProperty("variables") final SchemaJson variables) {
         this.recordId = recordId;
@@ -94,6 +119,14 @@ public class ReportConfigurationJson {
         this.refreshProcedureName = refreshProcedureName;
         this.refreshFrequency = refreshFrequency;
         this.refreshHourOfDayGmt = refreshHourOfDayGmt;
+        this.timeoutSeconds = timeoutSeconds;
+        this.sortKey = sortKey;
+        this.bucketColumn = bucketColumn;
+        this.watermarkTableName = watermarkTableName;
+        this.watermarkBucketColumn = watermarkBucketColumn;
+        this.refreshStrategy = refreshStrategy;
+        this.dependsOn = dependsOn;
+        this.watchedTableNames = watchedTableNames;
         this.schema = schema;
         this.variables = variables;
     }
@@ -138,6 +171,38 @@ public class ReportConfigurationJson {
         return reportType;
     }
 
+    public Integer getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public String getSortKey() {
+        return sortKey;
+    }
+
+    public String getBucketColumn() {
+        return bucketColumn;
+    }
+
+    public String getWatermarkTableName() {
+        return watermarkTableName;
+    }
+
+    public String getWatermarkBucketColumn() {
+        return watermarkBucketColumn;
+    }
+
+    public RefreshStrategy getRefreshStrategy() {
+        return refreshStrategy;
+    }
+
+    public String getDependsOn() {
+        return dependsOn;
+    }
+
+    public String getWatchedTableNames() {
+        return watchedTableNames;
+    }
+
     public SchemaJson getSchema() {
         return schema;
     }
@@ -159,6 +224,14 @@ public class ReportConfigurationJson {
         sb.append(", refreshProcedureName='").append(refreshProcedureName).append('\'');
         sb.append(", refreshFrequency=").append(refreshFrequency);
         sb.append(", refreshHourOfDayGmt=").append(refreshHourOfDayGmt);
+        sb.append(", timeoutSeconds=").append(timeoutSeconds);
+        sb.append(", sortKey='").append(sortKey).append('\'');
+        sb.append(", bucketColumn='").append(bucketColumn).append('\'');
+        sb.append(", watermarkTableName='").append(watermarkTableName).append('\'');
+        sb.append(", watermarkBucketColumn='").append(watermarkBucketColumn).append('\'');
+        sb.append(", refreshStrategy=").append(refreshStrategy);
+        sb.append(", dependsOn='").append(dependsOn).append('\'');
+        sb.append(", watchedTableNames='").append(watchedTableNames).append('\'');
         sb.append(", schema=").append(schema);
         sb.append(", variables=").append(variables);
         sb.append('}');
@@ -206,6 +279,30 @@ public class ReportConfigurationJson {
         if (refreshHourOfDayGmt != null ? !refreshHourOfDayGmt.equals(that.refreshHourOfDayGmt) : that.refreshHourOfDayGmt != null) {
             return false;
         }
+        if (timeoutSeconds != null ? !timeoutSeconds.equals(that.timeoutSeconds) : that.timeoutSeconds != null) {
+            return false;
+        }
+        if (sortKey != null ? !sortKey.equals(that.sortKey) : that.sortKey != null) {
+            return false;
+        }
+        if (bucketColumn != null ? !bucketColumn.equals(that.bucketColumn) : that.bucketColumn != null) {
+            return false;
+        }
+        if (watermarkTableName != null ? !watermarkTableName.equals(that.watermarkTableName) : that.watermarkTableName != null) {
+            return false;
+        }
+        if (watermarkBucketColumn != null ? !watermarkBucketColumn.equals(that.watermarkBucketColumn) : that.watermarkBucketColumn != null) {
+            return false;
+        }
+        if (refreshStrategy != that.refreshStrategy) {
+            return false;
+        }
+        if (dependsOn != null ? !dependsOn.equals(that.dependsOn) : that.dependsOn != null) {
+            return false;
+        }
+        if (watchedTableNames != null ? !watchedTableNames.equals(that.watchedTableNames) : that.watchedTableNames != null) {
+            return false;
+        }
         if (schema != null ? !schema.equals(that.schema) : that.schema != null) {
             return false;
         }
@@ -224,6 +321,14 @@ public class ReportConfigurationJson {
         result = 31 * result + (refreshProcedureName != null ? refreshProcedureName.hashCode() : 0);
         result = 31 * result + (refreshFrequency != null ? refreshFrequency.hashCode() : 0);
         result = 31 * result + (refreshHourOfDayGmt != null ? refreshHourOfDayGmt.hashCode() : 0);
+        result = 31 * result + (timeoutSeconds != null ? timeoutSeconds.hashCode() : 0);
+        result = 31 * result + (sortKey != null ? sortKey.hashCode() : 0);
+        result = 31 * result + (bucketColumn != null ? bucketColumn.hashCode() : 0);
+        result = 31 * result + (watermarkTableName != null ? watermarkTableName.hashCode() : 0);
+        result = 31 * result + (watermarkBucketColumn != null ? watermarkBucketColumn.hashCode() : 0);
+        result = 31 * result + (refreshStrategy != null ? refreshStrategy.hashCode() : 0);
+        result = 31 * result + (dependsOn != null ? dependsOn.hashCode() : 0);
+        result = 31 * result + (watchedTableNames != null ? watchedTableNames.hashCode() : 0);
         result = 31 * result + (schema != null ? schema.hashCode() : 0);
         result = 31 * result + (variables != null ? variables.hashCode() : 0);
         return result;
@@ -21,7 +21,10 @@ package org.killbill.billing.plugin.analytics.json;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class TableDataSeries implements DataMarker {
@@ -29,14 +32,21 @@ public class TableDataSeries implements DataMarker {
     private final String name;
     private final List<String> header;
     private final List<List<Object>> values;
+    private final String nextCursor;
+
+    public TableDataSeries(final String name, final List<String> header, final List<List<Object>> values) {
+        this(name, header, values, null);
+    }
 
     @JsonCreator
     public TableDataSeries(@JsonProperty("name") final String name,
                            @JsonProperty("header") final List<String> header,
-                           @JsonProperty("values") final List<List<Object>> values) {
+                           @JsonProperty("values") final List<List<Object>> values,
+                           @JsonProperty("nextCursor") @Nullable final String nextCursor) {
         this.name = name;
         this.header = header;
         this.values = values;
+        this.nextCursor = nextCursor;
     }
 
     public String getName() {
@@ -50,4 +60,10 @@ public class TableDataSeries implements DataMarker {
     public List<List<Object>> getValues() {
         return values;
     }
+
+    // Only serialized if the table was paginated and has more rows (see TablePage)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNextCursor() {
+        return nextCursor;
+    }
 }
@@ -30,13 +30,13 @@ public class XY {
     private final String x;
     private final Float y;
 
-    private final DateTime xDate;
+    // Lazily parsed
+    private DateTime xDate;
 
     @JsonCreator
     public XY(@JsonProperty("x") final String x, @JsonProperty("y") final Float y) {
         this.x = x;
         this.y = y;
-        this.xDate = new DateTime(x);
     }
 
     public XY(final String x, final Integer y) {
@@ -55,6 +55,9 @@ public class XY {
 
     @JsonIgnore
     public DateTime getxDate() {
+        if (xDate == null) {
+            xDate = new DateTime(x);
+        }
         return xDate;
     }
 
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.Argument;
+
+import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.TS_COLUMN_NAME;
+
+/**
+ * SQL of a report, compiled once for all tenants and date ranges (see ReportQueryCache).
+ * <p>
+ * The tenant record id, the dates and the template variables are bind parameters, so that the statement text
+ * is stable and the database can reuse its plans. String values are bound the same way they used to be inlined.
+ */
+public class CompiledReportQuery {
+
+    static final String TENANT_RECORD_ID_PARAMETER = "tenantRecordId";
+    static final String START_DATE_PARAMETER = "startDate";
+    static final String END_DATE_PARAMETER = "endDate";
+
+    // Named parameters (e.g. :tenantRecordId)
+    private final String sql;
+    // Same query, with positional parameters
+    private final String positionalSql;
+    private final List<String> parameterNames;
+    private final boolean startDateAsDay;
+    private final boolean endDateAsDay;
+    // Null if the parameter should be omitted when the date isn't specified
+    private final String defaultStartDate;
+    private final String defaultEndDate;
+    // Placeholders which couldn't be parameterized (see SqlReportDataExtractor), replaced at execution time
+    private final boolean hasPlaceholders;
+
+    CompiledReportQuery(final String sql,
+                        final boolean startDateAsDay,
+                        final boolean endDateAsDay,
+                        @Nullable final String defaultStartDate,
+                        @Nullable final String defaultEndDate,
+                        final boolean hasPlaceholders,
+                        final boolean backslashEscapes) {
+        this.sql = sql;
+        final List<String> names = new ArrayList<String>();
+        this.positionalSql = toPositional(sql, names, backslashEscapes);
+        this.parameterNames = Collections.unmodifiableList(names);
+        this.startDateAsDay = startDateAsDay;
+        this.endDateAsDay = endDateAsDay;
+        this.defaultStartDate = defaultStartDate;
+        this.defaultEndDate = defaultEndDate;
+        this.hasPlaceholders = hasPlaceholders;
+    }
+
+    // For queries built by hand (no placeholder, date nor string literal)
+    static CompiledReportQuery of(final String sql) {
+        return new CompiledReportQuery(sql, false, false, null, null, false, false);
+    }
+
+    // Dates at midnight UTC filter on the day column, unless the report is per timestamp
+    static boolean filtersOnDay(final ReportSpecification reportSpecification, final DateTime date) {
+        return !reportSpecification.getDimensions().contains(TS_COLUMN_NAME) && date.compareTo(date.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)) == 0;
+    }
+
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @param tenantRecordId tenant record id
+     * @param startDate      optional start date
+     * @param endDate        optional end date
+     * @param variableValues values of the template variables (empty if templating is disabled)
+     * @return the values of the bind parameters, by name
+     */
+    public Map<String, Object> getParameters(final Long tenantRecordId,
+                                             @Nullable final DateTime startDate,
+                                             @Nullable final DateTime endDate,
+                                             final Map<String, String> variableValues) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        for (final String parameterName : parameterNames) {
+            // Unknown variables are bound to null
+            parameters.put(parameterName, variableValues.get(parameterName));
+        }
+        parameters.put(TENANT_RECORD_ID_PARAMETER, tenantRecordId);
+        putDate(parameters, START_DATE_PARAMETER, startDate, startDateAsDay, defaultStartDate);
+        putDate(parameters, END_DATE_PARAMETER, endDate, endDateAsDay, defaultEndDate);
+        return parameters;
+    }
+
+    public String getSql(final Map<String, Object> parameters) {
+        return replacePlaceholders(sql, parameters);
+    }
+
+    public String getPositionalSql(final Map<String, Object> parameters) {
+        return replacePlaceholders(positionalSql, parameters);
+    }
+
+    /**
+     * Bind the parameters of a JDBI statement, prepared from getSql
+     *
+     * @param statement        statement
+     * @param parameters       see getParameters
+     * @param inferStringTypes whether strings should be typed by the database, like literals (PostgreSQL only)
+     */
+    public void bind(final SQLStatement<?> statement, final Map<String, Object> parameters, final boolean inferStringTypes) {
+        for (final String parameterName : parameterNames) {
+            final Object value = parameters.get(parameterName);
+            statement.bind(parameterName, new Argument() {
+                @Override
+                public void apply(final int position, final PreparedStatement preparedStatement, final StatementContext ctx) throws SQLException {
+                    bind(preparedStatement, position, value, inferStringTypes);
+                }
+            });
+        }
+    }
+
+    /**
+     * Bind the parameters of a JDBC statement, prepared from getPositionalSql
+     */
+    public void bind(final PreparedStatement statement, final Map<String, Object> parameters, final boolean inferStringTypes) throws SQLException {
+        for (int i = 0; i < parameterNames.size(); i++) {
+            bind(statement, i + 1, parameters.get(parameterNames.get(i)), inferStringTypes);
+        }
+    }
+
+    private static void bind(final PreparedStatement statement, final int position, @Nullable final Object value, final boolean inferStringTypes) throws SQLException {
+        if (value instanceof Long) {
+            statement.setLong(position, (Long) value);
+        } else if (inferStringTypes) {
+            statement.setObject(position, value, Types.OTHER);
+        } else if (value == null) {
+            statement.setNull(position, Types.VARCHAR);
+        } else {
+            statement.setString(position, value.toString());
+        }
+    }
+
+    private static void putDate(final Map<String, Object> parameters,
+                                final String parameterName,
+                                @Nullable final DateTime date,
+                                final boolean asDay,
+                                @Nullable final String defaultValue) {
+        if (date == null) {
+            if (defaultValue != null) {
+                parameters.put(parameterName, defaultValue);
+            }
+        } else {
+            parameters.put(parameterName, asDay ? date.toLocalDate().toString() : date.toString());
+        }
+    }
+
+    private String replacePlaceholders(final String query, final Map<String, Object> parameters) {
+        if (!hasPlaceholders) {
+            return query;
+        }
+        return SqlReportDataExtractor.replacePlaceholders(query,
+                                                          (Long) parameters.get(TENANT_RECORD_ID_PARAMETER),
+                                                          (String) parameters.get(START_DATE_PARAMETER),
+                                                          (String) parameters.get(END_DATE_PARAMETER));
+    }
+
+    // Replace the named parameters by ?, skipping string literals, quoted identifiers, comments and casts (::).
+    // Backslashes escape the next character of string literals in MySQL (e.g. 'it\'s') and in PostgreSQL escape strings (E'...)
+    static String toPositional(final String sql, final List<String> parameterNames, final boolean backslashEscapes) {
+        final StringBuilder positionalSql = new StringBuilder(sql.length());
+        Character quote = null;
+        boolean escapes = false;
+        int i = 0;
+        while (i < sql.length()) {
+            final char c = sql.charAt(i);
+            if (quote != null) {
+                if (escapes && c == '\\' && i + 1 < sql.length()) {
+                    positionalSql.append(c).append(sql.charAt(i + 1));
+                    i += 2;
+                    continue;
+                }
+                if (c == quote) {
+                    quote = null;
+                }
+                positionalSql.append(c);
+                i++;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+                escapes = c != '`' && (backslashEscapes || (c == '\'' && isEscapeStringPrefix(sql, i)));
+                positionalSql.append(c);
+                i++;
+            } else if ((c == '-' && sql.startsWith("--", i)) || (c == '#' && backslashEscapes)) {
+                // Line comment (# is an operator in PostgreSQL)
+                final int end = sql.indexOf('\n', i);
+                final int commentEnd = end == -1 ? sql.length() : end;
+                positionalSql.append(sql, i, commentEnd);
+                i = commentEnd;
+            } else if (c == '/' && sql.startsWith("/*", i)) {
+                final int end = sql.indexOf("*/", i + 2);
+                final int commentEnd = end == -1 ? sql.length() : end + 2;
+                positionalSql.append(sql, i, commentEnd);
+                i = commentEnd;
+            } else if (c == ':' && i + 1 < sql.length() && Character.isJavaIdentifierStart(sql.charAt(i + 1)) && (i == 0 || sql.charAt(i - 1) != ':')) {
+                int end = i + 1;
+                while (end < sql.length() && Character.isJavaIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                parameterNames.add(sql.substring(i + 1, end));
+                positionalSql.append('?');
+                i = end;
+            } else {
+                positionalSql.append(c);
+                i++;
+            }
+        }
+        return positionalSql.toString();
+    }
+
+    // E'...' (but not e.g. type'...')
+    private static boolean isEscapeStringPrefix(final String sql, final int quoteIndex) {
+        return quoteIndex > 0 &&
+               Character.toUpperCase(sql.charAt(quoteIndex - 1)) == 'E' &&
+               (quoteIndex == 1 || !Character.isJavaIdentifierPart(sql.charAt(quoteIndex - 2)));
+    }
+}
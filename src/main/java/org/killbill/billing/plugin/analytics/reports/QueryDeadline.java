@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.BaseStatementCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deadline of the queries of a report, shared between the request thread and the thread running the queries.
+ * <p>
+ * The deadline is enforced by the driver (see Statement#setQueryTimeout) and, as not all drivers honor it,
+ * by the request thread which cancels the statements still running once it gives up waiting.
+ */
+public class QueryDeadline {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryDeadline.class);
+
+    private static final QueryDeadline NONE = new QueryDeadline(null);
+
+    // Null if none
+    private final Long deadlineMillis;
+    private final Set<Statement> statements = Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+
+    private volatile boolean cancelled = false;
+
+    private QueryDeadline(@Nullable final Long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public static QueryDeadline none() {
+        return NONE;
+    }
+
+    /**
+     * @param startMillis     start of the request
+     * @param timeoutsSeconds timeouts to honor (null or non-positive values are ignored), the shortest one wins
+     * @return the deadline
+     */
+    public static QueryDeadline of(final long startMillis, final Integer... timeoutsSeconds) {
+        Integer timeoutSeconds = null;
+        for (final Integer curTimeoutSeconds : timeoutsSeconds) {
+            if (curTimeoutSeconds != null && curTimeoutSeconds > 0 && (timeoutSeconds == null || curTimeoutSeconds < timeoutSeconds)) {
+                timeoutSeconds = curTimeoutSeconds;
+            }
+        }
+        return timeoutSeconds == null ? NONE : new QueryDeadline(startMillis + timeoutSeconds * 1000L);
+    }
+
+    public boolean hasDeadline() {
+        return deadlineMillis != null;
+    }
+
+    public long getRemainingMillis() {
+        return deadlineMillis == null ? Long.MAX_VALUE : Math.max(0, deadlineMillis - System.currentTimeMillis());
+    }
+
+    public boolean isExpired() {
+        return cancelled || (deadlineMillis != null && deadlineMillis <= System.currentTimeMillis());
+    }
+
+    public void apply(final SQLStatement<?> query) {
+        if (deadlineMillis == null) {
+            return;
+        }
+
+        query.setQueryTimeout(getQueryTimeoutSeconds());
+        query.addStatementCustomizer(new BaseStatementCustomizer() {
+            @Override
+            public void beforeExecution(final PreparedStatement stmt, final StatementContext ctx) throws SQLException {
+                register(stmt);
+            }
+
+            @Override
+            public void afterExecution(final PreparedStatement stmt, final StatementContext ctx) {
+                release(stmt);
+            }
+        });
+    }
+
+    public void apply(final Statement statement) throws SQLException {
+        if (deadlineMillis == null) {
+            return;
+        }
+
+        statement.setQueryTimeout(getQueryTimeoutSeconds());
+        register(statement);
+    }
+
+    public void release(final Statement statement) {
+        statements.remove(statement);
+    }
+
+    /**
+     * Cancel the statements still running. Subsequent statements are cancelled as soon as they start.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (final Statement statement : statements) {
+            cancel(statement);
+        }
+    }
+
+    // Rounded up, as 0 would mean no timeout
+    private int getQueryTimeoutSeconds() {
+        return (int) Math.max(1, (getRemainingMillis() + 999) / 1000);
+    }
+
+    private void register(final Statement statement) {
+        statements.add(statement);
+        if (cancelled) {
+            cancel(statement);
+        }
+    }
+
+    private void cancel(final Statement statement) {
+        try {
+            statement.cancel();
+        } catch (final SQLException e) {
+            logger.debug("Unable to cancel statement", e);
+        } finally {
+            statements.remove(statement);
+        }
+    }
+}
@@ -18,39 +18,50 @@
 package org.killbill.billing.plugin.analytics.reports;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfiguration;
 import org.killbill.billing.plugin.analytics.json.CounterChart;
 import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.TableDataSeries;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeries;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
-import org.killbill.billing.plugin.analytics.reports.databases.Trino;
+import org.killbill.billing.plugin.analytics.reports.databases.ExternalDatabases;
 import org.killbill.billing.plugin.dao.PluginDao.DBEngine;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
+import com.google.common.collect.ImmutableMap;
 
 import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.COUNT_COLUMN_NAME;
 import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.DAY_COLUMN_NAME;
@@ -60,11 +71,29 @@ import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.TS_CO
 public class QueryEngine {
 
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.S");
+    private static final int TABLE_FETCH_SIZE = 1000;
 
     private final DBI dbi;
-
-    public QueryEngine(final DBI dbi) {
+    private final ExternalDatabases externalDatabases;
+    private final ReportQueryCache reportQueryCache;
+    private final SingleFlightQueries singleFlightQueries;
+    // Closes the TABLE reports cursors still open past their deadline
+    private final ScheduledExecutorService readTimeoutsScheduler;
+
+    public QueryEngine(final DBI dbi,
+                       final ExternalDatabases externalDatabases,
+                       final ReportQueryCache reportQueryCache,
+                       final SingleFlightQueries singleFlightQueries) {
         this.dbi = dbi;
+        this.externalDatabases = externalDatabases;
+        this.reportQueryCache = reportQueryCache;
+        this.singleFlightQueries = singleFlightQueries;
+        this.readTimeoutsScheduler = BusinessExecutor.newSingleThreadScheduledExecutor("osgi-analytics-reports-read-timeouts");
+    }
+
+    public void close() {
+        readTimeoutsScheduler.shutdownNow();
+        externalDatabases.close();
     }
 
     public List<DataMarker> getCountersData(final ReportsConfigurationModelDao reportsConfigurationModelDao,
@@ -73,99 +102,159 @@ public class QueryEngine {
                                             @Nullable final DateTime startDate,
                                             @Nullable final DateTime endDate,
                                             final AnalyticsConfiguration analyticsConfiguration,
-                                            final Long tenantRecordId) {
+                                            final Long tenantRecordId,
+                                            final QueryDeadline deadline) {
         final DBI dbi = getDBI(reportsConfigurationModelDao, analyticsConfiguration);
-        final DBEngine dbEngine = getDbEngine(reportsConfigurationModelDao, kbDbEngine);
-
-        final String query;
-        if (reportsConfigurationModelDao.getSourceTableName() != null) {
-            query = "select * from " + reportsConfigurationModelDao.getSourceTableName() + " where tenant_record_id = " + tenantRecordId;
-        } else {
-            final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(reportsConfigurationModelDao.getSourceQuery(),
-                                                                                             reportSpecification,
-                                                                                             startDate,
-                                                                                             endDate,
-                                                                                             analyticsConfiguration,
-                                                                                             dbEngine,
-                                                                                             tenantRecordId);
-            query = sqlReportDataExtractor.toString();
-        }
-        return getCountersData(dbi, query);
+        final BoundQuery query = getQuery(reportsConfigurationModelDao, reportSpecification, kbDbEngine, startDate, endDate, null, null, analyticsConfiguration, tenantRecordId, false);
+        return singleFlightQueries.execute(query.getKey(dbi, "counters"),
+                                           deadline,
+                                           new Callable<List<DataMarker>>() {
+                                               @Override
+                                               public List<DataMarker> call() {
+                                                   return getCountersData(dbi, query, deadline);
+                                               }
+                                           });
     }
 
+    /**
+     * @param page optional page (see TablePage): all rows are returned otherwise
+     */
     public List<DataMarker> getTablesData(final ReportsConfigurationModelDao reportsConfigurationModelDao,
                                           final ReportSpecification reportSpecification,
                                           final DBEngine kbDbEngine,
                                           @Nullable final DateTime startDate,
                                           @Nullable final DateTime endDate,
+                                          @Nullable final TablePage page,
                                           final AnalyticsConfiguration analyticsConfiguration,
-                                          final Long tenantRecordId) {
+                                          final Long tenantRecordId,
+                                          final QueryDeadline deadline) {
         final DBI dbi = getDBI(reportsConfigurationModelDao, analyticsConfiguration);
-        final DBEngine dbEngine = getDbEngine(reportsConfigurationModelDao, kbDbEngine);
+        final BoundQuery query = getQuery(reportsConfigurationModelDao, reportSpecification, kbDbEngine, startDate, endDate, null, page, analyticsConfiguration, tenantRecordId, false);
+        final String seriesName = getTablesSeriesName(reportsConfigurationModelDao);
+        final List<String> sortKey = page == null ? null : TablePage.getSortKey(reportsConfigurationModelDao);
+        return singleFlightQueries.execute(query.getKey(dbi, "table:" + seriesName),
+                                           deadline,
+                                           new Callable<List<DataMarker>>() {
+                                               @Override
+                                               public List<DataMarker> call() {
+                                                   return getTablesData(dbi, reportsConfigurationModelDao.getReportName(), seriesName, query, page, sortKey, deadline);
+                                               }
+                                           });
+    }
 
-        final String seriesName;
-        final String fallBackHeadersQuery;
-        final String query;
-        if (reportsConfigurationModelDao.getSourceTableName() != null) {
-            seriesName = reportsConfigurationModelDao.getSourceTableName();
-            fallBackHeadersQuery = "select column_name from information_schema.columns where table_schema = schema() and table_name = '" + reportsConfigurationModelDao.getSourceTableName() + "' order by ordinal_position";
-            query = "select * from " + reportsConfigurationModelDao.getSourceTableName() + " where tenant_record_id = " + tenantRecordId;
-        } else {
-            seriesName = reportsConfigurationModelDao.getSourceName();
-            fallBackHeadersQuery = null;
-            final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(reportsConfigurationModelDao.getSourceQuery(),
-                                                                                             reportSpecification,
-                                                                                             startDate,
-                                                                                             endDate,
-                                                                                             analyticsConfiguration,
-                                                                                             dbEngine,
-                                                                                             tenantRecordId);
-            query = sqlReportDataExtractor.toString();
+    /**
+     * Open a cursor over the rows of a TABLE report, for results too large to be loaded in memory
+     *
+     * @param page optional page (see TablePage): all rows are returned otherwise
+     * @return the rows, which the caller must close (empty if the deadline was reached)
+     */
+    public TableDataStream getTablesDataStream(final ReportsConfigurationModelDao reportsConfigurationModelDao,
+                                               final ReportSpecification reportSpecification,
+                                               final DBEngine kbDbEngine,
+                                               @Nullable final DateTime startDate,
+                                               @Nullable final DateTime endDate,
+                                               @Nullable final TablePage page,
+                                               final AnalyticsConfiguration analyticsConfiguration,
+                                               final Long tenantRecordId,
+                                               final QueryDeadline deadline) {
+        if (deadline.isExpired()) {
+            return TableDataStream.timedOut(reportsConfigurationModelDao.getReportPrettyName(), getTablesSeriesName(reportsConfigurationModelDao));
         }
-        return getTablesData(dbi,
-                             seriesName,
-                             fallBackHeadersQuery,
-                             query);
-    }
 
-    public Map<String, List<XY>> getTimeSeriesData(final ReportsConfigurationModelDao reportsConfigurationModelDao,
-                                                   final ReportSpecification reportSpecification,
-                                                   final DBEngine kbDbEngine,
-                                                   @Nullable final DateTime startDate,
-                                                   @Nullable final DateTime endDate,
-                                                   final Long tenantRecordId,
-                                                   final AnalyticsConfiguration analyticsConfiguration) {
         final DBI dbi = getDBI(reportsConfigurationModelDao, analyticsConfiguration);
-        final DBEngine dbEngine = getDbEngine(reportsConfigurationModelDao, kbDbEngine);
+        final BoundQuery query = getQuery(reportsConfigurationModelDao, reportSpecification, kbDbEngine, startDate, endDate, null, page, analyticsConfiguration, tenantRecordId, false);
+        final List<String> sortKey = page == null ? null : TablePage.getSortKey(reportsConfigurationModelDao);
+
+        // Drivers buffer the whole result set by default
+        final DBEngine cursorDbEngine = reportsConfigurationModelDao.getSourceName() != null ? null : kbDbEngine;
+        final Handle handle = dbi.open();
+        boolean restoreAutoCommit = false;
+        PreparedStatement statement = null;
+        try {
+            final Connection connection = handle.getConnection();
+            if (cursorDbEngine == DBEngine.POSTGRESQL && connection.getAutoCommit()) {
+                // PostgreSQL only uses cursors within transactions
+                connection.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+            statement = query.prepareStatement(connection, "", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // MySQL only streams rows one by one
+            statement.setFetchSize(cursorDbEngine == DBEngine.MYSQL ? Integer.MIN_VALUE : TABLE_FETCH_SIZE);
+            deadline.apply(statement);
+            final ResultSet resultSet = statement.executeQuery();
+            // The statement stays registered: the deadline also bounds the reads, which happen at the pace of the client
+            final TableDataStream tableDataStream = new TableDataStream(reportsConfigurationModelDao.getReportName(),
+                                                                        reportsConfigurationModelDao.getReportPrettyName(),
+                                                                        getTablesSeriesName(reportsConfigurationModelDao),
+                                                                        handle,
+                                                                        restoreAutoCommit,
+                                                                        statement,
+                                                                        resultSet,
+                                                                        page,
+                                                                        sortKey,
+                                                                        deadline);
+            tableDataStream.scheduleReadTimeout(readTimeoutsScheduler);
+            return tableDataStream;
+        } catch (final SQLException e) {
+            try {
+                if (statement != null) {
+                    deadline.release(statement);
+                    statement.close();
+                }
+                if (restoreAutoCommit) {
+                    handle.getConnection().setAutoCommit(true);
+                }
+            } catch (final SQLException ignored) {
+                // Connection is being discarded
+            } finally {
+                handle.close();
+            }
 
-        final String query;
-        if (reportsConfigurationModelDao.getSourceTableName() != null) {
-            final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(reportsConfigurationModelDao.getSourceTableName(),
-                                                                                             reportSpecification,
-                                                                                             startDate,
-                                                                                             endDate,
-                                                                                             dbEngine,
-                                                                                             tenantRecordId);
-            query = sqlReportDataExtractor.toString();
-        } else {
-            final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(reportsConfigurationModelDao.getSourceQuery(),
-                                                                                             reportSpecification,
-                                                                                             startDate,
-                                                                                             endDate,
-                                                                                             analyticsConfiguration,
-                                                                                             dbEngine,
-                                                                                             tenantRecordId);
-            query = sqlReportDataExtractor.toString();
+            // Drivers don't consistently report timeouts as SQLTimeoutException
+            if (deadline.isExpired()) {
+                return TableDataStream.timedOut(reportsConfigurationModelDao.getReportPrettyName(), getTablesSeriesName(reportsConfigurationModelDao));
+            }
+            throw new RuntimeException(e);
         }
-        return getTimeSeriesData(dbi, reportSpecification, query);
+    }
+
+    static String getTablesSeriesName(final ReportsConfigurationModelDao reportsConfigurationModelDao) {
+        return reportsConfigurationModelDao.getSourceTableName() != null ? reportsConfigurationModelDao.getSourceTableName() : reportsConfigurationModelDao.getSourceName();
+    }
+
+    /**
+     * @param bucketGranularity optional period of the Smoother: if possible, values are then summed up per period by the database
+     *                          (see SqlReportDataExtractor#template). Otherwise, daily values are returned.
+     */
+    public Map<String, TimeSeries> getTimeSeriesData(final ReportsConfigurationModelDao reportsConfigurationModelDao,
+                                                          final ReportSpecification reportSpecification,
+                                                          final DBEngine kbDbEngine,
+                                                          @Nullable final DateTime startDate,
+                                                          @Nullable final DateTime endDate,
+                                                          @Nullable final DateGranularity bucketGranularity,
+                                                          final Long tenantRecordId,
+                                                          final AnalyticsConfiguration analyticsConfiguration,
+                                                          final QueryDeadline deadline) {
+        final DBI dbi = getDBI(reportsConfigurationModelDao, analyticsConfiguration);
+        final BoundQuery query = getQuery(reportsConfigurationModelDao, reportSpecification, kbDbEngine, startDate, endDate, bucketGranularity, null, analyticsConfiguration, tenantRecordId, true);
+        // Series names depend on the specification (e.g. legend)
+        return singleFlightQueries.execute(query.getKey(dbi, "timeline:" + ReportResultsCache.Key.normalize(reportSpecification)),
+                                           deadline,
+                                           new Callable<Map<String, TimeSeries>>() {
+                                               @Override
+                                               public Map<String, TimeSeries> call() {
+                                                   return getTimeSeriesData(dbi, reportSpecification, query, deadline);
+                                               }
+                                           });
     }
 
     private List<DataMarker> getCountersData(final IDBI dbi,
-                                             final String query) {
+                                             final BoundQuery query,
+                                             final QueryDeadline deadline) {
         return dbi.withHandle(new HandleCallback<List<DataMarker>>() {
             @Override
             public List<DataMarker> withHandle(final Handle handle) {
-                final List<Map<String, Object>> results = handle.select(query);
+                final List<Map<String, Object>> results = query.createQuery(handle, deadline).list();
                 if (results.isEmpty()) {
                     return Collections.emptyList();
                 }
@@ -190,101 +279,185 @@ public class QueryEngine {
     }
 
     private List<DataMarker> getTablesData(final IDBI dbi,
+                                           final String reportName,
                                            final String seriesName,
-                                           @Nullable final String fallBackHeadersQuery,
-                                           final String query) {
+                                           final BoundQuery query,
+                                           @Nullable final TablePage page,
+                                           @Nullable final List<String> sortKey,
+                                           final QueryDeadline deadline) {
         return dbi.withHandle(new HandleCallback<List<DataMarker>>() {
             @Override
-            public List<DataMarker> withHandle(final Handle handle) {
-                final List<Map<String, Object>> results = handle.select(query);
-                if (results.isEmpty()) {
-                    return Collections.emptyList();
-                }
-
-                final List<String> header = new LinkedList<String>();
-
-                // Try to find the column names to keep the ordering
-                final String headersQuery = String.format("%s limit 0", query);
-                try (final Connection connection = handle.getConnection();
-                     final Statement statement = connection.createStatement();
-                     final ResultSet rs = statement.executeQuery(headersQuery)) {
+            public List<DataMarker> withHandle(final Handle handle) throws SQLException {
+                // The header (which keeps the ordering of the columns) and the rows are read from the same result set
+                try (final PreparedStatement statement = query.prepareStatement(handle.getConnection(), "", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                     final ResultSet rs = executeQuery(statement, deadline)) {
                     final ResultSetMetaData rsmd = rs.getMetaData();
-                    for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+                    final int nbColumns = rsmd.getColumnCount();
+                    final List<String> header = new ArrayList<String>(nbColumns);
+                    for (int i = 1; i <= nbColumns; i++) {
                         header.add(String.valueOf(rsmd.getColumnLabel(i)));
                     }
-                } catch (final SQLException e) {
-                    if (fallBackHeadersQuery != null) {
-                        final List<Map<String, Object>> schemaResults = handle.select(fallBackHeadersQuery);
-                        for (final Map<String, Object> row : schemaResults) {
-                            header.add(String.valueOf(row.get("column_name")));
+
+                    final List<List<Object>> values = new ArrayList<List<Object>>();
+                    String nextCursor = null;
+                    while (rs.next()) {
+                        if (page != null && values.size() == page.getPageSize()) {
+                            // One more row than the page size is requested, to know whether there is a next page
+                            nextCursor = TablePage.getNextCursor(reportName, sortKey, header, values.get(values.size() - 1));
+                            break;
+                        }
+
+                        final Object[] row = new Object[nbColumns];
+                        for (int i = 0; i < nbColumns; i++) {
+                            row[i] = rs.getObject(i + 1);
                         }
-                    } else {
-                        // TODO: how can we do better?
-                        final Map<String, Object> firstRow = Iterators.getNext(results.iterator(), null);
-                        assert firstRow != null;
-                        header.addAll(firstRow.keySet());
+                        values.add(Arrays.asList(row));
                     }
-                }
 
-                final List<List<Object>> values = new LinkedList<List<Object>>();
-                for (final Map<String, Object> row : results) {
-                    final List<Object> tableRow = new LinkedList<Object>();
-                    for (final String headerName : header) {
-                        tableRow.add(row.get(headerName));
+                    if (values.isEmpty()) {
+                        return Collections.emptyList();
                     }
-                    values.add(tableRow);
+                    return ImmutableList.<DataMarker>of(new TableDataSeries(seriesName, header, values, nextCursor));
                 }
-                return ImmutableList.<DataMarker>of(new TableDataSeries(seriesName, header, values));
             }
         });
     }
 
-    private Map<String, List<XY>> getTimeSeriesData(final IDBI dbi,
-                                                    final ReportSpecification reportSpecification,
-                                                    final String query) {
-        return dbi.withHandle(new HandleCallback<Map<String, List<XY>>>() {
+    private Map<String, TimeSeries> getTimeSeriesData(final IDBI dbi,
+                                                           final ReportSpecification reportSpecification,
+                                                           final BoundQuery query,
+                                                           final QueryDeadline deadline) {
+        return dbi.withHandle(new HandleCallback<Map<String, TimeSeries>>() {
             @Override
-            public Map<String, List<XY>> withHandle(final Handle handle) {
-                final List<Map<String, Object>> results = handle.select(query);
+            public Map<String, TimeSeries> withHandle(final Handle handle) {
+                final List<Map<String, Object>> results = query.createQuery(handle, deadline).list();
                 if (results.isEmpty()) {
                     return Collections.emptyMap();
                 }
 
-                final Map<String, List<XY>> timeSeries = new LinkedHashMap<String, List<XY>>();
+                final Map<String, TimeSeries.Builder> timeSeries = new LinkedHashMap<String, TimeSeries.Builder>();
                 for (final Map<String, Object> row : results) {
                     // Day
-                    Object dateObject = row.get(DAY_COLUMN_NAME);
-                    if (dateObject == null) {
-                        // Timestamp
-                        dateObject = row.get(TS_COLUMN_NAME);
-                        if (dateObject == null) {
-                            continue;
-                        }
-                        dateObject = DATE_TIME_FORMATTER.parseDateTime(dateObject.toString()).toString();
+                    final Object dateObject = row.get(DAY_COLUMN_NAME);
+                    // Timestamp (one point per timestamp)
+                    final Object timestampObject = dateObject == null ? row.get(TS_COLUMN_NAME) : null;
+                    if (dateObject == null && timestampObject == null) {
+                        continue;
                     }
-                    final String date = dateObject.toString();
+                    final int day = dateObject == null ? 0 : toEpochDay(dateObject);
+                    final long timestamp = timestampObject == null ? 0L : DATE_TIME_FORMATTER.parseDateTime(timestampObject.toString()).getMillis();
 
                     final String legendWithDimensions = createLegendWithDimensionsForSeries(row, reportSpecification);
                     for (final Entry<String, Object> entry : row.entrySet()) {
                         if (isMetric(entry.getKey(), reportSpecification)) {
                             // Create a unique name for that result set
                             final String seriesName = MoreObjects.firstNonNull(reportSpecification.getLegend(), entry.getKey()) + (legendWithDimensions == null ? "" : (": " + legendWithDimensions));
-                            if (timeSeries.get(seriesName) == null) {
-                                timeSeries.put(seriesName, new LinkedList<XY>());
+                            TimeSeries.Builder series = timeSeries.get(seriesName);
+                            if (series == null) {
+                                series = new TimeSeries.Builder();
+                                timeSeries.put(seriesName, series);
                             }
 
                             final Object value = entry.getValue();
-                            final Float valueAsFloat = value == null ? Float.valueOf(0f) : Float.valueOf(value.toString());
-                            timeSeries.get(seriesName).add(new XY(date, valueAsFloat));
+                            final float valueAsFloat = value == null ? 0f : Float.parseFloat(value.toString());
+                            if (dateObject == null) {
+                                series.addTimestamp(timestamp, valueAsFloat);
+                            } else {
+                                series.addDay(day, valueAsFloat);
+                            }
                         }
                     }
                 }
 
-                return timeSeries;
+                final Map<String, TimeSeries> result = new LinkedHashMap<String, TimeSeries>();
+                for (final Entry<String, TimeSeries.Builder> entry : timeSeries.entrySet()) {
+                    result.put(entry.getKey(), entry.getValue().build());
+                }
+                return result;
             }
         });
     }
 
+    private ResultSet executeQuery(final PreparedStatement statement, final QueryDeadline deadline) throws SQLException {
+        deadline.apply(statement);
+        try {
+            return statement.executeQuery();
+        } finally {
+            deadline.release(statement);
+        }
+    }
+
+    private BoundQuery getQuery(final ReportsConfigurationModelDao reportsConfigurationModelDao,
+                                final ReportSpecification reportSpecification,
+                                final DBEngine kbDbEngine,
+                                @Nullable final DateTime startDate,
+                                @Nullable final DateTime endDate,
+                                @Nullable final DateGranularity bucketGranularity,
+                                @Nullable final TablePage page,
+                                final AnalyticsConfiguration analyticsConfiguration,
+                                final Long tenantRecordId,
+                                final boolean applySpecification) {
+        final DBEngine dbEngine = getDbEngine(reportsConfigurationModelDao, kbDbEngine);
+
+        final CompiledReportQuery compiledQuery;
+        if (reportsConfigurationModelDao.getSourceTableName() == null) {
+            // Raw queries can't be rewritten: values are smoothed in memory
+            compiledQuery = reportQueryCache.get(reportsConfigurationModelDao, reportsConfigurationModelDao.getSourceQuery(), dbEngine);
+        } else if (applySpecification) {
+            compiledQuery = reportQueryCache.get(reportsConfigurationModelDao, reportsConfigurationModelDao.getSourceTableName(), reportSpecification, startDate, endDate, bucketGranularity, dbEngine);
+        } else if (page == null) {
+            compiledQuery = CompiledReportQuery.of("select * from " + reportsConfigurationModelDao.getSourceTableName() + " where tenant_record_id = :" + CompiledReportQuery.TENANT_RECORD_ID_PARAMETER);
+        } else {
+            compiledQuery = CompiledReportQuery.of(getPageSql(reportsConfigurationModelDao, page));
+        }
+
+        // Template variables are only supported in trusted environments (see SqlReportDataExtractor)
+        final Map<String, String> variableValues = analyticsConfiguration.enableTemplateVariables ? reportSpecification.getVariableValues() : ImmutableMap.<String, String>of();
+        // External databases don't necessarily support untyped parameters
+        final boolean inferStringTypes = reportsConfigurationModelDao.getSourceName() == null && kbDbEngine == DBEngine.POSTGRESQL;
+        final Map<String, Object> parameters = compiledQuery.getParameters(tenantRecordId, startDate, endDate, variableValues);
+        if (page != null && page.getAfter() != null) {
+            for (int i = 0; i < page.getAfter().size(); i++) {
+                parameters.put(TablePage.CURSOR_PARAMETER_PREFIX + i, page.getAfter().get(i));
+            }
+        }
+        return new BoundQuery(compiledQuery, parameters, inferStringTypes);
+    }
+
+    // Keyset pagination: rows after the cursor, in the sort key order. One more row is requested, to know whether there is a next page.
+    @VisibleForTesting
+    static String getPageSql(final ReportsConfigurationModelDao reportsConfigurationModelDao, final TablePage page) {
+        final List<String> sortKey = TablePage.getSortKey(reportsConfigurationModelDao);
+        final String sortKeyColumns = Joiner.on(", ").join(sortKey);
+
+        final StringBuilder sql = new StringBuilder("select * from ").append(reportsConfigurationModelDao.getSourceTableName())
+                                                                     .append(" where tenant_record_id = :").append(CompiledReportQuery.TENANT_RECORD_ID_PARAMETER);
+        if (page.getAfter() != null) {
+            // Cursors are only valid for the report which issued them
+            Preconditions.checkArgument(reportsConfigurationModelDao.getReportName().equals(page.getReportName()) && page.getAfter().size() == sortKey.size(),
+                                        "Invalid cursor for report %s", reportsConfigurationModelDao.getReportName());
+            final List<String> cursorParameters = new ArrayList<String>(sortKey.size());
+            for (int i = 0; i < sortKey.size(); i++) {
+                cursorParameters.add(":" + TablePage.CURSOR_PARAMETER_PREFIX + i);
+            }
+            // Row value comparison, supported by MySQL, PostgreSQL and H2
+            sql.append(" and (").append(sortKeyColumns).append(") > (").append(Joiner.on(", ").join(cursorParameters)).append(")");
+        }
+        return sql.append(" order by ").append(sortKeyColumns)
+                  .append(" limit ").append(page.getPageSize() + 1)
+                  .toString();
+    }
+
+    private int toEpochDay(final Object dateObject) {
+        if (dateObject instanceof java.sql.Date) {
+            return (int) ((java.sql.Date) dateObject).toLocalDate().toEpochDay();
+        } else if (dateObject instanceof Date) {
+            return TimeSeries.toEpochDay(((Date) dateObject).getTime());
+        } else {
+            return TimeSeries.toEpochDay(new DateTime(dateObject.toString(), DateTimeZone.UTC));
+        }
+    }
+
     private String createLegendWithDimensionsForSeries(final Map<String, Object> row, final ReportSpecification reportSpecification) {
         int i = 0;
         final StringBuilder seriesNameBuilder = new StringBuilder();
@@ -348,11 +521,7 @@ public class QueryEngine {
 
             final Map<String, String> configuration = analyticsConfiguration.databases.get(reportsConfigurationModelDao.getSourceName());
             Preconditions.checkNotNull(configuration, "Missing database configuration for " + reportsConfigurationModelDao.getSourceName());
-            // We only support Trino for direct queries today
-            Preconditions.checkArgument("trino".equals(configuration.get("type")), "Database %s is not yet supported", configuration.get("type"));
-
-            final Trino trino = new Trino(reportsConfigurationModelDao.getSourceName(), configuration);
-            return trino.getDBI();
+            return externalDatabases.getDBI(reportsConfigurationModelDao.getSourceName(), configuration);
         } else {
             Preconditions.checkNotNull(reportsConfigurationModelDao.getSourceTableName(), "sourceTableName must be defined: " + reportsConfigurationModelDao);
             return dbi;
@@ -364,4 +533,40 @@ public class QueryEngine {
         // Make Presto/Trino look like Postgres (https://github.com/jOOQ/jOOQ/issues/5414, https://github.com/jOOQ/jOOQ/issues/11485)
         return reportsConfigurationModelDao.getSourceName() != null ? DBEngine.POSTGRESQL : kbDbEngine;
     }
+
+    // Compiled query, with the values of its parameters
+    private static final class BoundQuery {
+
+        private final CompiledReportQuery compiledQuery;
+        private final Map<String, Object> parameters;
+        private final boolean inferStringTypes;
+
+        private BoundQuery(final CompiledReportQuery compiledQuery, final Map<String, Object> parameters, final boolean inferStringTypes) {
+            this.compiledQuery = compiledQuery;
+            this.parameters = parameters;
+            this.inferStringTypes = inferStringTypes;
+        }
+
+        private SingleFlightQueries.Key getKey(final DBI dbi, final String context) {
+            return new SingleFlightQueries.Key(dbi, compiledQuery.getSql(parameters), parameters, context + ":" + inferStringTypes);
+        }
+
+        private Query<Map<String, Object>> createQuery(final Handle handle, final QueryDeadline deadline) {
+            final Query<Map<String, Object>> query = handle.createQuery(compiledQuery.getSql(parameters));
+            compiledQuery.bind(query, parameters, inferStringTypes);
+            deadline.apply(query);
+            return query;
+        }
+
+        private PreparedStatement prepareStatement(final Connection connection, final String suffix, final int resultSetType, final int resultSetConcurrency) throws SQLException {
+            final PreparedStatement statement = connection.prepareStatement(compiledQuery.getPositionalSql(parameters) + suffix, resultSetType, resultSetConcurrency);
+            try {
+                compiledQuery.bind(statement, parameters, inferStringTypes);
+            } catch (final SQLException e) {
+                statement.close();
+                throw e;
+            }
+            return statement;
+        }
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.json.Chart;
+
+/**
+ * Data of a set of reports, to be consumed incrementally: the TABLE reports first, one cursor at a time, then the other charts.
+ * <p>
+ * Not thread-safe. Must be closed, to release the current cursor.
+ */
+public abstract class ReportDataStream implements Closeable {
+
+    private final Iterator<ReportSpecification> tableReports;
+
+    private TableDataStream currentTable = null;
+
+    protected ReportDataStream(final List<ReportSpecification> tableReports) {
+        this.tableReports = tableReports.iterator();
+    }
+
+    /**
+     * @return the next table, null if none. The previous one is closed.
+     */
+    @Nullable
+    public TableDataStream nextTable() {
+        close();
+        if (!tableReports.hasNext()) {
+            return null;
+        }
+        currentTable = openTable(tableReports.next());
+        return currentTable;
+    }
+
+    /**
+     * @return the charts of the TIMELINE and COUNTERS reports
+     */
+    public abstract List<Chart> getOtherCharts();
+
+    protected abstract TableDataStream openTable(ReportSpecification reportSpecification);
+
+    @Override
+    public void close() {
+        if (currentTable != null) {
+            currentTable.close();
+            currentTable = null;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.dao.PluginDao.DBEngine;
+import org.killbill.commons.metrics.api.MetricRegistry;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Node-local cache of the compiled queries of the reports, to avoid parsing the report specifications
+ * (metrics expressions, filters, etc.) and the raw queries on each request.
+ * <p>
+ * Keys include the full report configuration, so configuration changes are picked up right away. Stale entries are evicted over time.
+ */
+public class ReportQueryCache {
+
+    private static final String HITS_METRIC_NAME = "killbill-analytics.reports.queries.cache.hits";
+    private static final String MISSES_METRIC_NAME = "killbill-analytics.reports.queries.cache.misses";
+    private static final String PARSE_METRIC_NAME = "killbill-analytics.reports.queries.parse";
+    private static final String RENDER_METRIC_NAME = "killbill-analytics.reports.queries.render";
+
+    private static final long MAX_SIZE = 1000;
+    private static final long EXPIRE_AFTER_ACCESS_HOURS = 1;
+
+    private final MetricRegistry metricRegistry;
+    private final Cache<Key, CompiledReportQuery> cache = CacheBuilder.newBuilder()
+                                                                      .maximumSize(MAX_SIZE)
+                                                                      .expireAfterAccess(EXPIRE_AFTER_ACCESS_HOURS, TimeUnit.HOURS)
+                                                                      .build();
+
+    public ReportQueryCache(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Get the compiled query of a report backed by a table
+     *
+     * @param reportConfiguration report configuration
+     * @param tableName           source table name
+     * @param reportSpecification report specification
+     * @param startDate           optional start date (only its granularity matters, see CompiledReportQuery#filtersOnDay)
+     * @param endDate             optional end date (same)
+     * @param bucketGranularity   optional period to sum up the metrics over (see SqlReportDataExtractor#template)
+     * @param dbEngine            database engine
+     * @return the compiled query
+     */
+    public CompiledReportQuery get(final ReportsConfigurationModelDao reportConfiguration,
+                                   final String tableName,
+                                   final ReportSpecification reportSpecification,
+                                   @Nullable final DateTime startDate,
+                                   @Nullable final DateTime endDate,
+                                   @Nullable final DateGranularity bucketGranularity,
+                                   final DBEngine dbEngine) {
+        final Key key = new Key(reportConfiguration,
+                                dbEngine,
+                                ReportResultsCache.Key.normalize(reportSpecification),
+                                dateGranularity(reportSpecification, startDate),
+                                dateGranularity(reportSpecification, endDate),
+                                bucketGranularity);
+        return get(key, new Callable<SqlReportDataExtractor>() {
+            @Override
+            public SqlReportDataExtractor call() {
+                return SqlReportDataExtractor.template(tableName, reportSpecification, startDate, endDate, bucketGranularity, dbEngine);
+            }
+        });
+    }
+
+    /**
+     * Get the compiled query of a report backed by a raw query. Template variables are bind parameters.
+     *
+     * @param reportConfiguration report configuration
+     * @param sourceQuery raw query
+     * @param dbEngine    database engine
+     * @return the compiled query
+     */
+    public CompiledReportQuery get(final ReportsConfigurationModelDao reportConfiguration,
+                                   final String sourceQuery,
+                                   final DBEngine dbEngine) {
+        final Key key = new Key(reportConfiguration, dbEngine, null, null, null, null);
+        return get(key, new Callable<SqlReportDataExtractor>() {
+            @Override
+            public SqlReportDataExtractor call() {
+                return SqlReportDataExtractor.template(sourceQuery, dbEngine);
+            }
+        });
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private CompiledReportQuery get(final Key key, final Callable<SqlReportDataExtractor> parser) {
+        final boolean[] compiled = {false};
+        final CompiledReportQuery compiledReportQuery;
+        try {
+            compiledReportQuery = cache.get(key, new Callable<CompiledReportQuery>() {
+                @Override
+                public CompiledReportQuery call() throws Exception {
+                    compiled[0] = true;
+
+                    final long parseStartNanos = System.nanoTime();
+                    final SqlReportDataExtractor template = parser.call();
+                    final long renderStartNanos = System.nanoTime();
+                    metricRegistry.timer(PARSE_METRIC_NAME).update(renderStartNanos - parseStartNanos, TimeUnit.NANOSECONDS);
+
+                    final CompiledReportQuery result = template.compile();
+                    metricRegistry.timer(RENDER_METRIC_NAME).update(System.nanoTime() - renderStartNanos, TimeUnit.NANOSECONDS);
+                    return result;
+                }
+            });
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (final UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        metricRegistry.counter(compiled[0] ? MISSES_METRIC_NAME : HITS_METRIC_NAME).inc(1);
+        return compiledReportQuery;
+    }
+
+    // The SQL only depends on whether dates are specified, and on the column they apply to
+    private static String dateGranularity(final ReportSpecification reportSpecification, @Nullable final DateTime date) {
+        if (date == null) {
+            return null;
+        }
+        return CompiledReportQuery.filtersOnDay(reportSpecification, date) ? ReportsUserApi.DAY_COLUMN_NAME : ReportsUserApi.TS_COLUMN_NAME;
+    }
+
+    private static final class Key {
+
+        private final ReportsConfigurationModelDao reportConfiguration;
+        private final DBEngine dbEngine;
+        // Null for raw queries
+        private final String normalizedSpecification;
+        private final String startDateGranularity;
+        private final String endDateGranularity;
+        private final DateGranularity bucketGranularity;
+
+        private Key(final ReportsConfigurationModelDao reportConfiguration,
+                    final DBEngine dbEngine,
+                    @Nullable final String normalizedSpecification,
+                    @Nullable final String startDateGranularity,
+                    @Nullable final String endDateGranularity,
+                    @Nullable final DateGranularity bucketGranularity) {
+            this.reportConfiguration = reportConfiguration;
+            this.dbEngine = dbEngine;
+            this.normalizedSpecification = normalizedSpecification;
+            this.startDateGranularity = startDateGranularity;
+            this.endDateGranularity = endDateGranularity;
+            this.bucketGranularity = bucketGranularity;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return Objects.equals(reportConfiguration, key.reportConfiguration) &&
+                   dbEngine == key.dbEngine &&
+                   Objects.equals(normalizedSpecification, key.normalizedSpecification) &&
+                   Objects.equals(startDateGranularity, key.startDateGranularity) &&
+                   Objects.equals(endDateGranularity, key.endDateGranularity) &&
+                   bucketGranularity == key.bucketGranularity;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(reportConfiguration, dbEngine, normalizedSpecification, startDateGranularity, endDateGranularity, bucketGranularity);
+        }
+    }
+}
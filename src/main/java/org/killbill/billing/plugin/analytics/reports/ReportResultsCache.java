@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.json.TableDataSeries;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeries;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
+import org.killbill.commons.metrics.api.MetricRegistry;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Node-local cache of the data of materialized reports, i.e. reports backed by a table populated by a refresh procedure.
+ * <p>
+ * Entries are invalidated when the refresh procedure completes on this node (see JobsScheduler) or when the report
+ * configuration changes. Because refreshes and configuration changes on other nodes aren't seen, entries also expire after a TTL.
+ * The cache is bounded by the number of data points (time series points, counters or table cells) it holds.
+ */
+public class ReportResultsCache implements JobsScheduler.RefreshListener {
+
+    private static final String HITS_METRIC_NAME = "killbill-analytics.reports.cache.hits";
+    private static final String MISSES_METRIC_NAME = "killbill-analytics.reports.cache.misses";
+    private static final String EVICTIONS_METRIC_NAME = "killbill-analytics.reports.cache.evictions";
+
+    private static final Joiner SPECIFICATION_JOINER = Joiner.on(',').useForNull("");
+
+    private final MetricRegistry metricRegistry;
+    private final Cache<Key, Object> cache;
+    // Incremented on each invalidation, to avoid caching data loaded concurrently with a refresh
+    private final AtomicLong invalidations = new AtomicLong(0);
+
+    public ReportResultsCache(final long ttlSeconds, final long maxDataPoints, final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        this.cache = CacheBuilder.newBuilder()
+                                 .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                 .maximumWeight(maxDataPoints)
+                                 .weigher(new Weigher<Key, Object>() {
+                                     @Override
+                                     public int weigh(final Key key, final Object value) {
+                                         return nbDataPoints(value);
+                                     }
+                                 })
+                                 .removalListener(new RemovalListener<Key, Object>() {
+                                     @Override
+                                     public void onRemoval(final RemovalNotification<Key, Object> notification) {
+                                         if (notification.wasEvicted()) {
+                                             ReportResultsCache.this.metricRegistry.counter(EVICTIONS_METRIC_NAME).inc(1);
+                                         }
+                                     }
+                                 })
+                                 .build();
+    }
+
+    public static boolean isCacheable(final ReportsConfigurationModelDao reportConfiguration) {
+        // Live views and external sources can change at any time
+        return reportConfiguration.getSourceTableName() != null &&
+               reportConfiguration.getSourceName() == null &&
+               reportConfiguration.getRefreshProcedureName() != null;
+    }
+
+    /**
+     * Get the data for that report, loading it if needed
+     *
+     * @param key    cache key (see isCacheable)
+     * @param loader loads the report data, either a List of DataMarker or a Map of time series
+     * @param <T>    report data type
+     * @return the report data, which must not be modified by the caller
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final Key key, final Callable<T> loader) {
+        final long invalidationsBefore = invalidations.get();
+        final boolean[] loaded = {false};
+        final T data;
+        try {
+            data = (T) cache.get(key, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    loaded[0] = true;
+                    return loader.call();
+                }
+            });
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (final UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        metricRegistry.counter(loaded[0] ? MISSES_METRIC_NAME : HITS_METRIC_NAME).inc(1);
+        if (invalidations.get() != invalidationsBefore) {
+            // The data may have been loaded before the invalidation
+            cache.invalidate(key);
+        }
+        return data;
+    }
+
+    @Override
+    public void onRefreshCompleted(final String refreshProcedureName) {
+        invalidations.incrementAndGet();
+        final Iterator<Key> iterator = cache.asMap().keySet().iterator();
+        while (iterator.hasNext()) {
+            if (refreshProcedureName.equals(iterator.next().reportConfiguration.getRefreshProcedureName())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void invalidate(final String reportName) {
+        invalidations.incrementAndGet();
+        final Iterator<Key> iterator = cache.asMap().keySet().iterator();
+        while (iterator.hasNext()) {
+            if (reportName.equals(iterator.next().reportConfiguration.getReportName())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private static int nbDataPoints(final Object data) {
+        int nbDataPoints = 1;
+        if (data instanceof Map) {
+            for (final Object timeSeries : ((Map) data).values()) {
+                nbDataPoints += ((TimeSeries) timeSeries).size();
+            }
+        } else if (data instanceof List) {
+            for (final Object dataMarker : (List) data) {
+                if (dataMarker instanceof TableDataSeries) {
+                    final TableDataSeries table = (TableDataSeries) dataMarker;
+                    nbDataPoints += table.getValues().size() * Math.max(1, table.getHeader().size());
+                } else {
+                    nbDataPoints++;
+                }
+            }
+        }
+        return nbDataPoints;
+    }
+
+    public static final class Key {
+
+        private final Long tenantRecordId;
+        // The full configuration, so that configuration changes on other nodes are picked up
+        private final ReportsConfigurationModelDao reportConfiguration;
+        private final String normalizedSpecification;
+        private final DateTime startDate;
+        private final DateTime endDate;
+        // Time series summed up per period (see QueryEngine#getTimeSeriesData)
+        private final DateGranularity bucketGranularity;
+
+        public Key(final Long tenantRecordId,
+                   final ReportsConfigurationModelDao reportConfiguration,
+                   final ReportSpecification reportSpecification,
+                   @Nullable final DateTime startDate,
+                   @Nullable final DateTime endDate) {
+            this(tenantRecordId, reportConfiguration, reportSpecification, startDate, endDate, null);
+        }
+
+        public Key(final Long tenantRecordId,
+                   final ReportsConfigurationModelDao reportConfiguration,
+                   final ReportSpecification reportSpecification,
+                   @Nullable final DateTime startDate,
+                   @Nullable final DateTime endDate,
+                   @Nullable final DateGranularity bucketGranularity) {
+            this.tenantRecordId = tenantRecordId;
+            this.reportConfiguration = reportConfiguration;
+            this.normalizedSpecification = normalize(reportSpecification);
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.bucketGranularity = bucketGranularity;
+        }
+
+        // Ignore the formatting of the raw specification (whitespaces, ordering of the variables, etc.)
+        static String normalize(final ReportSpecification reportSpecification) {
+            return SPECIFICATION_JOINER.join(reportSpecification.getReportName(),
+                                             reportSpecification.getLegend(),
+                                             reportSpecification.getDimensionsWithGrouping(),
+                                             reportSpecification.getMetrics(),
+                                             reportSpecification.getFilterExpression(),
+                                             new TreeMap<String, String>(reportSpecification.getVariableValues()));
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return Objects.equals(tenantRecordId, key.tenantRecordId) &&
+                   Objects.equals(reportConfiguration, key.reportConfiguration) &&
+                   Objects.equals(normalizedSpecification, key.normalizedSpecification) &&
+                   Objects.equals(startDate, key.startDate) &&
+                   Objects.equals(endDate, key.endDate) &&
+                   bucketGranularity == key.bucketGranularity;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenantRecordId, reportConfiguration, normalizedSpecification, startDate, endDate, bucketGranularity);
+        }
+    }
+}
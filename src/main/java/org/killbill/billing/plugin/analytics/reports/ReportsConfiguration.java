@@ -68,6 +68,10 @@ public class ReportsConfiguration {
             @Override
             public Void executeCallback(Connection connection, ReportsConfigurationSqlDao transactional) {
                 transactional.updateReportConfiguration(report);
+                // The report table may not match the new configuration anymore: the next incremental refresh will rebuild it
+                transactional.deleteReportWatermarks(report.getReportName());
+                // Nor will the next refresh be skipped
+                transactional.deleteReportSignature(report.getReportName());
 
                 if (report.getRefreshFrequency() != null && report.getRefreshProcedureName() != null) {
                     // Re-read the record to optimize the schedule creation path
@@ -90,6 +94,8 @@ public class ReportsConfiguration {
                 // Make deletion idempotent
                 if (reportsConfigurationModelDao != null) {
                     transactional.deleteReportConfiguration(reportName);
+                    transactional.deleteReportWatermarks(reportName);
+                    transactional.deleteReportSignature(reportName);
                     scheduler.unSchedule(reportsConfigurationModelDao, connection);
                 }
 
@@ -21,16 +21,17 @@ package org.killbill.billing.plugin.analytics.reports;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
 
@@ -48,12 +49,15 @@ import org.killbill.billing.plugin.analytics.json.Chart;
 import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeries;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+import org.killbill.billing.plugin.analytics.reports.databases.ExternalDatabases;
 import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
+import org.killbill.billing.plugin.analytics.reports.scheduler.ReportDependencies;
 import org.killbill.billing.plugin.analytics.reports.sql.Metadata;
 import org.killbill.billing.plugin.dao.PluginDao.DBEngine;
 import org.killbill.billing.util.api.RecordIdApi;
@@ -63,8 +67,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
@@ -75,6 +80,9 @@ public class ReportsUserApi {
     private static final Logger logger = LoggerFactory.getLogger(ReportsUserApi.class);
 
     private static final String ANALYTICS_REPORTS_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.nbThreads";
+    private static final String ANALYTICS_REPORTS_CACHE_TTL_SECONDS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.cacheTtlSeconds";
+    private static final String ANALYTICS_REPORTS_CACHE_MAX_DATA_POINTS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.cacheMaxDataPoints";
+    private static final String ANALYTICS_REPORTS_MAX_CONCURRENT_QUERIES_PER_TENANT_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.maxConcurrentQueriesPerTenant";
 
     // Part of the public API
     public static final String DAY_COLUMN_NAME = "day";
@@ -84,12 +92,16 @@ public class ReportsUserApi {
 
     private final OSGIKillbillAPI killbillAPI;
     private final QueryEngine queryEngine;
+    private final ReportQueryCache reportQueryCache;
     private final DBEngine dbEngine;
     private final ExecutorService dbiThreadsExecutor;
+    private final TenantQueryPermits tenantQueryPermits;
     private final ReportsConfiguration reportsConfiguration;
     private final JobsScheduler jobsScheduler;
     private final Metadata sqlMetadata;
     private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+    // Null if disabled
+    private final ReportResultsCache resultsCache;
 
     public ReportsUserApi(final OSGIKillbillAPI killbillAPI,
                           final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -104,10 +116,31 @@ public class ReportsUserApi {
         this.reportsConfiguration = reportsConfiguration;
         this.jobsScheduler = jobsScheduler;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
-        queryEngine = new QueryEngine(BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), metricRegistry.getMetricRegistry()));
+        this.reportQueryCache = new ReportQueryCache(metricRegistry.getMetricRegistry());
+        queryEngine = new QueryEngine(BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), metricRegistry.getMetricRegistry()),
+                                      new ExternalDatabases(metricRegistry.getMetricRegistry()),
+                                      reportQueryCache,
+                                      new SingleFlightQueries(metricRegistry.getMetricRegistry()));
 
         final String nbThreadsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_NB_THREADS_PROPERTY));
-        this.dbiThreadsExecutor = BusinessExecutor.newCachedThreadPool(nbThreadsMaybeNull == null ? Integer.valueOf(10) : Integer.valueOf(nbThreadsMaybeNull), "osgi-analytics-dashboard");
+        final int nbThreads = nbThreadsMaybeNull == null ? 10 : Integer.valueOf(nbThreadsMaybeNull);
+        this.dbiThreadsExecutor = BusinessExecutor.newCachedThreadPool(nbThreads, "osgi-analytics-dashboard");
+
+        // By default, a tenant can use up to half of the threads
+        final String maxConcurrentQueriesPerTenantMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_MAX_CONCURRENT_QUERIES_PER_TENANT_PROPERTY));
+        final int maxConcurrentQueriesPerTenant = maxConcurrentQueriesPerTenantMaybeNull == null ? Math.max(1, nbThreads / 2) : Integer.valueOf(maxConcurrentQueriesPerTenantMaybeNull);
+        this.tenantQueryPermits = new TenantQueryPermits(maxConcurrentQueriesPerTenant);
+
+        final String cacheTtlSecondsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_CACHE_TTL_SECONDS_PROPERTY));
+        final long cacheTtlSeconds = cacheTtlSecondsMaybeNull == null ? 300L : Long.valueOf(cacheTtlSecondsMaybeNull);
+        final String cacheMaxDataPointsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_CACHE_MAX_DATA_POINTS_PROPERTY));
+        final long cacheMaxDataPoints = cacheMaxDataPointsMaybeNull == null ? 500000L : Long.valueOf(cacheMaxDataPointsMaybeNull);
+        if (cacheTtlSeconds > 0 && cacheMaxDataPoints > 0) {
+            this.resultsCache = new ReportResultsCache(cacheTtlSeconds, cacheMaxDataPoints, metricRegistry.getMetricRegistry());
+            jobsScheduler.addRefreshListener(resultsCache);
+        } else {
+            this.resultsCache = null;
+        }
 
         this.sqlMetadata = new Metadata(Sets.<String>newHashSet(Iterables.transform(reportsConfiguration.getAllReportConfigurations(null).values(),
                                                                                     new Function<ReportsConfigurationModelDao, String>() {
@@ -122,11 +155,16 @@ public class ReportsUserApi {
 
     public void shutdownNow() {
         dbiThreadsExecutor.shutdownNow();
+        queryEngine.close();
     }
 
     // TODO Cache per tenant
     public void clearCaches(final CallContext context) {
         sqlMetadata.clearCaches();
+        reportQueryCache.invalidateAll();
+        if (resultsCache != null) {
+            resultsCache.invalidateAll();
+        }
     }
 
     public ReportConfigurationJson getReportConfiguration(final String reportName, final TenantContext context) throws SQLException {
@@ -144,19 +182,24 @@ public class ReportsUserApi {
     public void createReport(final ReportConfigurationJson reportConfigurationJson, final CallContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
         final ReportsConfigurationModelDao reportsConfigurationModelDao = new ReportsConfigurationModelDao(reportConfigurationJson);
+        checkDependencies(reportsConfigurationModelDao, tenantRecordId);
         reportsConfiguration.createReportConfiguration(reportsConfigurationModelDao, tenantRecordId);
+        invalidateCache(reportsConfigurationModelDao.getReportName());
     }
 
     public void updateReport(final String reportName, final ReportConfigurationJson reportConfigurationJson, final CallContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
         final ReportsConfigurationModelDao currentReportsConfigurationModelDao = reportsConfiguration.getReportConfigurationForReport(reportName, tenantRecordId);
         final ReportsConfigurationModelDao reportsConfigurationModelDao = new ReportsConfigurationModelDao(reportConfigurationJson, currentReportsConfigurationModelDao);
+        checkDependencies(reportsConfigurationModelDao, tenantRecordId);
         reportsConfiguration.updateReportConfiguration(reportsConfigurationModelDao, tenantRecordId);
+        invalidateCache(reportName);
     }
 
     public void deleteReport(final String reportName, final CallContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
         reportsConfiguration.deleteReportConfiguration(reportName, tenantRecordId);
+        invalidateCache(reportName);
     }
 
     public void refreshReport(final String reportName, final CallContext context) {
@@ -236,10 +279,161 @@ public class ReportsUserApi {
                                         @Nullable final DateTime endDate,
                                         @Nullable final SmootherType smootherType,
                                         final TenantContext context) {
+        return getDataForReport(rawReportNames, startDate, endDate, smootherType, null, context);
+    }
+
+    /**
+     * @param timeoutSeconds optional deadline of the request. Reports which could not be computed in time (see also the timeoutSeconds
+     *                       report configuration) are returned empty, with a TIMED_OUT status
+     */
+    public List<Chart> getDataForReport(final Iterable<String> rawReportNames,
+                                        @Nullable final DateTime startDate,
+                                        @Nullable final DateTime endDate,
+                                        @Nullable final SmootherType smootherType,
+                                        @Nullable final Integer timeoutSeconds,
+                                        final TenantContext context) {
+        return getDataForReport(rawReportNames, startDate, endDate, smootherType, timeoutSeconds, null, context);
+    }
+
+    /**
+     * @param timeoutSeconds see above
+     * @param maxPoints      optional maximum number of points of the time series: larger series are downsampled (see TimeSeries#downsample)
+     */
+    public List<Chart> getDataForReport(final Iterable<String> rawReportNames,
+                                        @Nullable final DateTime startDate,
+                                        @Nullable final DateTime endDate,
+                                        @Nullable final SmootherType smootherType,
+                                        @Nullable final Integer timeoutSeconds,
+                                        @Nullable final Integer maxPoints,
+                                        final TenantContext context) {
+        return getDataForReport(rawReportNames, startDate, endDate, smootherType, timeoutSeconds, maxPoints, null, context);
+    }
+
+    /**
+     * @param timeoutSeconds see above
+     * @param maxPoints      see above
+     * @param page           optional page of the TABLE report, which needs a sortKey (see TablePage). All rows are returned otherwise
+     * @throws IllegalArgumentException if a page is requested for several TABLE reports, as each has its own cursor
+     */
+    public List<Chart> getDataForReport(final Iterable<String> rawReportNames,
+                                        @Nullable final DateTime startDate,
+                                        @Nullable final DateTime endDate,
+                                        @Nullable final SmootherType smootherType,
+                                        @Nullable final Integer timeoutSeconds,
+                                        @Nullable final Integer maxPoints,
+                                        @Nullable final TablePage page,
+                                        final TenantContext context) {
+        return getDataForReport(rawReportNames, startDate, endDate, smootherType, System.currentTimeMillis(), timeoutSeconds, maxPoints, page, context);
+    }
+
+    /**
+     * Same as getDataForReport, except that the rows of the TABLE reports are read lazily from the database.
+     * <p>
+     * Streamed rows bypass the results cache and the single-flight queries: TABLE reports which can be cached
+     * (see ReportResultsCache#isCacheable) are still loaded in memory when not paginated, to be shared across requests.
+     *
+     * @return the reports data, which the caller must close
+     */
+    public ReportDataStream getDataStreamForReport(final Iterable<String> rawReportNames,
+                                                   @Nullable final DateTime startDate,
+                                                   @Nullable final DateTime endDate,
+                                                   @Nullable final SmootherType smootherType,
+                                                   @Nullable final Integer timeoutSeconds,
+                                                   @Nullable final Integer maxPoints,
+                                                   @Nullable final TablePage page,
+                                                   final TenantContext context) {
+        final long startMillis = System.currentTimeMillis();
+        final Long tenantRecordId = getTenantRecordId(context);
+        final Map<String, ReportsConfigurationModelDao> reportsConfigurations = reportsConfiguration.getAllReportConfigurations(tenantRecordId);
+        final AnalyticsConfiguration analyticsConfiguration = analyticsConfigurationHandler.getConfigurable(context.getTenantId());
+
+        final List<ReportSpecification> tableReportSpecifications = new ArrayList<ReportSpecification>();
+        final List<String> otherRawReportNames = new ArrayList<String>();
+        for (final String rawReportName : rawReportNames) {
+            final ReportSpecification reportSpecification = new ReportSpecification(rawReportName);
+            // Validate all reports upfront, as errors can't be reported once the response has started
+            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations);
+            if (reportConfiguration.getReportType() == ReportType.TABLE && page == null && resultsCache != null && ReportResultsCache.isCacheable(reportConfiguration)) {
+                // Served from the results cache (and loaded at most once at a time), like in getDataForReport
+                otherRawReportNames.add(rawReportName);
+            } else if (reportConfiguration.getReportType() == ReportType.TABLE) {
+                if (page != null) {
+                    // Throws if the report can't be paginated
+                    TablePage.getSortKey(reportConfiguration);
+                }
+                tableReportSpecifications.add(reportSpecification);
+            } else {
+                otherRawReportNames.add(rawReportName);
+            }
+        }
+        Preconditions.checkArgument(page == null || tableReportSpecifications.size() <= 1, "Only one TABLE report can be paginated at a time");
+
+        return new ReportDataStream(tableReportSpecifications) {
+            @Override
+            public List<Chart> getOtherCharts() {
+                if (otherRawReportNames.isEmpty()) {
+                    return ImmutableList.<Chart>of();
+                }
+                return getDataForReport(otherRawReportNames, startDate, endDate, smootherType, startMillis, timeoutSeconds, maxPoints, null, context);
+            }
+
+            @Override
+            protected TableDataStream openTable(final ReportSpecification reportSpecification) {
+                final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations);
+                final QueryDeadline deadline = QueryDeadline.of(startMillis, timeoutSeconds, reportConfiguration.getTimeoutSeconds());
+
+                // The cursor counts against the tenant limits until the stream is closed
+                try {
+                    if (!tenantQueryPermits.acquire(tenantRecordId, deadline)) {
+                        logger.info("Report {} timed out waiting for its turn", reportConfiguration.getReportName());
+                        return TableDataStream.timedOut(reportConfiguration.getReportPrettyName(), QueryEngine.getTablesSeriesName(reportConfiguration));
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+
+                final TableDataStream tableDataStream;
+                try {
+                    tableDataStream = queryEngine.getTablesDataStream(reportConfiguration,
+                                                                      reportSpecification,
+                                                                      dbEngine,
+                                                                      startDate,
+                                                                      endDate,
+                                                                      page,
+                                                                      analyticsConfiguration,
+                                                                      tenantRecordId,
+                                                                      deadline);
+                } catch (final RuntimeException e) {
+                    tenantQueryPermits.release(tenantRecordId);
+                    throw e;
+                }
+                tableDataStream.setCloseListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        tenantQueryPermits.release(tenantRecordId);
+                    }
+                });
+                return tableDataStream;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Chart> getDataForReport(final Iterable<String> rawReportNames,
+                                         @Nullable final DateTime startDate,
+                                         @Nullable final DateTime endDate,
+                                         @Nullable final SmootherType smootherType,
+                                         final long startMillis,
+                                         @Nullable final Integer timeoutSeconds,
+                                         @Nullable final Integer maxPoints,
+                                         @Nullable final TablePage page,
+                                         final TenantContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
 
         final List<Chart> result = new LinkedList<Chart>();
-        final Map<String, Map<String, List<XY>>> timeSeriesData = new ConcurrentHashMap<String, Map<String, List<XY>>>();
+        final Map<String, Map<String, TimeSeries>> timeSeriesData = new LinkedHashMap<String, Map<String, TimeSeries>>();
+        final List<Chart> timedOutTimeSeries = new LinkedList<Chart>();
 
         // Parse the reports
         final List<ReportSpecification> reportSpecifications = new ArrayList<ReportSpecification>();
@@ -252,50 +446,80 @@ public class ReportsUserApi {
 
         final AnalyticsConfiguration analyticsConfiguration = analyticsConfigurationHandler.getConfigurable(context.getTenantId());
 
-        final List<Future> jobs = new LinkedList<Future>();
+        if (page != null) {
+            int nbTableReports = 0;
+            for (final ReportSpecification reportSpecification : reportSpecifications) {
+                if (getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations).getReportType() == ReportType.TABLE) {
+                    nbTableReports++;
+                }
+            }
+            // Each TABLE report has its own cursor
+            Preconditions.checkArgument(nbTableReports <= 1, "Only one TABLE report can be paginated at a time");
+        }
+
+        final List<ReportJob> jobs = new LinkedList<ReportJob>();
         for (final ReportSpecification reportSpecification : reportSpecifications) {
-            final String reportName = reportSpecification.getReportName();
-            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportName, reportsConfigurations);
-            final String tableName = reportConfiguration.getSourceTableName();
-            final String prettyName = reportConfiguration.getReportPrettyName();
+            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations);
             final ReportType reportType = reportConfiguration.getReportType();
+            final QueryDeadline deadline = QueryDeadline.of(startMillis, timeoutSeconds, reportConfiguration.getTimeoutSeconds());
+            // Time series to be smoothed are summed up per period by the database, if possible
+            final DateGranularity bucketGranularity = reportType == ReportType.TIMELINE && smootherType != null ? smootherType.getDateGranularity() : null;
+
+            // Pages aren't cached
+            final ReportResultsCache.Key cacheKey = resultsCache != null && ReportResultsCache.isCacheable(reportConfiguration) && (reportType != ReportType.TABLE || page == null) ?
+                                                    new ReportResultsCache.Key(tenantRecordId, reportConfiguration, reportSpecification, startDate, endDate, bucketGranularity) :
+                                                    null;
 
-            jobs.add(dbiThreadsExecutor.submit(new Runnable() {
+            jobs.add(new ReportJob(reportConfiguration, tenantRecordId, deadline, new Callable<Object>() {
                 @Override
-                public void run() {
+                public Object call() {
                     switch (reportType) {
                         case COUNTERS:
-                            final List<DataMarker> counters = queryEngine.getCountersData(reportConfiguration,
-                                                                                          reportSpecification,
-                                                                                          dbEngine,
-                                                                                          startDate,
-                                                                                          endDate,
-                                                                                          analyticsConfiguration,
-                                                                                          tenantRecordId);
-                            result.add(new Chart(ReportType.COUNTERS, prettyName, counters));
-                            break;
+                            return getData(cacheKey, new Callable<List<DataMarker>>() {
+                                @Override
+                                public List<DataMarker> call() {
+                                    return queryEngine.getCountersData(reportConfiguration,
+                                                                       reportSpecification,
+                                                                       dbEngine,
+                                                                       startDate,
+                                                                       endDate,
+                                                                       analyticsConfiguration,
+                                                                       tenantRecordId,
+                                                                       deadline);
+                                }
+                            });
 
                         case TIMELINE:
-                            final Map<String, List<XY>> data = queryEngine.getTimeSeriesData(reportConfiguration,
-                                                                                             reportSpecification,
-                                                                                             dbEngine,
-                                                                                             startDate,
-                                                                                             endDate,
-                                                                                             tenantRecordId,
-                                                                                             analyticsConfiguration);
-                            timeSeriesData.put(reportName, data);
-                            break;
+                            return getData(cacheKey, new Callable<Map<String, TimeSeries>>() {
+                                @Override
+                                public Map<String, TimeSeries> call() {
+                                    return queryEngine.getTimeSeriesData(reportConfiguration,
+                                                                         reportSpecification,
+                                                                         dbEngine,
+                                                                         startDate,
+                                                                         endDate,
+                                                                         bucketGranularity,
+                                                                         tenantRecordId,
+                                                                         analyticsConfiguration,
+                                                                         deadline);
+                                }
+                            });
 
                         case TABLE:
-                            final List<DataMarker> tables = queryEngine.getTablesData(reportConfiguration,
-                                                                                      reportSpecification,
-                                                                                      dbEngine,
-                                                                                      startDate,
-                                                                                      endDate,
-                                                                                      analyticsConfiguration,
-                                                                                      tenantRecordId);
-                            result.add(new Chart(ReportType.TABLE, prettyName, tables));
-                            break;
+                            return getData(cacheKey, new Callable<List<DataMarker>>() {
+                                @Override
+                                public List<DataMarker> call() {
+                                    return queryEngine.getTablesData(reportConfiguration,
+                                                                     reportSpecification,
+                                                                     dbEngine,
+                                                                     startDate,
+                                                                     endDate,
+                                                                     page,
+                                                                     analyticsConfiguration,
+                                                                     tenantRecordId,
+                                                                     deadline);
+                                }
+                            });
 
                         default:
                             throw new RuntimeException("Unknown reportType " + reportType);
@@ -303,110 +527,129 @@ public class ReportsUserApi {
                 }
             }));
         }
-        waitForJobCompletion(jobs);
+
+        // Charts are returned in the requested order, time series last
+        for (final ReportJob job : jobs) {
+            final ReportsConfigurationModelDao reportConfiguration = job.reportConfiguration;
+            final ReportType reportType = reportConfiguration.getReportType();
+            final Object data = job.waitForCompletion();
+            if (data == null) {
+                final Chart timedOutChart = new Chart(reportType, reportConfiguration.getReportPrettyName(), ImmutableList.<DataMarker>of(), Chart.Status.TIMED_OUT);
+                if (reportType == ReportType.TIMELINE) {
+                    timedOutTimeSeries.add(timedOutChart);
+                } else {
+                    result.add(timedOutChart);
+                }
+            } else if (reportType == ReportType.TIMELINE) {
+                timeSeriesData.put(reportConfiguration.getReportName(), (Map<String, TimeSeries>) data);
+            } else {
+                result.add(new Chart(reportType, reportConfiguration.getReportPrettyName(), (List<DataMarker>) data));
+            }
+        }
 
         //
         // Normalization and smoothing of time series if needed
         //
         if (!timeSeriesData.isEmpty()) {
-            normalizeAndSortXValues(timeSeriesData, startDate, endDate);
+            normalizeXValues(timeSeriesData, startDate, endDate);
             if (smootherType != null) {
                 final Smoother smoother = smootherType.createSmoother(timeSeriesData);
                 smoother.smooth();
-                result.addAll(buildNamedXYTimeSeries(smoother.getDataForReports(), reportsConfigurations));
+                result.addAll(buildNamedXYTimeSeries(smoother.getDataForReports(), maxPoints, reportsConfigurations));
             } else {
-                result.addAll(buildNamedXYTimeSeries(timeSeriesData, reportsConfigurations));
+                result.addAll(buildNamedXYTimeSeries(timeSeriesData, maxPoints, reportsConfigurations));
             }
         }
+        result.addAll(timedOutTimeSeries);
 
         return result;
     }
 
-    private List<Chart> buildNamedXYTimeSeries(final Map<String, Map<String, List<XY>>> dataForReports, final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
+    private <T> T getData(@Nullable final ReportResultsCache.Key cacheKey, final Callable<T> loader) {
+        if (cacheKey != null) {
+            return resultsCache.get(cacheKey, loader);
+        }
+
+        try {
+            return loader.call();
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void invalidateCache(final String reportName) {
+        if (resultsCache != null) {
+            resultsCache.invalidate(reportName);
+        }
+    }
+
+    private List<Chart> buildNamedXYTimeSeries(final Map<String, Map<String, TimeSeries>> dataForReports,
+                                               @Nullable final Integer maxPoints,
+                                               final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
         final List<Chart> results = new LinkedList<Chart>();
         final List<DataMarker> timeSeries = new LinkedList<DataMarker>();
-        for (final Entry<String, Map<String, List<XY>>> entry : dataForReports.entrySet()) {
+        for (final Entry<String, Map<String, TimeSeries>> entry : dataForReports.entrySet()) {
             final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(entry.getKey(), reportsConfigurations);
 
             // Sort the pivots by name for a consistent display in the dashboard
             for (final String timeSeriesName : Ordering.natural().sortedCopy(entry.getValue().keySet())) {
-                final List<XY> dataForReport = entry.getValue().get(timeSeriesName);
-                timeSeries.add(new NamedXYTimeSeries(timeSeriesName, dataForReport));
+                final TimeSeries dataForReport = entry.getValue().get(timeSeriesName);
+                final TimeSeries downsampledDataForReport = maxPoints == null ? dataForReport : dataForReport.downsample(maxPoints);
+                timeSeries.add(new NamedXYTimeSeries(timeSeriesName, downsampledDataForReport.toXY(), downsampledDataForReport != dataForReport));
             }
             results.add(new Chart(ReportType.TIMELINE, reportConfiguration.getReportPrettyName(), timeSeries));
         }
         return results;
     }
 
-    // TODO PIERRE Naive implementation
-    private void normalizeAndSortXValues(final Map<String, Map<String, List<XY>>> dataForReports, @Nullable final DateTime startDate, @Nullable final DateTime endDate) {
-        DateTime minDate = null;
+    // Add 0 for missing days. The series are replaced, as they may be shared with the cache.
+    private void normalizeXValues(final Map<String, Map<String, TimeSeries>> dataForReports, @Nullable final DateTime startDate, @Nullable final DateTime endDate) {
+        Integer minDay = null;
         if (startDate != null) {
-            minDate = startDate;
+            minDay = TimeSeries.toEpochDay(startDate);
         }
 
-        DateTime maxDate = null;
+        Integer maxDay = null;
         if (endDate != null) {
-            maxDate = endDate;
+            maxDay = TimeSeries.toEpochDay(endDate);
         }
 
         // If no min and/or max was specified, infer them from the data
-        if (minDate == null || maxDate == null) {
-            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-                for (final List<XY> dataForPivot : dataForReport.values()) {
-                    for (final XY xy : dataForPivot) {
-                        if (minDate == null || xy.getxDate().isBefore(minDate)) {
-                            minDate = xy.getxDate();
-                        }
-                        if (maxDate == null || xy.getxDate().isAfter(maxDate)) {
-                            maxDate = xy.getxDate();
-                        }
+        if (minDay == null || maxDay == null) {
+            final boolean inferMinDay = minDay == null;
+            final boolean inferMaxDay = maxDay == null;
+            for (final Map<String, TimeSeries> dataForReport : dataForReports.values()) {
+                for (final TimeSeries dataForPivot : dataForReport.values()) {
+                    if (inferMinDay && (minDay == null || dataForPivot.getFirstDay() < minDay)) {
+                        minDay = dataForPivot.getFirstDay();
+                    }
+                    if (inferMaxDay && (maxDay == null || dataForPivot.getLastDay() > maxDay)) {
+                        maxDay = dataForPivot.getLastDay();
                     }
                 }
             }
         }
 
-        if (minDate == null || maxDate == null) {
-            throw new IllegalStateException(String.format("minDate and maxDate shouldn't be null! minDate=%s, maxDate=%s, dataForReports=%s", minDate, maxDate, dataForReports));
-        }
-
-        // Add 0 for missing days
-        DateTime curDate = minDate;
-        while (!curDate.isAfter(maxDate)) {
-            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-                for (final List<XY> dataForPivot : dataForReport.values()) {
-                    addMissingValueForDateIfNeeded(curDate, dataForPivot);
-                }
-            }
-            curDate = curDate.plusDays(1);
+        if (minDay == null || maxDay == null) {
+            throw new IllegalStateException(String.format("minDay and maxDay shouldn't be null! minDay=%s, maxDay=%s, dataForReports=%s", minDay, maxDay, dataForReports));
         }
 
-        // Sort the data for the dashboard
-        for (final Entry<String, Map<String, List<XY>>> entry : dataForReports.entrySet()) {
-            for (final Entry<String, List<XY>> subEntry : entry.getValue().entrySet()) {
-                Collections.sort(subEntry.getValue(),
-                                 new Comparator<XY>() {
-                                     @Override
-                                     public int compare(final XY o1, final XY o2) {
-                                         return o1.getxDate().compareTo(o2.getxDate());
-                                     }
-                                 }
-                                );
+        for (final String reportName : dataForReports.keySet()) {
+            final Map<String, TimeSeries> normalizedDataForReport = new LinkedHashMap<String, TimeSeries>();
+            for (final Entry<String, TimeSeries> entry : dataForReports.get(reportName).entrySet()) {
+                normalizedDataForReport.put(entry.getKey(), entry.getValue().fill(minDay, maxDay));
             }
+            dataForReports.put(reportName, normalizedDataForReport);
         }
     }
 
-    private void addMissingValueForDateIfNeeded(final DateTime curDate, final List<XY> dataForPivot) {
-        final XY valueForCurrentDate = Iterables.tryFind(dataForPivot, new Predicate<XY>() {
-            @Override
-            public boolean apply(final XY xy) {
-                return xy != null && xy.getxDate().compareTo(curDate) == 0;
-            }
-        }).orNull();
-
-        if (valueForCurrentDate == null) {
-            dataForPivot.add(new XY(curDate, (float) 0));
-        }
+    // Throws IllegalArgumentException in case of a dependency cycle, or of too deep dependencies (see ReportDependencies)
+    private void checkDependencies(final ReportsConfigurationModelDao report, final Long tenantRecordId) {
+        final Map<String, List<String>> allDependsOn = ReportDependencies.getAllDependsOn(reportsConfiguration.getAllReportConfigurations(tenantRecordId).values());
+        allDependsOn.put(report.getReportName(), ReportDependencies.getDependsOn(report.getDependsOn()));
+        ReportDependencies.computeDepths(allDependsOn);
     }
 
     private ReportsConfigurationModelDao getReportConfiguration(final String reportName, final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
@@ -417,18 +660,6 @@ public class ReportsUserApi {
         return reportConfiguration;
     }
 
-    private void waitForJobCompletion(final List<Future> jobs) {
-        for (final Future job : jobs) {
-            try {
-                job.get();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
-            }
-        }
-    }
-
     private Long getTenantRecordId(final TenantContext context) {
         // See convention in InternalCallContextFactory
         if (context.getTenantId() == null) {
@@ -438,4 +669,75 @@ public class ReportsUserApi {
             return recordIdApi.getRecordId(context.getTenantId(), ObjectType.TENANT, context);
         }
     }
+
+    // Queries of a report, run in the background within the tenant limits
+    private final class ReportJob {
+
+        private final ReportsConfigurationModelDao reportConfiguration;
+        private final QueryDeadline deadline;
+        // Null if no permit could be acquired before the deadline
+        private final Future<Object> future;
+
+        private ReportJob(final ReportsConfigurationModelDao reportConfiguration,
+                          final Long tenantRecordId,
+                          final QueryDeadline deadline,
+                          final Callable<Object> loader) {
+            this.reportConfiguration = reportConfiguration;
+            this.deadline = deadline;
+
+            try {
+                if (!tenantQueryPermits.acquire(tenantRecordId, deadline)) {
+                    this.future = null;
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            try {
+                this.future = dbiThreadsExecutor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        try {
+                            return loader.call();
+                        } finally {
+                            tenantQueryPermits.release(tenantRecordId);
+                        }
+                    }
+                });
+            } catch (final RuntimeException e) {
+                tenantQueryPermits.release(tenantRecordId);
+                throw e;
+            }
+        }
+
+        // Null if the report couldn't be computed before its deadline
+        private Object waitForCompletion() {
+            if (future == null) {
+                logger.info("Report {} timed out waiting for its turn", reportConfiguration.getReportName());
+                return null;
+            }
+
+            try {
+                return deadline.hasDeadline() ? future.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS) : future.get();
+            } catch (final TimeoutException e) {
+                logger.info("Report {} timed out, cancelling its queries", reportConfiguration.getReportName());
+                deadline.cancel();
+                // Don't interrupt the thread, as this could leave the connection in an undefined state
+                future.cancel(false);
+                return null;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                // The driver may have enforced the deadline first
+                if (deadline.isExpired()) {
+                    logger.info("Report {} timed out", reportConfiguration.getReportName());
+                    return null;
+                }
+                throw new RuntimeException(e);
+            }
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.killbill.commons.metrics.api.MetricRegistry;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Coalescing of identical concurrent queries (e.g. a dashboard opened by several users at once): while a query is running,
+ * the same query is not executed again, the result of the running one is shared instead.
+ * <p>
+ * Results are only shared with the requests waiting for them, see ReportResultsCache for a longer-lived cache. They must
+ * not be modified.
+ */
+public class SingleFlightQueries {
+
+    private static final String DEDUPLICATED_METRIC_NAME = "killbill-analytics.reports.queries.deduplicated";
+
+    private final ConcurrentMap<Key, Execution> executions = new ConcurrentHashMap<Key, Execution>();
+    private final MetricRegistry metricRegistry;
+
+    public SingleFlightQueries(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Execute a query, or wait for the identical one already running
+     *
+     * @param key      identity of the query
+     * @param deadline deadline of the caller
+     * @param query    query to execute
+     * @param <T>      type of the result
+     * @return the result
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(final Key key, final QueryDeadline deadline, final Callable<T> query) {
+        while (true) {
+            final Execution execution = new Execution(deadline);
+            final Execution runningExecution = executions.putIfAbsent(key, execution);
+            if (runningExecution == null) {
+                try {
+                    return (T) execution.run(query);
+                } finally {
+                    executions.remove(key, execution);
+                }
+            }
+
+            metricRegistry.counter(DEDUPLICATED_METRIC_NAME).inc(1);
+            try {
+                return (T) runningExecution.waitForResult(deadline);
+            } catch (final ExecutionException e) {
+                // The query was cancelled because of the deadline of the caller which started it: try again with ours
+                if (runningExecution.deadline.isExpired() && !deadline.isExpired()) {
+                    executions.remove(key, runningExecution);
+                    continue;
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    public int getNbRunning() {
+        return executions.size();
+    }
+
+    private static final class Execution {
+
+        private final QueryDeadline deadline;
+        private final SettableFuture<Object> result = SettableFuture.<Object>create();
+
+        private Execution(final QueryDeadline deadline) {
+            this.deadline = deadline;
+        }
+
+        private Object run(final Callable<?> query) {
+            try {
+                final Object value = query.call();
+                result.set(value);
+                return value;
+            } catch (final RuntimeException e) {
+                result.setException(e);
+                throw e;
+            } catch (final Exception e) {
+                result.setException(e);
+                throw new RuntimeException(e);
+            } catch (final Error e) {
+                result.setException(e);
+                throw e;
+            }
+        }
+
+        private Object waitForResult(final QueryDeadline callerDeadline) throws ExecutionException {
+            try {
+                return callerDeadline.hasDeadline() ? result.get(callerDeadline.getRemainingMillis(), TimeUnit.MILLISECONDS) : result.get();
+            } catch (final TimeoutException e) {
+                // The caller is about to give up (see ReportsUserApi)
+                throw new RuntimeException(e);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Identity of a query: the database it runs against, its SQL and the values of its parameters. The context
+     * should include anything else the result depends on (e.g. how rows are mapped).
+     */
+    public static final class Key {
+
+        private final Object database;
+        private final String sql;
+        private final Map<String, Object> parameters;
+        private final String context;
+
+        public Key(final Object database, final String sql, final Map<String, Object> parameters, final String context) {
+            this.database = database;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return database == key.database &&
+                   Objects.equals(sql, key.sql) &&
+                   Objects.equals(parameters, key.parameters) &&
+                   Objects.equals(context, key.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(database), sql, parameters, context);
+        }
+    }
+}
@@ -21,21 +21,28 @@ package org.killbill.billing.plugin.analytics.reports;
 
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
 import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.Field;
 import org.jooq.Query;
 import org.jooq.Record;
+import org.jooq.SQLDialect;
+import org.jooq.Select;
 import org.jooq.SelectConditionStep;
 import org.jooq.SelectSelectStep;
+import org.jooq.Table;
 import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfiguration;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
 import org.killbill.billing.plugin.analytics.reports.sql.Cases;
+import org.killbill.billing.plugin.analytics.reports.sql.DateBuckets;
 import org.killbill.billing.plugin.analytics.reports.sql.Filters;
 import org.killbill.billing.plugin.analytics.reports.sql.JooqSettings;
 import org.killbill.billing.plugin.analytics.reports.sql.MetricExpressionParser;
@@ -44,6 +51,7 @@ import org.killbill.billing.plugin.dao.PluginDao.DBEngine;
 import com.bpodgursky.jbool_expressions.And;
 import com.bpodgursky.jbool_expressions.Expression;
 import com.bpodgursky.jbool_expressions.Variable;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 
 import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.DAY_COLUMN_NAME;
@@ -51,6 +59,13 @@ import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.TS_CO
 
 public class SqlReportDataExtractor {
 
+    private static final String TENANT_RECORD_ID_PLACEHOLDER = "TENANT_RECORD_ID";
+    private static final String START_DATE_PLACEHOLDER = "START_DATE";
+    private static final String END_DATE_PLACEHOLDER = "END_DATE";
+    private static final String DEFAULT_START_DATE = "2000-01-01T00:00:00.000Z";
+    private static final String DEFAULT_END_DATE = "2030-01-01T00:00:00.000Z";
+    private static final Pattern TYPED_LITERAL_PATTERN = Pattern.compile("(?i)\\b(date|time|timestamp|interval)\\s*$");
+
     private final String tableName;
     private final String sourceQuery;
     private final ReportSpecification reportSpecification;
@@ -58,6 +73,12 @@ public class SqlReportDataExtractor {
     private final DateTime endDate;
     private final DSLContext context;
     private final Long tenantRecordId;
+    // If true, the tenant record id and the dates are rendered as bind parameters (see compile)
+    private final boolean parameterized;
+    // Raw query template (parameterized only)
+    private final Query parsedQuery;
+    // If set, metrics are summed up per period in the database (see Smoother)
+    private final DateGranularity bucketGranularity;
 
     private Collection<Field<Object>> dimensions = ImmutableList.<Field<Object>>of();
     private Collection<Field<Object>> metrics = ImmutableList.<Field<Object>>of();
@@ -71,18 +92,44 @@ public class SqlReportDataExtractor {
                                   @Nullable final DateTime endDate,
                                   final DBEngine dbEngine,
                                   final Long tenantRecordId) {
+        this(tableName, reportSpecification, startDate, endDate, null, JooqSettings.buildDslContext(dbEngine), tenantRecordId, false);
+    }
+
+    private SqlReportDataExtractor(final String tableName,
+                                   final ReportSpecification reportSpecification,
+                                   @Nullable final DateTime startDate,
+                                   @Nullable final DateTime endDate,
+                                   @Nullable final DateGranularity bucketGranularity,
+                                   final DSLContext context,
+                                   @Nullable final Long tenantRecordId,
+                                   final boolean parameterized) {
         this.tableName = tableName;
         this.reportSpecification = reportSpecification;
         this.startDate = startDate;
         this.endDate = endDate;
+        this.bucketGranularity = bucketGranularity;
         this.tenantRecordId = tenantRecordId;
         this.sourceQuery = null;
-
-        this.context = JooqSettings.buildDslContext(dbEngine);
+        this.context = context;
+        this.parameterized = parameterized;
+        this.parsedQuery = null;
 
         setup();
     }
 
+    private SqlReportDataExtractor(final String sourceQuery, final DSLContext context) {
+        this.tableName = null;
+        this.reportSpecification = null;
+        this.startDate = null;
+        this.endDate = null;
+        this.tenantRecordId = null;
+        this.sourceQuery = null;
+        this.context = context;
+        this.parameterized = true;
+        this.parsedQuery = context.parser().parseQuery(parameterize(sourceQuery));
+        this.bucketGranularity = null;
+    }
+
     public SqlReportDataExtractor(final String sourceQuery,
                                   final ReportSpecification reportSpecification,
                                   @Nullable final DateTime startDate,
@@ -95,21 +142,17 @@ public class SqlReportDataExtractor {
         this.startDate = startDate;
         this.endDate = endDate;
         this.tenantRecordId = tenantRecordId;
+        this.parameterized = false;
+        this.parsedQuery = null;
+        this.bucketGranularity = null;
 
         this.context = JooqSettings.buildDslContext(dbEngine);
 
         // Default (safe) replacements
-        String query = sourceQuery.replaceAll("TENANT_RECORD_ID", String.valueOf(tenantRecordId));
-        if (startDate != null) {
-            query = query.replaceAll("START_DATE", startDate.toString());
-        } else {
-            query = query.replaceAll("START_DATE", "2000-01-01T00:00:00.000Z");
-        }
-        if (endDate != null) {
-            query = query.replaceAll("END_DATE", endDate.toString());
-        } else {
-            query = query.replaceAll("END_DATE", "2030-01-01T00:00:00.000Z");
-        }
+        final String query = replacePlaceholders(sourceQuery,
+                                                 tenantRecordId,
+                                                 startDate != null ? startDate.toString() : DEFAULT_START_DATE,
+                                                 endDate != null ? endDate.toString() : DEFAULT_END_DATE);
 
         // Custom replacements
         final Query parsedQuery = context.parser().parseQuery(query);
@@ -125,16 +168,159 @@ public class SqlReportDataExtractor {
         this.sourceQuery = parsedQuery.getSQL();
     }
 
+    /**
+     * Build the template of the query of a report backed by a table. The dates are only used to determine
+     * the columns they apply to (see CompiledReportQuery#filtersOnDay).
+     * <p>
+     * If a bucket granularity is specified, the daily values of the metrics are summed up per period by the database:
+     * the total of each period is returned on its first day with data, which the Smoother then processes like
+     * daily data. Reports which can't be rewritten that way (see isBucketable) are returned per day.
+     */
+    static SqlReportDataExtractor template(final String tableName,
+                                           final ReportSpecification reportSpecification,
+                                           @Nullable final DateTime startDate,
+                                           @Nullable final DateTime endDate,
+                                           @Nullable final DateGranularity bucketGranularity,
+                                           final DBEngine dbEngine) {
+        return new SqlReportDataExtractor(tableName,
+                                          reportSpecification,
+                                          startDate,
+                                          endDate,
+                                          isBucketable(reportSpecification) ? bucketGranularity : null,
+                                          JooqSettings.buildParameterizedDslContext(dbEngine),
+                                          null,
+                                          true);
+    }
+
+    // The metrics must be known (no "select *") and values must be per day
+    private static boolean isBucketable(final ReportSpecification reportSpecification) {
+        return !reportSpecification.getMetrics().isEmpty() && !reportSpecification.getDimensions().contains(TS_COLUMN_NAME);
+    }
+
+    /**
+     * Build the template of a raw query
+     */
+    static SqlReportDataExtractor template(final String sourceQuery, final DBEngine dbEngine) {
+        return new SqlReportDataExtractor(sourceQuery, JooqSettings.buildParameterizedDslContext(dbEngine));
+    }
+
+    /**
+     * Render a template
+     *
+     * @return the compiled query
+     */
+    CompiledReportQuery compile() {
+        Preconditions.checkState(parameterized, "Only templates can be compiled");
+        // MySQL string literals may contain backslash escapes (e.g. 'it\'s'), rendered as such by jOOQ
+        final boolean backslashEscapes = SQLDialect.MARIADB.equals(context.dialect().family()) || SQLDialect.MYSQL.equals(context.dialect().family());
+        if (parsedQuery != null) {
+            final String sql = parsedQuery.getSQL();
+            final boolean hasPlaceholders = sql.contains(TENANT_RECORD_ID_PLACEHOLDER) || sql.contains(START_DATE_PLACEHOLDER) || sql.contains(END_DATE_PLACEHOLDER);
+            return new CompiledReportQuery(sql, false, false, DEFAULT_START_DATE, DEFAULT_END_DATE, hasPlaceholders, backslashEscapes);
+        } else {
+            return new CompiledReportQuery(buildQuery().getSQL(),
+                                           startDate != null && CompiledReportQuery.filtersOnDay(reportSpecification, startDate),
+                                           endDate != null && CompiledReportQuery.filtersOnDay(reportSpecification, endDate),
+                                           null,
+                                           null,
+                                           false,
+                                           backslashEscapes);
+        }
+    }
+
+    // Default (safe) replacements of raw queries
+    static String replacePlaceholders(final String query, final Long tenantRecordId, final String startDate, final String endDate) {
+        return query.replaceAll(TENANT_RECORD_ID_PLACEHOLDER, String.valueOf(tenantRecordId))
+                    .replaceAll(START_DATE_PLACEHOLDER, startDate)
+                    .replaceAll(END_DATE_PLACEHOLDER, endDate);
+    }
+
+    // Replace the placeholders by bind parameters, when they are used as values: TENANT_RECORD_ID outside of string literals,
+    // 'START_DATE' and 'END_DATE' as string literals. Other occurrences (e.g. 'Since START_DATE') are replaced at execution time.
+    private static String parameterize(final String sourceQuery) {
+        final StringBuilder query = new StringBuilder(sourceQuery.length());
+        int i = 0;
+        while (i < sourceQuery.length()) {
+            final char c = sourceQuery.charAt(i);
+            if (c == '\'') {
+                // Find the end of the string literal ('' is an escaped quote)
+                int end = i + 1;
+                while (end < sourceQuery.length() && (sourceQuery.charAt(end) != '\'' || (end + 1 < sourceQuery.length() && sourceQuery.charAt(end + 1) == '\''))) {
+                    end += sourceQuery.charAt(end) == '\'' ? 2 : 1;
+                }
+                final String literal = sourceQuery.substring(i, Math.min(end + 1, sourceQuery.length()));
+                if (isTypedLiteral(query)) {
+                    query.append(literal);
+                } else if (literal.equals("'" + START_DATE_PLACEHOLDER + "'")) {
+                    query.append(':').append(CompiledReportQuery.START_DATE_PARAMETER);
+                } else if (literal.equals("'" + END_DATE_PLACEHOLDER + "'")) {
+                    query.append(':').append(CompiledReportQuery.END_DATE_PARAMETER);
+                } else {
+                    query.append(literal);
+                }
+                i = end + 1;
+            } else if (sourceQuery.startsWith(TENANT_RECORD_ID_PLACEHOLDER, i)) {
+                query.append(':').append(CompiledReportQuery.TENANT_RECORD_ID_PARAMETER);
+                i += TENANT_RECORD_ID_PLACEHOLDER.length();
+            } else {
+                query.append(c);
+                i++;
+            }
+        }
+        return query.toString();
+    }
+
+    // e.g. date 'START_DATE', which can't be a bind parameter
+    private static boolean isTypedLiteral(final CharSequence queryBeforeLiteral) {
+        return TYPED_LITERAL_PATTERN.matcher(queryBeforeLiteral).find();
+    }
+
     @Override
     public String toString() {
         if (this.sourceQuery != null) {
             return this.sourceQuery;
+        } else if (this.parsedQuery != null) {
+            return this.parsedQuery.getSQL();
+        }
+        return buildQuery().getSQL();
+    }
+
+    private Select<? extends Record> buildQuery() {
+        final Select<? extends Record> dailyQuery = buildDailyQuery();
+        if (bucketGranularity == null) {
+            return dailyQuery;
         }
 
+        // Sum up the daily values per period: metrics are aliased in the daily query, so they can be referenced
+        final Table<? extends Record> daily = dailyQuery.asTable("daily");
+        final Field<Object> bucket = DateBuckets.of(DSL.fieldByName(DAY_COLUMN_NAME), bucketGranularity, context.dialect());
+        final List<Field<?>> bucketedDimensions = new LinkedList<Field<?>>();
+        for (final String dimension : reportSpecification.getDimensions()) {
+            if (!DAY_COLUMN_NAME.equals(dimension)) {
+                bucketedDimensions.add(DSL.fieldByName(dimension));
+            }
+        }
+        final List<Field<?>> bucketedMetrics = new LinkedList<Field<?>>();
+        for (int i = 0; i < reportSpecification.getMetrics().size(); i++) {
+            // Keep the name of the metric, as it is used for the name of the series
+            bucketedMetrics.add(DSL.sum(DSL.fieldByName(SQLDataType.NUMERIC, metricAlias(i))).as(DSL.quotedName(reportSpecification.getMetrics().get(i))));
+        }
+
+        final List<Field<?>> groupBy = new LinkedList<Field<?>>();
+        groupBy.add(bucket);
+        groupBy.addAll(bucketedDimensions);
+        return context.select(DSL.min(DSL.fieldByName(DAY_COLUMN_NAME)).as(DAY_COLUMN_NAME))
+                      .select(bucketedDimensions)
+                      .select(bucketedMetrics)
+                      .from(daily)
+                      .groupBy(groupBy);
+    }
+
+    private Select<? extends Record> buildDailyQuery() {
         // Generate "select *" if no dimension or metric is precised
         final SelectSelectStep<? extends Record> initialSelect = dimensions.size() == 1 && metrics.isEmpty() ? context.select()
                                                                                                              : context.select(dimensions)
-                                                                                                                      .select(metrics);
+                                                                                                                      .select(bucketGranularity == null ? metrics : aliasedMetrics());
 
         SelectConditionStep<? extends Record> statement = initialSelect.from(tableName)
                                                                        .where();
@@ -146,16 +332,39 @@ public class SqlReportDataExtractor {
             statement = statement.and(condition);
         }
 
-        statement.and(DSL.fieldByName("tenant_record_id").eq(tenantRecordId));
+        if (parameterized) {
+            if (startDate != null) {
+                statement = statement.and(Filters.field(CompiledReportQuery.filtersOnDay(reportSpecification, startDate) ? DAY_COLUMN_NAME : TS_COLUMN_NAME)
+                                                 .ge(DSL.param(CompiledReportQuery.START_DATE_PARAMETER, Object.class)));
+            }
+            if (endDate != null) {
+                statement = statement.and(Filters.field(CompiledReportQuery.filtersOnDay(reportSpecification, endDate) ? DAY_COLUMN_NAME : TS_COLUMN_NAME)
+                                                 .le(DSL.param(CompiledReportQuery.END_DATE_PARAMETER, Object.class)));
+            }
+            statement = statement.and(DSL.fieldByName("tenant_record_id").eq(DSL.param(CompiledReportQuery.TENANT_RECORD_ID_PARAMETER, Object.class)));
+        } else {
+            statement.and(DSL.fieldByName("tenant_record_id").eq(tenantRecordId));
+        }
 
         if (shouldGroupBy) {
-            return statement.groupBy(dimensions)
-                            .getSQL();
+            return statement.groupBy(dimensions);
         } else {
-            return statement.getSQL();
+            return statement;
         }
     }
 
+    private List<Field<Object>> aliasedMetrics() {
+        final List<Field<Object>> aliasedMetrics = new LinkedList<Field<Object>>();
+        for (final Field<Object> metric : metrics) {
+            aliasedMetrics.add(metric.as(metricAlias(aliasedMetrics.size())));
+        }
+        return aliasedMetrics;
+    }
+
+    private static String metricAlias(final int i) {
+        return "metric_" + i;
+    }
+
     private void setup() {
         setupDimensions();
         setupMetrics();
@@ -192,11 +401,15 @@ public class SqlReportDataExtractor {
 
     private void setupFilters() {
         filters = reportSpecification.getFilterExpression();
+        if (parameterized) {
+            // Dates are bind parameters
+            return;
+        }
 
         // Deal with dates (as yet another, specific, filter)
         if (startDate != null) {
             final Variable<String> dateCheck;
-            if (!reportSpecification.getDimensions().contains(TS_COLUMN_NAME) && startDate.compareTo(startDate.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)) == 0) {
+            if (CompiledReportQuery.filtersOnDay(reportSpecification, startDate)) {
                 dateCheck = Variable.of(String.format("%s>=%s", DAY_COLUMN_NAME, startDate.toLocalDate()));
             } else {
                 dateCheck = Variable.of(String.format("%s>=%s", TS_COLUMN_NAME, startDate));
@@ -205,7 +418,7 @@ public class SqlReportDataExtractor {
         }
         if (endDate != null) {
             final Variable<String> dateCheck;
-            if (!reportSpecification.getDimensions().contains(TS_COLUMN_NAME) && endDate.compareTo(endDate.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)) == 0) {
+            if (CompiledReportQuery.filtersOnDay(reportSpecification, endDate)) {
                 dateCheck = Variable.of(String.format("%s<=%s", DAY_COLUMN_NAME, endDate.toLocalDate()));
             } else {
                 dateCheck = Variable.of(String.format("%s<=%s", TS_COLUMN_NAME, endDate));
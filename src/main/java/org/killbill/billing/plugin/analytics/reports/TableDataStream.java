@@ -0,0 +1,311 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.json.Chart.Status;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rows of a TABLE report, read from an open cursor. The header is read from the result set metadata.
+ * If the query didn't complete before its deadline, the stream is empty (see getStatus). If the query was paginated,
+ * the stream stops at the end of the page (see getNextCursor).
+ * <p>
+ * The deadline also bounds the reads: once it is reached, the query is cancelled and the stream closed, even if the
+ * client stopped consuming it, and the stream ends early (see getStatus).
+ * <p>
+ * Not thread-safe, except for the read timeout. Must be closed, to release the underlying connection.
+ */
+public class TableDataStream implements Iterator<List<Object>>, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TableDataStream.class);
+
+    private final String reportName;
+    private final String title;
+    private final String seriesName;
+    private final Status status;
+    // Null if timed out
+    private final QueryDeadline deadline;
+    // Null if timed out
+    private final Handle handle;
+    private final boolean restoreAutoCommit;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final List<String> header;
+    // Null if not paginated
+    private final TablePage page;
+    private final List<String> sortKey;
+
+    // Next row, read ahead so that a concurrent read timeout can't interrupt a row half-way (see next)
+    private List<Object> nextRow = null;
+    private boolean exhausted = false;
+    private boolean closed = false;
+    private volatile boolean readTimedOut = false;
+    private volatile ScheduledFuture<?> readTimeout = null;
+    // Run once closed, e.g. to release the tenant query permit (null if none)
+    private Runnable closeListener = null;
+    private int nbRows = 0;
+    private List<Object> lastRow = null;
+    private String nextCursor = null;
+
+    TableDataStream(final String reportName,
+                    final String title,
+                    final String seriesName,
+                    final Handle handle,
+                    final boolean restoreAutoCommit,
+                    final Statement statement,
+                    final ResultSet resultSet,
+                    @Nullable final TablePage page,
+                    @Nullable final List<String> sortKey,
+                    final QueryDeadline deadline) throws SQLException {
+        this.reportName = reportName;
+        this.title = title;
+        this.seriesName = seriesName;
+        this.status = Status.COMPLETED;
+        this.deadline = deadline;
+        this.handle = handle;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.page = page;
+        this.sortKey = sortKey;
+
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final List<String> columnLabels = new ArrayList<String>(metaData.getColumnCount());
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            columnLabels.add(String.valueOf(metaData.getColumnLabel(i)));
+        }
+        this.header = Collections.unmodifiableList(columnLabels);
+    }
+
+    private TableDataStream(final String title, final String seriesName) {
+        this.reportName = null;
+        this.title = title;
+        this.seriesName = seriesName;
+        this.status = Status.TIMED_OUT;
+        this.deadline = null;
+        this.handle = null;
+        this.restoreAutoCommit = false;
+        this.statement = null;
+        this.resultSet = null;
+        this.header = Collections.emptyList();
+        this.page = null;
+        this.sortKey = null;
+    }
+
+    static TableDataStream timedOut(final String title, final String seriesName) {
+        return new TableDataStream(title, seriesName);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getSeriesName() {
+        return seriesName;
+    }
+
+    public List<String> getHeader() {
+        return header;
+    }
+
+    /**
+     * @return TIMED_OUT if the query didn't complete before its deadline, or if the rows couldn't all be read before it
+     */
+    public Status getStatus() {
+        return readTimedOut ? Status.TIMED_OUT : status;
+    }
+
+    /**
+     * @return the cursor of the next page, null if none (only known once all rows have been read)
+     */
+    @Nullable
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        if (nextRow == null && !exhausted) {
+            nextRow = readNextRow();
+            exhausted = nextRow == null;
+        }
+        return nextRow != null;
+    }
+
+    @Override
+    public synchronized List<Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        final List<Object> row = nextRow;
+        nextRow = null;
+        nbRows++;
+        if (page != null) {
+            lastRow = row;
+        }
+        return row;
+    }
+
+    // Null once all rows (of the page) have been read
+    private List<Object> readNextRow() {
+        if (closed || resultSet == null) {
+            return null;
+        }
+
+        try {
+            if (!resultSet.next()) {
+                return null;
+            }
+            if (page != null && nbRows == page.getPageSize()) {
+                // One more row than the page size is requested, to know whether there is a next page
+                nextCursor = TablePage.getNextCursor(reportName, sortKey, header, lastRow);
+                return null;
+            }
+
+            final List<Object> row = new ArrayList<Object>(header.size());
+            for (int i = 1; i <= header.size(); i++) {
+                row.add(resultSet.getObject(i));
+            }
+            return row;
+        } catch (final SQLException e) {
+            // Drivers don't consistently report cancelled statements
+            if (deadline.isExpired()) {
+                logger.info("Report {} timed out while reading its rows", title);
+                readTimedOut = true;
+                return null;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Run right away if the stream was already closed (e.g. by the read timeout)
+    synchronized void setCloseListener(final Runnable closeListener) {
+        if (closed) {
+            closeListener.run();
+        } else {
+            this.closeListener = closeListener;
+        }
+    }
+
+    /**
+     * Cancel the query and close the stream once the deadline is reached, if not closed by then
+     *
+     * @param scheduler scheduler of the read timeout
+     */
+    void scheduleReadTimeout(final ScheduledExecutorService scheduler) {
+        if (resultSet == null || !deadline.hasDeadline()) {
+            return;
+        }
+
+        readTimeout = scheduler.schedule(new Runnable() {
+                                             @Override
+                                             public void run() {
+                                                 timeOut();
+                                             }
+                                         },
+                                         deadline.getRemainingMillis(),
+                                         TimeUnit.MILLISECONDS);
+    }
+
+    private void timeOut() {
+        // Unblock the reading thread first, if it is waiting for the database
+        deadline.cancel();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (!exhausted) {
+                logger.info("Report {} timed out while its rows were being read, closing its cursor", title);
+                readTimedOut = true;
+            }
+            close();
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (resultSet != null) {
+                closeCursor();
+            }
+        } finally {
+            if (closeListener != null) {
+                closeListener.run();
+            }
+        }
+    }
+
+    private void closeCursor() {
+        if (readTimeout != null) {
+            readTimeout.cancel(false);
+        }
+        deadline.release(statement);
+
+        try {
+            resultSet.close();
+            statement.close();
+        } catch (final SQLException e) {
+            logger.warn("Unable to close cursor for report {}", title, e);
+        }
+
+        try {
+            if (restoreAutoCommit) {
+                final Connection connection = handle.getConnection();
+                // Read-only cursor
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (final SQLException e) {
+            logger.warn("Unable to restore auto-commit for report {}", title, e);
+        } finally {
+            handle.close();
+        }
+    }
+}
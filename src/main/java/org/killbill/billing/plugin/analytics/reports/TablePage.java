@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Page of a TABLE report (keyset pagination): rows are sorted by the sort key of the report (unique, non-null columns),
+ * and a page starts right after the row the cursor points to, no matter how many rows precede it.
+ * <p>
+ * Cursors are opaque to clients: they hold the name of the report and the sort key values of the last row of the previous page.
+ * As each TABLE report has its own cursor, only one TABLE report can be paginated per request.
+ */
+public class TablePage {
+
+    static final String CURSOR_PARAMETER_PREFIX = "cursor";
+    // Bounds the page size, as the rows are buffered in memory (and one more row is requested, see QueryEngine#getPageSql)
+    public static final int MAX_PAGE_SIZE = 10000;
+
+    private static final ObjectMapper cursorMapper = new ObjectMapper();
+    private static final Pattern COLUMN_NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Splitter SORT_KEY_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final int pageSize;
+    // Null for the first page
+    private final String reportName;
+    private final List<Object> after;
+
+    private TablePage(final int pageSize, @Nullable final String reportName, @Nullable final List<Object> after) {
+        Preconditions.checkArgument(pageSize > 0 && pageSize <= MAX_PAGE_SIZE, "pageSize must be between 1 and %s: %s", MAX_PAGE_SIZE, pageSize);
+        this.pageSize = pageSize;
+        this.reportName = reportName;
+        this.after = after;
+    }
+
+    /**
+     * @param pageSize maximum number of rows, at most MAX_PAGE_SIZE
+     * @param cursor   next cursor of the previous page, null for the first page
+     * @return the page
+     * @throws IllegalArgumentException if the page size or the cursor is invalid
+     */
+    public static TablePage of(final int pageSize, @Nullable final String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return new TablePage(pageSize, null, null);
+        }
+
+        final Cursor decodedCursor = decodeCursor(cursor);
+        return new TablePage(pageSize, decodedCursor.reportName, decodedCursor.after);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the report the cursor was issued for, null for the first page
+     */
+    @Nullable
+    public String getReportName() {
+        return reportName;
+    }
+
+    @Nullable
+    public List<Object> getAfter() {
+        return after;
+    }
+
+    /**
+     * @param reportsConfigurationModelDao report configuration
+     * @return the sort key columns
+     * @throws IllegalArgumentException if the report can't be paginated
+     */
+    public static List<String> getSortKey(final ReportsConfigurationModelDao reportsConfigurationModelDao) {
+        Preconditions.checkArgument(reportsConfigurationModelDao.getSourceTableName() != null && reportsConfigurationModelDao.getSortKey() != null,
+                                    "Report %s can't be paginated: it needs a sourceTableName and a sortKey", reportsConfigurationModelDao.getReportName());
+
+        final List<String> columns = SORT_KEY_SPLITTER.splitToList(reportsConfigurationModelDao.getSortKey());
+        Preconditions.checkArgument(!columns.isEmpty(), "Empty sortKey for report %s", reportsConfigurationModelDao.getReportName());
+        for (final String column : columns) {
+            // The columns are inlined in the query
+            Preconditions.checkArgument(COLUMN_NAME_PATTERN.matcher(column).matches(), "Invalid sortKey column for report %s: %s", reportsConfigurationModelDao.getReportName(), column);
+        }
+        return columns;
+    }
+
+    /**
+     * @param reportName name of the report
+     * @param sortKey    sort key columns
+     * @param header     columns of the rows
+     * @param lastRow    last row of the page
+     * @return the cursor of the next page
+     */
+    static String getNextCursor(final String reportName, final List<String> sortKey, final List<String> header, final List<Object> lastRow) {
+        final List<Object> values = new ArrayList<Object>(sortKey.size());
+        for (final String column : sortKey) {
+            values.add(lastRow.get(indexOfIgnoreCase(header, column)));
+        }
+        return encodeCursor(reportName, values);
+    }
+
+    private static int indexOfIgnoreCase(final List<String> header, final String column) {
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("sortKey column " + column + " isn't part of the report");
+    }
+
+    static String encodeCursor(final String reportName, final List<Object> values) {
+        final List<Object> jsonValues = new ArrayList<Object>(values.size());
+        for (final Object value : values) {
+            // Values are bound as strings (see CompiledReportQuery), except for integers
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof BigInteger) {
+                jsonValues.add(((Number) value).longValue());
+            } else {
+                jsonValues.add(value == null ? null : value.toString());
+            }
+        }
+
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(cursorMapper.writeValueAsBytes(new Cursor(reportName, jsonValues)));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Cursor decodeCursor(final String cursor) {
+        final Cursor jsonCursor;
+        try {
+            jsonCursor = cursorMapper.readValue(Base64.getUrlDecoder().decode(cursor), Cursor.class);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor, e);
+        }
+        Preconditions.checkArgument(jsonCursor != null && jsonCursor.reportName != null, "Invalid cursor %s", cursor);
+        final List<Object> jsonValues = jsonCursor.after;
+        Preconditions.checkArgument(jsonValues != null && !jsonValues.isEmpty(), "Invalid cursor %s", cursor);
+
+        final List<Object> values = new ArrayList<Object>(jsonValues.size());
+        for (final Object value : jsonValues) {
+            // Sort key columns can't be null: rows couldn't be compared
+            Preconditions.checkArgument(value instanceof Number || value instanceof String, "Invalid cursor %s", cursor);
+            values.add(value instanceof Number ? (Object) ((Number) value).longValue() : value);
+        }
+        return new Cursor(jsonCursor.reportName, ImmutableList.<Object>copyOf(values));
+    }
+
+    private static final class Cursor {
+
+        private final String reportName;
+        private final List<Object> after;
+
+        @JsonCreator
+        private Cursor(@JsonProperty("report") final String reportName,
+                       @JsonProperty("after") final List<Object> after) {
+            this.reportName = reportName;
+            this.after = after;
+        }
+
+        @JsonProperty("report")
+        public String getReportName() {
+            return reportName;
+        }
+
+        @JsonProperty("after")
+        public List<Object> getAfter() {
+            return after;
+        }
+    }
+}
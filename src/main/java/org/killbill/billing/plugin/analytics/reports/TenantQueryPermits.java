@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of dashboard queries running concurrently for a given tenant, so that a single tenant
+ * loading large dashboards cannot monopolize the shared query threads.
+ */
+public class TenantQueryPermits {
+
+    private final int maxConcurrentQueriesPerTenant;
+    private final ConcurrentMap<Long, Semaphore> permitsPerTenant = new ConcurrentHashMap<Long, Semaphore>();
+
+    /**
+     * @param maxConcurrentQueriesPerTenant maximum number of queries per tenant, unbounded if not positive
+     */
+    public TenantQueryPermits(final int maxConcurrentQueriesPerTenant) {
+        this.maxConcurrentQueriesPerTenant = maxConcurrentQueriesPerTenant;
+    }
+
+    /**
+     * Acquire a permit for a query. Each successful call must be paired with a release.
+     *
+     * @param tenantRecordId tenant record id
+     * @param deadline       deadline of the query
+     * @return false if the deadline was reached before a permit became available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(final Long tenantRecordId, final QueryDeadline deadline) throws InterruptedException {
+        if (maxConcurrentQueriesPerTenant <= 0) {
+            return true;
+        }
+
+        final Semaphore permits = getPermits(tenantRecordId);
+        if (deadline.hasDeadline()) {
+            return permits.tryAcquire(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            permits.acquire();
+            return true;
+        }
+    }
+
+    public void release(final Long tenantRecordId) {
+        if (maxConcurrentQueriesPerTenant <= 0) {
+            return;
+        }
+
+        getPermits(tenantRecordId).release();
+    }
+
+    public int getNbAvailable(final Long tenantRecordId) {
+        return maxConcurrentQueriesPerTenant <= 0 ? Integer.MAX_VALUE : getPermits(tenantRecordId).availablePermits();
+    }
+
+    // The number of tenants is small enough for the semaphores to never be removed
+    private Semaphore getPermits(final Long tenantRecordId) {
+        Semaphore permits = permitsPerTenant.get(tenantRecordId);
+        if (permits == null) {
+            final Semaphore newPermits = new Semaphore(maxConcurrentQueriesPerTenant, true);
+            permits = permitsPerTenant.putIfAbsent(tenantRecordId, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+}
@@ -19,14 +19,11 @@
 
 package org.killbill.billing.plugin.analytics.reports.analysis;
 
-import java.util.List;
 import java.util.Map;
 
-import org.killbill.billing.plugin.analytics.json.XY;
-
 public class AverageSmoother extends Smoother {
 
-    public AverageSmoother(final Map<String, Map<String, List<XY>>> dataForReports, final DateGranularity dateGranularity) {
+    public AverageSmoother(final Map<String, Map<String, TimeSeries>> dataForReports, final DateGranularity dateGranularity) {
         super(dataForReports, dateGranularity);
     }
 
@@ -19,23 +19,20 @@
 
 package org.killbill.billing.plugin.analytics.reports.analysis;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeConstants;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.joda.time.DateTimeZone;
 
-import com.google.common.base.Function;
 import com.google.common.base.Strings;
 
 public abstract class Smoother {
 
-    private final Map<String, Map<String, List<XY>>> dataForReports;
+    private final Map<String, Map<String, TimeSeries>> dataForReports;
     private final DateGranularity dateGranularity;
 
     public static enum SmootherType {
@@ -44,7 +41,7 @@ public abstract class Smoother {
         SUM_WEEKLY,
         SUM_MONTHLY;
 
-        public Smoother createSmoother(final Map<String, Map<String, List<XY>>> dataForReports) {
+        public Smoother createSmoother(final Map<String, Map<String, TimeSeries>> dataForReports) {
             switch (this) {
                 case AVERAGE_WEEKLY:
                     return new AverageSmoother(dataForReports, DateGranularity.WEEKLY);
@@ -58,6 +55,19 @@ public abstract class Smoother {
                     return null;
             }
         }
+
+        public DateGranularity getDateGranularity() {
+            switch (this) {
+                case AVERAGE_WEEKLY:
+                case SUM_WEEKLY:
+                    return DateGranularity.WEEKLY;
+                case AVERAGE_MONTHLY:
+                case SUM_MONTHLY:
+                    return DateGranularity.MONTHLY;
+                default:
+                    return null;
+            }
+        }
     }
 
     public static SmootherType fromString(@Nullable final String smootherName) {
@@ -68,72 +78,83 @@ public abstract class Smoother {
         }
     }
 
-    public Smoother(final Map<String, Map<String, List<XY>>> dataForReports, final DateGranularity dateGranularity) {
+    public Smoother(final Map<String, Map<String, TimeSeries>> dataForReports, final DateGranularity dateGranularity) {
         this.dataForReports = dataForReports;
         this.dateGranularity = dateGranularity;
     }
 
     public abstract float computeSmoothedValue(float accumulator, int accumulatorSize);
 
-    // Assume the data is already sorted
     public void smooth() {
-        for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-            for (final Entry<String, List<XY>> entry : dataForReport.entrySet()) {
-                final List<XY> dataForPivot = entry.getValue();
-                final List<XY> smoothedData = smooth(dataForPivot);
-                dataForReport.put(entry.getKey(), smoothedData);
+        for (final Map<String, TimeSeries> dataForReport : dataForReports.values()) {
+            for (final Entry<String, TimeSeries> entry : dataForReport.entrySet()) {
+                entry.setValue(smooth(entry.getValue()));
             }
         }
     }
 
-    public Map<String, Map<String, List<XY>>> getDataForReports() {
+    public Map<String, Map<String, TimeSeries>> getDataForReports() {
         return dataForReports;
     }
 
-    private List<XY> smooth(final List<XY> inputData) {
-        switch (dateGranularity) {
-            case WEEKLY:
-                return smooth(inputData,
-                              new Function<XY, DateTime>() {
-                                  @Override
-                                  public DateTime apply(final XY input) {
-                                      return input == null ? null : input.getxDate().withDayOfWeek(DateTimeConstants.MONDAY);
-                                  }
-                              }
-                             );
-            case MONTHLY:
-                return smooth(inputData,
-                              new Function<XY, DateTime>() {
-                                  @Override
-                                  public DateTime apply(final XY input) {
-                                      return input == null ? null : input.getxDate().withDayOfMonth(1);
-                                  }
-                              }
-                             );
-            default:
-                return inputData;
-        }
-    }
-
-    private List<XY> smooth(final List<XY> inputData, final Function<XY, DateTime> truncator) {
-        final List<XY> smoothedData = new LinkedList<XY>();
-
-        DateTime currentTruncatedDate = truncator.apply(inputData.get(0));
-        Float accumulator = (float) 0;
+    // Note: the last (potentially incomplete) period is dropped. Input series may already be summed up per period
+    // by the database (see SqlReportDataExtractor): the total of each period is then on its first day with data.
+    // Averages are computed per point, i.e. per day for day series, per timestamp otherwise.
+    private TimeSeries smooth(final TimeSeries inputData) {
+        final long[] smoothedTimestamps = new long[inputData.size()];
+        final float[] smoothedValues = new float[inputData.size()];
+        int nbSmoothed = 0;
+
+        final PeriodTruncator truncator = new PeriodTruncator(dateGranularity);
+        int currentPeriod = truncator.truncate(inputData.getFirstDay());
+        float accumulator = 0;
         int accumulatorSize = 0;
-        for (final XY xy : inputData) {
-            final DateTime zeTruncatedDate = truncator.apply(xy);
-            if (zeTruncatedDate != null && currentTruncatedDate != null && zeTruncatedDate.compareTo(currentTruncatedDate) != 0) {
-                smoothedData.add(new XY(currentTruncatedDate, computeSmoothedValue(accumulator, accumulatorSize)));
-                accumulator = (float) 0;
+        for (int i = 0; i < inputData.size(); i++) {
+            final int period = truncator.truncate(TimeSeries.toEpochDay(inputData.getTimestamp(i)));
+            if (period != currentPeriod) {
+                smoothedTimestamps[nbSmoothed] = TimeSeries.toEpochMillis(currentPeriod);
+                smoothedValues[nbSmoothed] = computeSmoothedValue(accumulator, accumulatorSize);
+                nbSmoothed++;
+                accumulator = 0;
                 accumulatorSize = 0;
             }
 
-            accumulator += xy.getY();
+            accumulator += inputData.getValue(i);
             accumulatorSize++;
-            currentTruncatedDate = zeTruncatedDate;
+            currentPeriod = period;
+        }
+
+        return new TimeSeries(Arrays.copyOf(smoothedTimestamps, nbSmoothed), Arrays.copyOf(smoothedValues, nbSmoothed));
+    }
+
+    // Truncates epoch days to the first day of their period
+    private static final class PeriodTruncator {
+
+        private final DateGranularity dateGranularity;
+
+        // Last month seen: [monthStart, nextMonthStart)
+        private int monthStart = Integer.MAX_VALUE;
+        private int nextMonthStart = Integer.MIN_VALUE;
+
+        private PeriodTruncator(final DateGranularity dateGranularity) {
+            this.dateGranularity = dateGranularity;
         }
 
-        return smoothedData;
+        private int truncate(final int day) {
+            switch (dateGranularity) {
+                case WEEKLY:
+                    // 1970-01-01 was a Thursday: go back to the Monday
+                    return day - Math.floorMod(day + 3, 7);
+                case MONTHLY:
+                    if (day < monthStart || day >= nextMonthStart) {
+                        final DateTime month = new DateTime(TimeSeries.toEpochMillis(day), DateTimeZone.UTC).withDayOfMonth(1);
+                        monthStart = TimeSeries.toEpochDay(month);
+                        nextMonthStart = TimeSeries.toEpochDay(month.plusMonths(1));
+                    }
+                    return monthStart;
+                default:
+                    return day;
+            }
+        }
     }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.killbill.billing.plugin.analytics.json.XY;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Columnar time series: sorted timestamps (epoch millis, UTC) are stored next to their values. Series of reports
+ * keyed on a day column have at most one point per day (at midnight UTC), series keyed on a timestamp column
+ * keep one point per timestamp.
+ * <p>
+ * Immutable: gap-filling, smoothing (see Smoother) and downsampling return new instances.
+ */
+public class TimeSeries {
+
+    private static final DateTimeFormatter DAY_FORMATTER = ISODateTimeFormat.date().withZoneUTC();
+
+    private final long[] timestamps;
+    private final float[] values;
+    // Points queried from a day column, labelled with their day (as opposed to their timestamp)
+    private final BitSet dayPoints;
+
+    // Series of computed points only (e.g. smoothed)
+    TimeSeries(final long[] timestamps, final float[] values) {
+        this(timestamps, values, new BitSet());
+    }
+
+    private TimeSeries(final long[] timestamps, final float[] values, final BitSet dayPoints) {
+        this.timestamps = timestamps;
+        this.values = values;
+        this.dayPoints = dayPoints;
+    }
+
+    public static int toEpochDay(final long millis) {
+        return (int) Math.floorDiv(millis, (long) DateTimeConstants.MILLIS_PER_DAY);
+    }
+
+    public static int toEpochDay(final DateTime dateTime) {
+        return toEpochDay(dateTime.getMillis());
+    }
+
+    public static long toEpochMillis(final int day) {
+        return day * (long) DateTimeConstants.MILLIS_PER_DAY;
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    public long getTimestamp(final int i) {
+        return timestamps[i];
+    }
+
+    public float getValue(final int i) {
+        return values[i];
+    }
+
+    public int getFirstDay() {
+        return toEpochDay(timestamps[0]);
+    }
+
+    public int getLastDay() {
+        return toEpochDay(timestamps[timestamps.length - 1]);
+    }
+
+    /**
+     * Add a 0 (at midnight UTC) for each day between fromDay and toDay (inclusive) without any point. Points outside
+     * of that range are kept.
+     *
+     * @param fromDay first epoch day
+     * @param toDay   last epoch day
+     * @return the filled series
+     */
+    public TimeSeries fill(final int fromDay, final int toDay) {
+        final int firstDay = Math.min(fromDay, getFirstDay());
+        final int lastDay = Math.max(toDay, getLastDay());
+
+        final int maxSize = timestamps.length + (lastDay - firstDay + 1);
+        final long[] filledTimestamps = new long[maxSize];
+        final float[] filledValues = new float[maxSize];
+        final BitSet filledDayPoints = new BitSet(maxSize);
+        int size = 0;
+        int i = 0;
+        for (int day = firstDay; day <= lastDay; day++) {
+            final long nextDayStart = toEpochMillis(day + 1);
+            if (i < timestamps.length && timestamps[i] < nextDayStart) {
+                // Copy the points of that day
+                while (i < timestamps.length && timestamps[i] < nextDayStart) {
+                    filledTimestamps[size] = timestamps[i];
+                    filledValues[size] = values[i];
+                    if (dayPoints.get(i)) {
+                        filledDayPoints.set(size);
+                    }
+                    size++;
+                    i++;
+                }
+            } else {
+                filledTimestamps[size] = toEpochMillis(day);
+                size++;
+            }
+        }
+        return new TimeSeries(Arrays.copyOf(filledTimestamps, size), Arrays.copyOf(filledValues, size), filledDayPoints);
+    }
+
+    /**
+     * Downsample the series with the Largest-Triangle-Three-Buckets algorithm: the first and last points are kept, and
+     * in each bucket in between, the point forming the largest triangle with the previously selected point and the
+     * average of the next bucket. This preserves the shape of the series (peaks and troughs), unlike averaging.
+     *
+     * @param maxPoints maximum number of points (at least 3)
+     * @return the downsampled series, or the series itself if it is small enough
+     */
+    public TimeSeries downsample(final int maxPoints) {
+        Preconditions.checkArgument(maxPoints >= 3, "maxPoints must be at least 3: %s", maxPoints);
+        if (timestamps.length <= maxPoints) {
+            return this;
+        }
+
+        final long[] sampledTimestamps = new long[maxPoints];
+        final float[] sampledValues = new float[maxPoints];
+        final BitSet sampledDayPoints = new BitSet(maxPoints);
+
+        int selected = 0;
+        copy(selected, sampledTimestamps, sampledValues, sampledDayPoints, 0);
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+            // Average point of the next bucket (the last point for the last bucket)
+            final int nextStart = bucketStart(bucket + 1, maxPoints);
+            final int nextEnd = Math.min(bucketStart(bucket + 2, maxPoints), timestamps.length);
+            double nextX = 0;
+            double nextY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                nextX += timestamps[i];
+                nextY += values[i];
+            }
+            nextX /= nextEnd - nextStart;
+            nextY /= nextEnd - nextStart;
+
+            // Point of the current bucket with the largest triangle
+            final int start = bucketStart(bucket, maxPoints);
+            final int end = nextStart;
+            double maxArea = -1;
+            int maxAreaIndex = start;
+            for (int i = start; i < end; i++) {
+                final double area = Math.abs((timestamps[selected] - nextX) * (values[i] - values[selected]) - ((double) timestamps[selected] - timestamps[i]) * (nextY - values[selected]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxAreaIndex = i;
+                }
+            }
+
+            selected = maxAreaIndex;
+            copy(selected, sampledTimestamps, sampledValues, sampledDayPoints, bucket + 1);
+        }
+        copy(timestamps.length - 1, sampledTimestamps, sampledValues, sampledDayPoints, maxPoints - 1);
+
+        return new TimeSeries(sampledTimestamps, sampledValues, sampledDayPoints);
+    }
+
+    // Index of the first point of a bucket: points in between the first and last ones are evenly distributed
+    private int bucketStart(final int bucket, final int maxPoints) {
+        return 1 + (int) ((long) bucket * (timestamps.length - 2) / (maxPoints - 2));
+    }
+
+    private void copy(final int i, final long[] toTimestamps, final float[] toValues, final BitSet toDayPoints, final int to) {
+        toTimestamps[to] = timestamps[i];
+        toValues[to] = values[i];
+        if (dayPoints.get(i)) {
+            toDayPoints.set(to);
+        }
+    }
+
+    /**
+     * @return a view of the points, for serialization
+     */
+    public List<XY> toXY() {
+        return new AbstractList<XY>() {
+            @Override
+            public XY get(final int i) {
+                // Points queried from a day column are labelled with their day, other ones with their timestamp
+                final String x = dayPoints.get(i) ? DAY_FORMATTER.print(timestamps[i]) : new DateTime(timestamps[i], DateTimeZone.UTC).toString();
+                return new XY(x, values[i]);
+            }
+
+            @Override
+            public int size() {
+                return timestamps.length;
+            }
+        };
+    }
+
+    /**
+     * Collects the points of a series, in any order. Values for the same day (day points) or the same timestamp
+     * (timestamp points) are summed up.
+     */
+    public static final class Builder {
+
+        private long[] timestamps = new long[16];
+        private float[] values = new float[16];
+        private final BitSet dayPoints = new BitSet();
+        private int size = 0;
+
+        public Builder addDay(final int day, final float value) {
+            dayPoints.set(size);
+            return add(toEpochMillis(day), value);
+        }
+
+        public Builder addTimestamp(final long millis, final float value) {
+            return add(millis, value);
+        }
+
+        private Builder add(final long millis, final float value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = millis;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        /**
+         * @return the sorted series
+         */
+        public TimeSeries build() {
+            Preconditions.checkState(size > 0, "Empty time series");
+
+            // Sort and deduplicate the timestamps, without boxing
+            final long[] sortedTimestamps = Arrays.copyOf(timestamps, size);
+            Arrays.sort(sortedTimestamps);
+            int nbTimestamps = 0;
+            for (int i = 0; i < size; i++) {
+                if (nbTimestamps == 0 || sortedTimestamps[i] != sortedTimestamps[nbTimestamps - 1]) {
+                    sortedTimestamps[nbTimestamps] = sortedTimestamps[i];
+                    nbTimestamps++;
+                }
+            }
+
+            final float[] sortedValues = new float[nbTimestamps];
+            final BitSet sortedDayPoints = new BitSet(nbTimestamps);
+            for (int i = 0; i < size; i++) {
+                final int offset = Arrays.binarySearch(sortedTimestamps, 0, nbTimestamps, timestamps[i]);
+                sortedValues[offset] += values[i];
+                if (dayPoints.get(i)) {
+                    sortedDayPoints.set(offset);
+                }
+            }
+            return new TimeSeries(Arrays.copyOf(sortedTimestamps, nbTimestamps), sortedValues, sortedDayPoints);
+        }
+    }
+}
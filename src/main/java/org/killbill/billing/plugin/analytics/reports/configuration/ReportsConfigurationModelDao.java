@@ -33,6 +33,13 @@ public class ReportsConfigurationModelDao {
         DAILY
     }
 
+    public static enum RefreshStrategy {
+        // Call the refresh procedure
+        PROCEDURE,
+        // Build a shadow table from the report view and swap it in, see ShadowTableSwap
+        SWAP
+    }
+
     public static enum ReportType {
         TIMELINE,
         COUNTERS,
@@ -50,6 +57,19 @@ public class ReportsConfigurationModelDao {
     private String refreshProcedureName;
     private Frequency refreshFrequency;
     private Integer refreshHourOfDayGmt;
+    // Default deadline when querying the report
+    private Integer timeoutSeconds;
+    // Unique columns (comma separated) to paginate TABLE reports on, see TablePage
+    private String sortKey;
+    // Incremental refreshes (see IncrementalRefresh): bucket column of the report table, and source table (with its own bucket column) of the watermark
+    private String bucketColumn;
+    private String watermarkTableName;
+    private String watermarkBucketColumn;
+    private RefreshStrategy refreshStrategy;
+    // Reports (comma separated names) to refresh before this one
+    private String dependsOn;
+    // Analytics tables (comma separated) the report is computed from, to skip refreshes when they didn't change, see ChangeSignatures
+    private String watchedTableNames;
 
     public ReportsConfigurationModelDao() { /* When reading from the database */ }
 
@@ -63,7 +83,15 @@ public class ReportsConfigurationModelDao {
              reportConfigurationJson.getSourceQuery(),
              reportConfigurationJson.getRefreshProcedureName(),
              reportConfigurationJson.getRefreshFrequency(),
-             reportConfigurationJson.getRefreshHourOfDayGmt());
+             reportConfigurationJson.getRefreshHourOfDayGmt(),
+             reportConfigurationJson.getTimeoutSeconds(),
+             reportConfigurationJson.getSortKey(),
+             reportConfigurationJson.getBucketColumn(),
+             reportConfigurationJson.getWatermarkTableName(),
+             reportConfigurationJson.getWatermarkBucketColumn(),
+             reportConfigurationJson.getRefreshStrategy(),
+             reportConfigurationJson.getDependsOn(),
+             reportConfigurationJson.getWatchedTableNames());
     }
 
     public ReportsConfigurationModelDao(final ReportConfigurationJson reportConfigurationJson, final ReportsConfigurationModelDao currentReportsConfigurationModelDao) {
@@ -76,7 +104,15 @@ public class ReportsConfigurationModelDao {
              reportConfigurationJson.getSourceQuery() != null ? reportConfigurationJson.getSourceQuery() : currentReportsConfigurationModelDao.getSourceQuery(),
              reportConfigurationJson.getRefreshProcedureName() != null ? reportConfigurationJson.getRefreshProcedureName() : currentReportsConfigurationModelDao.getRefreshProcedureName(),
              reportConfigurationJson.getRefreshFrequency() != null ? reportConfigurationJson.getRefreshFrequency() : currentReportsConfigurationModelDao.getRefreshFrequency(),
-             reportConfigurationJson.getRefreshHourOfDayGmt() != null ? reportConfigurationJson.getRefreshHourOfDayGmt() : currentReportsConfigurationModelDao.getRefreshHourOfDayGmt());
+             reportConfigurationJson.getRefreshHourOfDayGmt() != null ? reportConfigurationJson.getRefreshHourOfDayGmt() : currentReportsConfigurationModelDao.getRefreshHourOfDayGmt(),
+             reportConfigurationJson.getTimeoutSeconds() != null ? reportConfigurationJson.getTimeoutSeconds() : currentReportsConfigurationModelDao.getTimeoutSeconds(),
+             reportConfigurationJson.getSortKey() != null ? reportConfigurationJson.getSortKey() : currentReportsConfigurationModelDao.getSortKey(),
+             reportConfigurationJson.getBucketColumn() != null ? reportConfigurationJson.getBucketColumn() : currentReportsConfigurationModelDao.getBucketColumn(),
+             reportConfigurationJson.getWatermarkTableName() != null ? reportConfigurationJson.getWatermarkTableName() : currentReportsConfigurationModelDao.getWatermarkTableName(),
+             reportConfigurationJson.getWatermarkBucketColumn() != null ? reportConfigurationJson.getWatermarkBucketColumn() : currentReportsConfigurationModelDao.getWatermarkBucketColumn(),
+             reportConfigurationJson.getRefreshStrategy() != null ? reportConfigurationJson.getRefreshStrategy() : currentReportsConfigurationModelDao.getRefreshStrategy(),
+             reportConfigurationJson.getDependsOn() != null ? reportConfigurationJson.getDependsOn() : currentReportsConfigurationModelDao.getDependsOn(),
+             reportConfigurationJson.getWatchedTableNames() != null ? reportConfigurationJson.getWatchedTableNames() : currentReportsConfigurationModelDao.getWatchedTableNames());
     }
 
     public ReportsConfigurationModelDao(final String reportName,
@@ -110,6 +146,94 @@ public class ReportsConfigurationModelDao {
                                         final String refreshProcedureName,
                                         final Frequency refreshFrequency,
                                         final Integer refreshHourOfDayGmt) {
+        this(recordId,
+             reportName,
+             reportPrettyName,
+             type,
+             sourceTableName,
+             sourceName,
+             sourceQuery,
+             refreshProcedureName,
+             refreshFrequency,
+             refreshHourOfDayGmt,
+             null);
+    }
+
+    public ReportsConfigurationModelDao(@Nullable final Integer recordId,
+                                        final String reportName,
+                                        final String reportPrettyName,
+                                        final ReportType type,
+                                        final String sourceTableName,
+                                        final String sourceName,
+                                        final String sourceQuery,
+                                        final String refreshProcedureName,
+                                        final Frequency refreshFrequency,
+                                        final Integer refreshHourOfDayGmt,
+                                        @Nullable final Integer timeoutSeconds) {
+        this(recordId,
+             reportName,
+             reportPrettyName,
+             type,
+             sourceTableName,
+             sourceName,
+             sourceQuery,
+             refreshProcedureName,
+             refreshFrequency,
+             refreshHourOfDayGmt,
+             timeoutSeconds,
+             null);
+    }
+
+    public ReportsConfigurationModelDao(@Nullable final Integer recordId,
+                                        final String reportName,
+                                        final String reportPrettyName,
+                                        final ReportType type,
+                                        final String sourceTableName,
+                                        final String sourceName,
+                                        final String sourceQuery,
+                                        final String refreshProcedureName,
+                                        final Frequency refreshFrequency,
+                                        final Integer refreshHourOfDayGmt,
+                                        @Nullable final Integer timeoutSeconds,
+                                        @Nullable final String sortKey) {
+        this(recordId,
+             reportName,
+             reportPrettyName,
+             type,
+             sourceTableName,
+             sourceName,
+             sourceQuery,
+             refreshProcedureName,
+             refreshFrequency,
+             refreshHourOfDayGmt,
+             timeoutSeconds,
+             sortKey,
+             null,
+             null,
+             null,
+             null,
+             null,
+             null);
+    }
+
+    public ReportsConfigurationModelDao(@Nullable final Integer recordId,
+                                        final String reportName,
+                                        final String reportPrettyName,
+                                        final ReportType type,
+                                        final String sourceTableName,
+                                        final String sourceName,
+                                        final String sourceQuery,
+                                        final String refreshProcedureName,
+                                        final Frequency refreshFrequency,
+                                        final Integer refreshHourOfDayGmt,
+                                        @Nullable final Integer timeoutSeconds,
+                                        @Nullable final String sortKey,
+                                        @Nullable final String bucketColumn,
+                                        @Nullable final String watermarkTableName,
+                                        @Nullable final String watermarkBucketColumn,
+                                        @Nullable final RefreshStrategy refreshStrategy,
+                                        @Nullable final String dependsOn,
+                                        @Nullable final String watchedTableNames) {
         this.recordId = recordId;
         this.reportName = reportName;
         this.reportPrettyName = reportPrettyName;
@@ -120,6 +244,14 @@ public class ReportsConfigurationModelDao {
         this.refreshProcedureName = Strings.emptyToNull(refreshProcedureName);
         this.refreshFrequency = refreshFrequency;
         this.refreshHourOfDayGmt = refreshHourOfDayGmt;
+        this.timeoutSeconds = timeoutSeconds;
+        this.sortKey = Strings.emptyToNull(sortKey);
+        this.bucketColumn = Strings.emptyToNull(bucketColumn);
+        this.watermarkTableName = Strings.emptyToNull(watermarkTableName);
+        this.watermarkBucketColumn = Strings.emptyToNull(watermarkBucketColumn);
+        this.refreshStrategy = refreshStrategy;
+        this.dependsOn = Strings.emptyToNull(dependsOn);
+        this.watchedTableNames = Strings.emptyToNull(watchedTableNames);
     }
 
     public Integer getRecordId() {
@@ -162,6 +294,38 @@ public class ReportsConfigurationModelDao {
         return reportType;
     }
 
+    public Integer getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public String getSortKey() {
+        return sortKey;
+    }
+
+    public String getBucketColumn() {
+        return bucketColumn;
+    }
+
+    public String getWatermarkTableName() {
+        return watermarkTableName;
+    }
+
+    public String getWatermarkBucketColumn() {
+        return watermarkBucketColumn;
+    }
+
+    public RefreshStrategy getRefreshStrategy() {
+        return refreshStrategy;
+    }
+
+    public String getDependsOn() {
+        return dependsOn;
+    }
+
+    public String getWatchedTableNames() {
+        return watchedTableNames;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("ReportsConfigurationModelDao{");
@@ -175,6 +339,14 @@ public class ReportsConfigurationModelDao {
         sb.append(", refreshProcedureName='").append(refreshProcedureName).append('\'');
         sb.append(", refreshFrequency=").append(refreshFrequency);
         sb.append(", refreshHourOfDayGmt=").append(refreshHourOfDayGmt);
+        sb.append(", timeoutSeconds=").append(timeoutSeconds);
+        sb.append(", sortKey='").append(sortKey).append('\'');
+        sb.append(", bucketColumn='").append(bucketColumn).append('\'');
+        sb.append(", watermarkTableName='").append(watermarkTableName).append('\'');
+        sb.append(", watermarkBucketColumn='").append(watermarkBucketColumn).append('\'');
+        sb.append(", refreshStrategy=").append(refreshStrategy);
+        sb.append(", dependsOn='").append(dependsOn).append('\'');
+        sb.append(", watchedTableNames='").append(watchedTableNames).append('\'');
         sb.append('}');
         return sb.toString();
     }
@@ -225,6 +397,30 @@ public class ReportsConfigurationModelDao {
         if (sourceQuery != null ? !sourceQuery.equals(that.sourceQuery) : that.sourceQuery != null) {
             return false;
         }
+        if (timeoutSeconds != null ? !timeoutSeconds.equals(that.timeoutSeconds) : that.timeoutSeconds != null) {
+            return false;
+        }
+        if (sortKey != null ? !sortKey.equals(that.sortKey) : that.sortKey != null) {
+            return false;
+        }
+        if (bucketColumn != null ? !bucketColumn.equals(that.bucketColumn) : that.bucketColumn != null) {
+            return false;
+        }
+        if (watermarkTableName != null ? !watermarkTableName.equals(that.watermarkTableName) : that.watermarkTableName != null) {
+            return false;
+        }
+        if (watermarkBucketColumn != null ? !watermarkBucketColumn.equals(that.watermarkBucketColumn) : that.watermarkBucketColumn != null) {
+            return false;
+        }
+        if (refreshStrategy != that.refreshStrategy) {
+            return false;
+        }
+        if (dependsOn != null ? !dependsOn.equals(that.dependsOn) : that.dependsOn != null) {
+            return false;
+        }
+        if (watchedTableNames != null ? !watchedTableNames.equals(that.watchedTableNames) : that.watchedTableNames != null) {
+            return false;
+        }
         return true;
     }
 
@@ -240,6 +436,14 @@ public class ReportsConfigurationModelDao {
         result = 31 * result + (refreshProcedureName != null ? refreshProcedureName.hashCode() : 0);
         result = 31 * result + (refreshFrequency != null ? refreshFrequency.hashCode() : 0);
         result = 31 * result + (refreshHourOfDayGmt != null ? refreshHourOfDayGmt.hashCode() : 0);
+        result = 31 * result + (timeoutSeconds != null ? timeoutSeconds.hashCode() : 0);
+        result = 31 * result + (sortKey != null ? sortKey.hashCode() : 0);
+        result = 31 * result + (bucketColumn != null ? bucketColumn.hashCode() : 0);
+        result = 31 * result + (watermarkTableName != null ? watermarkTableName.hashCode() : 0);
+        result = 31 * result + (watermarkBucketColumn != null ? watermarkBucketColumn.hashCode() : 0);
+        result = 31 * result + (refreshStrategy != null ? refreshStrategy.hashCode() : 0);
+        result = 31 * result + (dependsOn != null ? dependsOn.hashCode() : 0);
+        result = 31 * result + (watchedTableNames != null ? watchedTableNames.hashCode() : 0);
         return result;
     }
 }
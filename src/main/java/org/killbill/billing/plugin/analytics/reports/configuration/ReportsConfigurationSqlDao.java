@@ -45,4 +45,10 @@ public interface ReportsConfigurationSqlDao extends Transactional<ReportsConfigu
 
     @SqlUpdate
     void deleteReportConfiguration(@Bind("reportName") final String reportName);
+
+    @SqlUpdate
+    void deleteReportWatermarks(@Bind("reportName") final String reportName);
+
+    @SqlUpdate
+    void deleteReportSignature(@Bind("reportName") final String reportName);
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.databases;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of connections to an external database.
+ * <p>
+ * Connections are validated when borrowed and closed after being idle for too long (checked when borrowing,
+ * no background thread is involved). Once closed, the pool doesn't keep connections anymore but can still be used.
+ */
+public class ConnectionPool implements ConnectionFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final String name;
+    private final ConnectionFactory connectionFactory;
+    private final Settings settings;
+    private final MetricRegistry metricRegistry;
+    private final DBI dbi;
+
+    private final Semaphore permits;
+    // Most recently used first
+    private final Deque<IdleConnection> idleConnections = new ArrayDeque<IdleConnection>();
+    private final AtomicInteger nbActive = new AtomicInteger(0);
+    private final AtomicInteger nbWaiting = new AtomicInteger(0);
+
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(final String name, final ConnectionFactory connectionFactory, final Settings settings, final MetricRegistry metricRegistry) {
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.settings = settings;
+        this.metricRegistry = metricRegistry;
+        this.permits = new Semaphore(settings.maxSize, true);
+        this.dbi = new DBI(this);
+    }
+
+    public DBI getDBI() {
+        return dbi;
+    }
+
+    @Override
+    public Connection openConnection() throws SQLException {
+        lastUsedMillis = System.currentTimeMillis();
+
+        final long startNanos = System.nanoTime();
+        nbWaiting.incrementAndGet();
+        final boolean acquired;
+        try {
+            acquired = permits.tryAcquire(settings.maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to " + name, e);
+        } finally {
+            nbWaiting.decrementAndGet();
+            metricRegistry.timer(metricName("wait")).update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+        if (!acquired) {
+            metricRegistry.counter(metricName("timeouts")).inc(1);
+            throw new SQLException(String.format("Timed out after %sms waiting for a connection to %s (poolSize=%s)", settings.maxWaitMillis, name, settings.maxSize));
+        }
+
+        try {
+            final Connection connection = borrow();
+            nbActive.incrementAndGet();
+            return wrap(connection);
+        } catch (final SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int getNbActive() {
+        return nbActive.get();
+    }
+
+    public int getNbIdle() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
+    }
+
+    public int getNbWaiting() {
+        return nbWaiting.get();
+    }
+
+    public boolean isUnused(final long nowMillis) {
+        return nbActive.get() == 0 && nbWaiting.get() == 0 && lastUsedMillis + settings.idleTimeoutMillis <= nowMillis;
+    }
+
+    /**
+     * Close the idle connections. Connections in use will be closed once returned.
+     */
+    public void close() {
+        closed = true;
+        evictIdleConnections(Long.MAX_VALUE);
+    }
+
+    private Connection borrow() throws SQLException {
+        final long nowMillis = System.currentTimeMillis();
+        evictIdleConnections(nowMillis);
+
+        IdleConnection idleConnection;
+        while ((idleConnection = pollIdleConnection()) != null) {
+            if (isValid(idleConnection.connection)) {
+                return idleConnection.connection;
+            }
+            closeQuietly(idleConnection.connection);
+        }
+        return connectionFactory.openConnection();
+    }
+
+    private boolean isValid(final Connection connection) {
+        if (settings.validationTimeoutSeconds <= 0) {
+            return true;
+        }
+
+        try {
+            return connection.isValid(settings.validationTimeoutSeconds);
+        } catch (final SQLException e) {
+            logger.debug("Unable to validate connection to {}", name, e);
+            return false;
+        }
+    }
+
+    private void giveBack(final Connection connection) {
+        try {
+            boolean reusable = !closed && !connection.isClosed();
+            if (reusable && !connection.getAutoCommit()) {
+                try {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                } catch (final SQLException e) {
+                    reusable = false;
+                }
+            }
+
+            if (reusable) {
+                synchronized (idleConnections) {
+                    idleConnections.addFirst(new IdleConnection(connection, System.currentTimeMillis()));
+                }
+                // The pool may have been closed concurrently
+                if (closed) {
+                    evictIdleConnections(Long.MAX_VALUE);
+                }
+            } else {
+                closeQuietly(connection);
+            }
+        } catch (final SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            lastUsedMillis = System.currentTimeMillis();
+            nbActive.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    private IdleConnection pollIdleConnection() {
+        synchronized (idleConnections) {
+            return idleConnections.pollFirst();
+        }
+    }
+
+    private void evictIdleConnections(final long nowMillis) {
+        while (true) {
+            final IdleConnection idleConnection;
+            synchronized (idleConnections) {
+                final IdleConnection oldest = idleConnections.peekLast();
+                if (oldest == null || oldest.idleSinceMillis + settings.idleTimeoutMillis > nowMillis) {
+                    return;
+                }
+                idleConnection = idleConnections.pollLast();
+            }
+            closeQuietly(idleConnection.connection);
+        }
+    }
+
+    private void closeQuietly(final Connection connection) {
+        try {
+            connection.close();
+        } catch (final SQLException e) {
+            logger.debug("Unable to close connection to {}", name, e);
+        }
+    }
+
+    private String metricName(final String suffix) {
+        return ExternalDatabases.metricName(name, suffix);
+    }
+
+    // Returns the connection to the pool when closed and applies the query timeout to the statements
+    private Connection wrap(final Connection connection) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                   new Class<?>[]{Connection.class},
+                                                   new InvocationHandler() {
+                                                       private boolean returned = false;
+
+                                                       @Override
+                                                       public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                                                           final String methodName = method.getName();
+                                                           if ("close".equals(methodName)) {
+                                                               if (!returned) {
+                                                                   returned = true;
+                                                                   giveBack(connection);
+                                                               }
+                                                               return null;
+                                                           } else if ("isClosed".equals(methodName)) {
+                                                               return returned || connection.isClosed();
+                                                           } else if ("equals".equals(methodName)) {
+                                                               return proxy == args[0];
+                                                           } else if ("hashCode".equals(methodName)) {
+                                                               return System.identityHashCode(proxy);
+                                                           } else if ("toString".equals(methodName)) {
+                                                               return "Pooled(" + name + ")" + connection;
+                                                           } else if (returned) {
+                                                               throw new SQLException("Connection has been closed");
+                                                           }
+
+                                                           final Object result;
+                                                           try {
+                                                               result = method.invoke(connection, args);
+                                                           } catch (final InvocationTargetException e) {
+                                                               throw e.getCause();
+                                                           }
+                                                           if (result instanceof Statement && settings.queryTimeoutSeconds > 0) {
+                                                               ((Statement) result).setQueryTimeout(settings.queryTimeoutSeconds);
+                                                           }
+                                                           return result;
+                                                       }
+                                                   });
+    }
+
+    private static final class IdleConnection {
+
+        private final Connection connection;
+        private final long idleSinceMillis;
+
+        private IdleConnection(final Connection connection, final long idleSinceMillis) {
+            this.connection = connection;
+            this.idleSinceMillis = idleSinceMillis;
+        }
+    }
+
+    public static final class Settings {
+
+        private final int maxSize;
+        private final long maxWaitMillis;
+        private final int queryTimeoutSeconds;
+        private final long idleTimeoutMillis;
+        private final int validationTimeoutSeconds;
+
+        public Settings(final int maxSize,
+                        final long maxWaitMillis,
+                        final int queryTimeoutSeconds,
+                        final long idleTimeoutMillis,
+                        final int validationTimeoutSeconds) {
+            this.maxSize = maxSize;
+            this.maxWaitMillis = maxWaitMillis;
+            this.queryTimeoutSeconds = queryTimeoutSeconds;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.validationTimeoutSeconds = validationTimeoutSeconds;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public long getIdleTimeoutMillis() {
+            return idleTimeoutMillis;
+        }
+    }
+}
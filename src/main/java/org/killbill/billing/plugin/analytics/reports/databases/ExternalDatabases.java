@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.databases;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.killbill.commons.metrics.api.Gauge;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+/**
+ * Connection pools for the external databases (see AnalyticsConfiguration#databases), per source name.
+ * <p>
+ * Pools are keyed by name and configuration: when the configuration of a tenant changes, a new pool is created
+ * and the previous one is closed once it hasn't been used for its idle timeout.
+ */
+public class ExternalDatabases {
+
+    // Optional settings, next to type and url
+    public static final String POOL_SIZE = "poolSize";
+    public static final String POOL_MAX_WAIT_MILLIS = "poolMaxWaitMillis";
+    public static final String POOL_IDLE_TIMEOUT_SECONDS = "poolIdleTimeoutSeconds";
+    public static final String POOL_VALIDATION_TIMEOUT_SECONDS = "poolValidationTimeoutSeconds";
+    public static final String QUERY_TIMEOUT_SECONDS = "queryTimeoutSeconds";
+
+    private static final String METRIC_NAME_PREFIX = "killbill-analytics.reports.databases.";
+
+    private final MetricRegistry metricRegistry;
+    private final ConcurrentMap<Entry<String, Map<String, String>>, ConnectionPool> pools = new ConcurrentHashMap<Entry<String, Map<String, String>>, ConnectionPool>();
+    private final ConcurrentMap<String, Boolean> sourcesWithGauges = new ConcurrentHashMap<String, Boolean>();
+
+    public ExternalDatabases(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    static String metricName(final String sourceName, final String suffix) {
+        return METRIC_NAME_PREFIX + sourceName + "." + suffix;
+    }
+
+    public DBI getDBI(final String sourceName, final Map<String, String> configuration) {
+        closeUnusedPools(System.currentTimeMillis());
+
+        final Entry<String, Map<String, String>> key = new SimpleImmutableEntry<String, Map<String, String>>(sourceName, new HashMap<String, String>(configuration));
+        ConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            final ConnectionPool newPool = createPool(sourceName, configuration);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+                registerGauges(sourceName);
+            }
+        }
+        return pool.getDBI();
+    }
+
+    public void close() {
+        final Iterator<ConnectionPool> iterator = pools.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().close();
+            iterator.remove();
+        }
+    }
+
+    private ConnectionPool createPool(final String sourceName, final Map<String, String> configuration) {
+        // We only support Trino for direct queries today
+        Preconditions.checkArgument("trino".equals(configuration.get("type")), "Database %s is not yet supported", configuration.get("type"));
+        final Trino trino = new Trino(sourceName, configuration);
+
+        final ConnectionPool.Settings settings = new ConnectionPool.Settings(getInt(configuration, POOL_SIZE, 5),
+                                                                            getInt(configuration, POOL_MAX_WAIT_MILLIS, 30000),
+                                                                            getInt(configuration, QUERY_TIMEOUT_SECONDS, 0),
+                                                                            getInt(configuration, POOL_IDLE_TIMEOUT_SECONDS, 600) * 1000L,
+                                                                            getInt(configuration, POOL_VALIDATION_TIMEOUT_SECONDS, 5));
+        Preconditions.checkArgument(settings.getMaxSize() > 0, "%s must be positive for database %s", POOL_SIZE, sourceName);
+
+        return new ConnectionPool(sourceName,
+                                  new ConnectionFactory() {
+                                      @Override
+                                      public Connection openConnection() throws SQLException {
+                                          return trino.openConnection();
+                                      }
+                                  },
+                                  settings,
+                                  metricRegistry);
+    }
+
+    private void closeUnusedPools(final long nowMillis) {
+        final Iterator<ConnectionPool> iterator = pools.values().iterator();
+        while (iterator.hasNext()) {
+            final ConnectionPool pool = iterator.next();
+            if (pool.isUnused(nowMillis)) {
+                iterator.remove();
+                pool.close();
+            }
+        }
+    }
+
+    private void registerGauges(final String sourceName) {
+        if (sourcesWithGauges.putIfAbsent(sourceName, Boolean.TRUE) != null) {
+            return;
+        }
+
+        registerGauge(sourceName, "active", new Function<ConnectionPool, Integer>() {
+            @Override
+            public Integer apply(final ConnectionPool pool) {
+                return pool.getNbActive();
+            }
+        });
+        registerGauge(sourceName, "idle", new Function<ConnectionPool, Integer>() {
+            @Override
+            public Integer apply(final ConnectionPool pool) {
+                return pool.getNbIdle();
+            }
+        });
+        registerGauge(sourceName, "waiting", new Function<ConnectionPool, Integer>() {
+            @Override
+            public Integer apply(final ConnectionPool pool) {
+                return pool.getNbWaiting();
+            }
+        });
+    }
+
+    // Aggregated over all pools for that source name (i.e. across tenants and configuration changes)
+    private void registerGauge(final String sourceName, final String suffix, final Function<ConnectionPool, Integer> poolValue) {
+        metricRegistry.gauge(metricName(sourceName, suffix), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                int value = 0;
+                for (final Entry<Entry<String, Map<String, String>>, ConnectionPool> entry : pools.entrySet()) {
+                    if (sourceName.equals(entry.getKey().getKey())) {
+                        value += poolValue.apply(entry.getValue());
+                    }
+                }
+                return value;
+            }
+        });
+    }
+
+    private static int getInt(final Map<String, String> configuration, final String key, final int defaultValue) {
+        // Not necessarily a String, as numbers aren't quoted in the YAML configuration
+        final Object value = configuration.get(key);
+        return value == null || value.toString().trim().isEmpty() ? defaultValue : Integer.parseInt(value.toString().trim());
+    }
+}
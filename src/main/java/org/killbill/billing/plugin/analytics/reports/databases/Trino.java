@@ -24,8 +24,6 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.skife.jdbi.v2.DBI;
-
 import com.google.common.base.Preconditions;
 import io.trino.jdbc.TrinoDriver;
 
@@ -50,7 +48,7 @@ public class Trino {
         this.url = configuration.get("url");
     }
 
-    public DBI getDBI() {
-        return new DBI(url);
+    public Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(url);
     }
 }
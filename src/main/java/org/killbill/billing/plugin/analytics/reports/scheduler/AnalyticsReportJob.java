@@ -21,8 +21,10 @@ package org.killbill.billing.plugin.analytics.reports.scheduler;
 
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.RefreshStrategy;
 import org.killbill.notificationq.api.NotificationEvent;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class AnalyticsReportJob implements NotificationEvent {
@@ -34,6 +36,12 @@ public class AnalyticsReportJob implements NotificationEvent {
     private final String refreshProcedureName;
     private final Frequency refreshFrequency;
     private final Integer refreshHourOfDayGmt;
+    private final String bucketColumn;
+    private final String watermarkTableName;
+    private final String watermarkBucketColumn;
+    private final RefreshStrategy refreshStrategy;
+    private final String dependsOn;
+    private final String watchedTableNames;
 
     public AnalyticsReportJob(final ReportsConfigurationModelDao reportsConfigurationModelDao) {
         this(reportsConfigurationModelDao.getRecordId(),
@@ -42,16 +50,39 @@ public class AnalyticsReportJob implements NotificationEvent {
              reportsConfigurationModelDao.getSourceTableName(),
              reportsConfigurationModelDao.getRefreshProcedureName(),
              reportsConfigurationModelDao.getRefreshFrequency(),
-             reportsConfigurationModelDao.getRefreshHourOfDayGmt());
+             reportsConfigurationModelDao.getRefreshHourOfDayGmt(),
+             reportsConfigurationModelDao.getBucketColumn(),
+             reportsConfigurationModelDao.getWatermarkTableName(),
+             reportsConfigurationModelDao.getWatermarkBucketColumn(),
+             reportsConfigurationModelDao.getRefreshStrategy(),
+             reportsConfigurationModelDao.getDependsOn(),
+             reportsConfigurationModelDao.getWatchedTableNames());
     }
 
+    public AnalyticsReportJob(final Integer recordId,
+                              final String reportName,
+                              final String reportPrettyName,
+                              final String sourceTableName,
+                              final String refreshProcedureName,
+                              final Frequency refreshFrequency,
+                              final Integer refreshHourOfDayGmt) {
+        this(recordId, reportName, reportPrettyName, sourceTableName, refreshProcedureName, refreshFrequency, refreshHourOfDayGmt, null, null, null, null, null, null);
+    }
+
+    @JsonCreator
     public AnalyticsReportJob(@JsonProperty("recordId") final Integer recordId,
                               @JsonProperty("reportName") final String reportName,
                               @JsonProperty("reportPrettyName") final String reportPrettyName,
                               @JsonProperty("sourceTableName") final String sourceTableName,
                               @JsonProperty("refreshProcedureName") final String refreshProcedureName,
                               @JsonProperty("refreshFrequency") final Frequency refreshFrequency,
-                              @JsonProperty("refreshHourOfDayGmt") final Integer refreshHourOfDayGmt) {
+                              @JsonProperty("refreshHourOfDayGmt") final Integer refreshHourOfDayGmt,
+                              @JsonProperty("bucketColumn") final String bucketColumn,
+                              @JsonProperty("watermarkTableName") final String watermarkTableName,
+                              @JsonProperty("watermarkBucketColumn") final String watermarkBucketColumn,
+                              @JsonProperty("refreshStrategy") final RefreshStrategy refreshStrategy,
+                              @JsonProperty("dependsOn") final String dependsOn,
+                              @JsonProperty("watchedTableNames") final String watchedTableNames) {
         this.recordId = recordId;
         this.reportName = reportName;
         this.reportPrettyName = reportPrettyName;
@@ -59,6 +90,12 @@ public class AnalyticsReportJob implements NotificationEvent {
         this.refreshProcedureName = refreshProcedureName;
         this.refreshFrequency = refreshFrequency;
         this.refreshHourOfDayGmt = refreshHourOfDayGmt;
+        this.bucketColumn = bucketColumn;
+        this.watermarkTableName = watermarkTableName;
+        this.watermarkBucketColumn = watermarkBucketColumn;
+        this.refreshStrategy = refreshStrategy;
+        this.dependsOn = dependsOn;
+        this.watchedTableNames = watchedTableNames;
     }
 
     public Integer getRecordId() {
@@ -89,6 +126,30 @@ public class AnalyticsReportJob implements NotificationEvent {
         return refreshHourOfDayGmt;
     }
 
+    public String getBucketColumn() {
+        return bucketColumn;
+    }
+
+    public String getWatermarkTableName() {
+        return watermarkTableName;
+    }
+
+    public String getWatermarkBucketColumn() {
+        return watermarkBucketColumn;
+    }
+
+    public RefreshStrategy getRefreshStrategy() {
+        return refreshStrategy;
+    }
+
+    public String getDependsOn() {
+        return dependsOn;
+    }
+
+    public String getWatchedTableNames() {
+        return watchedTableNames;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("AnalyticsReportJob{");
@@ -99,6 +160,12 @@ public class AnalyticsReportJob implements NotificationEvent {
         sb.append(", refreshProcedureName='").append(refreshProcedureName).append('\'');
         sb.append(", refreshFrequency=").append(refreshFrequency);
         sb.append(", refreshHourOfDayGmt=").append(refreshHourOfDayGmt);
+        sb.append(", bucketColumn='").append(bucketColumn).append('\'');
+        sb.append(", watermarkTableName='").append(watermarkTableName).append('\'');
+        sb.append(", watermarkBucketColumn='").append(watermarkBucketColumn).append('\'');
+        sb.append(", refreshStrategy=").append(refreshStrategy);
+        sb.append(", dependsOn='").append(dependsOn).append('\'');
+        sb.append(", watchedTableNames='").append(watchedTableNames).append('\'');
         sb.append('}');
         return sb.toString();
     }
@@ -139,6 +206,24 @@ public class AnalyticsReportJob implements NotificationEvent {
         if (sourceTableName != null ? !sourceTableName.equals(that.sourceTableName) : that.sourceTableName != null) {
             return false;
         }
+        if (bucketColumn != null ? !bucketColumn.equals(that.bucketColumn) : that.bucketColumn != null) {
+            return false;
+        }
+        if (watermarkTableName != null ? !watermarkTableName.equals(that.watermarkTableName) : that.watermarkTableName != null) {
+            return false;
+        }
+        if (watermarkBucketColumn != null ? !watermarkBucketColumn.equals(that.watermarkBucketColumn) : that.watermarkBucketColumn != null) {
+            return false;
+        }
+        if (refreshStrategy != that.refreshStrategy) {
+            return false;
+        }
+        if (dependsOn != null ? !dependsOn.equals(that.dependsOn) : that.dependsOn != null) {
+            return false;
+        }
+        if (watchedTableNames != null ? !watchedTableNames.equals(that.watchedTableNames) : that.watchedTableNames != null) {
+            return false;
+        }
 
         return true;
     }
@@ -152,6 +237,12 @@ public class AnalyticsReportJob implements NotificationEvent {
         result = 31 * result + (refreshProcedureName != null ? refreshProcedureName.hashCode() : 0);
         result = 31 * result + (refreshFrequency != null ? refreshFrequency.hashCode() : 0);
         result = 31 * result + (refreshHourOfDayGmt != null ? refreshHourOfDayGmt.hashCode() : 0);
+        result = 31 * result + (bucketColumn != null ? bucketColumn.hashCode() : 0);
+        result = 31 * result + (watermarkTableName != null ? watermarkTableName.hashCode() : 0);
+        result = 31 * result + (watermarkBucketColumn != null ? watermarkBucketColumn.hashCode() : 0);
+        result = 31 * result + (refreshStrategy != null ? refreshStrategy.hashCode() : 0);
+        result = 31 * result + (dependsOn != null ? dependsOn.hashCode() : 0);
+        result = 31 * result + (watchedTableNames != null ? watchedTableNames.hashCode() : 0);
         return result;
     }
 }
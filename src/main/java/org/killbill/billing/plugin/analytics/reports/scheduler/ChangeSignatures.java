@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.killbill.clock.Clock;
+import org.skife.jdbi.v2.IDBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+/**
+ * Signatures of the analytics tables a report is computed from (watchedTableNames, or the watermark table of incremental
+ * reports), to skip its refresh when none of them changed since the last successful one.
+ * <p>
+ * The signature of a table is its max record_id and its change counter (see analytics_table_changes), both read through
+ * indexes: the refresh DAOs increment the counter of each table they write to, which catches the rows updated in place or
+ * deleted, as well as the rows inserted by transactions committing out of record_id order. Tables written by other
+ * processes don't have a counter: only their new rows are detected.
+ */
+public class ChangeSignatures {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeSignatures.class);
+
+    private static final Splitter TABLE_NAMES_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final IDBI dbi;
+    private final Clock clock;
+
+    public ChangeSignatures(final IDBI dbi, final Clock clock) {
+        this.dbi = dbi;
+        this.clock = clock;
+    }
+
+    public static List<String> getWatchedTableNames(final AnalyticsReportJob job) {
+        if (!Strings.isNullOrEmpty(job.getWatchedTableNames())) {
+            return TABLE_NAMES_SPLITTER.splitToList(job.getWatchedTableNames());
+        } else if (!Strings.isNullOrEmpty(job.getWatermarkTableName())) {
+            return ImmutableList.<String>of(job.getWatermarkTableName());
+        } else {
+            return ImmutableList.<String>of();
+        }
+    }
+
+    /**
+     * Compute the current signature of the source tables of a report
+     *
+     * @param job report job
+     * @return the signature, null if the report doesn't declare its source tables (or if it cannot be computed)
+     */
+    @Nullable
+    public String computeSignature(final AnalyticsReportJob job) {
+        final List<String> tableNames = getWatchedTableNames(job);
+        if (tableNames.isEmpty()) {
+            return null;
+        }
+
+        final ChangeSignaturesSqlDao sqlDao = dbi.onDemand(ChangeSignaturesSqlDao.class);
+        final StringBuilder signature = new StringBuilder();
+        try {
+            for (final String tableName : tableNames) {
+                if (!IDENTIFIER_PATTERN.matcher(tableName).matches()) {
+                    logger.warn("Invalid watched table name {} for report {}", tableName, job.getReportName());
+                    return null;
+                }
+                signature.append(tableName).append('=').append(sqlDao.getTableSignature(tableName)).append(';');
+            }
+        } catch (final RuntimeException e) {
+            logger.warn("Unable to compute the signature of the source tables of report {}", job.getReportName(), e);
+            return null;
+        }
+
+        logger.debug("Signature of the source tables of report {}: {}", job.getReportName(), signature);
+        return Hashing.sha256().hashString(signature, StandardCharsets.UTF_8).toString();
+    }
+
+    public boolean isUnchanged(final AnalyticsReportJob job, @Nullable final String signature) {
+        return signature != null && signature.equals(dbi.onDemand(ChangeSignaturesSqlDao.class).getSignature(job.getReportName()));
+    }
+
+    // Record the signature computed before a successful refresh (changes made during the refresh will trigger the next one)
+    public void save(final AnalyticsReportJob job, final String signature) {
+        final ChangeSignaturesSqlDao sqlDao = dbi.onDemand(ChangeSignaturesSqlDao.class);
+        // Refreshes of a given report aren't concurrent
+        if (sqlDao.updateSignature(job.getReportName(), signature, clock.getUTCNow()) == 0) {
+            sqlDao.insertSignature(job.getReportName(), signature, clock.getUTCNow());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import org.joda.time.DateTime;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator
+public interface ChangeSignaturesSqlDao {
+
+    @SqlQuery
+    public String getTableSignature(@Define("tableName") @Bind("tableName") final String tableName);
+
+    @SqlQuery
+    public String getSignature(@Bind("reportName") final String reportName);
+
+    @SqlUpdate
+    public int updateSignature(@Bind("reportName") final String reportName,
+                               @Bind("signature") final String signature,
+                               @Bind("updatedDate") final DateTime updatedDate);
+
+    @SqlUpdate
+    public void insertSignature(@Bind("reportName") final String reportName,
+                                @Bind("signature") final String signature,
+                                @Bind("updatedDate") final DateTime updatedDate);
+}
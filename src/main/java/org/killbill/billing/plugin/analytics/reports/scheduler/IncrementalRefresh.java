@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.regex.Pattern;
+
+import org.killbill.clock.Clock;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+/**
+ * Incremental materialization of a report table, used instead of its refresh procedure when the report declares
+ * a bucket column (e.g. day) and a watermark table (with its own bucket column, e.g. created_date).
+ * <p>
+ * Analytics tables are only ever inserted into (rows are deleted and re-created on refresh), so the max record_id
+ * of the watermark table captures every change. For each tenant, only the buckets touched by the rows past the last
+ * watermark are recomputed from the report view (v_ + the report table name, as for refresh procedures). The first
+ * run for a tenant rebuilds all of its rows.
+ * <p>
+ * Record ids aren't committed in order though: a row can become visible after a row with a higher record_id was seen
+ * by a previous run. Each run therefore also rescans the last safetyWindow record ids below the stored watermark, even if
+ * the watermark didn't move. The guarantee is that a row is picked up as long as, when it is committed, fewer than
+ * safetyWindow greater record ids of its tenant were already seen by a previous run (i.e. the window must cover the
+ * rows inserted while the slowest analytics transaction is in flight). Rows committed later than that are only picked
+ * up once their bucket is touched again.
+ * <p>
+ * Deleted source rows aren't detected: deleting the watermark of a report forces a full rebuild on the next run.
+ */
+public class IncrementalRefresh {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalRefresh.class);
+
+    private static final String VIEW_PREFIX = "v_";
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    // Number of record ids rescanned below the watermark, see above
+    private static final long DEFAULT_SAFETY_WINDOW = 1000;
+
+    private final IDBI dbi;
+    private final Clock clock;
+    private final long safetyWindow;
+
+    public IncrementalRefresh(final IDBI dbi, final Clock clock) {
+        this(dbi, clock, DEFAULT_SAFETY_WINDOW);
+    }
+
+    @VisibleForTesting
+    IncrementalRefresh(final IDBI dbi, final Clock clock, final long safetyWindow) {
+        Preconditions.checkArgument(safetyWindow >= 0, "safetyWindow can't be negative: %s", safetyWindow);
+        this.dbi = dbi;
+        this.clock = clock;
+        this.safetyWindow = safetyWindow;
+    }
+
+    public static boolean isIncremental(final AnalyticsReportJob job) {
+        return !Strings.isNullOrEmpty(job.getSourceTableName()) &&
+               !Strings.isNullOrEmpty(job.getBucketColumn()) &&
+               !Strings.isNullOrEmpty(job.getWatermarkTableName()) &&
+               !Strings.isNullOrEmpty(job.getWatermarkBucketColumn());
+    }
+
+    public void refresh(final AnalyticsReportJob job) {
+        Preconditions.checkArgument(isIncremental(job), "Report %s isn't configured for incremental refreshes", job.getReportName());
+        checkIdentifier(job.getSourceTableName());
+        checkIdentifier(job.getBucketColumn());
+        checkIdentifier(job.getWatermarkTableName());
+        checkIdentifier(job.getWatermarkBucketColumn());
+
+        final IncrementalRefreshSqlDao sqlDao = dbi.onDemand(IncrementalRefreshSqlDao.class);
+        for (final ReportWatermarkModelDao sourceWatermark : sqlDao.getSourceWatermarks(job.getWatermarkTableName())) {
+            refresh(job, sourceWatermark.getTenantRecordId(), sourceWatermark.getWatermark(), sqlDao);
+        }
+    }
+
+    /**
+     * @return true if the watermark moved (buckets within the safety window are recomputed regardless)
+     */
+    @VisibleForTesting
+    boolean refresh(final AnalyticsReportJob job, final Long tenantRecordId, final Long newWatermark, final IncrementalRefreshSqlDao sqlDao) {
+        return sqlDao.inTransaction(new Transaction<Boolean, IncrementalRefreshSqlDao>() {
+            @Override
+            public Boolean inTransaction(final IncrementalRefreshSqlDao transactional, final TransactionStatus status) throws Exception {
+                final String tableName = job.getSourceTableName();
+                final String viewName = VIEW_PREFIX + tableName;
+
+                final ReportWatermarkModelDao currentWatermark = transactional.getWatermark(job.getReportName(), tenantRecordId);
+                if (currentWatermark == null) {
+                    logger.info("Rebuilding report {} for tenantRecordId={} up to watermark {}", job.getReportName(), tenantRecordId, newWatermark);
+                    transactional.deleteTenant(tableName, tenantRecordId);
+                    transactional.insertTenant(tableName, viewName, tenantRecordId);
+                    transactional.insertWatermark(job.getReportName(), tenantRecordId, newWatermark, clock.getUTCNow());
+                    return true;
+                }
+
+                // Rows committed out of order since the last run are caught by the safety window
+                final boolean watermarkMoved = newWatermark > currentWatermark.getWatermark();
+                final long fromWatermark = Math.max(0, currentWatermark.getWatermark() - safetyWindow);
+                final long toWatermark = Math.max(currentWatermark.getWatermark(), newWatermark);
+                final int nbDeleted = transactional.deleteBuckets(tableName,
+                                                                  job.getBucketColumn(),
+                                                                  job.getWatermarkTableName(),
+                                                                  job.getWatermarkBucketColumn(),
+                                                                  tenantRecordId,
+                                                                  fromWatermark,
+                                                                  toWatermark);
+                transactional.insertBuckets(tableName,
+                                            viewName,
+                                            job.getBucketColumn(),
+                                            job.getWatermarkTableName(),
+                                            job.getWatermarkBucketColumn(),
+                                            tenantRecordId,
+                                            fromWatermark,
+                                            toWatermark);
+                if (!watermarkMoved) {
+                    logger.debug("Report {} for tenantRecordId={} is up to date at watermark {} ({} rows replaced in the safety window)",
+                                 job.getReportName(), tenantRecordId, currentWatermark.getWatermark(), nbDeleted);
+                    return false;
+                }
+
+                transactional.updateWatermark(job.getReportName(), tenantRecordId, newWatermark, clock.getUTCNow());
+                logger.info("Refreshed report {} for tenantRecordId={} from watermark {} to {} ({} rows replaced)",
+                            job.getReportName(), tenantRecordId, currentWatermark.getWatermark(), newWatermark, nbDeleted);
+                return true;
+            }
+        });
+    }
+
+    private static void checkIdentifier(final String identifier) {
+        Preconditions.checkArgument(IDENTIFIER_PATTERN.matcher(identifier).matches(), "Invalid identifier: %s", identifier);
+    }
+}
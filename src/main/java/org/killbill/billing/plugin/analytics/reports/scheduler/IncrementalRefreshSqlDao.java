@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator
+public interface IncrementalRefreshSqlDao extends Transactional<IncrementalRefreshSqlDao> {
+
+    @SqlQuery
+    public List<ReportWatermarkModelDao> getSourceWatermarks(@Define("watermarkTableName") final String watermarkTableName);
+
+    @SqlQuery
+    public ReportWatermarkModelDao getWatermark(@Bind("reportName") final String reportName,
+                                                @Bind("tenantRecordId") final Long tenantRecordId);
+
+    @SqlUpdate
+    public int updateWatermark(@Bind("reportName") final String reportName,
+                               @Bind("tenantRecordId") final Long tenantRecordId,
+                               @Bind("watermark") final Long watermark,
+                               @Bind("updatedDate") final DateTime updatedDate);
+
+    @SqlUpdate
+    public void insertWatermark(@Bind("reportName") final String reportName,
+                                @Bind("tenantRecordId") final Long tenantRecordId,
+                                @Bind("watermark") final Long watermark,
+                                @Bind("updatedDate") final DateTime updatedDate);
+
+    @SqlUpdate
+    public void deleteTenant(@Define("tableName") final String tableName,
+                             @Bind("tenantRecordId") final Long tenantRecordId);
+
+    @SqlUpdate
+    public void insertTenant(@Define("tableName") final String tableName,
+                             @Define("viewName") final String viewName,
+                             @Bind("tenantRecordId") final Long tenantRecordId);
+
+    @SqlUpdate
+    public int deleteBuckets(@Define("tableName") final String tableName,
+                             @Define("bucketColumn") final String bucketColumn,
+                             @Define("watermarkTableName") final String watermarkTableName,
+                             @Define("watermarkBucketColumn") final String watermarkBucketColumn,
+                             @Bind("tenantRecordId") final Long tenantRecordId,
+                             @Bind("fromWatermark") final Long fromWatermark,
+                             @Bind("toWatermark") final Long toWatermark);
+
+    @SqlUpdate
+    public void insertBuckets(@Define("tableName") final String tableName,
+                              @Define("viewName") final String viewName,
+                              @Define("bucketColumn") final String bucketColumn,
+                              @Define("watermarkTableName") final String watermarkTableName,
+                              @Define("watermarkBucketColumn") final String watermarkBucketColumn,
+                              @Bind("tenantRecordId") final Long tenantRecordId,
+                              @Bind("fromWatermark") final Long fromWatermark,
+                              @Bind("toWatermark") final Long toWatermark);
+}
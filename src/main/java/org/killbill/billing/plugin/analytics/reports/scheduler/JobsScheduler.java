@@ -21,12 +21,15 @@ package org.killbill.billing.plugin.analytics.reports.scheduler;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 
@@ -36,8 +39,10 @@ import org.killbill.billing.osgi.libs.killbill.OSGIMetricRegistry;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.RefreshStrategy;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationSqlDao;
 import org.killbill.clock.Clock;
-import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.MetricRegistry;
 import org.killbill.notificationq.DefaultNotificationQueueService;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
@@ -52,7 +57,6 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
-import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
@@ -68,6 +72,11 @@ public class JobsScheduler {
     // This is useful to retrieve all currently scheduled ones
     private static final Long JOBS_SCHEDULER_VERSION = 1L;
 
+    public static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 4;
+    private static final int HOURLY_JITTER_WINDOW_SECONDS = 10 * 60;
+    private static final int DAILY_JITTER_WINDOW_SECONDS = 30 * 60;
+    private static final String SKIPPED_METRIC_NAME = "killbill-analytics.reports.jobs.skipped";
+
     private static final Ordering<AnalyticsReportJob> ANALYTICS_REPORT_JOB_ORDERING = Ordering.from(new Comparator<AnalyticsReportJob>() {
         @Override
         public int compare(final AnalyticsReportJob o1, final AnalyticsReportJob o2) {
@@ -77,17 +86,35 @@ public class JobsScheduler {
 
     private final IDBI dbi;
     private final Clock clock;
+    private final IncrementalRefresh incrementalRefresh;
+    private final ShadowTableSwap shadowTableSwap;
+    private final ChangeSignatures changeSignatures;
+    private final MetricRegistry metricRegistry;
     private final NotificationQueue jobQueue;
+    private final List<RefreshListener> refreshListeners = new CopyOnWriteArrayList<RefreshListener>();
 
-    private ExecutorService proceduresService;
+    private final RefreshRunner refreshRunner;
 
     public JobsScheduler(final OSGIKillbillDataSource osgiKillbillDataSource,
                          final OSGIMetricRegistry metricRegistry,
                          final Clock clock,
                          final DefaultNotificationQueueService notificationQueueService) throws NotificationQueueAlreadyExists {
+        this(osgiKillbillDataSource, metricRegistry, clock, notificationQueueService, DEFAULT_MAX_CONCURRENT_REFRESHES);
+    }
+
+    public JobsScheduler(final OSGIKillbillDataSource osgiKillbillDataSource,
+                         final OSGIMetricRegistry metricRegistry,
+                         final Clock clock,
+                         final DefaultNotificationQueueService notificationQueueService,
+                         final int maxConcurrentRefreshes) throws NotificationQueueAlreadyExists {
         this.clock = clock;
+        this.metricRegistry = metricRegistry.getMetricRegistry();
+        this.refreshRunner = new RefreshRunner(maxConcurrentRefreshes, this.metricRegistry);
 
         dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource(), metricRegistry.getMetricRegistry());
+        incrementalRefresh = new IncrementalRefresh(dbi, clock);
+        shadowTableSwap = new ShadowTableSwap(dbi, osgiKillbillDataSource.getDataSource());
+        changeSignatures = new ChangeSignatures(dbi, clock);
         final NotificationQueueHandler notificationQueueHandler = new NotificationQueueHandler() {
 
             @Override
@@ -100,7 +127,7 @@ public class JobsScheduler {
                 final AnalyticsReportJob job = (AnalyticsReportJob) eventJson;
 
                 try {
-                    callStoredProcedure(job.getRefreshProcedureName());
+                    refresh(job);
                 } finally {
                     schedule(job, null);
                 }
@@ -112,15 +139,12 @@ public class JobsScheduler {
     }
 
     public void start() {
-        proceduresService = Executors.newCachedThreadPool("proceduresService");
+        refreshRunner.start();
         jobQueue.startQueue();
     }
 
     public void shutdownNow() {
-        if (proceduresService != null) {
-            proceduresService.shutdownNow();
-            proceduresService = null;
-        }
+        refreshRunner.shutdownNow();
         jobQueue.stopQueue();
     }
 
@@ -128,6 +152,10 @@ public class JobsScheduler {
         return jobQueue.isStarted();
     }
 
+    public void addRefreshListener(final RefreshListener refreshListener) {
+        refreshListeners.add(refreshListener);
+    }
+
     public void scheduleNow(final ReportsConfigurationModelDao report) {
         final AnalyticsReportJob eventJson = new AnalyticsReportJob(report);
         schedule(eventJson, clock.getUTCNow(), null);
@@ -237,41 +265,125 @@ public class JobsScheduler {
 
         if (Frequency.HOURLY.equals(report.getRefreshFrequency())) {
             // 5' past the hour (fixed to avoid drifts)
-            return now.plusHours(1).withMinuteOfHour(5).withSecondOfMinute(0).withMillisOfSecond(0);
+            final DateTime boundaryTime = now.plusHours(1).withMinuteOfHour(5).withSecondOfMinute(0).withMillisOfSecond(0);
+            return boundaryTime.plusSeconds(computeJitterSeconds(report, HOURLY_JITTER_WINDOW_SECONDS, getDependencyDepth(report)));
         } else if (Frequency.DAILY.equals(report.getRefreshFrequency())) {
             // 6am GMT by default
             final Integer hourOfTheDayGMT = MoreObjects.firstNonNull(report.getRefreshHourOfDayGmt(), 6);
             final DateTime boundaryTime = now.withHourOfDay(hourOfTheDayGMT).withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0);
-            return now.compareTo(boundaryTime) >= 0 ? boundaryTime.plusDays(1) : boundaryTime;
+            return (now.compareTo(boundaryTime) >= 0 ? boundaryTime.plusDays(1) : boundaryTime).plusSeconds(computeJitterSeconds(report, DAILY_JITTER_WINDOW_SECONDS, getDependencyDepth(report)));
         } else {
             return null;
         }
     }
 
-    private void callStoredProcedure(final String storedProcedureName) {
-        if (Strings.isNullOrEmpty(storedProcedureName)) {
-            return;
+    // Deterministic (to avoid drifts) per report offset, to spread the refreshes scheduled at the same time. Reports depending
+    // on other ones are scheduled one window per dependency level (see ReportDependencies), hence after all of their inputs.
+    @VisibleForTesting
+    static int computeJitterSeconds(final AnalyticsReportJob report, final int windowSeconds, final int dependencyDepth) {
+        final int jitterSeconds = report.getReportName() == null ? 0 : Math.floorMod(report.getReportName().hashCode(), windowSeconds);
+        return dependencyDepth * windowSeconds + jitterSeconds;
+    }
+
+    // The depth is computed from the current reports configurations, as the inputs of the report may have changed since it was scheduled
+    @VisibleForTesting
+    int getDependencyDepth(final AnalyticsReportJob report) {
+        final List<String> dependsOn = RefreshRunner.getDependsOn(report);
+        if (dependsOn.isEmpty()) {
+            return 0;
         }
 
-        Preconditions.checkState(proceduresService != null, "proceduresService isn't started yet");
+        final Map<String, List<String>> allDependsOn = ReportDependencies.getAllDependsOn(dbi.onDemand(ReportsConfigurationSqlDao.class).getAllReportsConfigurations());
+        allDependsOn.put(report.getReportName(), dependsOn);
+        try {
+            return ReportDependencies.computeDepths(allDependsOn).get(report.getReportName());
+        } catch (final IllegalArgumentException e) {
+            logger.warn("Invalid dependencies for report {}, scheduling it right after its inputs", report.getReportName(), e);
+            return 1;
+        }
+    }
 
-        // Execute the refresh in the background, to avoid having other notifications threads "steal" the IN_PROCESSING entry
-        proceduresService.execute(new Runnable() {
+    private void refresh(final AnalyticsReportJob job) {
+        if (!RefreshStrategy.SWAP.equals(job.getRefreshStrategy()) &&
+            !IncrementalRefresh.isIncremental(job) &&
+            Strings.isNullOrEmpty(job.getRefreshProcedureName())) {
+            return;
+        }
+
+        refreshRunner.submit(job, new Callable<Void>() {
             @Override
-            public void run() {
-                logger.info("Starting job for {}", storedProcedureName);
-                Handle handle = null;
-                try {
-                    handle = dbi.open();
-                    final Call call = handle.createCall("call " + storedProcedureName);
-                    call.invoke();
-                    logger.info("Ending job for {}", storedProcedureName);
-                } finally {
-                    if (handle != null) {
-                        handle.close();
-                    }
+            public Void call() throws Exception {
+                // Computed before the refresh, so that changes made in the meantime aren't missed
+                final String signature = changeSignatures.computeSignature(job);
+                if (changeSignatures.isUnchanged(job, signature)) {
+                    logger.info("Skipping job for {}: source tables unchanged", job.getReportName());
+                    metricRegistry.counter(SKIPPED_METRIC_NAME).inc(1);
+                    return null;
+                }
+
+                if (RefreshStrategy.SWAP.equals(job.getRefreshStrategy())) {
+                    swapShadowTable(job);
+                } else if (IncrementalRefresh.isIncremental(job)) {
+                    refreshIncrementally(job);
+                } else {
+                    callStoredProcedure(job);
+                }
+
+                if (signature != null) {
+                    changeSignatures.save(job, signature);
                 }
+                return null;
             }
         });
     }
+
+    private void callStoredProcedure(final AnalyticsReportJob job) {
+        final String storedProcedureName = job.getRefreshProcedureName();
+        logger.info("Starting job for {}", storedProcedureName);
+        Handle handle = null;
+        try {
+            handle = dbi.open();
+            final Call call = handle.createCall("call " + storedProcedureName);
+            call.invoke();
+            logger.info("Ending job for {}", storedProcedureName);
+            notifyRefreshListeners(job);
+        } finally {
+            if (handle != null) {
+                handle.close();
+            }
+        }
+    }
+
+    private void refreshIncrementally(final AnalyticsReportJob job) {
+        logger.info("Starting incremental job for {}", job.getReportName());
+        incrementalRefresh.refresh(job);
+        logger.info("Ending incremental job for {}", job.getReportName());
+        notifyRefreshListeners(job);
+    }
+
+    private void swapShadowTable(final AnalyticsReportJob job) throws SQLException {
+        logger.info("Starting swap job for {}", job.getReportName());
+        final String previousTableName = shadowTableSwap.swap(job);
+        logger.info("Ending swap job for {}", job.getReportName());
+        notifyRefreshListeners(job);
+
+        // Still in the background: the drop may have to wait for the last readers of the previous table
+        shadowTableSwap.dropTable(previousTableName);
+    }
+
+    private void notifyRefreshListeners(final AnalyticsReportJob job) {
+        if (Strings.isNullOrEmpty(job.getRefreshProcedureName())) {
+            return;
+        }
+
+        for (final RefreshListener refreshListener : refreshListeners) {
+            refreshListener.onRefreshCompleted(job.getRefreshProcedureName());
+        }
+    }
+
+    public interface RefreshListener {
+
+        // Invoked on the node which ran the refresh procedure
+        public void onRefreshCompleted(String refreshProcedureName);
+    }
 }
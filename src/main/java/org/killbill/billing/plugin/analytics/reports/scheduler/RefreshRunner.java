@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.metrics.api.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Background execution of the report refreshes, to avoid having other notifications threads "steal" the IN_PROCESSING entry.
+ * <p>
+ * At most maxConcurrentRefreshes refreshes run at a time, the other ones wait for their turn. Refreshes of reports depending
+ * on other ones (dependsOn) also wait for the refreshes of their inputs in progress on this node, see JobsScheduler for the
+ * scheduling of such reports (inputs refreshed by other nodes aren't waited for).
+ */
+public class RefreshRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshRunner.class);
+
+    private static final String METRIC_NAME_PREFIX = "killbill-analytics.reports.jobs.";
+    // Don't wait forever for inputs (e.g. in case of dependency cycles configured before these were rejected)
+    private static final long MAX_DEPENDENCIES_WAIT_MINUTES = 60;
+
+    private final Semaphore permits;
+    private final MetricRegistry metricRegistry;
+    // Refreshes queued or running on this node, per report name
+    private final ConcurrentMap<String, CountDownLatch> inFlightRefreshes = new ConcurrentHashMap<String, CountDownLatch>();
+
+    private ExecutorService proceduresService;
+
+    public RefreshRunner(final int maxConcurrentRefreshes, final MetricRegistry metricRegistry) {
+        Preconditions.checkArgument(maxConcurrentRefreshes > 0, "maxConcurrentRefreshes must be positive: %s", maxConcurrentRefreshes);
+        this.permits = new Semaphore(maxConcurrentRefreshes, true);
+        this.metricRegistry = metricRegistry;
+    }
+
+    public static List<String> getDependsOn(final AnalyticsReportJob job) {
+        return ReportDependencies.getDependsOn(job.getDependsOn());
+    }
+
+    public void start() {
+        // Threads are cheap here: most of them wait for a permit
+        proceduresService = Executors.newCachedThreadPool("proceduresService");
+    }
+
+    public void shutdownNow() {
+        if (proceduresService != null) {
+            proceduresService.shutdownNow();
+            proceduresService = null;
+        }
+    }
+
+    public void submit(final AnalyticsReportJob job, final Callable<Void> refresh) {
+        Preconditions.checkState(proceduresService != null, "proceduresService isn't started yet");
+
+        final long submittedNanos = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        inFlightRefreshes.put(job.getReportName(), done);
+        proceduresService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    awaitDependencies(job);
+                    permits.acquire();
+                    try {
+                        final long startNanos = System.nanoTime();
+                        metricRegistry.timer(getMetricName(job, "wait")).update(startNanos - submittedNanos, TimeUnit.NANOSECONDS);
+                        try {
+                            refresh.call();
+                        } catch (final InterruptedException e) {
+                            throw e;
+                        } catch (final Exception e) {
+                            metricRegistry.counter(getMetricName(job, "failures")).inc(1);
+                            logger.warn("Refresh of report {} failed", job.getReportName(), e);
+                        } finally {
+                            metricRegistry.timer(getMetricName(job, "duration")).update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                } catch (final InterruptedException e) {
+                    logger.info("Refresh of report {} interrupted", job.getReportName());
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlightRefreshes.remove(job.getReportName(), done);
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    private void awaitDependencies(final AnalyticsReportJob job) throws InterruptedException {
+        for (final String dependency : getDependsOn(job)) {
+            final CountDownLatch dependencyDone = inFlightRefreshes.get(dependency);
+            if (dependencyDone == null || dependency.equals(job.getReportName())) {
+                continue;
+            }
+
+            logger.info("Refresh of report {} waiting for report {}", job.getReportName(), dependency);
+            if (!dependencyDone.await(MAX_DEPENDENCIES_WAIT_MINUTES, TimeUnit.MINUTES)) {
+                logger.warn("Refresh of report {} still in progress, starting refresh of report {} anyway", dependency, job.getReportName());
+            }
+        }
+    }
+
+    private static String getMetricName(final AnalyticsReportJob job, final String metric) {
+        return METRIC_NAME_PREFIX + job.getReportName() + "." + metric;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Dependencies between reports (dependsOn). The depth of a report is 0 if it doesn't depend on any other one, 1 + the max
+ * depth of its inputs otherwise: JobsScheduler schedules each level one jitter window after the previous one.
+ * <p>
+ * Dependency cycles, and dependency chains deeper than MAX_DEPTH, are rejected when the reports are configured.
+ */
+public class ReportDependencies {
+
+    // Deeper chains of hourly reports would spill over the next run of their inputs (see JobsScheduler)
+    public static final int MAX_DEPTH = 4;
+
+    private static final Splitter DEPENDS_ON_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    public static List<String> getDependsOn(@Nullable final String dependsOn) {
+        return Strings.isNullOrEmpty(dependsOn) ? ImmutableList.<String>of() : DEPENDS_ON_SPLITTER.splitToList(dependsOn);
+    }
+
+    /**
+     * @param reports reports configurations
+     * @return the (mutable) inputs per report name
+     */
+    public static Map<String, List<String>> getAllDependsOn(final Iterable<ReportsConfigurationModelDao> reports) {
+        final Map<String, List<String>> allDependsOn = new HashMap<String, List<String>>();
+        for (final ReportsConfigurationModelDao report : reports) {
+            allDependsOn.put(report.getReportName(), getDependsOn(report.getDependsOn()));
+        }
+        return allDependsOn;
+    }
+
+    /**
+     * @param allDependsOn inputs per report name
+     * @return the depth per report name (inputs which aren't configured have a depth of 0)
+     * @throws IllegalArgumentException in case of a dependency cycle, or of a report deeper than MAX_DEPTH
+     */
+    public static Map<String, Integer> computeDepths(final Map<String, List<String>> allDependsOn) {
+        final Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (final String reportName : allDependsOn.keySet()) {
+            computeDepth(reportName, allDependsOn, depths, new LinkedHashSet<String>());
+        }
+        return depths;
+    }
+
+    private static int computeDepth(final String reportName,
+                                    final Map<String, List<String>> allDependsOn,
+                                    final Map<String, Integer> depths,
+                                    final Set<String> path) {
+        final Integer knownDepth = depths.get(reportName);
+        if (knownDepth != null) {
+            return knownDepth;
+        }
+        Preconditions.checkArgument(path.add(reportName), "Dependency cycle between reports: %s -> %s", Joiner.on(" -> ").join(path), reportName);
+
+        int depth = 0;
+        final List<String> dependsOn = allDependsOn.get(reportName);
+        if (dependsOn != null) {
+            for (final String input : dependsOn) {
+                depth = Math.max(depth, computeDepth(input, allDependsOn, depths, path) + 1);
+            }
+        }
+        Preconditions.checkArgument(depth <= MAX_DEPTH, "Report %s depends on more than %s levels of reports", reportName, MAX_DEPTH);
+
+        path.remove(reportName);
+        depths.put(reportName, depth);
+        return depth;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+// Highest source record id taken into account in a report table, for a given tenant
+public class ReportWatermarkModelDao {
+
+    private Long tenantRecordId;
+    private Long watermark;
+
+    public ReportWatermarkModelDao() { /* When reading from the database */ }
+
+    public ReportWatermarkModelDao(final Long tenantRecordId, final Long watermark) {
+        this.tenantRecordId = tenantRecordId;
+        this.watermark = watermark;
+    }
+
+    public Long getTenantRecordId() {
+        return tenantRecordId;
+    }
+
+    public Long getWatermark() {
+        return watermark;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ReportWatermarkModelDao{");
+        sb.append("tenantRecordId=").append(tenantRecordId);
+        sb.append(", watermark=").append(watermark);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.killbill.billing.plugin.dao.PluginDao;
+import org.killbill.billing.plugin.dao.PluginDao.DBEngine;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+/**
+ * Refresh of a report table by swapping in a shadow table, used instead of its refresh procedure for reports
+ * with the SWAP refresh strategy.
+ * <p>
+ * Refresh procedures delete and re-insert the report rows in a single transaction, which locks the table for the
+ * whole refresh. Instead, the shadow table (report table name + _next, with the same structure and indexes) is built
+ * from the report view (v_ + the report table name), then renamed atomically into place: RENAME TABLE on MySQL,
+ * renames within a transaction otherwise. Readers never see partial data, and the previous table (report table
+ * name + _old) is left to drop by the caller.
+ */
+public class ShadowTableSwap {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShadowTableSwap.class);
+
+    private static final String VIEW_PREFIX = "v_";
+    private static final String NEXT_TABLE_SUFFIX = "_next";
+    private static final String PREVIOUS_TABLE_SUFFIX = "_old";
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final IDBI dbi;
+    private final DataSource dataSource;
+
+    public ShadowTableSwap(final IDBI dbi, final DataSource dataSource) {
+        this.dbi = dbi;
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Build the shadow table and swap it in
+     *
+     * @param job report job
+     * @return the name of the previous table, to drop
+     * @throws SQLException if the database engine cannot be determined
+     */
+    public String swap(final AnalyticsReportJob job) throws SQLException {
+        final String tableName = job.getSourceTableName();
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(tableName), "Report %s doesn't have a source table", job.getReportName());
+        Preconditions.checkArgument(IDENTIFIER_PATTERN.matcher(tableName).matches(), "Invalid table name: %s", tableName);
+
+        final DBEngine dbEngine = PluginDao.getDBEngine(dataSource);
+        final String nextTableName = tableName + NEXT_TABLE_SUFFIX;
+        final String previousTableName = tableName + PREVIOUS_TABLE_SUFFIX;
+
+        dbi.withHandle(new HandleCallback<Void>() {
+            @Override
+            public Void withHandle(final Handle handle) throws Exception {
+                // Leftovers of a failed run
+                handle.execute("drop table if exists " + nextTableName);
+                handle.execute(getCreateShadowTableSql(dbEngine, tableName, nextTableName));
+                handle.execute("insert into " + nextTableName + " select * from " + VIEW_PREFIX + tableName);
+                logger.info("Built shadow table {}", nextTableName);
+
+                // Not dropped yet if the previous run failed, or if its asynchronous drop is still pending
+                handle.execute("drop table if exists " + previousTableName);
+                if (dbEngine == DBEngine.MYSQL) {
+                    handle.execute("rename table " + tableName + " to " + previousTableName + ", " + nextTableName + " to " + tableName);
+                } else {
+                    // DDL is transactional on PostgreSQL
+                    handle.inTransaction(new TransactionCallback<Void>() {
+                        @Override
+                        public Void inTransaction(final Handle transactional, final TransactionStatus status) throws Exception {
+                            transactional.execute("alter table " + tableName + " rename to " + previousTableName);
+                            transactional.execute("alter table " + nextTableName + " rename to " + tableName);
+                            return null;
+                        }
+                    });
+                }
+                logger.info("Swapped shadow table {} into {}", nextTableName, tableName);
+                return null;
+            }
+        });
+
+        return previousTableName;
+    }
+
+    public void dropTable(final String tableName) {
+        Preconditions.checkArgument(IDENTIFIER_PATTERN.matcher(tableName).matches(), "Invalid table name: %s", tableName);
+
+        dbi.withHandle(new HandleCallback<Void>() {
+            @Override
+            public Void withHandle(final Handle handle) throws Exception {
+                handle.execute("drop table if exists " + tableName);
+                return null;
+            }
+        });
+    }
+
+    private static String getCreateShadowTableSql(final DBEngine dbEngine, final String tableName, final String nextTableName) {
+        switch (dbEngine) {
+            case MYSQL:
+                return "create table " + nextTableName + " like " + tableName;
+            case POSTGRESQL:
+                return "create table " + nextTableName + " (like " + tableName + " including all)";
+            case H2:
+            case GENERIC:
+            default:
+                // Indexes aren't copied
+                return "create table " + nextTableName + " as select * from " + tableName + " where 1 = 0";
+        }
+    }
+}
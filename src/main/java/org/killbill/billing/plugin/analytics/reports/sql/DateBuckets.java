@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.sql;
+
+import org.jooq.Field;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+
+/**
+ * Truncation of dates to the first day of their period, as done by the Smoother: weeks start on Mondays.
+ */
+public abstract class DateBuckets {
+
+    public static Field<Object> of(final Field<Object> day, final DateGranularity dateGranularity, final SQLDialect sqlDialect) {
+        return DSL.field(template(dateGranularity, sqlDialect), Object.class, day);
+    }
+
+    private static String template(final DateGranularity dateGranularity, final SQLDialect sqlDialect) {
+        switch (sqlDialect.family()) {
+            case MARIADB:
+            case MYSQL:
+                return dateGranularity == DateGranularity.WEEKLY ? "date_sub({0}, interval weekday({0}) day)" : "date_sub({0}, interval dayofmonth({0}) - 1 day)";
+            case POSTGRES:
+                // Also used for Trino
+                return dateGranularity == DateGranularity.WEEKLY ? "cast(date_trunc('week', {0}) as date)" : "cast(date_trunc('month', {0}) as date)";
+            case H2:
+                return dateGranularity == DateGranularity.WEEKLY ? "dateadd('DAY', 1 - iso_day_of_week({0}), {0})" : "dateadd('DAY', 1 - day_of_month({0}), {0})";
+            default:
+                throw new IllegalArgumentException("Unsupported dialect: " + sqlDialect);
+        }
+    }
+}
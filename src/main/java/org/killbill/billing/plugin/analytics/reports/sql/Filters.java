@@ -43,6 +43,15 @@ public abstract class Filters {
         return buildConditionFromExpression(expression);
     }
 
+    public static Field<Object> field(final String column) {
+        Name name = DSL.name(column);
+        if (ReportsUserApi.DAY_COLUMN_NAME.equals(column)) {
+            // Reserved keyword
+            name = name.quotedName();
+        }
+        return DSL.field(name);
+    }
+
     private enum SqlMapping {
         // Order matters! See below
         GE(">="),
@@ -94,13 +103,7 @@ public abstract class Filters {
             expression = expression.replaceFirst("^[\"']", "");
             expression = expression.replaceFirst("[\"']$", "");
 
-            Name name = DSL.name(column);
-            if (ReportsUserApi.DAY_COLUMN_NAME.equals(column)) {
-                // Reserved keyword
-                name = name.quotedName();
-            }
-
-            final Field<Object> field = DSL.field(name);
+            final Field<Object> field = field(column);
             switch (sqlOp) {
                 case EQ:
                     return field.eq(expression);
@@ -23,6 +23,7 @@ import javax.sql.DataSource;
 
 import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
+import org.jooq.conf.ParamType;
 import org.jooq.conf.ParseUnknownFunctions;
 import org.jooq.conf.RenderQuotedNames;
 import org.jooq.conf.Settings;
@@ -50,6 +51,15 @@ public abstract class JooqSettings {
         return DSL.using(sqlDialect, JooqSettings.defaults(sqlDialect));
     }
 
+    // Named parameters are rendered as such (e.g. :tenantRecordId), other values are inlined
+    public static DSLContext buildParameterizedDslContext(final DBEngine dbEngine) {
+        final SQLDialect sqlDialect = SQLDialectFromDBEngine(dbEngine);
+        final Settings settings = JooqSettings.defaults(sqlDialect);
+        settings.withStatementType(StatementType.PREPARED_STATEMENT);
+        settings.withParamType(ParamType.NAMED_OR_INLINED);
+        return DSL.using(sqlDialect, settings);
+    }
+
     public static DSLContext buildDslContext(final DataSource dataSource) throws SQLException {
         final SQLDialect sqlDialect = SQLDialectFromDBEngine(PluginDao.getDBEngine(dataSource));
         return DSL.using(dataSource, sqlDialect, defaults(sqlDialect));
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+
+/**
+ * Immutable view of the currency conversion rates, indexed for fast lookups.
+ * <p>
+ * Rates are stored per currency in arrays sorted by start date (as epoch days), so that a lookup is a binary search.
+ * Instances are safe to share across threads.
+ */
+public class CurrencyConversionRates {
+
+    private static final Comparator<CurrencyConversionModelDao> START_DATE_COMPARATOR = new Comparator<CurrencyConversionModelDao>() {
+        @Override
+        public int compare(final CurrencyConversionModelDao o1, final CurrencyConversionModelDao o2) {
+            return o1.getStartDate().compareTo(o2.getStartDate());
+        }
+    };
+
+    // Map original currency -> currency conversions over time
+    private final Map<String, CurrencyRates> currencyRates;
+
+    public CurrencyConversionRates(final Map<String, ? extends List<CurrencyConversionModelDao>> currencyConversions) {
+        this.currencyRates = new HashMap<String, CurrencyRates>();
+        for (final Entry<String, ? extends List<CurrencyConversionModelDao>> entry : currencyConversions.entrySet()) {
+            currencyRates.put(entry.getKey(), new CurrencyRates(entry.getValue()));
+        }
+    }
+
+    @Nullable
+    public BigDecimal getReferenceRate(final String currency, final LocalDate effectiveDate) {
+        final CurrencyRates rates = currencyRates.get(currency);
+        if (rates == null) {
+            return null;
+        }
+        return rates.getReferenceRate(toEpochDay(effectiveDate));
+    }
+
+    private static int toEpochDay(final LocalDate date) {
+        return (int) (date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis() / DateTimeConstants.MILLIS_PER_DAY);
+    }
+
+    private static final class CurrencyRates {
+
+        private final int[] startDays;
+        private final int[] endDays;
+        // Highest end day seen so far, to stop walking back as soon as no earlier range can match
+        private final int[] maxEndDays;
+        private final BigDecimal[] referenceRates;
+
+        private CurrencyRates(final List<CurrencyConversionModelDao> currencyConversions) {
+            // Stable sort: for conversions starting on the same day, the original order is preserved
+            final List<CurrencyConversionModelDao> sortedConversions = new ArrayList<CurrencyConversionModelDao>(currencyConversions);
+            Collections.sort(sortedConversions, START_DATE_COMPARATOR);
+
+            final int nbConversions = sortedConversions.size();
+            this.startDays = new int[nbConversions];
+            this.endDays = new int[nbConversions];
+            this.maxEndDays = new int[nbConversions];
+            this.referenceRates = new BigDecimal[nbConversions];
+            for (int i = 0; i < nbConversions; i++) {
+                final CurrencyConversionModelDao currencyConversion = sortedConversions.get(i);
+                startDays[i] = toEpochDay(currencyConversion.getStartDate());
+                endDays[i] = toEpochDay(currencyConversion.getEndDate());
+                maxEndDays[i] = i == 0 ? endDays[i] : Math.max(maxEndDays[i - 1], endDays[i]);
+                referenceRates[i] = currencyConversion.getReferenceRate();
+            }
+        }
+
+        private BigDecimal getReferenceRate(final int effectiveDay) {
+            // Find the last conversion starting on or before the effective date
+            int low = 0;
+            int high = startDays.length - 1;
+            int last = -1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (startDays[mid] <= effectiveDay) {
+                    last = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            // In case of overlapping ranges, use the narrowest one (i.e. the one starting last)
+            for (int i = last; i >= 0 && maxEndDays[i] >= effectiveDay; i--) {
+                if (endDays[i] < effectiveDay) {
+                    continue;
+                }
+
+                // Amongst conversions starting on the same day, use the first one
+                int candidate = i;
+                for (int j = i - 1; j >= 0 && startDays[j] == startDays[i]; j--) {
+                    if (endDays[j] >= effectiveDay) {
+                        candidate = j;
+                    }
+                }
+                return referenceRates[candidate];
+            }
+
+            return null;
+        }
+    }
+}
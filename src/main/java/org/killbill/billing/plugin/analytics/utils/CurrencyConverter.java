@@ -38,15 +38,16 @@ public class CurrencyConverter {
 
     private final Clock clock;
     private final String referenceCurrency;
-
-    // Map original currency -> currency conversions over time
-    // TODO PIERRE Better representation (heap?)
-    private final Map<String, List<CurrencyConversionModelDao>> currencyConversions;
+    private final CurrencyConversionRates currencyConversionRates;
 
     public CurrencyConverter(final Clock clock, final String referenceCurrency, final Map<String, List<CurrencyConversionModelDao>> currencyConversions) {
+        this(clock, referenceCurrency, new CurrencyConversionRates(currencyConversions));
+    }
+
+    public CurrencyConverter(final Clock clock, final String referenceCurrency, final CurrencyConversionRates currencyConversionRates) {
         this.clock = clock;
         this.referenceCurrency = referenceCurrency;
-        this.currencyConversions = currencyConversions;
+        this.currencyConversionRates = currencyConversionRates;
     }
 
     public BigDecimal getConvertedValue(@Nullable final BigDecimal value,
@@ -62,24 +63,15 @@ public class CurrencyConverter {
             return value;
         }
 
-        if (value == null || currency == null || effectiveDate == null || currencyConversions.get(currency) == null) {
+        if (value == null || currency == null || effectiveDate == null) {
             return null;
         }
 
-        CurrencyConversionModelDao currencyConversionCandidate = null;
-        for (final CurrencyConversionModelDao currencyConversionModelDao : currencyConversions.get(currency)) {
-            if (!effectiveDate.isBefore(currencyConversionModelDao.getStartDate()) &&
-                !effectiveDate.isAfter(currencyConversionModelDao.getEndDate()) &&
-                // In case of overlapping ranges, use the narrowest one
-                (currencyConversionCandidate == null || currencyConversionModelDao.getStartDate().isAfter(currencyConversionCandidate.getStartDate()))) {
-                currencyConversionCandidate = currencyConversionModelDao;
-            }
-        }
-
-        if (currencyConversionCandidate == null) {
+        final BigDecimal referenceRate = currencyConversionRates.getReferenceRate(currency, effectiveDate);
+        if (referenceRate == null) {
             return null;
         } else {
-            return value.multiply(currencyConversionCandidate.getReferenceRate());
+            return value.multiply(referenceRate);
         }
     }
 
@@ -0,0 +1,13 @@
+create table analytics_rebuild_checkpoints (
+  record_id serial unique
+, tenant_record_id bigint /*! unsigned */ not null
+, state varchar(20) not null
+, last_account_record_id bigint /*! unsigned */ not null default 0
+, nb_accounts bigint /*! unsigned */ not null default 0
+, nb_refreshes bigint /*! unsigned */ not null default 0
+, nb_errors bigint /*! unsigned */ not null default 0
+, start_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_rebuild_checkpoints_tenant_record_id on analytics_rebuild_checkpoints(tenant_record_id);
@@ -0,0 +1 @@
+alter table analytics_reports add timeout_seconds int default null after refresh_hour_of_day_gmt;
@@ -0,0 +1 @@
+alter table analytics_reports add sort_key varchar(256) default null after timeout_seconds;
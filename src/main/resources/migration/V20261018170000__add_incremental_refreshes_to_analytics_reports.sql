@@ -0,0 +1,12 @@
+alter table analytics_reports add bucket_column varchar(256) default null after sort_key;
+alter table analytics_reports add watermark_table_name varchar(256) default null after bucket_column;
+alter table analytics_reports add watermark_bucket_column varchar(256) default null after watermark_table_name;
+create table analytics_report_watermarks (
+  record_id serial unique
+, report_name varchar(100) not null
+, tenant_record_id bigint /*! unsigned */ not null
+, watermark bigint /*! unsigned */ not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_report_watermarks_report_name_tenant_record_id on analytics_report_watermarks(report_name, tenant_record_id);
@@ -0,0 +1 @@
+alter table analytics_reports add refresh_strategy varchar(50) default null after watermark_bucket_column;
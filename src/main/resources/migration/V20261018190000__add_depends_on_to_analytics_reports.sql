@@ -0,0 +1 @@
+alter table analytics_reports add depends_on varchar(1024) default null after refresh_strategy;
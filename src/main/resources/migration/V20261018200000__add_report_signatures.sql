@@ -0,0 +1,9 @@
+alter table analytics_reports add watched_table_names varchar(1024) default null after depends_on;
+create table analytics_report_signatures (
+  record_id serial unique
+, report_name varchar(100) not null
+, signature varchar(128) not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_report_signatures_report_name on analytics_report_signatures(report_name);
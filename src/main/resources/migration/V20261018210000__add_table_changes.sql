@@ -0,0 +1,39 @@
+create table analytics_table_changes (
+  record_id serial unique
+, table_name varchar(100) not null
+, bucket smallint not null
+, nb_changes bigint /*! unsigned */ not null default 0
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_table_changes_table_name_bucket on analytics_table_changes(table_name, bucket);
+/* Change counters of the tables written by the refresh DAOs (see BusinessAnalyticsDaoBase) */
+insert into analytics_table_changes (table_name, bucket, nb_changes)
+select t.table_name, b.bucket, 0
+from (select 'analytics_subscription_transitions' as table_name
+      union all select 'analytics_bundles'
+      union all select 'analytics_accounts'
+      union all select 'analytics_account_transitions'
+      union all select 'analytics_invoices'
+      union all select 'analytics_invoice_adjustments'
+      union all select 'analytics_invoice_items'
+      union all select 'analytics_invoice_item_adjustments'
+      union all select 'analytics_invoice_credits'
+      union all select 'analytics_payment_auths'
+      union all select 'analytics_payment_captures'
+      union all select 'analytics_payment_purchases'
+      union all select 'analytics_payment_refunds'
+      union all select 'analytics_payment_credits'
+      union all select 'analytics_payment_chargebacks'
+      union all select 'analytics_payment_voids'
+      union all select 'analytics_account_tags'
+      union all select 'analytics_bundle_tags'
+      union all select 'analytics_invoice_tags'
+      union all select 'analytics_payment_tags'
+      union all select 'analytics_account_fields'
+      union all select 'analytics_bundle_fields'
+      union all select 'analytics_invoice_fields'
+      union all select 'analytics_invoice_payment_fields'
+      union all select 'analytics_payment_fields'
+      union all select 'analytics_payment_method_fields'
+      union all select 'analytics_transaction_fields') t
+cross join (select 0 as bucket union all select 1 union all select 2 union all select 3 union all select 4 union all select 5 union all select 6 union all select 7) b;
@@ -1424,6 +1424,83 @@ create table analytics_currency_conversion (
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 create index analytics_currency_conversion_dates_currencies on analytics_currency_conversion(start_date, end_date, currency, reference_currency);
 
+drop table if exists analytics_rebuild_checkpoints;
+create table analytics_rebuild_checkpoints (
+  record_id serial unique
+, tenant_record_id bigint /*! unsigned */ not null
+, state varchar(20) not null
+, last_account_record_id bigint /*! unsigned */ not null default 0
+, nb_accounts bigint /*! unsigned */ not null default 0
+, nb_refreshes bigint /*! unsigned */ not null default 0
+, nb_errors bigint /*! unsigned */ not null default 0
+, start_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_rebuild_checkpoints_tenant_record_id on analytics_rebuild_checkpoints(tenant_record_id);
+
+drop table if exists analytics_report_watermarks;
+create table analytics_report_watermarks (
+  record_id serial unique
+, report_name varchar(100) not null
+, tenant_record_id bigint /*! unsigned */ not null
+, watermark bigint /*! unsigned */ not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_report_watermarks_report_name_tenant_record_id on analytics_report_watermarks(report_name, tenant_record_id);
+
+drop table if exists analytics_report_signatures;
+create table analytics_report_signatures (
+  record_id serial unique
+, report_name varchar(100) not null
+, signature varchar(128) not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_report_signatures_report_name on analytics_report_signatures(report_name);
+
+drop table if exists analytics_table_changes;
+create table analytics_table_changes (
+  record_id serial unique
+, table_name varchar(100) not null
+, bucket smallint not null
+, nb_changes bigint /*! unsigned */ not null default 0
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index analytics_table_changes_table_name_bucket on analytics_table_changes(table_name, bucket);
+/* Change counters of the tables written by the refresh DAOs (see BusinessAnalyticsDaoBase) */
+insert into analytics_table_changes (table_name, bucket, nb_changes)
+select t.table_name, b.bucket, 0
+from (select 'analytics_subscription_transitions' as table_name
+      union all select 'analytics_bundles'
+      union all select 'analytics_accounts'
+      union all select 'analytics_account_transitions'
+      union all select 'analytics_invoices'
+      union all select 'analytics_invoice_adjustments'
+      union all select 'analytics_invoice_items'
+      union all select 'analytics_invoice_item_adjustments'
+      union all select 'analytics_invoice_credits'
+      union all select 'analytics_payment_auths'
+      union all select 'analytics_payment_captures'
+      union all select 'analytics_payment_purchases'
+      union all select 'analytics_payment_refunds'
+      union all select 'analytics_payment_credits'
+      union all select 'analytics_payment_chargebacks'
+      union all select 'analytics_payment_voids'
+      union all select 'analytics_account_tags'
+      union all select 'analytics_bundle_tags'
+      union all select 'analytics_invoice_tags'
+      union all select 'analytics_payment_tags'
+      union all select 'analytics_account_fields'
+      union all select 'analytics_bundle_fields'
+      union all select 'analytics_invoice_fields'
+      union all select 'analytics_invoice_payment_fields'
+      union all select 'analytics_payment_fields'
+      union all select 'analytics_payment_method_fields'
+      union all select 'analytics_transaction_fields') t
+cross join (select 0 as bucket union all select 1 union all select 2 union all select 3 union all select 4 union all select 5 union all select 6 union all select 7) b;
+
 drop table if exists analytics_reports;
 create table analytics_reports (
   record_id serial unique
@@ -1436,6 +1513,14 @@ create table analytics_reports (
 , refresh_procedure_name varchar(256) default null
 , refresh_frequency varchar(50) default null
 , refresh_hour_of_day_gmt smallint default null
+, timeout_seconds int default null
+, sort_key varchar(256) default null
+, bucket_column varchar(256) default null
+, watermark_table_name varchar(256) default null
+, watermark_bucket_column varchar(256) default null
+, refresh_strategy varchar(50) default null
+, depends_on varchar(1024) default null
+, watched_table_names varchar(1024) default null
 , primary key(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 create unique index analytics_reports_report_name on analytics_reports(report_name);
@@ -21,6 +21,7 @@ package org.killbill.billing.plugin.analytics;
 
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
@@ -82,6 +83,8 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseMo
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao.ItemSource;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase.ReportGroup;
+import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.utils.CurrencyConversionRates;
 import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
 import org.killbill.billing.tenant.api.TenantUserApi;
 import org.killbill.billing.util.api.AuditLevel;
@@ -115,6 +118,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.BeforeSuite;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 public abstract class AnalyticsTestSuiteNoDB {
 
@@ -667,6 +671,8 @@ public abstract class AnalyticsTestSuiteNoDB {
 
         executor = BusinessExecutor.newCachedThreadPool(osgiConfigPropertiesService);
 
+        Mockito.when(currencyConversionDao.getCurrencyConversionRates(Mockito.<String>any())).thenReturn(new CurrencyConversionRates(ImmutableMap.<String, List<CurrencyConversionModelDao>>of()));
+
         analyticsConfigurationHandler = new AnalyticsConfigurationHandler(null, AnalyticsActivator.PLUGIN_NAME, killbillAPI);
         final AnalyticsConfiguration defaultConfigurable = new AnalyticsConfiguration();
         defaultConfigurable.blacklist.add(UUID.randomUUID().toString());
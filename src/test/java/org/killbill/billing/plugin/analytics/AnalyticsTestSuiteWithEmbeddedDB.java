@@ -97,8 +97,8 @@ public abstract class AnalyticsTestSuiteWithEmbeddedDB extends AnalyticsTestSuit
                                                 osgiConfigPropertiesService,
                                                 executor,
                                                 clock,
-                                                analyticsConfigurationHandler,
-                                                null);
+                                                locker,
+                                                analyticsConfigurationHandler);
     }
 
     @AfterSuite(groups = "slow")
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicates;
+
+public class TestPendingAnalyticsJobs extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testPendingJobs() throws Exception {
+        final PendingAnalyticsJobs pendingJobs = new PendingAnalyticsJobs();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final Long accountRecordId = 12L;
+        final AnalyticsJob job = new AnalyticsJob(Group.FIELDS,
+                                                  ExtBusEventType.CUSTOM_FIELD_CREATION,
+                                                  ObjectType.CUSTOM_FIELD,
+                                                  UUID.randomUUID(),
+                                                  UUID.randomUUID(),
+                                                  UUID.randomUUID());
+
+        Assert.assertFalse(pendingJobs.hasPendingJob(accountRecordId, null, Predicates.<AnalyticsJob>alwaysTrue(), now));
+        Assert.assertFalse(pendingJobs.hasPendingJob(null, null, Predicates.<AnalyticsJob>alwaysTrue(), now));
+
+        final UUID userToken = UUID.randomUUID();
+        pendingJobs.add(accountRecordId, userToken, job, now.plusSeconds(10), now);
+        Assert.assertTrue(pendingJobs.hasPendingJob(accountRecordId, null, Predicates.<AnalyticsJob>alwaysTrue(), now));
+        Assert.assertFalse(pendingJobs.hasPendingJob(accountRecordId, null, Predicates.<AnalyticsJob>alwaysFalse(), now));
+        Assert.assertFalse(pendingJobs.hasPendingJob(accountRecordId, userToken, Predicates.<AnalyticsJob>alwaysTrue(), now));
+        Assert.assertFalse(pendingJobs.hasPendingJob(accountRecordId + 1, null, Predicates.<AnalyticsJob>alwaysTrue(), now));
+
+        // Not trusted anymore past its effective date
+        Assert.assertFalse(pendingJobs.hasPendingJob(accountRecordId, null, Predicates.<AnalyticsJob>alwaysTrue(), now.plusSeconds(10)));
+
+        pendingJobs.remove(accountRecordId, userToken);
+        Assert.assertFalse(pendingJobs.hasPendingJob(accountRecordId, null, Predicates.<AnalyticsJob>alwaysTrue(), now));
+    }
+}
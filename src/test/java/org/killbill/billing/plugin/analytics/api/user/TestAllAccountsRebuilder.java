@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.api.user;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.api.RefreshResult;
+import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao.RebuildState;
+import org.killbill.commons.locker.GlobalLock;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.killbill.billing.plugin.analytics.AnalyticsListener.ANALYTICS_REFRESH_LOCK_NAME;
+
+public class TestAllAccountsRebuilder extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testRebuildWaitsForRefreshLock() throws Exception {
+        final AllBusinessObjectsDao allBusinessObjectsDao = Mockito.mock(AllBusinessObjectsDao.class);
+        final AllAccountsRebuilder rebuilder = new AllAccountsRebuilder(killbillAPI,
+                                                                        killbillDataSource,
+                                                                        metricRegistry,
+                                                                        osgiConfigPropertiesService,
+                                                                        clock,
+                                                                        locker,
+                                                                        analyticsConfigurationHandler,
+                                                                        allBusinessObjectsDao,
+                                                                        currencyConversionDao);
+        final AllAccountsRebuilder.RebuildProgress progress = new AllAccountsRebuilder.RebuildProgress(1L, 0L, 0L, 0L, clock.getUTCNow());
+
+        // A refresh of that account is in progress
+        final GlobalLock lock = locker.lockWithNumberOfTries(ANALYTICS_REFRESH_LOCK_NAME, account.getId().toString(), 1);
+        final Thread rebuild = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rebuilder.rebuildAccount(account.getId(), progress, callContext);
+            }
+        });
+        try {
+            rebuild.start();
+            Thread.sleep(500);
+
+            // The rebuild waits for it
+            Assert.assertTrue(rebuild.isAlive());
+            Mockito.verify(allBusinessObjectsDao, Mockito.never()).update(Mockito.<BusinessContextFactory>any());
+        } finally {
+            lock.release();
+        }
+
+        rebuild.join(10000);
+        Assert.assertFalse(rebuild.isAlive());
+        Mockito.verify(allBusinessObjectsDao, Mockito.times(1)).update(Mockito.<BusinessContextFactory>any());
+        // The lock has been released
+        Assert.assertTrue(locker.isFree(ANALYTICS_REFRESH_LOCK_NAME, account.getId().toString()));
+
+        rebuilder.shutdownNow();
+    }
+
+    @Test(groups = "slow")
+    public void testRebuildRunningOnAnotherNode() throws Exception {
+        final AllBusinessObjectsDao allBusinessObjectsDao = Mockito.mock(AllBusinessObjectsDao.class);
+        final AllAccountsRebuilder rebuilder = new AllAccountsRebuilder(killbillAPI,
+                                                                        killbillDataSource,
+                                                                        metricRegistry,
+                                                                        osgiConfigPropertiesService,
+                                                                        clock,
+                                                                        locker,
+                                                                        analyticsConfigurationHandler,
+                                                                        allBusinessObjectsDao,
+                                                                        currencyConversionDao);
+
+        // Another node owns the rebuild of that tenant
+        final GlobalLock lock = locker.lockWithNumberOfTries(AllAccountsRebuilder.ANALYTICS_REBUILD_LOCK_NAME, tenantRecordId.toString(), 1);
+        try {
+            final RefreshResult refreshResult = rebuilder.rebuildAllAccounts(callContext);
+            Assert.assertEquals(refreshResult.getState(), RebuildState.RUNNING.toString());
+            Mockito.verify(allBusinessObjectsDao, Mockito.never()).update(Mockito.<BusinessContextFactory>any());
+        } finally {
+            lock.release();
+        }
+
+        rebuilder.shutdownNow();
+    }
+}
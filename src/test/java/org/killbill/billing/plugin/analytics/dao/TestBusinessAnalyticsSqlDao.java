@@ -20,11 +20,13 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.math.BigDecimal;
+import java.util.List;
 
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.invoice.api.InvoicePaymentType;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
@@ -40,6 +42,7 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoicePaymentFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoicePaymentTagModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceTagModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase.ReportGroup;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscription;
@@ -47,9 +50,16 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionEvent
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessTagModelDao;
 import org.mockito.Mockito;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
 public class TestBusinessAnalyticsSqlDao extends AnalyticsTestSuiteWithEmbeddedDB {
 
     @Test(groups = "slow")
@@ -485,4 +495,91 @@ public class TestBusinessAnalyticsSqlDao extends AnalyticsTestSuiteWithEmbeddedD
         analyticsSqlDao.deleteByAccountRecordId(businessTagModelDao.getTableName(), accountRecordId, tenantRecordId, callContext);
         Assert.assertEquals(analyticsSqlDao.getInvoicePaymentTagsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 0);
     }
+
+    @Test(groups = "slow")
+    public void testCreateInBatches() throws Exception {
+        final OSGIConfigPropertiesService configPropertiesService = Mockito.mock(OSGIConfigPropertiesService.class);
+        Mockito.when(configPropertiesService.getString("org.killbill.billing.plugin.analytics.refresh.writeBatchSize")).thenReturn("2");
+        final BusinessAnalyticsDaoBase businessAnalyticsDaoBase = new BusinessAnalyticsDaoBase(killbillDataSource, metricRegistry, configPropertiesService);
+
+        // 3 rows for the first table (i.e. 2 batches) and 1 for the second one
+        final List<BusinessFieldModelDao> businessFieldModelDaos = ImmutableList.<BusinessFieldModelDao>of(new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId, auditLog, tenantRecordId, reportGroup),
+                                                                                                           new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId + 1, auditLog, tenantRecordId, reportGroup),
+                                                                                                           new BusinessInvoiceFieldModelDao(account, accountRecordId, customField, fieldRecordId, auditLog, tenantRecordId, reportGroup),
+                                                                                                           new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId + 2, auditLog, tenantRecordId, reportGroup));
+        businessAnalyticsDaoBase.executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                businessAnalyticsDaoBase.createInTransaction(transactional, businessFieldModelDaos, callContext);
+                return null;
+            }
+        });
+
+        final List<BusinessAccountFieldModelDao> accountFields = analyticsSqlDao.getAccountFieldsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+        Assert.assertEquals(accountFields.size(), 3);
+        Assert.assertEqualsNoOrder(accountFields.toArray(), new Object[]{businessFieldModelDaos.get(0), businessFieldModelDaos.get(1), businessFieldModelDaos.get(3)});
+        final List<BusinessInvoiceFieldModelDao> invoiceFields = analyticsSqlDao.getInvoiceFieldsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+        Assert.assertEquals(invoiceFields.size(), 1);
+        Assert.assertEquals(invoiceFields.get(0), businessFieldModelDaos.get(2));
+    }
+
+    @Test(groups = "slow")
+    public void testUpsertOnlyWritesModifiedRows() throws Exception {
+        final OSGIConfigPropertiesService configPropertiesService = Mockito.mock(OSGIConfigPropertiesService.class);
+        Mockito.when(configPropertiesService.getString("org.killbill.billing.plugin.analytics.refresh.diffMode")).thenReturn("true");
+        final BusinessAnalyticsDaoBase businessAnalyticsDaoBase = new BusinessAnalyticsDaoBase(killbillDataSource, metricRegistry, configPropertiesService);
+        Assert.assertTrue(businessAnalyticsDaoBase.isDiffModeEnabled());
+
+        final BusinessAccountFieldModelDao unchangedField = new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId, auditLog, tenantRecordId, reportGroup);
+        final BusinessAccountFieldModelDao modifiedField = new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId + 1, auditLog, tenantRecordId, reportGroup);
+        final BusinessAccountFieldModelDao deletedField = new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId + 2, auditLog, tenantRecordId, reportGroup);
+        businessAnalyticsDaoBase.executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                businessAnalyticsDaoBase.createInTransaction(transactional, ImmutableList.<BusinessFieldModelDao>of(unchangedField, modifiedField, deletedField), callContext);
+                return null;
+            }
+        });
+        final List<BusinessAccountFieldModelDao> initialAccountFields = analyticsSqlDao.getAccountFieldsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+        final Long unchangedFieldRecordId = findByCustomFieldRecordId(initialAccountFields, fieldRecordId).getRecordId();
+        final Long modifiedFieldRecordId = findByCustomFieldRecordId(initialAccountFields, fieldRecordId + 1).getRecordId();
+
+        final BusinessAccountFieldModelDao updatedField = new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId + 1, auditLog, tenantRecordId, ReportGroup.test);
+        final BusinessAccountFieldModelDao insertedField = new BusinessAccountFieldModelDao(account, accountRecordId, customField, fieldRecordId + 3, auditLog, tenantRecordId, reportGroup);
+        businessAnalyticsDaoBase.executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                businessAnalyticsDaoBase.upsertInTransaction(transactional,
+                                                             transactional.getAccountFieldsByAccountRecordId(accountRecordId, tenantRecordId, callContext),
+                                                             ImmutableList.<BusinessAccountFieldModelDao>of(unchangedField, updatedField, insertedField),
+                                                             new Function<BusinessAccountFieldModelDao, Long>() {
+                                                                 @Override
+                                                                 public Long apply(final BusinessAccountFieldModelDao input) {
+                                                                     return input.getCustomFieldRecordId();
+                                                                 }
+                                                             },
+                                                             tenantRecordId,
+                                                             callContext);
+                return null;
+            }
+        });
+
+        final List<BusinessAccountFieldModelDao> accountFields = analyticsSqlDao.getAccountFieldsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+        Assert.assertEquals(accountFields.size(), 3);
+        Assert.assertEqualsNoOrder(accountFields.toArray(), new Object[]{unchangedField, updatedField, insertedField});
+        // The unchanged row shouldn't have been re-written
+        Assert.assertEquals(findByCustomFieldRecordId(accountFields, fieldRecordId).getRecordId(), unchangedFieldRecordId);
+        // The modified row should have been updated in place
+        Assert.assertEquals(findByCustomFieldRecordId(accountFields, fieldRecordId + 1).getRecordId(), modifiedFieldRecordId);
+    }
+
+    private BusinessAccountFieldModelDao findByCustomFieldRecordId(final Iterable<BusinessAccountFieldModelDao> accountFields, final Long customFieldRecordId) {
+        return Iterables.find(accountFields,
+                              new Predicate<BusinessAccountFieldModelDao>() {
+                                  @Override
+                                  public boolean apply(final BusinessAccountFieldModelDao input) {
+                                      return customFieldRecordId.equals(input.getCustomFieldRecordId());
+                                  }
+                              });
+    }
 }
@@ -52,13 +52,16 @@ public class TestBusinessInvoiceDao extends AnalyticsTestSuiteWithEmbeddedDB {
 
     @BeforeMethod(groups = "slow")
     public void set2Up() {
-        final BusinessAccountDao businessAccountDao = new BusinessAccountDao(killbillDataSource, metricRegistry);
+        final BusinessAccountDao businessAccountDao = new BusinessAccountDao(killbillDataSource, metricRegistry, osgiConfigPropertiesService);
         businessInvoiceDao = new BusinessInvoiceDao(killbillDataSource,
                                                     metricRegistry,
+                                                    osgiConfigPropertiesService,
                                                     businessAccountDao,
                                                     executor);
         businessInvoiceAndPaymentDao = new BusinessInvoiceAndPaymentDao(killbillDataSource,
-                                                                        metricRegistry, businessAccountDao,
+                                                                        metricRegistry,
+                                                                        osgiConfigPropertiesService,
+                                                                        businessAccountDao,
                                                                         executor);
     }
 
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessRebuildCheckpointModelDao.RebuildState;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestBusinessRebuildDao extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testCheckpoints() throws Exception {
+        final BusinessRebuildDao dao = new BusinessRebuildDao(killbillDataSource, metricRegistry);
+        Assert.assertNull(dao.getCheckpoint(tenantRecordId));
+
+        final DateTime startDate = new DateTime(2013, 5, 1, 10, 0, 0, DateTimeZone.UTC);
+        dao.startCheckpoint(tenantRecordId, 1000L, startDate);
+        final BusinessRebuildCheckpointModelDao started = dao.getCheckpoint(tenantRecordId);
+        Assert.assertEquals(started.getState(), RebuildState.RUNNING);
+        Assert.assertEquals(started.getLastAccountRecordId(), (Long) 0L);
+        Assert.assertEquals(started.getNbAccounts(), (Long) 1000L);
+        Assert.assertEquals(started.getNbRefreshes(), (Long) 0L);
+        Assert.assertEquals(started.getNbErrors(), (Long) 0L);
+        Assert.assertEquals(started.getStartDate().compareTo(startDate), 0);
+
+        final DateTime updatedDate = startDate.plusMinutes(5);
+        dao.updateCheckpoint(tenantRecordId, RebuildState.RUNNING, 150L, 98L, 2L, updatedDate);
+        final BusinessRebuildCheckpointModelDao updated = dao.getCheckpoint(tenantRecordId);
+        Assert.assertEquals(updated.getState(), RebuildState.RUNNING);
+        Assert.assertEquals(updated.getLastAccountRecordId(), (Long) 150L);
+        Assert.assertEquals(updated.getNbRefreshes(), (Long) 98L);
+        Assert.assertEquals(updated.getNbErrors(), (Long) 2L);
+        Assert.assertEquals(updated.getUpdatedDate().compareTo(updatedDate), 0);
+
+        dao.updateCheckpoint(tenantRecordId, RebuildState.COMPLETED, 2000L, 998L, 2L, updatedDate.plusMinutes(30));
+        Assert.assertEquals(dao.getCheckpoint(tenantRecordId).getState(), RebuildState.COMPLETED);
+
+        // Restart
+        dao.startCheckpoint(tenantRecordId, 1200L, startDate.plusDays(1));
+        final BusinessRebuildCheckpointModelDao restarted = dao.getCheckpoint(tenantRecordId);
+        Assert.assertEquals(restarted.getRecordId(), started.getRecordId());
+        Assert.assertEquals(restarted.getState(), RebuildState.RUNNING);
+        Assert.assertEquals(restarted.getLastAccountRecordId(), (Long) 0L);
+        Assert.assertEquals(restarted.getNbAccounts(), (Long) 1200L);
+        Assert.assertEquals(restarted.getNbRefreshes(), (Long) 0L);
+    }
+}
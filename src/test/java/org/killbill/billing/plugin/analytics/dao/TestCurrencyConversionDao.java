@@ -24,6 +24,7 @@ import java.math.BigDecimal;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
 import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.utils.CurrencyConversionRates;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -50,4 +51,28 @@ public class TestCurrencyConversionDao extends AnalyticsTestSuiteWithEmbeddedDB
         Assert.assertEquals(found.getReferenceRate(), new BigDecimal("1.2983"));
         Assert.assertEquals(found.getReferenceCurrency(), "USD");
     }
+
+    @Test(groups = "slow")
+    public void testCurrencyConversionRatesCache() throws Exception {
+        final CurrencyConversionDao dao = new CurrencyConversionDao(killbillDataSource, metricRegistry);
+        final CurrencyConversionDao otherDao = new CurrencyConversionDao(killbillDataSource, metricRegistry);
+
+        final CurrencyConversionRates noRates = dao.getCurrencyConversionRates("USD");
+        Assert.assertNull(noRates.getReferenceRate("EUR", new LocalDate(2013, 5, 5)));
+
+        dao.addCurrencyConversion("EUR", new LocalDate(2013, 5, 1), new LocalDate(2013, 7, 1), new BigDecimal("1.2983"), "USD");
+
+        final CurrencyConversionRates rates = dao.getCurrencyConversionRates("USD");
+        Assert.assertNotSame(rates, noRates);
+        Assert.assertEquals(rates.getReferenceRate("EUR", new LocalDate(2013, 5, 5)).compareTo(new BigDecimal("1.2983")), 0);
+        // Cached and shared across instances
+        Assert.assertSame(dao.getCurrencyConversionRates("USD"), rates);
+        Assert.assertSame(otherDao.getCurrencyConversionRates("USD"), rates);
+
+        // Writes from another instance are seen
+        otherDao.addCurrencyConversion("EUR", new LocalDate(2013, 7, 2), new LocalDate(2013, 8, 1), new BigDecimal("1.3"), "USD");
+        final CurrencyConversionRates updatedRates = dao.getCurrencyConversionRates("USD");
+        Assert.assertNotSame(updatedRates, rates);
+        Assert.assertEquals(updatedRates.getReferenceRate("EUR", new LocalDate(2013, 7, 15)).compareTo(new BigDecimal("1.3")), 0);
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.api.BusinessSnapshot;
+import org.killbill.commons.locker.GlobalLock;
+import org.killbill.commons.locker.LockFailedException;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import static org.killbill.billing.plugin.analytics.AnalyticsListener.ANALYTICS_REFRESH_LOCK_NAME;
+
+public class TestWriteBehindPipeline extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    private BusinessAnalyticsDaoBase businessAnalyticsDao;
+    private BusinessInvoiceDao businessInvoiceDao;
+
+    @BeforeMethod(groups = "slow")
+    public void set2Up() {
+        businessAnalyticsDao = new BusinessAnalyticsDaoBase(killbillDataSource, metricRegistry);
+        final BusinessAccountDao businessAccountDao = new BusinessAccountDao(killbillDataSource, metricRegistry, osgiConfigPropertiesService);
+        businessInvoiceDao = new BusinessInvoiceDao(killbillDataSource,
+                                                    metricRegistry,
+                                                    osgiConfigPropertiesService,
+                                                    businessAccountDao,
+                                                    executor);
+    }
+
+    @Test(groups = "slow")
+    public void testWriteAndShutdown() throws Exception {
+        final WriteBehindPipeline pipeline = new WriteBehindPipeline(businessAnalyticsDao, locker, metricRegistry.getMetricRegistry(), 2, 10, 10);
+
+        // Returns once committed
+        pipeline.write(account.getId(), 1, new InvoiceWriteSet());
+        final BusinessSnapshot businessSnapshot = analyticsUserApi.getBusinessSnapshot(account.getId(), callContext);
+        Assert.assertEquals(businessSnapshot.getBusinessAccount().getAccountId(), account.getId());
+        Assert.assertEquals(businessSnapshot.getBusinessInvoices().size(), 1);
+        Assert.assertTrue(locker.isFree(ANALYTICS_REFRESH_LOCK_NAME, account.getId().toString()));
+
+        Assert.assertTrue(pipeline.shutdown());
+        try {
+            pipeline.write(account.getId(), 1, new InvoiceWriteSet());
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testPerAccountOrdering() throws Exception {
+        final WriteBehindPipeline pipeline = new WriteBehindPipeline(businessAnalyticsDao, locker, metricRegistry.getMetricRegistry(), 3, 2, 5);
+
+        final UUID accountId = UUID.randomUUID();
+        // Incremented when the records are computed
+        final AtomicInteger states = new AtomicInteger();
+        final List<Integer> writes = new LinkedList<Integer>();
+        final ExecutorService consumers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new LinkedList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(consumers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 10; j++) {
+                            pipeline.write(accountId,
+                                           1000,
+                                           new Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>>() {
+                                               @Override
+                                               public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() {
+                                                   return new RecordingWriteSet(writes, states.getAndIncrement()).call();
+                                               }
+                                           });
+                            // Other accounts, going to any writer
+                            pipeline.write(UUID.randomUUID(), 1, new RecordingWriteSet(new LinkedList<Integer>(), j));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            consumers.shutdownNow();
+        }
+        Assert.assertTrue(pipeline.shutdown());
+
+        // Records computed from a more recent state are never overwritten by older ones
+        Assert.assertEquals(writes.size(), 40);
+        Assert.assertTrue(Ordering.<Integer>natural().isStrictlyOrdered(writes), writes.toString());
+    }
+
+    @Test(groups = "slow")
+    public void testFailureIsolation() throws Exception {
+        final WriteBehindPipeline pipeline = new WriteBehindPipeline(businessAnalyticsDao, locker, metricRegistry.getMetricRegistry(), 1, 10, 10);
+
+        final Transaction<Void, BusinessAnalyticsSqlDao> failingTransaction = new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                throw new IllegalStateException("Bad account");
+            }
+        };
+        final WriteBehindPipeline.WriteSet goodWriteSet = new WriteBehindPipeline.WriteSet(account.getId(), new InvoiceWriteSet().call());
+        final WriteBehindPipeline.WriteSet badWriteSet = new WriteBehindPipeline.WriteSet(UUID.randomUUID(), ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(failingTransaction));
+
+        // The shared transaction is rolled back, but the good write set is retried on its own
+        pipeline.commit(ImmutableList.<WriteBehindPipeline.WriteSet>of(goodWriteSet, badWriteSet));
+        goodWriteSet.getCommitted().get();
+        try {
+            badWriteSet.getCommitted().get();
+            Assert.fail();
+        } catch (final ExecutionException e) {
+            // Expected
+        }
+
+        final BusinessSnapshot businessSnapshot = analyticsUserApi.getBusinessSnapshot(account.getId(), callContext);
+        Assert.assertEquals(businessSnapshot.getBusinessAccount().getAccountId(), account.getId());
+        Assert.assertEquals(businessSnapshot.getBusinessInvoices().size(), 1);
+
+        // The failure is reported to the caller, so that the refresh isn't acknowledged
+        try {
+            pipeline.write(UUID.randomUUID(),
+                           1,
+                           new Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>>() {
+                               @Override
+                               public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() {
+                                   return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(failingTransaction);
+                               }
+                           });
+            Assert.fail();
+        } catch (final RuntimeException e) {
+            // Expected
+        }
+        Assert.assertTrue(pipeline.shutdown());
+    }
+
+    @Test(groups = "slow")
+    public void testLockHeldUntilCommit() throws Exception {
+        final WriteBehindPipeline pipeline = new WriteBehindPipeline(businessAnalyticsDao, locker, metricRegistry.getMetricRegistry(), 1, 10, 10);
+
+        // Refresh in progress, on this node or another one
+        final ExecutorService otherRefresh = Executors.newSingleThreadExecutor();
+        final GlobalLock lock = otherRefresh.submit(new Callable<GlobalLock>() {
+            @Override
+            public GlobalLock call() throws Exception {
+                return locker.lockWithNumberOfTries(ANALYTICS_REFRESH_LOCK_NAME, account.getId().toString(), 1);
+            }
+        }).get();
+        final AtomicBoolean computed = new AtomicBoolean(false);
+        try {
+            pipeline.write(account.getId(),
+                           1,
+                           new Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>>() {
+                               @Override
+                               public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() {
+                                   computed.set(true);
+                                   return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of();
+                               }
+                           });
+            Assert.fail();
+        } catch (final LockFailedException e) {
+            // Expected: the caller reschedules the refresh
+            Assert.assertFalse(computed.get());
+        } finally {
+            otherRefresh.submit(new Runnable() {
+                @Override
+                public void run() {
+                    lock.release();
+                }
+            }).get();
+            otherRefresh.shutdown();
+            otherRefresh.awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        // The writer commits while the caller holds the lock
+        final AtomicBoolean lockedWhileCommitting = new AtomicBoolean(false);
+        pipeline.write(account.getId(),
+                       1,
+                       new Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>>() {
+                           @Override
+                           public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() {
+                               return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                                   @Override
+                                   public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                                       lockedWhileCommitting.set(!locker.isFree(ANALYTICS_REFRESH_LOCK_NAME, account.getId().toString()));
+                                       return null;
+                                   }
+                               });
+                           }
+                       });
+        Assert.assertTrue(lockedWhileCommitting.get());
+        Assert.assertTrue(locker.isFree(ANALYTICS_REFRESH_LOCK_NAME, account.getId().toString()));
+        Assert.assertTrue(pipeline.shutdown());
+    }
+
+    private final class InvoiceWriteSet implements Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>> {
+
+        @Override
+        public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() throws Exception {
+            return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(businessInvoiceDao.prepareUpdate(invoice.getId(), businessContextFactory));
+        }
+    }
+
+    // Records i when written
+    private static final class RecordingWriteSet implements Callable<List<Transaction<Void, BusinessAnalyticsSqlDao>>>, Transaction<Void, BusinessAnalyticsSqlDao> {
+
+        private final List<Integer> writes;
+        private final int i;
+
+        private RecordingWriteSet(final List<Integer> writes, final int i) {
+            this.writes = writes;
+            this.i = i;
+        }
+
+        @Override
+        public List<Transaction<Void, BusinessAnalyticsSqlDao>> call() {
+            return ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(this);
+        }
+
+        @Override
+        public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+            synchronized (writes) {
+                writes.add(i);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.util.api.AuditLevel;
+import org.killbill.billing.util.api.AuditUserApi;
+import org.killbill.billing.util.audit.AuditLog;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+public class TestAccountAuditLogsStore extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testConcurrentLookups() throws Exception {
+        final Multimap<ObjectType, UUID> invoiceItemIds = HashMultimap.<ObjectType, UUID>create();
+        for (int i = 0; i < 100; i++) {
+            invoiceItemIds.put(ObjectType.INVOICE_ITEM, UUID.randomUUID());
+        }
+
+        final AccountAuditLogsStore accountAuditLogsStore = new AccountAuditLogsStore(killbillAPI, account.getId(), callContext, Suppliers.<Multimap<ObjectType, UUID>>ofInstance(invoiceItemIds));
+        final AccountAuditLogsSnapshot snapshot = accountAuditLogsStore.getSnapshot();
+
+        // The known objects are indexed when the snapshot is built
+        for (final UUID invoiceItemId : invoiceItemIds.values()) {
+            Assert.assertTrue(snapshot.isIndexed(ObjectType.INVOICE_ITEM, invoiceItemId));
+            Mockito.verify(accountAuditLogs, Mockito.times(1)).getAuditLogsForInvoiceItem(invoiceItemId);
+        }
+
+        final List<Future<AuditLog>> futures = new LinkedList<Future<AuditLog>>();
+        for (int i = 0; i < 4; i++) {
+            for (final UUID invoiceItemId : invoiceItemIds.values()) {
+                futures.add(executor.submit(new Callable<AuditLog>() {
+                    @Override
+                    public AuditLog call() {
+                        return snapshot.getCreationAuditLog(ObjectType.INVOICE_ITEM, invoiceItemId);
+                    }
+                }));
+            }
+        }
+        for (final Future<AuditLog> future : futures) {
+            Assert.assertEquals(future.get(), auditLog);
+        }
+
+        // Lookups don't hit the underlying audit logs
+        for (final UUID invoiceItemId : invoiceItemIds.values()) {
+            Mockito.verify(accountAuditLogs, Mockito.times(1)).getAuditLogsForInvoiceItem(invoiceItemId);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshForMissingObject() throws Exception {
+        final AccountAuditLogsStore accountAuditLogsStore = new AccountAuditLogsStore(killbillAPI, account.getId(), callContext);
+        final AuditUserApi auditUserApi = killbillAPI.getAuditUserApi();
+
+        final UUID invoiceItemId = UUID.randomUUID();
+        final AccountAuditLogsSnapshot snapshot = accountAuditLogsStore.getSnapshot();
+        Assert.assertFalse(snapshot.isIndexed(ObjectType.INVOICE_ITEM, invoiceItemId));
+        Assert.assertNull(snapshot.getCreationAuditLog(ObjectType.INVOICE_ITEM, invoiceItemId));
+
+        // The new snapshot indexes the missing object, and is re-used by threads looking it up against the stale snapshot
+        final AccountAuditLogsSnapshot refreshedSnapshot = accountAuditLogsStore.refresh(snapshot, ObjectType.INVOICE_ITEM, invoiceItemId);
+        Assert.assertNotSame(refreshedSnapshot, snapshot);
+        Assert.assertEquals(refreshedSnapshot.getCreationAuditLog(ObjectType.INVOICE_ITEM, invoiceItemId), auditLog);
+        Assert.assertSame(accountAuditLogsStore.refresh(snapshot, ObjectType.INVOICE_ITEM, invoiceItemId), refreshedSnapshot);
+        Mockito.verify(auditUserApi, Mockito.times(2)).getAccountAuditLogs(Mockito.<UUID>any(), Mockito.<AuditLevel>any(), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testRefresh() throws Exception {
+        final AccountAuditLogsStore accountAuditLogsStore = new AccountAuditLogsStore(killbillAPI, account.getId(), callContext);
+        final AuditUserApi auditUserApi = killbillAPI.getAuditUserApi();
+
+        final AccountAuditLogsSnapshot snapshot = accountAuditLogsStore.getSnapshot();
+        Assert.assertSame(accountAuditLogsStore.getSnapshot(), snapshot);
+        Mockito.verify(auditUserApi, Mockito.times(1)).getAccountAuditLogs(Mockito.<UUID>any(), Mockito.<AuditLevel>any(), Mockito.<TenantContext>any());
+
+        // The first thread noticing the stale snapshot fetches a new one, others re-use it
+        final AccountAuditLogsSnapshot refreshedSnapshot = accountAuditLogsStore.refresh(snapshot);
+        Assert.assertNotSame(refreshedSnapshot, snapshot);
+        Assert.assertSame(accountAuditLogsStore.refresh(snapshot), refreshedSnapshot);
+        Assert.assertSame(accountAuditLogsStore.getSnapshot(), refreshedSnapshot);
+        Mockito.verify(auditUserApi, Mockito.times(2)).getAccountAuditLogs(Mockito.<UUID>any(), Mockito.<AuditLevel>any(), Mockito.<TenantContext>any());
+    }
+}
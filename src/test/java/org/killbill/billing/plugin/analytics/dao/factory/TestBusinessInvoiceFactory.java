@@ -20,6 +20,7 @@
 package org.killbill.billing.plugin.analytics.dao.factory;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.Map;
 import java.util.UUID;
 
@@ -28,6 +29,7 @@ import javax.sql.DataSource;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.entitlement.api.Subscription;
 import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.api.InvoiceItemType;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
@@ -35,7 +37,9 @@ import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
 import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao.ItemSource;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
 import org.killbill.billing.plugin.analytics.utils.BusinessInvoiceUtils;
+import org.killbill.billing.util.tag.Tag;
 import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
@@ -109,6 +113,32 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(businessItem.getItemType(), InvoiceItemType.ITEM_ADJ.toString());
     }
 
+    @Test(groups = "fast")
+    public void testLinkedItemOnAnotherPage() throws Exception {
+        // The page only contains the invoice with the adjusted item, not the invoice with the linked item
+        Mockito.when(invoice.getInvoiceItems()).thenReturn(ImmutableList.<InvoiceItem>of(invoiceItem));
+        final Invoice linkedInvoice = Mockito.mock(Invoice.class);
+        Mockito.when(linkedInvoice.getInvoiceItems()).thenReturn(ImmutableList.<InvoiceItem>of(linkedInvoiceItem));
+
+        final BusinessContextFactory businessContextFactory = Mockito.mock(BusinessContextFactory.class);
+        Mockito.when(businessContextFactory.getAccount()).thenReturn(account);
+        Mockito.when(businessContextFactory.getAccountRecordId()).thenReturn(accountRecordId);
+        Mockito.when(businessContextFactory.getTenantRecordId()).thenReturn(tenantRecordId);
+        Mockito.when(businessContextFactory.getReportGroup()).thenReturn(reportGroup);
+        Mockito.when(businessContextFactory.getCurrencyConverter()).thenReturn(currencyConverter);
+        Mockito.when(businessContextFactory.getAccountTags()).thenReturn(ImmutableList.<Tag>of());
+        Mockito.when(businessContextFactory.getInvoiceByInvoiceItemId(linkedInvoiceItem.getId())).thenReturn(linkedInvoice);
+        Mockito.when(businessContextFactory.highCardinalityAccount()).thenReturn(true);
+
+        final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> businessInvoices = invoiceFactory.createBusinessInvoicesAndInvoiceItems(ImmutableList.<Invoice>of(invoice),
+                                                                                                                                                                 businessContextFactory);
+        Assert.assertEquals(businessInvoices.size(), 1);
+        Assert.assertEquals(businessInvoices.values().iterator().next().size(), 1);
+        Mockito.verify(businessContextFactory, Mockito.times(1)).getInvoiceByInvoiceItemId(linkedInvoiceItem.getId());
+        // Invoices are never all loaded
+        Mockito.verify(businessContextFactory, Mockito.never()).getAccountInvoices();
+    }
+
     @Test(groups = "fast")
     public void testRevenueRecognizableClassicAccountCredit() throws Exception {
         final UUID invoiceId = UUID.randomUUID();
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestConcurrentUUIDLongMap extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testPutAndGet() throws Exception {
+        final ConcurrentUUIDLongMap map = new ConcurrentUUIDLongMap();
+        final UUID key = UUID.randomUUID();
+        Assert.assertEquals(map.get(key), ConcurrentUUIDLongMap.NO_VALUE);
+
+        map.put(key, 0L);
+        Assert.assertEquals(map.get(key), 0L);
+        map.put(key, 12L);
+        Assert.assertEquals(map.get(key), 12L);
+        Assert.assertEquals(map.size(), 1);
+
+        // Same most significant bits
+        final UUID otherKey = new UUID(key.getMostSignificantBits(), key.getLeastSignificantBits() + 1);
+        Assert.assertEquals(map.get(otherKey), ConcurrentUUIDLongMap.NO_VALUE);
+    }
+
+    @Test(groups = "fast")
+    public void testResize() throws Exception {
+        final ConcurrentUUIDLongMap map = new ConcurrentUUIDLongMap();
+        final List<UUID> keys = new ArrayList<UUID>();
+        for (int i = 0; i < 10000; i++) {
+            final UUID key = UUID.randomUUID();
+            keys.add(key);
+            map.put(key, i);
+        }
+
+        Assert.assertEquals(map.size(), 10000);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(map.get(keys.get(i)), i);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentPutsAndGets() throws Exception {
+        final ConcurrentUUIDLongMap map = new ConcurrentUUIDLongMap();
+        final int nbThreads = 8;
+        final int nbKeysPerThread = 5000;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < nbThreads; i++) {
+                final long threadNb = i;
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int j = 0; j < nbKeysPerThread; j++) {
+                            final UUID key = new UUID(threadNb, j);
+                            map.put(key, threadNb * nbKeysPerThread + j);
+                            // Entries must be visible right away, even while other threads resize the table
+                            if (map.get(key) != threadNb * nbKeysPerThread + j) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (final Future<Boolean> future : futures) {
+                Assert.assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(map.size(), nbThreads * nbKeysPerThread);
+        for (int i = 0; i < nbThreads; i++) {
+            for (int j = 0; j < nbKeysPerThread; j++) {
+                Assert.assertEquals(map.get(new UUID(i, j)), (long) i * nbKeysPerThread + j);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2022 Equinix, Inc
+ * Copyright 2014-2022 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.Date;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.PlanPhase;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.catalog.api.VersionedCatalog;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestIndexedCatalog extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testLookupsAreMemoized() throws Exception {
+        final PlanPhase phase = Mockito.mock(PlanPhase.class);
+        final Plan plan = Mockito.mock(Plan.class);
+        Mockito.when(plan.findPhase("trial")).thenReturn(phase);
+        final StaticCatalog catalogVersion = Mockito.mock(StaticCatalog.class);
+        Mockito.when(catalogVersion.findPlan("gold-monthly")).thenReturn(plan);
+        final VersionedCatalog versionedCatalog = Mockito.mock(VersionedCatalog.class);
+        Mockito.when(versionedCatalog.getVersion(Mockito.<Date>any())).thenReturn(catalogVersion);
+
+        final IndexedCatalog indexedCatalog = new IndexedCatalog(versionedCatalog, new DateTime(DateTimeZone.UTC));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(indexedCatalog.findPlan(new Date(), "gold-monthly"), plan);
+            Assert.assertEquals(indexedCatalog.findPhase(new Date(), "gold-monthly", "trial"), phase);
+        }
+
+        Mockito.verify(catalogVersion, Mockito.times(1)).findPlan("gold-monthly");
+        Mockito.verify(plan, Mockito.times(1)).findPhase("trial");
+    }
+
+    @Test(groups = "fast")
+    public void testTenantCatalogCache() throws Exception {
+        final UUID tenantId = UUID.randomUUID();
+        final DateTime now = new DateTime(DateTimeZone.UTC);
+        final IndexedCatalog indexedCatalog = new IndexedCatalog(Mockito.mock(VersionedCatalog.class), now);
+
+        Assert.assertNull(TenantCatalogCache.get(tenantId, now, 300));
+        TenantCatalogCache.put(tenantId, indexedCatalog);
+        Assert.assertEquals(TenantCatalogCache.get(tenantId, now.plusSeconds(300), 300), indexedCatalog);
+
+        // Expired
+        Assert.assertNull(TenantCatalogCache.get(tenantId, now.plusSeconds(301), 300));
+        // Disabled
+        Assert.assertNull(TenantCatalogCache.get(tenantId, now, 0));
+
+        TenantCatalogCache.invalidate(tenantId);
+        Assert.assertNull(TenantCatalogCache.get(tenantId, now, 300));
+    }
+}
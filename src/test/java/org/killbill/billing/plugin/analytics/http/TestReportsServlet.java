@@ -91,6 +91,15 @@ public class TestReportsServlet extends AnalyticsTestSuiteNoDB {
                            );
     }
 
+    @Test(groups = "fast")
+    public void testDownsampledSerialization() throws Exception {
+        final NamedXYTimeSeries serie = new NamedXYTimeSeries("serie1", ImmutableList.<XY>of(new XY("2013-01-01", 11), new XY("2013-01-03", 34)), true);
+
+        final String json = jsonMapper.writeValueAsString(serie);
+        Assert.assertEquals(json, "{\"name\":\"serie1\",\"values\":[{\"x\":\"2013-01-01\",\"y\":11.0},{\"x\":\"2013-01-03\",\"y\":34.0}],\"downsampled\":true}");
+        Assert.assertTrue(jsonMapper.readValue(json, NamedXYTimeSeries.class).isDownsampled());
+    }
+
     @Test(groups = "fast")
     public void testSimpleSerializationWithNULL() throws Exception {
         final List<DataMarker> res = new ArrayList<DataMarker>();
@@ -123,6 +132,28 @@ public class TestReportsServlet extends AnalyticsTestSuiteNoDB {
                            );
     }
 
+    @Test(groups = "fast")
+    public void testIncrementalJsonSerialization() throws Exception {
+        final List<DataMarker> timeline = ImmutableList.<DataMarker>of(new NamedXYTimeSeries("serie1", ImmutableList.<XY>of(new XY("2013-01-01", 11), new XY("2013-01-02", 7))));
+        final List<DataMarker> table = ImmutableList.<DataMarker>of(new TableDataSeries("serie2",
+                                                                                        ImmutableList.<String>of("c1", "c2"),
+                                                                                        ImmutableList.<List<Object>>of(Arrays.<Object>asList("2013-01-01", null))));
+        final List<Chart> charts = ImmutableList.<Chart>of(new Chart(ReportType.TIMELINE, "foo", timeline),
+                                                           new Chart(ReportType.TABLE, "bar", table),
+                                                           new Chart(ReportType.TABLE, "baz", ImmutableList.<DataMarker>of()),
+                                                           new Chart(ReportType.COUNTERS, "qux", ImmutableList.<DataMarker>of(), Chart.Status.TIMED_OUT));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ChartsSerializer serializer = ChartsSerializer.json(out);
+        serializer.start();
+        for (final Chart chart : charts) {
+            serializer.writeChart(chart);
+        }
+        serializer.end();
+
+        Assert.assertEquals(out.toString(StandardCharsets.UTF_8.name()), jsonMapper.writeValueAsString(charts));
+    }
+
     @Test(groups = "fast")
     public void testDeserializationReserialization() throws Exception {
         final String json = "[" +
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestCompiledReportQuery extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testLiteralsAndCasts() throws Exception {
+        final List<String> parameterNames = new ArrayList<String>();
+        Assert.assertEquals(CompiledReportQuery.toPositional("select ':a', \":b\", `:c`, d::date from t where e = :e and f = 'it''s :f'", parameterNames, false),
+                            "select ':a', \":b\", `:c`, d::date from t where e = ? and f = 'it''s :f'");
+        Assert.assertEquals(parameterNames, ImmutableList.<String>of("e"));
+    }
+
+    @Test(groups = "fast")
+    public void testComments() throws Exception {
+        final List<String> parameterNames = new ArrayList<String>();
+        Assert.assertEquals(CompiledReportQuery.toPositional("select a -- where b = :b and 'c\n" +
+                                                             "from t /* where d = :d and 'e */ where f = :f\n" +
+                                                             "# :g\n" +
+                                                             "and h = :h",
+                                                             parameterNames,
+                                                             true),
+                            "select a -- where b = :b and 'c\n" +
+                            "from t /* where d = :d and 'e */ where f = ?\n" +
+                            "# :g\n" +
+                            "and h = ?");
+        Assert.assertEquals(parameterNames, ImmutableList.<String>of("f", "h"));
+
+        // # is an operator in PostgreSQL
+        parameterNames.clear();
+        Assert.assertEquals(CompiledReportQuery.toPositional("select a # :b from t", parameterNames, false), "select a # ? from t");
+        Assert.assertEquals(parameterNames, ImmutableList.<String>of("b"));
+    }
+
+    @Test(groups = "fast")
+    public void testBackslashEscapes() throws Exception {
+        final List<String> parameterNames = new ArrayList<String>();
+        // MySQL
+        Assert.assertEquals(CompiledReportQuery.toPositional("select a from t where b = 'it\\'s :b' and c = :c and d = 'C:\\\\' and e = :e", parameterNames, true),
+                            "select a from t where b = 'it\\'s :b' and c = ? and d = 'C:\\\\' and e = ?");
+        Assert.assertEquals(parameterNames, ImmutableList.<String>of("c", "e"));
+
+        // PostgreSQL: only escape strings
+        parameterNames.clear();
+        Assert.assertEquals(CompiledReportQuery.toPositional("select a from t where b = 'C:\\' and c = :c and d = E'it\\'s :d' and e = :e", parameterNames, false),
+                            "select a from t where b = 'C:\\' and c = ? and d = E'it\\'s :d' and e = ?");
+        Assert.assertEquals(parameterNames, ImmutableList.<String>of("c", "e"));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.Statement;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestQueryDeadline extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testShortestTimeoutWins() throws Exception {
+        Assert.assertFalse(QueryDeadline.of(System.currentTimeMillis(), null, null).hasDeadline());
+        Assert.assertFalse(QueryDeadline.of(System.currentTimeMillis(), 0, null).hasDeadline());
+
+        final QueryDeadline deadline = QueryDeadline.of(System.currentTimeMillis(), 600, null, 5);
+        Assert.assertTrue(deadline.hasDeadline());
+        Assert.assertTrue(deadline.getRemainingMillis() <= 5000);
+        Assert.assertFalse(deadline.isExpired());
+
+        final QueryDeadline expiredDeadline = QueryDeadline.of(System.currentTimeMillis() - 10000, 5);
+        Assert.assertTrue(expiredDeadline.isExpired());
+        Assert.assertEquals(expiredDeadline.getRemainingMillis(), 0);
+
+        // The driver timeout is never 0 (no timeout)
+        final Statement statement = Mockito.mock(Statement.class);
+        expiredDeadline.apply(statement);
+        Mockito.verify(statement).setQueryTimeout(1);
+    }
+
+    @Test(groups = "fast")
+    public void testCancel() throws Exception {
+        final QueryDeadline deadline = QueryDeadline.of(System.currentTimeMillis(), 60);
+
+        final Statement runningStatement = Mockito.mock(Statement.class);
+        deadline.apply(runningStatement);
+        Mockito.verify(runningStatement).setQueryTimeout(60);
+
+        final Statement completedStatement = Mockito.mock(Statement.class);
+        deadline.apply(completedStatement);
+        deadline.release(completedStatement);
+
+        deadline.cancel();
+        Assert.assertTrue(deadline.isExpired());
+        Mockito.verify(runningStatement).cancel();
+        Mockito.verify(completedStatement, Mockito.never()).cancel();
+
+        // Statements started afterwards are cancelled right away
+        final Statement lateStatement = Mockito.mock(Statement.class);
+        deadline.apply(lateStatement);
+        Mockito.verify(lateStatement).cancel();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+import org.killbill.billing.plugin.dao.PluginDao.DBEngine;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestReportQueryCache extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testTableQuery() throws Exception {
+        final ReportQueryCache cache = new ReportQueryCache(metricRegistry.getMetricRegistry());
+        final ReportsConfigurationModelDao reportConfiguration = new ReportsConfigurationModelDao("payments_per_day", "Payments", ReportType.TIMELINE, "payments_per_day", null, null, null, null, null);
+        final ReportSpecification reportSpecification = new ReportSpecification("payments_per_day^dimension:currency^metric:avg(amount)");
+        final DateTime startDate = new LocalDate(2012, 11, 10).toDateTimeAtStartOfDay();
+        final DateTime endDate = new LocalDate(2013, 11, 10).toDateTimeAtStartOfDay();
+
+        final CompiledReportQuery compiledReportQuery = cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate, endDate, null, DBEngine.MYSQL);
+        Assert.assertEquals(ImmutableList.<String>copyOf(compiledReportQuery.getParameterNames()), ImmutableList.<String>of("startDate", "endDate", "tenantRecordId"));
+
+        final Map<String, Object> parameters = compiledReportQuery.getParameters(1234L, startDate, endDate, ImmutableMap.<String, String>of());
+        Assert.assertEquals(parameters.get("tenantRecordId"), 1234L);
+        Assert.assertEquals(parameters.get("startDate"), "2012-11-10");
+        Assert.assertEquals(parameters.get("endDate"), "2013-11-10");
+
+        final String sql = compiledReportQuery.getSql(parameters);
+        Assert.assertTrue(sql.contains("`day` >= :startDate"), sql);
+        Assert.assertTrue(sql.contains("`day` <= :endDate"), sql);
+        Assert.assertTrue(sql.contains("`tenant_record_id` = :tenantRecordId"), sql);
+        Assert.assertFalse(sql.contains("1234"), sql);
+        Assert.assertFalse(compiledReportQuery.getPositionalSql(parameters).contains(":"));
+
+        // Other tenants and days share the same compiled query
+        Assert.assertSame(cache.get(reportConfiguration, "payments_per_day", new ReportSpecification("payments_per_day ^ dimension:currency ^ metric:avg(amount)"), startDate.plusDays(1), null, null, DBEngine.MYSQL),
+                          cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate.plusDays(2), null, null, DBEngine.MYSQL));
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertSame(cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate, endDate, null, DBEngine.MYSQL), compiledReportQuery);
+        Assert.assertEquals(cache.size(), 2);
+
+        // Not aligned on a day
+        Assert.assertNotSame(cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate.plusHours(1), endDate, null, DBEngine.MYSQL), compiledReportQuery);
+        Assert.assertEquals(cache.size(), 3);
+
+        cache.invalidateAll();
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBucketedQuery() throws Exception {
+        final ReportQueryCache cache = new ReportQueryCache(metricRegistry.getMetricRegistry());
+        final ReportsConfigurationModelDao reportConfiguration = new ReportsConfigurationModelDao("payments_per_day", "Payments", ReportType.TIMELINE, "payments_per_day", null, null, null, null, null);
+        final ReportSpecification reportSpecification = new ReportSpecification("payments_per_day^dimension:currency^metric:avg(amount)");
+        final DateTime startDate = new LocalDate(2012, 11, 10).toDateTimeAtStartOfDay();
+
+        final CompiledReportQuery dailyQuery = cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate, null, null, DBEngine.MYSQL);
+        final CompiledReportQuery weeklyQuery = cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate, null, DateGranularity.WEEKLY, DBEngine.MYSQL);
+        final CompiledReportQuery monthlyQuery = cache.get(reportConfiguration, "payments_per_day", reportSpecification, startDate, null, DateGranularity.MONTHLY, DBEngine.MYSQL);
+        Assert.assertEquals(cache.size(), 3);
+        Assert.assertNotSame(weeklyQuery, dailyQuery);
+        Assert.assertNotSame(monthlyQuery, weeklyQuery);
+
+        final Map<String, Object> parameters = weeklyQuery.getParameters(1234L, startDate, null, ImmutableMap.<String, String>of());
+        Assert.assertEquals(ImmutableList.<String>copyOf(weeklyQuery.getParameterNames()), ImmutableList.<String>of("startDate", "tenantRecordId"));
+        final String sql = weeklyQuery.getSql(parameters);
+        Assert.assertTrue(sql.contains("min(`day`) as `day`"), sql);
+        Assert.assertTrue(sql.contains("sum(`metric_0`) as `avg(amount)`"), sql);
+        Assert.assertTrue(sql.contains("date_sub(`day`, interval weekday(`day`) day)"), sql);
+        Assert.assertTrue(sql.contains("`day` >= :startDate"), sql);
+
+        // The metrics must be known to be summed up
+        final ReportSpecification selectStar = new ReportSpecification("payments_per_day");
+        Assert.assertFalse(cache.get(reportConfiguration, "payments_per_day", selectStar, startDate, null, DateGranularity.WEEKLY, DBEngine.MYSQL).getSql(parameters).contains("date_sub"));
+    }
+
+    @Test(groups = "fast")
+    public void testRawQuery() throws Exception {
+        final ReportQueryCache cache = new ReportQueryCache(metricRegistry.getMetricRegistry());
+        final ReportsConfigurationModelDao reportConfiguration = new ReportsConfigurationModelDao("today", "Today", ReportType.TABLE, null, null, null, null, null, null);
+
+        final CompiledReportQuery compiledReportQuery = cache.get(reportConfiguration,
+                                                                  "select :current_date from X where created_at > 'START_DATE' and group = :group and tenant_record_id = TENANT_RECORD_ID",
+                                                                  DBEngine.MYSQL);
+        Assert.assertEquals(ImmutableList.<String>copyOf(compiledReportQuery.getParameterNames()), ImmutableList.<String>of("current_date", "startDate", "group", "tenantRecordId"));
+
+        final Map<String, Object> parameters = compiledReportQuery.getParameters(1234L, null, null, ImmutableMap.<String, String>of("current_date", "2017-01-01"));
+        Assert.assertEquals(parameters.get("current_date"), "2017-01-01");
+        // Unknown variables are bound to null
+        Assert.assertTrue(parameters.containsKey("group"));
+        Assert.assertNull(parameters.get("group"));
+        Assert.assertEquals(parameters.get("tenantRecordId"), 1234L);
+        // Defaults
+        Assert.assertEquals(parameters.get("startDate"), "2000-01-01T00:00:00.000Z");
+        Assert.assertEquals(parameters.get("endDate"), "2030-01-01T00:00:00.000Z");
+
+        Assert.assertEquals(compiledReportQuery.getPositionalSql(parameters), "select ?\n" +
+                                                                              "from X\n" +
+                                                                              "where (\n" +
+                                                                              "  created_at > ?\n" +
+                                                                              "  and group = ?\n" +
+                                                                              "  and tenant_record_id = ?\n" +
+                                                                              ")");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.CounterChart;
+import org.killbill.billing.plugin.analytics.json.DataMarker;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestReportResultsCache extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testCacheability() throws Exception {
+        Assert.assertTrue(ReportResultsCache.isCacheable(createReportConfiguration("report_mrr_daily", "refresh_report_mrr_daily")));
+        // Views
+        Assert.assertFalse(ReportResultsCache.isCacheable(new ReportsConfigurationModelDao("v_report", "V report", ReportType.TIMELINE, "v_report", null, null, null, null, null)));
+        // External sources
+        Assert.assertFalse(ReportResultsCache.isCacheable(new ReportsConfigurationModelDao("trino_report", "Trino report", ReportType.TIMELINE, null, "trino", "select 1", "refresh_trino_report", Frequency.HOURLY, null)));
+    }
+
+    @Test(groups = "fast")
+    public void testHitsAndInvalidations() throws Exception {
+        final ReportResultsCache cache = new ReportResultsCache(300, 1000, metricRegistry.getMetricRegistry());
+        final ReportsConfigurationModelDao mrr = createReportConfiguration("report_mrr_daily", "refresh_report_mrr_daily");
+        final ReportsConfigurationModelDao balances = createReportConfiguration("report_invoices_balance_daily", "refresh_report_invoices_balance_daily");
+        final DateTime startDate = new DateTime(2021, 1, 1, 0, 0, DateTimeZone.UTC);
+
+        final ReportResultsCache.Key mrrKey = new ReportResultsCache.Key(1L, mrr, new ReportSpecification("report_mrr_daily^dimension:currency^variable:a=1,b=2"), startDate, null);
+        // Same report, formatted differently
+        final ReportResultsCache.Key sameMrrKey = new ReportResultsCache.Key(1L, mrr, new ReportSpecification("report_mrr_daily ^ dimension:currency ^ variable:b=2,a=1"), startDate, null);
+        final ReportResultsCache.Key otherTenantMrrKey = new ReportResultsCache.Key(2L, mrr, new ReportSpecification("report_mrr_daily^dimension:currency^variable:a=1,b=2"), startDate, null);
+        final ReportResultsCache.Key balancesKey = new ReportResultsCache.Key(1L, balances, new ReportSpecification("report_invoices_balance_daily"), startDate, null);
+
+        final CountingLoader loader = new CountingLoader();
+        cache.get(mrrKey, loader);
+        cache.get(sameMrrKey, loader);
+        Assert.assertEquals(loader.nbCalls.get(), 1);
+        cache.get(otherTenantMrrKey, loader);
+        cache.get(balancesKey, loader);
+        Assert.assertEquals(loader.nbCalls.get(), 3);
+
+        // Only the entries of that procedure are invalidated
+        cache.onRefreshCompleted("refresh_report_mrr_daily");
+        cache.get(balancesKey, loader);
+        Assert.assertEquals(loader.nbCalls.get(), 3);
+        cache.get(mrrKey, loader);
+        cache.get(otherTenantMrrKey, loader);
+        Assert.assertEquals(loader.nbCalls.get(), 5);
+
+        cache.invalidate("report_invoices_balance_daily");
+        cache.get(balancesKey, loader);
+        Assert.assertEquals(loader.nbCalls.get(), 6);
+
+        // Configuration changed on another node
+        final ReportsConfigurationModelDao updatedMrr = new ReportsConfigurationModelDao("report_mrr_daily", "New MRR", ReportType.TIMELINE, "report_mrr_daily", null, null, "refresh_report_mrr_daily", Frequency.HOURLY, null);
+        cache.get(new ReportResultsCache.Key(1L, updatedMrr, new ReportSpecification("report_mrr_daily^dimension:currency^variable:a=1,b=2"), startDate, null), loader);
+        Assert.assertEquals(loader.nbCalls.get(), 7);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidationDuringLoad() throws Exception {
+        final ReportResultsCache cache = new ReportResultsCache(300, 1000, metricRegistry.getMetricRegistry());
+        final ReportsConfigurationModelDao mrr = createReportConfiguration("report_mrr_daily", "refresh_report_mrr_daily");
+        final ReportResultsCache.Key key = new ReportResultsCache.Key(1L, mrr, new ReportSpecification("report_mrr_daily"), null, null);
+
+        cache.get(key, new Callable<List<DataMarker>>() {
+            @Override
+            public List<DataMarker> call() {
+                // The refresh completes while the (old) data is being read
+                cache.onRefreshCompleted("refresh_report_mrr_daily");
+                return ImmutableList.<DataMarker>of();
+            }
+        });
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedByDataPoints() throws Exception {
+        final ReportResultsCache cache = new ReportResultsCache(300, 100, metricRegistry.getMetricRegistry());
+        final ReportsConfigurationModelDao mrr = createReportConfiguration("report_mrr_daily", "refresh_report_mrr_daily");
+
+        final CountingLoader loader = new CountingLoader();
+        for (int i = 0; i < 100; i++) {
+            cache.get(new ReportResultsCache.Key((long) i, mrr, new ReportSpecification("report_mrr_daily"), null, null), loader);
+        }
+        // Each entry weighs 2 data points
+        Assert.assertTrue(cache.size() <= 50, "Cache size: " + cache.size());
+    }
+
+    private ReportsConfigurationModelDao createReportConfiguration(final String reportName, final String refreshProcedureName) {
+        return new ReportsConfigurationModelDao(reportName, reportName, ReportType.TIMELINE, reportName, null, null, refreshProcedureName, Frequency.HOURLY, null);
+    }
+
+    private static final class CountingLoader implements Callable<List<DataMarker>> {
+
+        private final AtomicInteger nbCalls = new AtomicInteger(0);
+
+        @Override
+        public List<DataMarker> call() {
+            nbCalls.incrementAndGet();
+            return ImmutableList.<DataMarker>of(new CounterChart("count", 1f));
+        }
+    }
+}
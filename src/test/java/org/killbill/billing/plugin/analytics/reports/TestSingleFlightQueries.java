@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class TestSingleFlightQueries extends AnalyticsTestSuiteNoDB {
+
+    private final Object database = new Object();
+
+    @Test(groups = "fast")
+    public void testCoalescing() throws Exception {
+        final SingleFlightQueries singleFlightQueries = new SingleFlightQueries(metricRegistry.getMetricRegistry());
+        final BlockingQuery query = new BlockingQuery("result");
+        final BlockingQuery otherQuery = new BlockingQuery("other result");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final Future<String> first = executor.submit(execute(singleFlightQueries, key("select 1", 1), query));
+            Assert.assertTrue(query.started.await(10, TimeUnit.SECONDS));
+            final Future<String> second = executor.submit(execute(singleFlightQueries, key("select 1", 1), query));
+            // Different bind values
+            final Future<String> other = executor.submit(execute(singleFlightQueries, key("select 1", 2), otherQuery));
+            Assert.assertTrue(otherQuery.started.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(singleFlightQueries.getNbRunning(), 2);
+            // Give the second call some time to join the first one
+            Thread.sleep(500);
+            Assert.assertFalse(second.isDone());
+
+            query.release.countDown();
+            otherQuery.release.countDown();
+            Assert.assertEquals(first.get(10, TimeUnit.SECONDS), "result");
+            Assert.assertEquals(second.get(10, TimeUnit.SECONDS), "result");
+            Assert.assertEquals(other.get(10, TimeUnit.SECONDS), "other result");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(query.nbCalls.get(), 1);
+        Assert.assertEquals(otherQuery.nbCalls.get(), 1);
+        Assert.assertEquals(singleFlightQueries.getNbRunning(), 0);
+
+        // Not cached once completed
+        Assert.assertEquals(singleFlightQueries.execute(key("select 1", 1), QueryDeadline.none(), query), "result");
+        Assert.assertEquals(query.nbCalls.get(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testFailure() throws Exception {
+        final SingleFlightQueries singleFlightQueries = new SingleFlightQueries(metricRegistry.getMetricRegistry());
+        try {
+            singleFlightQueries.execute(key("select 1", 1), QueryDeadline.none(), new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals(e.getMessage(), "boom");
+        }
+        Assert.assertEquals(singleFlightQueries.getNbRunning(), 0);
+    }
+
+    private SingleFlightQueries.Key key(final String sql, final int tenantRecordId) {
+        return new SingleFlightQueries.Key(database, sql, ImmutableMap.<String, Object>of("tenantRecordId", tenantRecordId), "counters");
+    }
+
+    private Callable<String> execute(final SingleFlightQueries singleFlightQueries, final SingleFlightQueries.Key key, final Callable<String> query) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return singleFlightQueries.execute(key, QueryDeadline.none(), query);
+            }
+        };
+    }
+
+    private static final class BlockingQuery implements Callable<String> {
+
+        private final String result;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger nbCalls = new AtomicInteger(0);
+
+        private BlockingQuery(final String result) {
+            this.result = result;
+        }
+
+        @Override
+        public String call() throws Exception {
+            nbCalls.incrementAndGet();
+            started.countDown();
+            release.await();
+            return result;
+        }
+    }
+}
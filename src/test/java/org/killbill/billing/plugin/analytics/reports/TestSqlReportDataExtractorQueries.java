@@ -19,17 +19,28 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 import org.killbill.billing.plugin.dao.PluginDao;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 public class TestSqlReportDataExtractorQueries extends AnalyticsTestSuiteWithEmbeddedDB {
 
     @Test(groups = "slow")
@@ -65,4 +76,88 @@ public class TestSqlReportDataExtractorQueries extends AnalyticsTestSuiteWithEmb
         // Don't actually test the query, just make sure it got executed (no SQL error)
         Assert.assertTrue(results.isEmpty());
     }
+
+    @Test(groups = "slow")
+    public void testBucketedQuery() throws Exception {
+        final String tableName = "payments_per_day_bucketed";
+        embeddedDB.executeScript(String.format("drop table if exists %s;" +
+                                               "create table %s(\"day\" date, currency varchar(10), amount int, tenant_record_id int);" +
+                                               "insert into %s values ('2012-10-01', 'USD', 10, 1234), ('2012-10-03', 'USD', 20, 1234), ('2012-10-09', 'USD', 5, 1234)," +
+                                               " ('2012-10-03', 'EUR', 7, 1234), ('2012-10-03', 'USD', 100, 1), ('2012-11-02', 'USD', 1, 1234);",
+                                               tableName, tableName, tableName));
+
+        final PluginDao.DBEngine dbEngine = PluginDao.DBEngine.valueOf(embeddedDB.getDBEngine().name());
+        final ReportSpecification reportSpecification = new ReportSpecification(tableName + "^dimension:currency^metric:sum(amount)");
+        final DateTime startDate = new LocalDate(2012, 10, 1).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+        final DateTime endDate = new LocalDate(2012, 10, 31).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+        final CompiledReportQuery compiledReportQuery = SqlReportDataExtractor.template(tableName, reportSpecification, startDate, endDate, DateGranularity.WEEKLY, dbEngine).compile();
+        final Map<String, Object> parameters = compiledReportQuery.getParameters(1234L, startDate, endDate, ImmutableMap.<String, String>of());
+
+        final List<Map<String, Object>> results = dbi.withHandle(new HandleCallback<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> withHandle(final Handle handle) throws Exception {
+                final Query<Map<String, Object>> query = handle.createQuery(compiledReportQuery.getSql(parameters));
+                compiledReportQuery.bind(query, parameters, dbEngine == PluginDao.DBEngine.POSTGRESQL);
+                return query.list();
+            }
+        });
+
+        // One row per currency and week, on its first day with data
+        final Map<String, Float> sums = new HashMap<String, Float>();
+        for (final Map<String, Object> row : results) {
+            sums.put(row.get("currency") + "@" + new LocalDate(row.get("day")), Float.valueOf(row.get("sum(amount)").toString()));
+        }
+        Assert.assertEquals(sums, ImmutableMap.<String, Float>of("USD@2012-10-01", 30f,
+                                                                 "USD@2012-10-09", 5f,
+                                                                 "EUR@2012-10-03", 7f));
+    }
+
+    @Test(groups = "slow")
+    public void testTablePages() throws Exception {
+        final String tableName = "accounts_summary_paginated";
+        embeddedDB.executeScript(String.format("drop table if exists %s;" +
+                                               "create table %s(currency varchar(10), record_id int, tenant_record_id int);" +
+                                               "insert into %s values ('USD', 2, 1234), ('EUR', 3, 1234), ('USD', 1, 1234), ('EUR', 1, 1234), ('USD', 4, 1), ('USD', 3, 1234);",
+                                               tableName, tableName, tableName));
+
+        final ReportsConfigurationModelDao reportConfiguration = new ReportsConfigurationModelDao(null, tableName, tableName, ReportType.TABLE, tableName, null, null, null, null, null, null, "currency, record_id");
+        final List<String> pages = new ArrayList<String>();
+        TablePage page = TablePage.of(2, null);
+        while (page != null) {
+            final CompiledReportQuery compiledReportQuery = CompiledReportQuery.of(QueryEngine.getPageSql(reportConfiguration, page));
+            final Map<String, Object> parameters = compiledReportQuery.getParameters(1234L, null, null, ImmutableMap.<String, String>of());
+            if (page.getAfter() != null) {
+                for (int i = 0; i < page.getAfter().size(); i++) {
+                    parameters.put(TablePage.CURSOR_PARAMETER_PREFIX + i, page.getAfter().get(i));
+                }
+            }
+
+            final List<Map<String, Object>> results = dbi.withHandle(new HandleCallback<List<Map<String, Object>>>() {
+                @Override
+                public List<Map<String, Object>> withHandle(final Handle handle) throws Exception {
+                    final Query<Map<String, Object>> query = handle.createQuery(compiledReportQuery.getSql(parameters));
+                    compiledReportQuery.bind(query, parameters, false);
+                    return query.list();
+                }
+            });
+
+            final StringBuilder rows = new StringBuilder();
+            for (int i = 0; i < Math.min(results.size(), page.getPageSize()); i++) {
+                rows.append(results.get(i).get("currency")).append(results.get(i).get("record_id")).append(' ');
+            }
+            pages.add(rows.toString().trim());
+
+            if (results.size() > page.getPageSize()) {
+                final Map<String, Object> lastRow = results.get(page.getPageSize() - 1);
+                page = TablePage.of(2, TablePage.getNextCursor(tableName,
+                                                               ImmutableList.<String>of("currency", "record_id"),
+                                                               ImmutableList.<String>of("currency", "record_id"),
+                                                               ImmutableList.<Object>of(lastRow.get("currency"), lastRow.get("record_id"))));
+            } else {
+                page = null;
+            }
+        }
+
+        Assert.assertEquals(pages, ImmutableList.<String>of("EUR1 EUR3", "USD1 USD2", "USD3"));
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
+import org.killbill.billing.plugin.analytics.json.Chart.Status;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestTableDataStream extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testReadAllRows() throws Exception {
+        final Handle handle = Mockito.mock(Handle.class);
+        final PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+        final ResultSet resultSet = mockResultSet();
+        Mockito.when(resultSet.next()).thenReturn(true, true, false);
+        Mockito.when(resultSet.getObject(1)).thenReturn("a", "b");
+
+        final QueryDeadline deadline = QueryDeadline.of(System.currentTimeMillis(), 60);
+        deadline.apply(statement);
+        final TableDataStream tableDataStream = new TableDataStream("report", "Report", "series", handle, false, statement, resultSet, null, null, deadline);
+        Assert.assertEquals(tableDataStream.getHeader(), ImmutableList.<String>of("label"));
+
+        Assert.assertTrue(tableDataStream.hasNext());
+        Assert.assertEquals(tableDataStream.next(), ImmutableList.<Object>of("a"));
+        Assert.assertTrue(tableDataStream.hasNext());
+        Assert.assertEquals(tableDataStream.next(), ImmutableList.<Object>of("b"));
+        Assert.assertFalse(tableDataStream.hasNext());
+        Assert.assertEquals(tableDataStream.getStatus(), Status.COMPLETED);
+
+        tableDataStream.close();
+        Mockito.verify(handle).close();
+
+        // The statement is no longer tracked by the deadline
+        deadline.cancel();
+        Mockito.verify(statement, Mockito.never()).cancel();
+    }
+
+    @Test(groups = "fast")
+    public void testReadTimeout() throws Exception {
+        final Handle handle = Mockito.mock(Handle.class);
+        final PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+        final ResultSet resultSet = mockResultSet();
+        Mockito.when(resultSet.next()).thenReturn(true);
+        Mockito.when(resultSet.getObject(1)).thenReturn("a");
+
+        // Already expired, as if the client had stopped reading
+        final QueryDeadline deadline = QueryDeadline.of(System.currentTimeMillis() - 10000, 5);
+        deadline.apply(statement);
+        final TableDataStream tableDataStream = new TableDataStream("report", "Report", "series", handle, false, statement, resultSet, null, null, deadline);
+        Assert.assertTrue(tableDataStream.hasNext());
+
+        final ScheduledExecutorService scheduler = BusinessExecutor.newSingleThreadScheduledExecutor("TestTableDataStream");
+        try {
+            tableDataStream.scheduleReadTimeout(scheduler);
+        } finally {
+            scheduler.shutdown();
+            Assert.assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+        // The query was cancelled and the connection released, without waiting for the client
+        Mockito.verify(statement).cancel();
+        Mockito.verify(resultSet).close();
+        Mockito.verify(handle).close();
+
+        // The row read ahead is still returned, then the stream ends
+        Assert.assertEquals(tableDataStream.next(), ImmutableList.<Object>of("a"));
+        Assert.assertFalse(tableDataStream.hasNext());
+        Assert.assertEquals(tableDataStream.getStatus(), Status.TIMED_OUT);
+    }
+
+    private ResultSet mockResultSet() throws Exception {
+        final ResultSetMetaData metaData = Mockito.mock(ResultSetMetaData.class);
+        Mockito.when(metaData.getColumnCount()).thenReturn(1);
+        Mockito.when(metaData.getColumnLabel(1)).thenReturn("label");
+        final ResultSet resultSet = Mockito.mock(ResultSet.class);
+        Mockito.when(resultSet.getMetaData()).thenReturn(metaData);
+        return resultSet;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestTablePage extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testCursors() throws Exception {
+        Assert.assertNull(TablePage.of(50, null).getAfter());
+        Assert.assertNull(TablePage.of(50, "").getAfter());
+
+        final String cursor = TablePage.getNextCursor("accounts_summary",
+                                                      ImmutableList.<String>of("accountId", "record_id"),
+                                                      ImmutableList.<String>of("AccountID", "CreatedDate", "record_id"),
+                                                      Arrays.<Object>asList("a0b1", Timestamp.valueOf("2021-01-01 12:00:00"), 12));
+        final TablePage page = TablePage.of(50, cursor);
+        Assert.assertEquals(page.getPageSize(), 50);
+        Assert.assertEquals(page.getReportName(), "accounts_summary");
+        Assert.assertEquals(page.getAfter(), ImmutableList.<Object>of("a0b1", 12L));
+
+        // Dates are bound as strings
+        Assert.assertEquals(TablePage.of(50, TablePage.encodeCursor("accounts_summary", ImmutableList.<Object>of(Timestamp.valueOf("2021-01-01 12:00:00")))).getAfter(),
+                            ImmutableList.<Object>of("2021-01-01 12:00:00.0"));
+
+        for (final String invalidCursor : ImmutableList.<String>of("not a cursor",
+                                                                   "e30",
+                                                                   TablePage.encodeCursor("accounts_summary", Arrays.<Object>asList((Object) null)),
+                                                                   TablePage.encodeCursor(null, ImmutableList.<Object>of("a0b1", 12L)))) {
+            try {
+                TablePage.of(50, invalidCursor);
+                Assert.fail(invalidCursor);
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        for (final int invalidPageSize : new int[]{0, TablePage.MAX_PAGE_SIZE + 1, Integer.MAX_VALUE}) {
+            try {
+                TablePage.of(invalidPageSize, null);
+                Assert.fail(String.valueOf(invalidPageSize));
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        Assert.assertEquals(TablePage.of(TablePage.MAX_PAGE_SIZE, null).getPageSize(), TablePage.MAX_PAGE_SIZE);
+    }
+
+    @Test(groups = "fast")
+    public void testPageSql() throws Exception {
+        final ReportsConfigurationModelDao accountsSummary = createReportConfiguration("report_accounts_summary", null, "AccountID, record_id");
+        Assert.assertEquals(QueryEngine.getPageSql(accountsSummary, TablePage.of(50, null)),
+                            "select * from report_accounts_summary where tenant_record_id = :tenantRecordId order by AccountID, record_id limit 51");
+        Assert.assertEquals(QueryEngine.getPageSql(accountsSummary, TablePage.of(50, TablePage.encodeCursor("accounts_summary", ImmutableList.<Object>of("a0b1", 12L)))),
+                            "select * from report_accounts_summary where tenant_record_id = :tenantRecordId and (AccountID, record_id) > (:cursor0, :cursor1) order by AccountID, record_id limit 51");
+
+        // Sort key mismatch
+        checkCantPaginate(accountsSummary, TablePage.of(50, TablePage.encodeCursor("accounts_summary", ImmutableList.<Object>of("a0b1"))));
+        // Cursor of another report
+        checkCantPaginate(accountsSummary, TablePage.of(50, TablePage.encodeCursor("invoices_summary", ImmutableList.<Object>of("a0b1", 12L))));
+        // No sort key
+        checkCantPaginate(createReportConfiguration("report_accounts_summary", null, null), TablePage.of(50, null));
+        // Raw query
+        checkCantPaginate(createReportConfiguration(null, "select * from accounts", "id"), TablePage.of(50, null));
+        // Columns are inlined
+        checkCantPaginate(createReportConfiguration("report_accounts_summary", null, "id; drop table accounts"), TablePage.of(50, null));
+    }
+
+    private void checkCantPaginate(final ReportsConfigurationModelDao reportConfiguration, final TablePage page) {
+        try {
+            QueryEngine.getPageSql(reportConfiguration, page);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private ReportsConfigurationModelDao createReportConfiguration(final String sourceTableName, final String sourceQuery, final String sortKey) {
+        return new ReportsConfigurationModelDao(null, "accounts_summary", "Account Summary", ReportType.TABLE, sourceTableName, sourceQuery == null ? null : "trino", sourceQuery, null, null, null, null, sortKey);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTenantQueryPermits extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testPermitsPerTenant() throws Exception {
+        final TenantQueryPermits permits = new TenantQueryPermits(2);
+        final QueryDeadline deadline = QueryDeadline.of(System.currentTimeMillis(), 1);
+
+        Assert.assertTrue(permits.acquire(1L, deadline));
+        Assert.assertTrue(permits.acquire(1L, deadline));
+        Assert.assertEquals(permits.getNbAvailable(1L), 0);
+        // Other tenants aren't impacted
+        Assert.assertTrue(permits.acquire(2L, deadline));
+        Assert.assertEquals(permits.getNbAvailable(2L), 1);
+
+        // Gives up at the deadline
+        Assert.assertFalse(permits.acquire(1L, deadline));
+
+        permits.release(1L);
+        Assert.assertTrue(permits.acquire(1L, QueryDeadline.none()));
+
+        final TenantQueryPermits unboundedPermits = new TenantQueryPermits(0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(unboundedPermits.acquire(1L, deadline));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testStreamHoldsPermitUntilClosed() throws Exception {
+        final TenantQueryPermits permits = new TenantQueryPermits(1);
+        final Runnable releasePermit = new Runnable() {
+            @Override
+            public void run() {
+                permits.release(1L);
+            }
+        };
+
+        final ResultSetMetaData metaData = Mockito.mock(ResultSetMetaData.class);
+        final ResultSet resultSet = Mockito.mock(ResultSet.class);
+        Mockito.when(resultSet.getMetaData()).thenReturn(metaData);
+
+        Assert.assertTrue(permits.acquire(1L, QueryDeadline.none()));
+        final TableDataStream tableDataStream = new TableDataStream("report", "Report", "series", Mockito.mock(Handle.class), false, Mockito.mock(PreparedStatement.class), resultSet, null, null, QueryDeadline.none());
+        tableDataStream.setCloseListener(releasePermit);
+        Assert.assertEquals(permits.getNbAvailable(1L), 0);
+
+        tableDataStream.close();
+        Assert.assertEquals(permits.getNbAvailable(1L), 1);
+        // Released only once
+        tableDataStream.close();
+        Assert.assertEquals(permits.getNbAvailable(1L), 1);
+
+        // Streams closed before the listener is set (e.g. by the read timeout) release the permit right away
+        Assert.assertTrue(permits.acquire(1L, QueryDeadline.none()));
+        final TableDataStream closedTableDataStream = TableDataStream.timedOut("Report", "series");
+        closedTableDataStream.close();
+        closedTableDataStream.setCloseListener(releasePermit);
+        Assert.assertEquals(permits.getNbAvailable(1L), 1);
+    }
+}
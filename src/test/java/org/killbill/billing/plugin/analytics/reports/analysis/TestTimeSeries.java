@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimeSeries extends AnalyticsTestSuiteNoDB {
+
+    private final int day = TimeSeries.toEpochDay(new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC));
+
+    @Test(groups = "fast")
+    public void testBuildAndFill() throws Exception {
+        final TimeSeries series = new TimeSeries.Builder().addDay(day + 2, 3)
+                                                          .addDay(day, 1)
+                                                          .addDay(day, 1)
+                                                          .build();
+        Assert.assertEquals(series.size(), 2);
+        checkXY(series.toXY().get(0), "2013-01-01", 2f);
+        checkXY(series.toXY().get(1), "2013-01-03", 3f);
+
+        final TimeSeries filledSeries = series.fill(day - 1, day + 3);
+        Assert.assertEquals(filledSeries.size(), 5);
+        Assert.assertEquals(filledSeries.getFirstDay(), day - 1);
+        Assert.assertEquals(filledSeries.getLastDay(), day + 3);
+        final List<XY> xys = filledSeries.toXY();
+        // Computed points are labelled with their timestamp
+        checkXY(xys.get(0), "2012-12-31T00:00:00.000Z", 0f);
+        checkXY(xys.get(1), "2013-01-01", 2f);
+        checkXY(xys.get(2), "2013-01-02T00:00:00.000Z", 0f);
+        checkXY(xys.get(3), "2013-01-03", 3f);
+        checkXY(xys.get(4), "2013-01-04T00:00:00.000Z", 0f);
+
+        // Points outside of the range are kept
+        Assert.assertEquals(series.fill(day + 1, day + 1).size(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testTimestampPoints() throws Exception {
+        final DateTime midnight = new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC);
+        final TimeSeries series = new TimeSeries.Builder().addTimestamp(midnight.plusHours(15).getMillis(), 2)
+                                                          .addTimestamp(midnight.plusHours(9).getMillis(), 1)
+                                                          .addTimestamp(midnight.plusDays(2).plusHours(12).getMillis(), 5)
+                                                          .addTimestamp(midnight.plusDays(2).plusHours(12).getMillis(), 5)
+                                                          .build();
+        // Two rows on the same day with different timestamps stay two points, sorted
+        Assert.assertEquals(series.size(), 3);
+        checkXY(series.toXY().get(0), "2013-01-01T09:00:00.000Z", 1f);
+        checkXY(series.toXY().get(1), "2013-01-01T15:00:00.000Z", 2f);
+        // Rows with the same timestamp are summed up
+        checkXY(series.toXY().get(2), "2013-01-03T12:00:00.000Z", 10f);
+        Assert.assertEquals(series.getFirstDay(), day);
+        Assert.assertEquals(series.getLastDay(), day + 2);
+
+        // Only days without any point are filled
+        final List<XY> xys = series.fill(day, day + 3).toXY();
+        Assert.assertEquals(xys.size(), 5);
+        checkXY(xys.get(0), "2013-01-01T09:00:00.000Z", 1f);
+        checkXY(xys.get(1), "2013-01-01T15:00:00.000Z", 2f);
+        checkXY(xys.get(2), "2013-01-02T00:00:00.000Z", 0f);
+        checkXY(xys.get(3), "2013-01-03T12:00:00.000Z", 10f);
+        checkXY(xys.get(4), "2013-01-04T00:00:00.000Z", 0f);
+
+        // Sub-day points are smoothed with the other points of their period
+        final TimeSeries.Builder builder = new TimeSeries.Builder();
+        for (int i = 0; i < 14 * 24; i++) {
+            builder.addTimestamp(midnight.plusHours(i).getMillis(), 1);
+        }
+        final TimeSeries smoothedSeries = smooth(new SummingSmoother(toDataForReports(builder.build()), DateGranularity.WEEKLY));
+        Assert.assertEquals(smoothedSeries.size(), 2);
+        checkXY(smoothedSeries.toXY().get(0), "2012-12-31T00:00:00.000Z", 6f * 24);
+        checkXY(smoothedSeries.toXY().get(1), "2013-01-07T00:00:00.000Z", 7f * 24);
+    }
+
+    @Test(groups = "fast")
+    public void testWeeklySum() throws Exception {
+        // From Tuesday 2013-01-01 to Monday 2013-01-14
+        final TimeSeries.Builder builder = new TimeSeries.Builder();
+        for (int i = 0; i < 14; i++) {
+            builder.addDay(day + i, 1);
+        }
+
+        final TimeSeries smoothedSeries = smooth(new SummingSmoother(toDataForReports(builder.build()), DateGranularity.WEEKLY));
+        // The last week is incomplete
+        Assert.assertEquals(smoothedSeries.size(), 2);
+        checkXY(smoothedSeries.toXY().get(0), "2012-12-31T00:00:00.000Z", 6f);
+        checkXY(smoothedSeries.toXY().get(1), "2013-01-07T00:00:00.000Z", 7f);
+    }
+
+    @Test(groups = "fast")
+    public void testMonthlyAverage() throws Exception {
+        // From 2013-01-01 to 2013-03-01
+        final TimeSeries.Builder builder = new TimeSeries.Builder();
+        for (int i = 0; i < 31; i++) {
+            builder.addDay(day + i, 2);
+        }
+        for (int i = 31; i < 59; i++) {
+            builder.addDay(day + i, i % 2 == 0 ? 1 : 3);
+        }
+        builder.addDay(day + 59, 100);
+
+        final TimeSeries smoothedSeries = smooth(new AverageSmoother(toDataForReports(builder.build()), DateGranularity.MONTHLY));
+        Assert.assertEquals(smoothedSeries.size(), 2);
+        checkXY(smoothedSeries.toXY().get(0), "2013-01-01T00:00:00.000Z", 2f);
+        checkXY(smoothedSeries.toXY().get(1), "2013-02-01T00:00:00.000Z", 2f);
+    }
+
+    @Test(groups = "fast")
+    public void testWeeklyAverageOfBucketedSeries() throws Exception {
+        // From Tuesday 2013-01-01 to Monday 2013-01-14, without data on Wednesdays
+        final TimeSeries.Builder dailyBuilder = new TimeSeries.Builder();
+        for (int i = 0; i < 14; i++) {
+            if (i % 7 != 1) {
+                dailyBuilder.addDay(day + i, i + 1);
+            }
+        }
+        // Same series, summed up per week by the database, on the first day with data
+        final TimeSeries.Builder bucketedBuilder = new TimeSeries.Builder().addDay(day, 1 + 3 + 4 + 5 + 6)
+                                                                           .addDay(day + 6, 7 + 8 + 10 + 11 + 12 + 13)
+                                                                           .addDay(day + 13, 14);
+
+        final TimeSeries smoothedDailySeries = smooth(new AverageSmoother(toDataForReports(dailyBuilder.build().fill(day, day + 13)), DateGranularity.WEEKLY));
+        final TimeSeries smoothedBucketedSeries = smooth(new AverageSmoother(toDataForReports(bucketedBuilder.build().fill(day, day + 13)), DateGranularity.WEEKLY));
+        Assert.assertEquals(smoothedBucketedSeries.size(), 2);
+        checkXY(smoothedBucketedSeries.toXY().get(0), "2012-12-31T00:00:00.000Z", 19f / 6);
+        checkXY(smoothedBucketedSeries.toXY().get(1), "2013-01-07T00:00:00.000Z", 61f / 7);
+        Assert.assertEquals(smoothedDailySeries.size(), 2);
+        for (int i = 0; i < smoothedDailySeries.size(); i++) {
+            checkXY(smoothedDailySeries.toXY().get(i), smoothedBucketedSeries.toXY().get(i).getX(), (float) smoothedBucketedSeries.toXY().get(i).getY());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDownsample() throws Exception {
+        final TimeSeries.Builder builder = new TimeSeries.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.addDay(day + i, i == 500 ? 100 : (i == 700 ? -100 : i % 2));
+        }
+        final TimeSeries series = builder.build();
+
+        final TimeSeries downsampledSeries = series.downsample(20);
+        Assert.assertEquals(downsampledSeries.size(), 20);
+        Assert.assertEquals(downsampledSeries.getFirstDay(), day);
+        Assert.assertEquals(downsampledSeries.getLastDay(), day + 999);
+        // Peaks are kept
+        boolean hasPeak = false;
+        boolean hasTrough = false;
+        for (int i = 0; i < downsampledSeries.size(); i++) {
+            if (i > 0) {
+                Assert.assertTrue(downsampledSeries.getTimestamp(i) > downsampledSeries.getTimestamp(i - 1));
+            }
+            hasPeak = hasPeak || (downsampledSeries.getTimestamp(i) == TimeSeries.toEpochMillis(day + 500) && downsampledSeries.getValue(i) == 100f);
+            hasTrough = hasTrough || (downsampledSeries.getTimestamp(i) == TimeSeries.toEpochMillis(day + 700) && downsampledSeries.getValue(i) == -100f);
+        }
+        Assert.assertTrue(hasPeak);
+        Assert.assertTrue(hasTrough);
+        // Queried points are still labelled with their day
+        checkXY(downsampledSeries.toXY().get(0), "2013-01-01", 0f);
+
+        // Small enough
+        Assert.assertSame(series.downsample(1000), series);
+    }
+
+    private Map<String, Map<String, TimeSeries>> toDataForReports(final TimeSeries series) {
+        final Map<String, TimeSeries> dataForReport = new LinkedHashMap<String, TimeSeries>();
+        dataForReport.put("pivot", series);
+        final Map<String, Map<String, TimeSeries>> dataForReports = new LinkedHashMap<String, Map<String, TimeSeries>>();
+        dataForReports.put("report", dataForReport);
+        return dataForReports;
+    }
+
+    private TimeSeries smooth(final Smoother smoother) {
+        smoother.smooth();
+        return smoother.getDataForReports().get("report").get("pivot");
+    }
+
+    private void checkXY(final XY xy, final String x, final float y) {
+        Assert.assertEquals(xy.getX(), x);
+        Assert.assertEquals((float) xy.getY(), y);
+    }
+}
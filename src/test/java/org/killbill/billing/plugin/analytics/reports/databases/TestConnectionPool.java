@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.databases;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.commons.metrics.impl.NoOpMetricRegistry;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestConnectionPool extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testConnectionsAreReused() throws Exception {
+        final Connection rawConnection = mockConnection(true);
+        final ConnectionFactory connectionFactory = Mockito.mock(ConnectionFactory.class);
+        Mockito.when(connectionFactory.openConnection()).thenReturn(rawConnection);
+        final ConnectionPool pool = new ConnectionPool("trino", connectionFactory, new ConnectionPool.Settings(2, 100, 30, 60000, 5), new NoOpMetricRegistry());
+
+        final Connection connection = pool.openConnection();
+        Assert.assertEquals(pool.getNbActive(), 1);
+        final Statement statement = connection.createStatement();
+        Mockito.verify(statement).setQueryTimeout(30);
+        connection.close();
+        Assert.assertTrue(connection.isClosed());
+        Assert.assertEquals(pool.getNbActive(), 0);
+        Assert.assertEquals(pool.getNbIdle(), 1);
+
+        pool.openConnection().close();
+        Mockito.verify(connectionFactory, Mockito.times(1)).openConnection();
+        Mockito.verify(rawConnection, Mockito.never()).close();
+
+        pool.close();
+        Assert.assertEquals(pool.getNbIdle(), 0);
+        Mockito.verify(rawConnection, Mockito.times(1)).close();
+    }
+
+    @Test(groups = "fast")
+    public void testPoolIsBounded() throws Exception {
+        final ConnectionFactory connectionFactory = Mockito.mock(ConnectionFactory.class);
+        Mockito.when(connectionFactory.openConnection()).thenReturn(mockConnection(true));
+        final ConnectionPool pool = new ConnectionPool("trino", connectionFactory, new ConnectionPool.Settings(1, 10, 0, 60000, 5), new NoOpMetricRegistry());
+
+        final Connection connection = pool.openConnection();
+        try {
+            pool.openConnection();
+            Assert.fail("The pool should be exhausted");
+        } catch (final SQLException e) {
+            Assert.assertEquals(pool.getNbActive(), 1);
+        }
+
+        connection.close();
+        pool.openConnection().close();
+        Assert.assertEquals(pool.getNbActive(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidAndIdleConnectionsAreDiscarded() throws Exception {
+        final Connection invalidConnection = mockConnection(false);
+        final Connection validConnection = mockConnection(true);
+        final ConnectionFactory connectionFactory = Mockito.mock(ConnectionFactory.class);
+        Mockito.when(connectionFactory.openConnection()).thenReturn(invalidConnection, validConnection);
+
+        // Idle connections are evicted right away
+        final ConnectionPool pool = new ConnectionPool("trino", connectionFactory, new ConnectionPool.Settings(1, 100, 0, 0, 5), new NoOpMetricRegistry());
+        pool.openConnection().close();
+        pool.openConnection().close();
+        Mockito.verify(invalidConnection, Mockito.times(1)).close();
+        Mockito.verify(connectionFactory, Mockito.times(2)).openConnection();
+        Assert.assertTrue(pool.isUnused(System.currentTimeMillis()));
+
+        // Validation
+        final ConnectionPool validatingPool = new ConnectionPool("trino", connectionFactory, new ConnectionPool.Settings(1, 100, 0, 60000, 5), new NoOpMetricRegistry());
+        Mockito.when(connectionFactory.openConnection()).thenReturn(invalidConnection, validConnection);
+        validatingPool.openConnection().close();
+        Assert.assertEquals(validatingPool.getNbIdle(), 1);
+        validatingPool.openConnection().close();
+        Mockito.verify(invalidConnection, Mockito.times(2)).close();
+        Assert.assertFalse(validatingPool.isUnused(System.currentTimeMillis()));
+    }
+
+    private Connection mockConnection(final boolean valid) throws SQLException {
+        final Connection connection = Mockito.mock(Connection.class);
+        Mockito.when(connection.isValid(Mockito.anyInt())).thenReturn(valid);
+        Mockito.when(connection.getAutoCommit()).thenReturn(true);
+        Mockito.when(connection.createStatement()).thenReturn(Mockito.mock(Statement.class));
+        return connection;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.dao.BusinessAccountDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestChangeSignatures extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testSignatures() throws Exception {
+        embeddedDB.executeScript("drop table if exists analytics_signature_sources;" +
+                                 "create table analytics_signature_sources(record_id int, amount int, tenant_record_id int);" +
+                                 "drop table if exists analytics_signature_others;" +
+                                 "create table analytics_signature_others(record_id int, amount int, tenant_record_id int);" +
+                                 "insert into analytics_signature_sources values (1, 1, 1);" +
+                                 "insert into analytics_signature_sources values (2, 2, 1);");
+
+        final ChangeSignatures changeSignatures = new ChangeSignatures(dbi, clock);
+        final AnalyticsReportJob job = createJob(" analytics_signature_sources, analytics_signature_others");
+        Assert.assertEquals(ChangeSignatures.getWatchedTableNames(job), ImmutableList.<String>of("analytics_signature_sources", "analytics_signature_others"));
+
+        // Never refreshed
+        final String signature = changeSignatures.computeSignature(job);
+        Assert.assertNotNull(signature);
+        Assert.assertFalse(changeSignatures.isUnchanged(job, signature));
+
+        changeSignatures.save(job, signature);
+        Assert.assertTrue(changeSignatures.isUnchanged(job, changeSignatures.computeSignature(job)));
+
+        // New rows
+        embeddedDB.executeScript("insert into analytics_signature_others values (1, 3, 2);");
+        final String newSignature = changeSignatures.computeSignature(job);
+        Assert.assertFalse(changeSignatures.isUnchanged(job, newSignature));
+        changeSignatures.save(job, newSignature);
+        Assert.assertTrue(changeSignatures.isUnchanged(job, changeSignatures.computeSignature(job)));
+
+        // Deleted rows, without change counter (e.g. table written by another process)
+        embeddedDB.executeScript("delete from analytics_signature_sources where record_id = 1;");
+        Assert.assertTrue(changeSignatures.isUnchanged(job, changeSignatures.computeSignature(job)));
+
+        // Deleted rows, recorded by the change counter
+        embeddedDB.executeScript("insert into analytics_table_changes (table_name, bucket, nb_changes) values ('analytics_signature_sources', 0, 1);");
+        final String deletedSignature = changeSignatures.computeSignature(job);
+        Assert.assertFalse(changeSignatures.isUnchanged(job, deletedSignature));
+        changeSignatures.save(job, deletedSignature);
+        embeddedDB.executeScript("update analytics_table_changes set nb_changes = nb_changes + 1 where table_name = 'analytics_signature_sources';");
+        Assert.assertFalse(changeSignatures.isUnchanged(job, changeSignatures.computeSignature(job)));
+
+        // Nothing to watch, or not possible to compute
+        Assert.assertNull(changeSignatures.computeSignature(createJob(null)));
+        Assert.assertNull(changeSignatures.computeSignature(createJob("analytics_signature_sources;drop table analytics_signature_sources")));
+        Assert.assertNull(changeSignatures.computeSignature(createJob("analytics_signature_unknown")));
+        Assert.assertFalse(changeSignatures.isUnchanged(job, null));
+    }
+
+    @Test(groups = "slow")
+    public void testChangesRecordedByTheDaos() throws Exception {
+        final ChangeSignatures changeSignatures = new ChangeSignatures(dbi, clock);
+        final AnalyticsReportJob job = createJob("analytics_accounts");
+        final BusinessAccountDao businessAccountDao = new BusinessAccountDao(killbillDataSource, metricRegistry, osgiConfigPropertiesService);
+
+        businessAccountDao.update(businessContextFactory);
+        final long nbChanges = getNbChanges("analytics_accounts");
+        final String signature = changeSignatures.computeSignature(job);
+        changeSignatures.save(job, signature);
+        Assert.assertTrue(changeSignatures.isUnchanged(job, changeSignatures.computeSignature(job)));
+
+        // One increment per transaction
+        businessAccountDao.update(businessContextFactory);
+        Assert.assertEquals(getNbChanges("analytics_accounts"), nbChanges + 1);
+        Assert.assertFalse(changeSignatures.isUnchanged(job, changeSignatures.computeSignature(job)));
+    }
+
+    private long getNbChanges(final String tableName) {
+        return dbi.withHandle(new HandleCallback<Long>() {
+            @Override
+            public Long withHandle(final Handle handle) throws Exception {
+                return handle.createQuery("select sum(nb_changes) from analytics_table_changes where table_name = :tableName")
+                             .bind("tableName", tableName)
+                             .mapTo(Long.class)
+                             .first();
+            }
+        });
+    }
+
+    private AnalyticsReportJob createJob(final String watchedTableNames) {
+        return new AnalyticsReportJob(1, "signature", "Signature", "report_signature", "refresh_report_signature", Frequency.HOURLY, null, null, null, null, null, null, watchedTableNames);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestIncrementalRefresh extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testIncrementalRefresh() throws Exception {
+        embeddedDB.executeScript("drop table if exists analytics_incremental_sources;" +
+                                 "create table analytics_incremental_sources(record_id int, created_date datetime, amount int, tenant_record_id int);" +
+                                 "drop view if exists v_report_incremental;" +
+                                 "create view v_report_incremental as select tenant_record_id, cast(created_date as date) as bucket_day, sum(amount) as total from analytics_incremental_sources group by tenant_record_id, cast(created_date as date);" +
+                                 "drop table if exists report_incremental;" +
+                                 "create table report_incremental(tenant_record_id int, bucket_day date, total int);" +
+                                 "insert into analytics_incremental_sources values (1, '2013-01-01 10:00:00', 1, 1);" +
+                                 "insert into analytics_incremental_sources values (2, '2013-01-02 10:00:00', 2, 1);" +
+                                 "insert into analytics_incremental_sources values (3, '2013-01-01 11:00:00', 5, 2);");
+
+        final AnalyticsReportJob job = new AnalyticsReportJob(1,
+                                                              "incremental",
+                                                              "Incremental",
+                                                              "report_incremental",
+                                                              "refresh_report_incremental",
+                                                              Frequency.HOURLY,
+                                                              null,
+                                                              "bucket_day",
+                                                              "analytics_incremental_sources",
+                                                              "created_date",
+                                                              null,
+                                                              null,
+                                                              null);
+        Assert.assertTrue(IncrementalRefresh.isIncremental(job));
+
+        // Only the last record id below the watermark is rescanned
+        final IncrementalRefresh incrementalRefresh = new IncrementalRefresh(dbi, clock, 1);
+        final IncrementalRefreshSqlDao sqlDao = dbi.onDemand(IncrementalRefreshSqlDao.class);
+
+        // First run: full rebuild, per tenant
+        incrementalRefresh.refresh(job);
+        Assert.assertEquals(getTotal(1, "2013-01-01"), (Integer) 1);
+        Assert.assertEquals(getTotal(1, "2013-01-02"), (Integer) 2);
+        Assert.assertEquals(getTotal(2, "2013-01-01"), (Integer) 5);
+        Assert.assertEquals(sqlDao.getWatermark("incremental", 1L).getWatermark(), (Long) 2L);
+        Assert.assertEquals(sqlDao.getWatermark("incremental", 2L).getWatermark(), (Long) 3L);
+
+        // Tamper with a bucket, to verify it isn't recomputed unless touched
+        embeddedDB.executeScript("update report_incremental set total = 100 where tenant_record_id = 1 and bucket_day = '2013-01-01';" +
+                                 "insert into analytics_incremental_sources values (4, '2013-01-02 12:00:00', 10, 1);" +
+                                 "insert into analytics_incremental_sources values (5, '2013-01-03 12:00:00', 3, 1);");
+
+        incrementalRefresh.refresh(job);
+        Assert.assertEquals(getTotal(1, "2013-01-01"), (Integer) 100);
+        Assert.assertEquals(getTotal(1, "2013-01-02"), (Integer) 12);
+        Assert.assertEquals(getTotal(1, "2013-01-03"), (Integer) 3);
+        Assert.assertEquals(getTotal(2, "2013-01-01"), (Integer) 5);
+        Assert.assertEquals(sqlDao.getWatermark("incremental", 1L).getWatermark(), (Long) 5L);
+        Assert.assertEquals(sqlDao.getWatermark("incremental", 2L).getWatermark(), (Long) 3L);
+
+        // Up to date: the buckets within the safety window are recomputed nonetheless
+        embeddedDB.executeScript("update report_incremental set total = 100 where tenant_record_id = 1 and bucket_day in ('2013-01-02', '2013-01-03');");
+        Assert.assertFalse(incrementalRefresh.refresh(job, 1L, 5L, sqlDao));
+        Assert.assertEquals(getTotal(1, "2013-01-02"), (Integer) 100);
+        Assert.assertEquals(getTotal(1, "2013-01-03"), (Integer) 3);
+        Assert.assertTrue(incrementalRefresh.refresh(job, 1L, 6L, sqlDao));
+        Assert.assertEquals(sqlDao.getWatermark("incremental", 1L).getWatermark(), (Long) 6L);
+
+        // Row committed after the watermark moved past its record id
+        embeddedDB.executeScript("insert into analytics_incremental_sources values (6, '2013-01-04 12:00:00', 7, 1);");
+        incrementalRefresh.refresh(job);
+        Assert.assertEquals(getTotal(1, "2013-01-04"), (Integer) 7);
+        Assert.assertEquals(sqlDao.getWatermark("incremental", 1L).getWatermark(), (Long) 6L);
+    }
+
+    private Integer getTotal(final int tenantRecordId, final String day) {
+        return dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(final Handle handle) throws Exception {
+                return handle.createQuery("select total from report_incremental where tenant_record_id = :tenantRecordId and bucket_day = cast(:day as date)")
+                             .bind("tenantRecordId", tenantRecordId)
+                             .bind("day", day)
+                             .mapTo(Integer.class)
+                             .first();
+            }
+        });
+    }
+}
@@ -19,6 +19,8 @@
 
 package org.killbill.billing.plugin.analytics.reports.scheduler;
 
+import java.util.List;
+
 import org.joda.time.DateTime;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
@@ -26,6 +28,8 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 public class TestJobsScheduler extends AnalyticsTestSuiteNoDB {
 
     private JobsScheduler jobsScheduler;
@@ -60,6 +64,43 @@ public class TestJobsScheduler extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(computeNextRun(Frequency.HOURLY, null).compareTo(new DateTime(2012, 10, 5, 19, 5, 0)), 0);
     }
 
+    @Test(groups = "fast")
+    public void testJitter() throws Exception {
+        clock.setTime(new DateTime(2012, 10, 5, 18, 33, 46));
+        final AnalyticsReportJob mrr = new AnalyticsReportJob(1, "report_mrr_daily", null, null, null, Frequency.HOURLY, null, null, null, null, null, null, null);
+        final AnalyticsReportJob churn = new AnalyticsReportJob(2, "report_churn", null, null, null, Frequency.HOURLY, null, null, null, null, null, "report_mrr_daily", null);
+        final AnalyticsReportJob churnTrend = new AnalyticsReportJob(3, "report_churn_trend", null, null, null, Frequency.HOURLY, null, null, null, null, null, "report_mrr_daily, report_churn", null);
+
+        // The dependencies depths are otherwise computed from the reports configurations
+        final JobsScheduler dependenciesAwareScheduler = new JobsScheduler(killbillDataSource, metricRegistry, clock, notificationQueueService) {
+            @Override
+            int getDependencyDepth(final AnalyticsReportJob report) {
+                return ReportDependencies.computeDepths(ImmutableMap.<String, List<String>>of(mrr.getReportName(), RefreshRunner.getDependsOn(mrr),
+                                                                                             churn.getReportName(), RefreshRunner.getDependsOn(churn),
+                                                                                             churnTrend.getReportName(), RefreshRunner.getDependsOn(churnTrend)))
+                                         .get(report.getReportName());
+            }
+        };
+
+        // Deterministic, within the window
+        final DateTime mrrNextRun = dependenciesAwareScheduler.computeNextRun(mrr);
+        Assert.assertEquals(dependenciesAwareScheduler.computeNextRun(mrr).compareTo(mrrNextRun), 0);
+        Assert.assertFalse(mrrNextRun.isBefore(new DateTime(2012, 10, 5, 19, 5, 0)));
+        Assert.assertTrue(mrrNextRun.isBefore(new DateTime(2012, 10, 5, 19, 15, 0)));
+
+        // Dependent reports run one window per dependency level later
+        final DateTime churnNextRun = dependenciesAwareScheduler.computeNextRun(churn);
+        Assert.assertFalse(churnNextRun.isBefore(new DateTime(2012, 10, 5, 19, 15, 0)));
+        Assert.assertTrue(churnNextRun.isBefore(new DateTime(2012, 10, 5, 19, 25, 0)));
+        final DateTime churnTrendNextRun = dependenciesAwareScheduler.computeNextRun(churnTrend);
+        Assert.assertFalse(churnTrendNextRun.isBefore(new DateTime(2012, 10, 5, 19, 25, 0)));
+        Assert.assertTrue(churnTrendNextRun.isBefore(new DateTime(2012, 10, 5, 19, 35, 0)));
+
+        Assert.assertEquals(JobsScheduler.computeJitterSeconds(mrr, 60, 0), Math.floorMod("report_mrr_daily".hashCode(), 60));
+        Assert.assertEquals(JobsScheduler.computeJitterSeconds(churn, 60, 1), 60 + Math.floorMod("report_churn".hashCode(), 60));
+        Assert.assertEquals(JobsScheduler.computeJitterSeconds(churnTrend, 60, 2), 120 + Math.floorMod("report_churn_trend".hashCode(), 60));
+    }
+
     private DateTime computeNextRun(final Frequency frequency, final Integer refreshHourOfDayGmt) {
         return jobsScheduler.computeNextRun(new AnalyticsReportJob(null, null, null, null, null, frequency, refreshHourOfDayGmt));
     }
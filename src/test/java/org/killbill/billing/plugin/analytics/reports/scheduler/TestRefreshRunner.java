@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRefreshRunner extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testConcurrencyCap() throws Exception {
+        final RefreshRunner refreshRunner = new RefreshRunner(1, metricRegistry.getMetricRegistry());
+        refreshRunner.start();
+        try {
+            final BlockingRefresh first = new BlockingRefresh();
+            final BlockingRefresh second = new BlockingRefresh();
+            refreshRunner.submit(createJob("first", null), first);
+            Assert.assertTrue(first.started.await(10, TimeUnit.SECONDS));
+            refreshRunner.submit(createJob("second", null), second);
+
+            // Give the second refresh some time to (not) start
+            Assert.assertFalse(second.started.await(500, TimeUnit.MILLISECONDS));
+
+            first.release.countDown();
+            Assert.assertTrue(second.started.await(10, TimeUnit.SECONDS));
+            second.release.countDown();
+        } finally {
+            refreshRunner.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDependencies() throws Exception {
+        final RefreshRunner refreshRunner = new RefreshRunner(2, metricRegistry.getMetricRegistry());
+        refreshRunner.start();
+        try {
+            final BlockingRefresh mrr = new BlockingRefresh();
+            final BlockingRefresh churn = new BlockingRefresh();
+            final BlockingRefresh other = new BlockingRefresh();
+            refreshRunner.submit(createJob("report_mrr_daily", null), mrr);
+            Assert.assertTrue(mrr.started.await(10, TimeUnit.SECONDS));
+            refreshRunner.submit(createJob("report_churn", "report_mrr_daily, report_unknown"), churn);
+
+            // Not blocked by the pending dependent refresh, nor by the permits
+            refreshRunner.submit(createJob("other", null), other);
+            Assert.assertTrue(other.started.await(10, TimeUnit.SECONDS));
+            other.release.countDown();
+
+            Assert.assertFalse(churn.started.await(500, TimeUnit.MILLISECONDS));
+            mrr.release.countDown();
+            Assert.assertTrue(churn.started.await(10, TimeUnit.SECONDS));
+            churn.release.countDown();
+        } finally {
+            refreshRunner.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFailure() throws Exception {
+        final RefreshRunner refreshRunner = new RefreshRunner(1, metricRegistry.getMetricRegistry());
+        refreshRunner.start();
+        try {
+            refreshRunner.submit(createJob("failing", null), new Callable<Void>() {
+                @Override
+                public Void call() {
+                    throw new IllegalStateException("boom");
+                }
+            });
+
+            // The permit is released
+            final BlockingRefresh next = new BlockingRefresh();
+            refreshRunner.submit(createJob("next", null), next);
+            Assert.assertTrue(next.started.await(10, TimeUnit.SECONDS));
+            next.release.countDown();
+        } finally {
+            refreshRunner.shutdownNow();
+        }
+    }
+
+    private AnalyticsReportJob createJob(final String reportName, final String dependsOn) {
+        return new AnalyticsReportJob(1, reportName, reportName, reportName, "refresh_" + reportName, Frequency.HOURLY, null, null, null, null, null, dependsOn, null);
+    }
+
+    private static final class BlockingRefresh implements Callable<Void> {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Void call() throws Exception {
+            started.countDown();
+            release.await();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.List;
+import java.util.Map;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestReportDependencies extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testDepths() throws Exception {
+        final Map<String, Integer> depths = ReportDependencies.computeDepths(ImmutableMap.<String, List<String>>of("report_churn_trend", ReportDependencies.getDependsOn("report_mrr, report_churn"),
+                                                                                                                  "report_churn", ReportDependencies.getDependsOn("report_mrr"),
+                                                                                                                  "report_mrr", ReportDependencies.getDependsOn(null),
+                                                                                                                  "report_payments", ReportDependencies.getDependsOn("analytics_payments")));
+        Assert.assertEquals(depths.get("report_mrr"), (Integer) 0);
+        Assert.assertEquals(depths.get("report_churn"), (Integer) 1);
+        Assert.assertEquals(depths.get("report_churn_trend"), (Integer) 2);
+        // Inputs which aren't reports
+        Assert.assertEquals(depths.get("analytics_payments"), (Integer) 0);
+        Assert.assertEquals(depths.get("report_payments"), (Integer) 1);
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidDependencies() throws Exception {
+        // Cycles
+        checkInvalid(ImmutableMap.<String, List<String>>of("a", ImmutableList.<String>of("a")));
+        checkInvalid(ImmutableMap.<String, List<String>>of("a", ImmutableList.<String>of("b"),
+                                                           "b", ImmutableList.<String>of("c"),
+                                                           "c", ImmutableList.<String>of("a")));
+
+        // Too deep
+        final ImmutableMap.Builder<String, List<String>> chain = ImmutableMap.<String, List<String>>builder();
+        for (int i = 1; i <= ReportDependencies.MAX_DEPTH; i++) {
+            chain.put("report_" + i, ImmutableList.<String>of("report_" + (i - 1)));
+        }
+        Assert.assertEquals(ReportDependencies.computeDepths(chain.build()).get("report_" + ReportDependencies.MAX_DEPTH), (Integer) ReportDependencies.MAX_DEPTH);
+        chain.put("report_" + (ReportDependencies.MAX_DEPTH + 1), ImmutableList.<String>of("report_" + ReportDependencies.MAX_DEPTH));
+        checkInvalid(chain.build());
+    }
+
+    private void checkInvalid(final Map<String, List<String>> allDependsOn) {
+        try {
+            ReportDependencies.computeDepths(allDependsOn);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014-2020 Groupon, Inc
+ * Copyright 2020-2021 Equinix, Inc
+ * Copyright 2014-2021 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.RefreshStrategy;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestShadowTableSwap extends AnalyticsTestSuiteWithEmbeddedDB {
+
+    @Test(groups = "slow")
+    public void testSwap() throws Exception {
+        embeddedDB.executeScript("drop table if exists analytics_swap_sources;" +
+                                 "create table analytics_swap_sources(amount int, tenant_record_id int);" +
+                                 "drop view if exists v_report_swap;" +
+                                 "create view v_report_swap as select tenant_record_id, sum(amount) as total from analytics_swap_sources group by tenant_record_id;" +
+                                 "drop table if exists report_swap;" +
+                                 "create table report_swap(tenant_record_id int, total int);" +
+                                 "insert into analytics_swap_sources values (1, 1);" +
+                                 "insert into analytics_swap_sources values (2, 1);" +
+                                 "insert into analytics_swap_sources values (5, 2);");
+
+        final AnalyticsReportJob job = new AnalyticsReportJob(1,
+                                                              "swap",
+                                                              "Swap",
+                                                              "report_swap",
+                                                              "refresh_report_swap",
+                                                              Frequency.HOURLY,
+                                                              null,
+                                                              null,
+                                                              null,
+                                                              null,
+                                                              RefreshStrategy.SWAP,
+                                                              null,
+                                                              null);
+        final ShadowTableSwap shadowTableSwap = new ShadowTableSwap(dbi, embeddedDB.getDataSource());
+
+        final String previousTableName = shadowTableSwap.swap(job);
+        Assert.assertEquals(previousTableName, "report_swap_old");
+        Assert.assertEquals(getCount("select count(*) from report_swap"), 2);
+        Assert.assertEquals(getCount("select total from report_swap where tenant_record_id = 1"), 3);
+        // The previous (empty) table is kept until dropped
+        Assert.assertEquals(getCount("select count(*) from report_swap_old"), 0);
+        Assert.assertFalse(tableExists("report_swap_next"));
+
+        // Previous table not dropped yet
+        embeddedDB.executeScript("insert into analytics_swap_sources values (4, 2);");
+        shadowTableSwap.swap(job);
+        Assert.assertEquals(getCount("select total from report_swap where tenant_record_id = 2"), 9);
+        Assert.assertEquals(getCount("select total from report_swap_old where tenant_record_id = 2"), 5);
+
+        shadowTableSwap.dropTable(previousTableName);
+        Assert.assertFalse(tableExists("report_swap_old"));
+        Assert.assertTrue(tableExists("report_swap"));
+    }
+
+    private int getCount(final String sql) {
+        return dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(final Handle handle) throws Exception {
+                return handle.createQuery(sql).mapTo(Integer.class).first();
+            }
+        });
+    }
+
+    private boolean tableExists(final String tableName) {
+        return getCount("select count(*) from information_schema.tables where lower(table_name) = '" + tableName + "'") > 0;
+    }
+}
@@ -77,4 +77,23 @@ public class TestCurrencyConverter extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(expectedResult5.compareTo(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2012, 10, 15))), 0);
         Assert.assertEquals(expectedResult5.compareTo(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2012, 10, 31))), 0);
     }
+
+    @Test(groups = "fast")
+    public void testGetConvertedValueWithUnsortedOverlappingConversions() throws Exception {
+        final Map<String, List<CurrencyConversionModelDao>> currencyConversions = ImmutableMap.<String, List<CurrencyConversionModelDao>>of(
+                "EUR", ImmutableList.<CurrencyConversionModelDao>of(
+                        new CurrencyConversionModelDao("EUR", new LocalDate(2012, 9, 1), new LocalDate(2012, 9, 30), new BigDecimal("1.4"), "USD"),
+                        new CurrencyConversionModelDao("EUR", new LocalDate(2012, 1, 1), new LocalDate(2012, 12, 31), new BigDecimal("1.1"), "USD"),
+                        new CurrencyConversionModelDao("EUR", new LocalDate(2012, 9, 1), new LocalDate(2012, 9, 10), new BigDecimal("1.5"), "USD"))
+                                                                                                                                           );
+        final CurrencyConverter currencyConverter = new CurrencyConverter(new DefaultClock(), "USD", currencyConversions);
+
+        // Only the yearly conversion applies
+        Assert.assertEquals(new BigDecimal("11").compareTo(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2012, 1, 1))), 0);
+        Assert.assertEquals(new BigDecimal("11").compareTo(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2012, 10, 1))), 0);
+        // Both September conversions start on the same day: the first one wins
+        Assert.assertEquals(new BigDecimal("14").compareTo(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2012, 9, 5))), 0);
+        Assert.assertEquals(new BigDecimal("14").compareTo(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2012, 9, 20))), 0);
+        Assert.assertNull(currencyConverter.getConvertedValue(BigDecimal.TEN, "EUR", new LocalDate(2013, 1, 1)));
+    }
 }